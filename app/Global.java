@@ -17,7 +17,9 @@
  * under the License.
  */
 
+import db.IngestJobs;
 import db.MongoConnection;
+import db.UploadDAO;
 import models.User;
 import models.utils.AppException;
 import play.Application;
@@ -44,6 +46,11 @@ public class Global extends GlobalSettings{
         MongoConnection con = MongoConnection.getInstance();
         con.initGroupsCollection();
         con.initTagsCollection();
+        con.initIndexes();
+        con.initFrameCounts();
+        IngestJobs.recover();
+        IngestJobs.startHeartbeat();
+        UploadDAO.startSweeper();
     }
 
     private void registerAdmins() throws AppException {
@@ -3,27 +3,36 @@ package controllers;
 import com.fasterxml.jackson.databind.JsonNode;
 import db.Constants;
 import db.ArtifactDAO;
+import db.FrameDeltas;
 import db.GroupsDAO;
+import db.PlaybackSession;
+import db.PlotBinarySerializer;
+import db.PointOctree;
 import db.TagsDAO;
 import models.*;
 import models.utils.AppException;
+import org.apache.commons.io.IOUtils;
 import play.Logger;
 import play.data.DynamicForm;
 import play.data.Form;
 import play.data.validation.Constraints;
+import play.libs.F;
 import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Result;
 import play.mvc.Security;
+import play.mvc.WebSocket;
 import views.html.*;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPInputStream;
 
 import static play.data.Form.form;
 
@@ -34,7 +43,7 @@ public class Application extends Controller {
     );
 
     public static Result index() {
-        User loggedInUser = User.findByEmail(session().get("email"));
+        User loggedInUser = Secured.user();
         return ok(index.render(loggedInUser));
     }
 
@@ -81,20 +90,18 @@ public class Application extends Controller {
     public static Result dashboard() {
         ArtifactDAO db = ArtifactDAO.getInstance();
 
-        User loggedInUser = User.findByEmail(request().username());
-        return ok(dashboard.render(loggedInUser, false, null, db.timeSeriesList(loggedInUser.email),
+        User loggedInUser = Secured.user();
+        return ok(dashboard.render(loggedInUser, false, null,
+            db.timeSeriesList(loggedInUser.email, listingSort(), listingCursor(), listingSize()),
             GroupsDAO.allGroups(loggedInUser.email), false,false,null,null, false, "Dashboard"));
     }
 
 
     public static Result publicDashboard() {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        String email = session().get("email");
-        User loggedInUser = null;
-        if (email != null) {
-            loggedInUser = User.findByEmail(email);
-        }
-        return ok(dashboard.render(loggedInUser, false, null, db.timeSeriesList(null),
+        User loggedInUser = Secured.user();
+        return ok(dashboard.render(loggedInUser, false, null,
+            db.timeSeriesList(null, listingSort(), listingCursor(), listingSize()),
             GroupsDAO.allGroups(null), false, false, null, null, true, "Public"));
     }
 
@@ -102,10 +109,11 @@ public class Application extends Controller {
     public static Result groupDashboard(String group) {
         ArtifactDAO db = ArtifactDAO.getInstance();
 
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         Group g = new Group(loggedInUser.email, group);
         if (GroupsDAO.groupExists(g)) {
-            return ok(dashboard.render(loggedInUser, false, null, db.timeSeriesList(g, loggedInUser.email),
+            return ok(dashboard.render(loggedInUser, false, null,
+                db.timeSeriesList(g, loggedInUser.email, listingSort(), listingCursor(), listingSize()),
                 GroupsDAO.allGroups(loggedInUser.email), true, false, null, group, false, "Dashboard"));
         } else {
             return ok(dashboard.render(loggedInUser, false, null, db.timeSeriesList(loggedInUser.email),
@@ -116,18 +124,14 @@ public class Application extends Controller {
     public static Result publicInfo(int id) {
         ArtifactDAO db = ArtifactDAO.getInstance();
         TimeSeries timeSeriesProps = db.timeSeries(id, null);
-        String email = session().get("email");
-        User loggedInUser = null;
-        if (email != null) {
-            loggedInUser = User.findByEmail(email);
-        }
+        User loggedInUser = Secured.user();
         return ok(info.render(loggedInUser, timeSeriesProps, GroupsDAO.allGroups(null)));
     }
 
     @Security.Authenticated(Secured.class)
     public static Result info(int id) {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         TimeSeries timeSeriesProps = db.timeSeries(id, loggedInUser.email);
         return ok(info.render(loggedInUser, timeSeriesProps, GroupsDAO.allGroups(loggedInUser.email)));
     }
@@ -136,13 +140,10 @@ public class Application extends Controller {
         ArtifactDAO db = ArtifactDAO.getInstance();
 
         Group g = new Group(null, group);
-        String email = session().get("email");
-        User loggedInUser = null;
-        if (email != null) {
-            loggedInUser = User.findByEmail(email);
-        }
+        User loggedInUser = Secured.user();
         if (GroupsDAO.groupExists(g)) {
-            return ok(dashboard.render(loggedInUser, false, null, db.timeSeriesList(g, null),
+            return ok(dashboard.render(loggedInUser, false, null,
+                db.timeSeriesList(g, null, listingSort(), listingCursor(), listingSize()),
                 GroupsDAO.allGroups(null), true, false, null, group, true, "Public"));
         } else {
             return ok(dashboard.render(loggedInUser, false, null, db.timeSeriesList(null),
@@ -152,14 +153,14 @@ public class Application extends Controller {
 
     @Security.Authenticated(Secured.class)
     public static Result about() {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         return ok(about.render(loggedInUser));
     }
 
     @Security.Authenticated(Secured.class)
     public static Result delete(int timeSeriesId){
         //TODO delete time series
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         ArtifactDAO db = ArtifactDAO.getInstance();
         db.deleteTimeSeries(timeSeriesId, loggedInUser.email);
         return GO_DASHBOARD;
@@ -168,7 +169,7 @@ public class Application extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result upload() throws IOException {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         Http.MultipartFormData body = request().body().asMultipartFormData();
         Http.MultipartFormData.FilePart resultSet = body.getFile("file");
         String originalFileName = resultSet.getFilename();
@@ -176,6 +177,7 @@ public class Application extends Controller {
         String[] desc = body.asFormUrlEncoded().get("desc");
         String[] grp = body.asFormUrlEncoded().get("group");
         String[] fromGroupForm = body.asFormUrlEncoded().get("from_group");
+        String[] precisionForm = body.asFormUrlEncoded().get("precision");
 
         String description = "No description";
         String group = Constants.Group.DEFAULT_GROUP;
@@ -191,16 +193,12 @@ public class Application extends Controller {
 
         File file = resultSet.getFile();
         Logger.info(String.format("User %s uploaded a new result of name %s", loggedInUser.email, originalFileName));
-        boolean isZipped = new ZipInputStream(new FileInputStream(file)).getNextEntry() != null;
         try {
-            if (isZipped) {
-                db.insertZipFile(originalFileName, description, loggedInUser.email, file, group);
-            } else {
-                db.insertSingleFile(originalFileName, description, loggedInUser.email, file, group);
-            }
+            db.insertUpload(originalFileName, description, loggedInUser.email, file, group,
+                    precisionForm != null && precisionForm.length >= 1 ? precisionForm[0] : null);
         } catch (Exception e) {
-            Logger.error("Failed to create time series from zip", e);
-            return badRequest(dashboard.render(loggedInUser, true, "Failed to read zip file.",
+            Logger.error("Failed to queue the upload " + originalFileName, e);
+            return badRequest(dashboard.render(loggedInUser, true, "Failed to upload file. " + e.getMessage(),
                 db.timeSeriesList(loggedInUser.email), GroupsDAO.allGroups(loggedInUser.email),
                 false, false, null, null, false, "Dashboard"));
         }
@@ -221,7 +219,7 @@ public class Application extends Controller {
 
         String description, group, id, fromGroup = null, pub, name;
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
 
         if (form.data().size() == 0) {
             return badRequest(dashboard.render(loggedInUser, true, "Update parameters should be present",
@@ -276,7 +274,7 @@ public class Application extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result savePlot() {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         JsonNode json = request().body().asJson();
         String body = Json.stringify(json);
         int timeSeriesId = 0;
@@ -296,7 +294,7 @@ public class Application extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result singlePage(int timeSeriesId) {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         ResultSet r = db.individualFile(timeSeriesId, loggedInUser.email);
         if (r != null) {
             return ok(resultset.render(loggedInUser, r.id, timeSeriesId, r.name, false));
@@ -310,7 +308,7 @@ public class Application extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result timeSeriesPage(int timeSeriesId) {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
 
         TimeSeries timeSeriesProps = db.timeSeries(timeSeriesId, loggedInUser.email);
         int id = timeSeriesProps.id;
@@ -321,11 +319,7 @@ public class Application extends Controller {
     public static Result singlePublicPage(int timeSeriesId) {
         ArtifactDAO db = ArtifactDAO.getInstance();
         ResultSet r = db.individualFile(timeSeriesId, null);
-        String email = session().get("email");
-        User loggedInUser = null;
-        if (email != null) {
-            loggedInUser = User.findByEmail(email);
-        }
+        User loggedInUser = Secured.user();
         if (r != null) {
             return ok(resultset.render(loggedInUser, r.id, timeSeriesId, r.name, true));
         } else {
@@ -339,11 +333,7 @@ public class Application extends Controller {
         TimeSeries timeSeriesProps = db.timeSeries(timeSeriesId, null);
         int id = timeSeriesProps.id;
         String name = timeSeriesProps.name;
-        String email = session().get("email");
-        User loggedInUser = null;
-        if (email != null) {
-            loggedInUser = User.findByEmail(email);
-        }
+        User loggedInUser = Secured.user();
         return ok(timeseries.render(loggedInUser, id, name, true));
     }
 
@@ -366,40 +356,457 @@ public class Application extends Controller {
     }
 
     /**
-     * Get the individual plot with the clusters, points and edges
+     * Get the individual plot with the clusters, points and edges. With ?lod=n only the points of that
+     * level of detail are sent, a file without that level is sent whole.
      * @param tid artifact id
      * @param rid file id
      * @return
      */
     @Security.Authenticated(Secured.class)
     public static Result getFile(int tid, int rid) {
-        long t0 = System.currentTimeMillis();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
+        ArtifactDAO db = ArtifactDAO.getInstance();
+        boolean binary = acceptsBinary();
+        boolean gzip = !binary && acceptsGzip();
+        Integer lod = lod();
+        if (notModified(db.getFileHash(tid, rid, loggedInUser.email), binary, gzip, lod, "private")) {
+            return status(NOT_MODIFIED);
+        }
+        if (binary) {
+            return binaryFile(db.getFileBinary(tid, rid, loggedInUser.email, lod));
+        }
+        return jsonFile(db, tid, rid, loggedInUser.email, gzip, lod);
+    }
+
+    /**
+     * Get the individual plot with the clusters, points and edges, see {@link #getFile(int, int)}
+     * @param tid artifact id
+     * @param rid file id
+     * @return
+     */
+    public static Result getPublicFile(int tid, int rid) {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        String r = db.getFile(tid, rid, loggedInUser.email);
-        Logger.info("Time: " + (System.currentTimeMillis() - t0));
+        boolean binary = acceptsBinary();
+        boolean gzip = !binary && acceptsGzip();
+        Integer lod = lod();
+        if (notModified(db.getFileHash(tid, rid, null), binary, gzip, lod, "public")) {
+            return status(NOT_MODIFIED);
+        }
+        if (binary) {
+            return binaryFile(db.getFileBinary(tid, rid, null, lod));
+        }
+        return jsonFile(db, tid, rid, null, gzip, lod);
+    }
+
+    /**
+     * The order of a listing, ?sort=date or ?sort=name
+     */
+    static String listingSort() {
+        return request().getQueryString("sort");
+    }
+
+    /**
+     * The page of a listing, ?cursor= the next page cursor of the previous page
+     */
+    static String listingCursor() {
+        return request().getQueryString("cursor");
+    }
+
+    /**
+     * The number of artifacts in a page of a listing, ?size=n, 0 for the default size
+     */
+    static int listingSize() {
+        String size = request().getQueryString("size");
+        if (size == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(size));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the level of detail asked for, null for the whole file
+     */
+    private static Integer lod() {
+        String lod = request().getQueryString("lod");
+        if (lod == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(lod);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the frames from to to of a time series in one response, see {@link db.PlotStream} for the format
+     * @param tid artifact id
+     * @param from first file id
+     * @param to end of the range, at most {@link ArtifactDAO#MAX_FRAMES} after from
+     * @return
+     */
+    @Security.Authenticated(Secured.class)
+    public static Result getFrames(int tid, int from, int to) {
+        User loggedInUser = Secured.user();
+        return frames(tid, from, to, loggedInUser.email);
+    }
+
+    public static Result getPublicFrames(int tid, int from, int to) {
+        return frames(tid, from, to, null);
+    }
+
+    private static Result frames(int tid, int from, int to, String user) {
+        if (to <= from || to - from > ArtifactDAO.MAX_FRAMES) {
+            return badRequest("{status: 'fail'}").as("application/json");
+        }
+        boolean gzip = acceptsGzip();
+        InputStream r;
+        try {
+            r = ArtifactDAO.getInstance().getFrames(tid, from, to, user, gzip);
+        } catch (RejectedExecutionException e) {
+            return busy();
+        }
         if (r != null) {
-            return ok(r).as("application/json");
+            if (gzip) {
+                response().setHeader(CONTENT_ENCODING, "gzip");
+            }
+            return ok(r).as("application/octet-stream");
         } else {
             return notFound("{found: false}").as("application/json");
         }
     }
 
     /**
-     * Get the individual plot with the clusters, points and edges
+     * Get the points of a plot inside a region with their clusters and the edges between them. The region
+     * is a box with ?box=minX,minY,minZ,maxX,maxY,maxZ or a camera frustum with ?frustum= and the a,b,c,d
+     * of each plane, a point is inside when a * x + b * y + c * z + d >= 0 for all the planes. The region
+     * is in the coordinates of the plot file.
      * @param tid artifact id
      * @param rid file id
      * @return
      */
-    public static Result getPublicFile(int tid, int rid) {
-        long t0 = System.currentTimeMillis();
+    @Security.Authenticated(Secured.class)
+    public static Result getFileRegion(int tid, int rid) {
+        User loggedInUser = Secured.user();
+        return fileRegion(tid, rid, loggedInUser.email);
+    }
+
+    public static Result getPublicFileRegion(int tid, int rid) {
+        return fileRegion(tid, rid, null);
+    }
+
+    private static Result fileRegion(int tid, int rid, String user) {
+        double[][] planes = region();
+        if (planes == null) {
+            return badRequest("{status: 'fail'}").as("application/json");
+        }
         ArtifactDAO db = ArtifactDAO.getInstance();
-        String r = db.getFile(tid, rid, null);
-        Logger.info("Time: " + (System.currentTimeMillis() - t0));
+        if (acceptsBinary()) {
+            return binaryFile(db.getFileBinaryRegion(tid, rid, user, planes));
+        }
+        boolean gzip = acceptsGzip();
+        InputStream r;
+        try {
+            r = db.getFileRegion(tid, rid, user, gzip, planes);
+        } catch (RejectedExecutionException e) {
+            return busy();
+        }
         if (r != null) {
+            if (gzip) {
+                response().setHeader(CONTENT_ENCODING, "gzip");
+            }
             return ok(r).as("application/json");
         } else {
-            return notFound("{found: false}");
+            return notFound("{found: false}").as("application/json");
+        }
+    }
+
+    /**
+     * @return the planes of the region asked for, null if there is no region or it cannot be read
+     */
+    private static double[][] region() {
+        String box = request().getQueryString("box");
+        String frustum = request().getQueryString("frustum");
+        try {
+            if (box != null) {
+                double[] corners = numbers(box);
+                return corners.length == 6 ? PointOctree.box(corners) : null;
+            } else if (frustum != null) {
+                double[] values = numbers(frustum);
+                if (values.length == 0 || values.length % 4 != 0) {
+                    return null;
+                }
+                double[][] planes = new double[values.length / 4][];
+                for (int i = 0; i < planes.length; i++) {
+                    planes[i] = Arrays.copyOfRange(values, i * 4, i * 4 + 4);
+                }
+                return planes;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private static double[] numbers(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Get the positions of some points over all the frames of a time series. The points are given with
+     * ?keys=k1,k2,... or as the points of a cluster in a frame with ?cluster=c&frame=n, the frame is 0 by
+     * default.
+     * @param tid artifact id
+     * @return the trajectories, not found while the trajectories of the time series are being built
+     */
+    @Security.Authenticated(Secured.class)
+    public static Result getTrajectories(int tid) {
+        User loggedInUser = Secured.user();
+        return trajectories(tid, loggedInUser.email);
+    }
+
+    public static Result getPublicTrajectories(int tid) {
+        return trajectories(tid, null);
+    }
+
+    private static Result trajectories(int tid, String user) {
+        String keys = request().getQueryString("keys");
+        String cluster = request().getQueryString("cluster");
+        String frame = request().getQueryString("frame");
+        String r;
+        try {
+            if (keys != null) {
+                String[] parts = keys.split(",");
+                if (parts.length > ArtifactDAO.MAX_TRAJECTORIES) {
+                    return badRequest("{status: 'fail'}").as("application/json");
+                }
+                int[] pointKeys = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    pointKeys[i] = Integer.parseInt(parts[i].trim());
+                }
+                r = ArtifactDAO.getInstance().getTrajectories(tid, user, pointKeys, 0, 0);
+            } else if (cluster != null) {
+                r = ArtifactDAO.getInstance().getTrajectories(tid, user, null, Integer.parseInt(cluster),
+                        frame != null ? Integer.parseInt(frame) : 0);
+            } else {
+                return badRequest("{status: 'fail'}").as("application/json");
+            }
+        } catch (NumberFormatException e) {
+            return badRequest("{status: 'fail'}").as("application/json");
+        }
+        if (r != null) {
+            return ok(r).as("application/json");
+        } else {
+            return notFound("{found: false}").as("application/json");
+        }
+    }
+
+    /**
+     * Play a time series over a web socket, see {@link PlaybackSession}. The client sends
+     * {type: 'subscribe', frame, speed, direction, buffer} to start, {type: 'position', frame} each time
+     * it shows a frame and {type: 'seek', frame} when the slider is moved.
+     * @param tid artifact id
+     * @return
+     */
+    public static WebSocket<String> playback(int tid) {
+        User user = Secured.user();
+        if (user == null) {
+            return WebSocket.reject(forbidden());
+        }
+        return playbackSocket(tid, user.email);
+    }
+
+    public static WebSocket<String> publicPlayback(int tid) {
+        return playbackSocket(tid, null);
+    }
+
+    private static WebSocket<String> playbackSocket(final int tid, final String user) {
+        return new WebSocket<String>() {
+            @Override
+            public void onReady(WebSocket.In<String> in, final WebSocket.Out<String> out) {
+                final PlaybackSession session = PlaybackSession.open(tid, user, new PlaybackSession.Sink() {
+                    @Override
+                    public void send(String message) {
+                        out.write(message);
+                    }
+                });
+                if (session == null) {
+                    out.close();
+                    return;
+                }
+                in.onMessage(new F.Callback<String>() {
+                    @Override
+                    public void invoke(String message) {
+                        session.receive(message);
+                    }
+                });
+                in.onClose(new F.Callback0() {
+                    @Override
+                    public void invoke() {
+                        session.close();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Get a frame of a time series encoded against the frame before it, for playback
+     * @param tid artifact id
+     * @param n frame number
+     * @return the encoded frame, not found while the deltas of the time series are being built
+     */
+    @Security.Authenticated(Secured.class)
+    public static Result getFrameDelta(int tid, int n) {
+        User loggedInUser = Secured.user();
+        return frameDelta(ArtifactDAO.getInstance().getFrameDelta(tid, n, loggedInUser.email));
+    }
+
+    public static Result getPublicFrameDelta(int tid, int n) {
+        return frameDelta(ArtifactDAO.getInstance().getFrameDelta(tid, n, null));
+    }
+
+    private static Result frameDelta(byte[] frame) {
+        if (frame != null) {
+            return ok(frame).as(FrameDeltas.MIME_TYPE);
+        } else {
+            return notFound("{found: false}").as("application/json");
+        }
+    }
+
+    /**
+     * The viewer asks for the binary plot format with the accept header, the JSON format stays the default
+     * @return true if the binary format is accepted
+     */
+    private static boolean acceptsBinary() {
+        response().setHeader(VARY, ACCEPT + ", " + ACCEPT_ENCODING);
+        String accept = request().getHeader(ACCEPT);
+        return accept != null && accept.contains(PlotBinarySerializer.MIME_TYPE);
+    }
+
+    private static boolean acceptsGzip() {
+        String acceptEncoding = request().getHeader(ACCEPT_ENCODING);
+        return acceptEncoding != null && acceptEncoding.contains("gzip")
+                && !acceptEncoding.replace(" ", "").contains("gzip;q=0");
+    }
+
+    /**
+     * A file never changes once it is inserted, so it is cached with its content hash in the ETag. Each
+     * format and encoding of a file has its own ETag. A public file can still be deleted or made private,
+     * so shared caches have to revalidate it on each use, while a private file is kept by the browser.
+     * @param hash content hash of the file, null for files inserted without a hash
+     * @param binary weather the binary format is sent
+     * @param gzip weather the JSON is sent compressed
+     * @param lod level of detail, null for the whole file
+     * @param scope public or private caching
+     * @return true if the client already has the file
+     */
+    private static boolean notModified(String hash, boolean binary, boolean gzip, Integer lod, String scope) {
+        if (hash == null) {
+            return false;
+        }
+        String etag = etag(hash, binary, gzip, lod);
+        response().setHeader(ETAG, etag);
+        response().setHeader(CACHE_CONTROL, cacheControl(scope));
+        return matches(request().getHeader(IF_NONE_MATCH), etag);
+    }
+
+    /**
+     * The ETag of a representation of a file. The gzip of a stored payload and of a file compressed while it
+     * is sent differ in their bytes, so the compressed JSON has a weak ETag.
+     */
+    static String etag(String hash, boolean binary, boolean gzip, Integer lod) {
+        String tag = "\"" + hash + (binary ? "-b" + PlotBinarySerializer.VERSION : gzip ? "-jz" : "-j")
+                + (lod != null ? "-l" + lod : "") + "\"";
+        return gzip ? "W/" + tag : tag;
+    }
+
+    static String cacheControl(String scope) {
+        return "public".equals(scope) ? "public, no-cache" : scope + ", max-age=31536000";
+    }
+
+    /**
+     * Weather an If-None-Match header names an ETag, comparing weak and strong tags alike
+     * @param ifNoneMatch the header, null if the request doesn't have it
+     * @param etag the ETag of the response
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(opaque) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send the JSON of a file. The stored payload is streamed as it is when the client accepts gzip, the
+     * file is only serialized from its chunks when it doesn't have a payload yet.
+     */
+    private static Result jsonFile(ArtifactDAO db, int tid, int rid, String user, boolean gzip, Integer lod) {
+        long t0 = System.currentTimeMillis();
+        // the stored payload has all the points
+        InputStream payload = lod == null ? db.getFilePayload(tid, rid, user) : null;
+        if (payload != null) {
+            if (gzip) {
+                response().setHeader(CONTENT_ENCODING, "gzip");
+                return ok(payload).as("application/json");
+            }
+            try {
+                return ok(new GZIPInputStream(payload)).as("application/json");
+            } catch (IOException e) {
+                Logger.error("Failed to read payload with tid: " + tid + " fid: " + rid, e);
+                IOUtils.closeQuietly(payload);
+            }
+        }
+
+        InputStream r;
+        try {
+            r = db.getFile(tid, rid, user, gzip, lod);
+        } catch (RejectedExecutionException e) {
+            return busy();
+        }
+        Logger.info("Time to first chunk: " + (System.currentTimeMillis() - t0));
+        if (r != null) {
+            if (gzip) {
+                response().setHeader(CONTENT_ENCODING, "gzip");
+            }
+            return ok(r).as("application/json");
+        } else {
+            return notFound("{found: false}").as("application/json");
+        }
+    }
+
+    /**
+     * Too many files are being streamed, the client can try again
+     */
+    private static Result busy() {
+        response().setHeader(RETRY_AFTER, "1");
+        return status(SERVICE_UNAVAILABLE, "{status: 'busy'}").as("application/json");
+    }
+
+    private static Result binaryFile(byte[] file) {
+        if (file != null) {
+            return ok(file).as(PlotBinarySerializer.MIME_TYPE);
+        } else {
+            return notFound("{found: false}").as("application/json");
         }
     }
 
@@ -411,7 +818,7 @@ public class Application extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result getArtifact(int id) {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         String r = db.getArtifact(id, loggedInUser.email);
         JsonNode result = Json.parse(r);
         return ok(result);
@@ -12,7 +12,7 @@ public class CommentController extends Controller {
 
     @Security.Authenticated(Secured.class)
     public static Result addComment() {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
 
         JsonNode json = request().body().asJson();
         String text = json.get(Constants.Comment.TEXT).asText();
@@ -24,7 +24,7 @@ public class CommentController extends Controller {
 
     @Security.Authenticated(Secured.class)
     public static Result getComments(int artifactId) {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         String comment = CommentDAO.getComments(artifactId, loggedInUser.email);
         if (comment != null) {
             return ok(comment).as("application/json");
@@ -35,14 +35,14 @@ public class CommentController extends Controller {
 
     @Security.Authenticated(Secured.class)
     public static Result removeComment(int artifactId, String id) {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         CommentDAO.deleteComment(artifactId, loggedInUser.email, id);
         return ok("{status: 'success'}").as("application/json");
     }
 
     @Security.Authenticated(Secured.class)
     public static Result updateComment(int artifactId, String id, String comment) {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         CommentDAO.updateComment(artifactId, loggedInUser.email, id, comment);
         return ok("{status: 'success'}").as("application/json");
     }
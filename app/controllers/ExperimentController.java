@@ -12,7 +12,7 @@ import play.mvc.Security;
 public class ExperimentController extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result getExperiment(int artifactId) {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         String comment = ExperimentDAO.getExperiment(artifactId, loggedInUser.email);
         if (comment != null) {
             return ok(comment).as("application/json");
@@ -23,7 +23,7 @@ public class ExperimentController extends Controller {
 
     @Security.Authenticated(Secured.class)
     public static Result updateExperiment() {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         JsonNode json = request().body().asJson();
         JsonNode expNode = json.get(Constants.Experiment.EXP);
         String body = Json.stringify(expNode);
@@ -25,7 +25,7 @@ public class GroupController extends Controller {
     public static Result groups() {
         ArtifactDAO db = ArtifactDAO.getInstance();
 
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         return ok(groups.render(loggedInUser, false, null, GroupsDAO.allGroups(loggedInUser.email)));
     }
 
@@ -35,7 +35,7 @@ public class GroupController extends Controller {
 
         String name, description, fromGroup;
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
 
         if (form.data().size() == 0) {
             return badRequest(dashboard.render(loggedInUser, true, "No data", db.timeSeriesList(loggedInUser.email), GroupsDAO.allGroups(loggedInUser.email), false, false, null, null, false, "Dashboard"));
@@ -63,7 +63,7 @@ public class GroupController extends Controller {
 
         String name, description, fromGroup = null, pub;
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
 
         if (form.data().size() == 0) {
             return badRequest(dashboard.render(loggedInUser, true, "No group information", db.timeSeriesList(loggedInUser.email), GroupsDAO.allGroups(loggedInUser.email), false, false, null, null, false, "Dashboard"));
@@ -95,7 +95,7 @@ public class GroupController extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result removeGroup(String name) {
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
 
         Group group = new Group(loggedInUser.email, name);
         if (GroupsDAO.groupExists(group)) {
@@ -0,0 +1,42 @@
+package controllers;
+
+import db.IngestJobs;
+import models.User;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.Security;
+
+public class JobController extends Controller {
+
+    @Security.Authenticated(Secured.class)
+    public static Result getJobs() {
+        User loggedInUser = Secured.user();
+        return ok(IngestJobs.getJobs(loggedInUser.email)).as("application/json");
+    }
+
+    /**
+     * Status and progress of the ingestion job of an artifact
+     * @param id artifact id
+     * @return the job record
+     */
+    @Security.Authenticated(Secured.class)
+    public static Result getJob(int id) {
+        User loggedInUser = Secured.user();
+        String job = IngestJobs.getJob(id, loggedInUser.email);
+        if (job != null) {
+            return ok(job).as("application/json");
+        } else {
+            return notFound("{found: false}").as("application/json");
+        }
+    }
+
+    @Security.Authenticated(Secured.class)
+    public static Result cancelJob(int id) {
+        User loggedInUser = Secured.user();
+        if (IngestJobs.cancel(id, loggedInUser.email)) {
+            return ok("{status: 'success'}").as("application/json");
+        } else {
+            return badRequest("{status: 'fail'}").as("application/json");
+        }
+    }
+}
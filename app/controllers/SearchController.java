@@ -4,28 +4,27 @@ package controllers;
 import db.GroupsDAO;
 import db.SearchDAO;
 import db.TagsDAO;
-import models.Group;
-import models.TimeSeries;
+import models.ArtifactPage;
 import models.User;
 import play.mvc.Controller;
 import play.mvc.Result;
 import play.mvc.Security;
 import views.html.dashboard;
 
-import java.util.List;
-
 public class SearchController extends Controller {
     @Security.Authenticated(Secured.class)
     public static Result searchArtifactsByTag(String tagname) {
-        User loggedInUser = User.findByEmail(request().username());
-        List<TimeSeries> taggedtimeseries = null;
+        User loggedInUser = Secured.user();
+        ArtifactPage taggedtimeseries = null;
         String[] tagslist;
         if(tagname.indexOf(",") == -1){
-            taggedtimeseries = SearchDAO.getArtifactsByTag(loggedInUser.email,tagname);
+            taggedtimeseries = SearchDAO.getArtifactsByTag(loggedInUser.email, tagname,
+                    Application.listingSort(), Application.listingCursor(), Application.listingSize());
             tagslist = new String[]{tagname};
         }else{
             tagslist = tagname.split(",");
-            taggedtimeseries = SearchDAO.getArtifactsByTags(loggedInUser.email,tagslist);
+            taggedtimeseries = SearchDAO.getArtifactsByTags(loggedInUser.email, tagslist,
+                    Application.listingSort(), Application.listingCursor(), Application.listingSize());
         }
 
         if (taggedtimeseries != null) {
@@ -37,14 +36,16 @@ public class SearchController extends Controller {
 
     public static Result searchArtifactsByTagPublic(String tagname) {
         User loggedInUser = null;
-        List<TimeSeries> taggedtimeseries = null;
+        ArtifactPage taggedtimeseries = null;
         String[] tagslist;
         if(tagname.indexOf(",") == -1){
-            taggedtimeseries = SearchDAO.getArtifactsByTag(null,tagname);
+            taggedtimeseries = SearchDAO.getArtifactsByTag(null, tagname,
+                    Application.listingSort(), Application.listingCursor(), Application.listingSize());
             tagslist = new String[]{tagname};
         }else{
             tagslist = tagname.split(",");
-            taggedtimeseries = SearchDAO.getArtifactsByTags(null,tagslist);
+            taggedtimeseries = SearchDAO.getArtifactsByTags(null, tagslist,
+                    Application.listingSort(), Application.listingCursor(), Application.listingSize());
         }
         if (taggedtimeseries != null) {
             return ok(dashboard.render(loggedInUser, false, null, taggedtimeseries, GroupsDAO.allGroups(null), false, true, tagslist, null, true, "Public"));
@@ -18,16 +18,40 @@
  */
 package controllers;
 
+import models.User;
+import models.utils.PrincipalCache;
 import play.mvc.Http;
 import play.mvc.Result;
 import play.mvc.Security;
 import views.html.about;
 
 public class Secured extends Security.Authenticator{
+    // the signed in user in the arguments of the request context
+    private static final String USER = "user";
 
     @Override
     public String getUsername(Http.Context context) {
-        return context.session().get("email");
+        User user = user(context);
+        return user != null ? user.email : null;
+    }
+
+    /**
+     * The signed in user of the current request. The user is resolved once per request, from the cache of
+     * the signed in users.
+     * @return the user, null if no one is signed in
+     */
+    public static User user() {
+        return user(Http.Context.current());
+    }
+
+    private static User user(Http.Context context) {
+        if (context.args.containsKey(USER)) {
+            return (User) context.args.get(USER);
+        }
+        String email = context.session().get("email");
+        User user = email != null ? PrincipalCache.get(email) : null;
+        context.args.put(USER, user);
+        return user;
     }
 
     @Override
@@ -0,0 +1,40 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import db.AccessCache;
+import db.FrameCache;
+import db.ListingCache;
+import models.utils.PrincipalCache;
+import play.libs.Json;
+import play.mvc.Controller;
+import play.mvc.Result;
+import play.mvc.Security;
+
+/**
+ * Counters of the in process caches, to see how well they are sized
+ */
+public class StatsController extends Controller {
+
+    @Security.Authenticated(Secured.class)
+    public static Result getCaches() {
+        ObjectNode result = Json.newObject();
+        ObjectNode frames = result.putObject("frames");
+        frames.put("hits", FrameCache.getHits());
+        frames.put("misses", FrameCache.getMisses());
+        frames.put("evictions", FrameCache.getEvictions());
+        frames.put("bytes", FrameCache.getBytes());
+        ObjectNode access = result.putObject("access");
+        access.put("hits", AccessCache.getHits());
+        access.put("misses", AccessCache.getMisses());
+        access.put("hitRate", AccessCache.getHitRate());
+        ObjectNode listings = result.putObject("listings");
+        listings.put("hits", ListingCache.getHits());
+        listings.put("misses", ListingCache.getMisses());
+        listings.put("hitRate", ListingCache.getHitRate());
+        ObjectNode principals = result.putObject("principals");
+        principals.put("hits", PrincipalCache.getHits());
+        principals.put("misses", PrincipalCache.getMisses());
+        principals.put("hitRate", PrincipalCache.getHitRate());
+        return ok(result);
+    }
+}
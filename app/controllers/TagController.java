@@ -14,7 +14,7 @@ import play.mvc.Security;
 public class TagController extends Controller {
 
     public static Result getAllTags() {
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         String tags = null;
         if(loggedInUser == null){
              tags = TagsDAO.allTags(null);
@@ -33,7 +33,7 @@ public class TagController extends Controller {
 
         String tagname, description, category, fromGroup;
         ArtifactDAO db = ArtifactDAO.getInstance();
-        User loggedInUser = User.findByEmail(request().username());
+        User loggedInUser = Secured.user();
         JsonNode json = request().body().asJson();
         tagname = json.get(Constants.Tags.NAME).asText();
         description = json.get(Constants.Tags.DESCRIPTION).asText();
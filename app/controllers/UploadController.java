@@ -0,0 +1,112 @@
+package controllers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import db.Constants;
+import db.UploadDAO;
+import models.User;
+import play.Logger;
+import play.libs.Json;
+import play.mvc.BodyParser;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Security;
+
+/**
+ * Upload of large files in parts. A client creates a session with the size of the file and of the parts,
+ * puts the parts in any order, asks for the session to find the missing parts after a failure and
+ * completes the session to start the ingestion.
+ */
+public class UploadController extends Controller {
+
+    @Security.Authenticated(Secured.class)
+    public static Result createUpload() {
+        User loggedInUser = Secured.user();
+        JsonNode json = request().body().asJson();
+        if (json == null || !json.has(Constants.Upload.FILE_NAME_FIELD) || !json.has(Constants.Upload.SIZE)
+                || !json.has(Constants.Upload.PART_SIZE)) {
+            return badRequest("{status: 'fail'}").as("application/json");
+        }
+        String description = json.has(Constants.Upload.DESCRIPTION) ?
+                json.get(Constants.Upload.DESCRIPTION).asText() : "No description";
+        String group = json.has(Constants.Upload.GROUP) ?
+                json.get(Constants.Upload.GROUP).asText() : Constants.Group.DEFAULT_GROUP;
+        String precision = json.has(Constants.Upload.PRECISION) ? json.get(Constants.Upload.PRECISION).asText() : null;
+        try {
+            String session = UploadDAO.create(loggedInUser.email, json.get(Constants.Upload.FILE_NAME_FIELD).asText(),
+                    description, group, precision, json.get(Constants.Upload.SIZE).asLong(),
+                    json.get(Constants.Upload.PART_SIZE).asInt());
+            return ok(session).as("application/json");
+        } catch (Exception e) {
+            Logger.error("Failed to start an upload", e);
+            return fail(e);
+        }
+    }
+
+    /**
+     * Received and missing parts of an upload
+     * @param id session id
+     * @return the session
+     */
+    @Security.Authenticated(Secured.class)
+    public static Result getUpload(String id) {
+        User loggedInUser = Secured.user();
+        String session = UploadDAO.get(id, loggedInUser.email);
+        if (session != null) {
+            return ok(session).as("application/json");
+        } else {
+            return notFound("{found: false}").as("application/json");
+        }
+    }
+
+    @Security.Authenticated(Secured.class)
+    @BodyParser.Of(value = BodyParser.Raw.class, maxLength = UploadDAO.MAX_PART_SIZE)
+    public static Result uploadPart(String id, int part) {
+        User loggedInUser = Secured.user();
+        Http.RawBuffer body = request().body().asRaw();
+        if (body == null) {
+            return badRequest("{status: 'fail'}").as("application/json");
+        }
+        try {
+            if (!UploadDAO.writePart(id, loggedInUser.email, part, body.asFile())) {
+                return notFound("{found: false}").as("application/json");
+            }
+            return ok("{status: 'success'}").as("application/json");
+        } catch (Exception e) {
+            Logger.error("Failed to write part " + part + " of upload " + id, e);
+            return fail(e);
+        }
+    }
+
+    @Security.Authenticated(Secured.class)
+    public static Result completeUpload(String id) {
+        User loggedInUser = Secured.user();
+        try {
+            if (!UploadDAO.complete(id, loggedInUser.email)) {
+                return notFound("{found: false}").as("application/json");
+            }
+            return ok("{status: 'success'}").as("application/json");
+        } catch (Exception e) {
+            Logger.error("Failed to complete upload " + id, e);
+            return fail(e);
+        }
+    }
+
+    @Security.Authenticated(Secured.class)
+    public static Result deleteUpload(String id) {
+        User loggedInUser = Secured.user();
+        if (UploadDAO.delete(id, loggedInUser.email)) {
+            return ok("{status: 'success'}").as("application/json");
+        } else {
+            return notFound("{found: false}").as("application/json");
+        }
+    }
+
+    private static Result fail(Exception e) {
+        ObjectNode result = Json.newObject();
+        result.put("status", "fail");
+        result.put("error", e.getMessage());
+        return badRequest(result);
+    }
+}
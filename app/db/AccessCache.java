@@ -0,0 +1,113 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the decisions weather a user, or anyone for a public artifact, can read an artifact. The
+ * decisions of the least recently used artifacts are evicted beyond maxArtifacts, and a decision is
+ * trusted for ttl at most, so changes made by another server are seen. The artifact DAO invalidates the
+ * decisions of an artifact when it is inserted, updated or deleted.
+ */
+public class AccessCache {
+    private static final int maxArtifacts;
+    private static final long ttl;
+
+    static {
+        Config conf = ConfigFactory.load();
+        maxArtifacts = conf.hasPath(Constants.Cache.ACCESS_MAX_ARTIFACTS) ? conf.getInt(Constants.Cache.ACCESS_MAX_ARTIFACTS) : 10000;
+        ttl = conf.hasPath(Constants.Cache.ACCESS_TTL) ? conf.getDuration(Constants.Cache.ACCESS_TTL, TimeUnit.MILLISECONDS) : 60000;
+    }
+
+    private static class Decision {
+        final boolean readable;
+        final long expires;
+
+        Decision(boolean readable, long expires) {
+            this.readable = readable;
+            this.expires = expires;
+        }
+    }
+
+    // the decisions of each artifact by user, null is the key for the public
+    private static final Map<Integer, Map<String, Decision>> artifacts =
+            new LinkedHashMap<Integer, Map<String, Decision>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, Decision>> eldest) {
+                    return size() > maxArtifacts;
+                }
+            };
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Get a cached decision
+     * @param tid artifact id
+     * @param user the user, null for the public
+     * @return weather the artifact can be read, null if it is not known
+     */
+    public static Boolean get(int tid, String user) {
+        if (maxArtifacts <= 0) {
+            return null;
+        }
+        Decision decision;
+        synchronized (artifacts) {
+            Map<String, Decision> decisions = artifacts.get(tid);
+            decision = decisions != null ? decisions.get(user) : null;
+        }
+        if (decision == null || decision.expires < System.currentTimeMillis()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return decision.readable;
+    }
+
+    public static void put(int tid, String user, boolean readable) {
+        if (maxArtifacts <= 0) {
+            return;
+        }
+        synchronized (artifacts) {
+            Map<String, Decision> decisions = artifacts.get(tid);
+            if (decisions == null) {
+                decisions = new HashMap<>();
+                artifacts.put(tid, decisions);
+            }
+            decisions.put(user, new Decision(readable, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * Forget the decisions of an artifact, after its owner or public flag changed
+     * @param tid artifact id
+     */
+    public static void invalidate(int tid) {
+        synchronized (artifacts) {
+            artifacts.remove(tid);
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of the lookups that were answered by the cache
+     */
+    public static double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+}
@@ -1,24 +1,39 @@
 package db;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParser;
 import com.mongodb.BasicDBList;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.util.JSON;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import models.*;
 import models.Cluster;
 import models.Color;
+import models.formats.PlotFormat;
+import models.formats.PlotFormats;
 import models.xml.*;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.bson.Document;
 import play.Logger;
 import scala.util.parsing.json.JSONArray;
 import scala.util.parsing.json.JSONArray$;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -31,208 +46,139 @@ public class ArtifactDAO {
 
     private static SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+    // the most frames sent by one request for a range of frames
+    public static final int MAX_FRAMES = 100;
+    // the most points whose trajectories are sent by one request
+    public static final int MAX_TRAJECTORIES = 10000;
+
+    private static final String defaultPrecision;
+    private static final int pageSize;
+    private static final int maxPageSize;
+
+    static {
+        Config conf = ConfigFactory.load();
+        defaultPrecision = conf.hasPath(Constants.Storage.PRECISION) ?
+                conf.getString(Constants.Storage.PRECISION) : Constants.Precision.FLOAT;
+        pageSize = conf.hasPath(Constants.Listing.PAGE_SIZE) ? conf.getInt(Constants.Listing.PAGE_SIZE) : 25;
+        maxPageSize = conf.hasPath(Constants.Listing.MAX_PAGE_SIZE) ? conf.getInt(Constants.Listing.MAX_PAGE_SIZE) : 500;
+    }
+
+    // the fields of an artifact shown in the listings, the files and the settings are not read
+    private static final Document listingFields = new Document(Constants.Artifact.ID_FIELD, 1)
+            .append(Constants.Artifact.NAME_FIELD, 1).append(Constants.Artifact.DESC_FIELD, 1)
+            .append(Constants.Artifact.USER, 1).append(Constants.Artifact.DATE_CREATION_FIELD, 1)
+            .append(Constants.Artifact.STATUS_FIELD, 1).append(Constants.Artifact.GROUP_FIELD, 1)
+            .append(Constants.Artifact.PUBLIC, 1).append(Constants.Artifact.FRAME_COUNT, 1);
+
+    /**
+     * The precision of the positions of a new artifact
+     * @param requested precision asked for by the uploader, may be null
+     * @return the precision if it is known, otherwise the configured default
+     */
+    private static String precision(String requested) {
+        if (Constants.Precision.FLOAT.equals(requested) || Constants.Precision.FIXED16.equals(requested)) {
+            return requested;
+        }
+        return Constants.Precision.FIXED16.equals(defaultPrecision) ? Constants.Precision.FIXED16 : Constants.Precision.FLOAT;
+    }
+
+    /**
+     * Insert an uploaded file, a zip file is read as a time series and any other file as a single plot
+     * @param pvizName name of the uploaded file
+     * @param description description of the file
+     * @param uploader the uploader name
+     * @param file the actual file, moved to the ingestion job
+     * @param group group of the artifact
+     * @param precision precision of the positions, the configured default if it is null or not known
+     * @throws Exception if the file format is not supported or too many uploads are waiting
+     */
+    public void insertUpload(String pvizName, String description, String uploader, File file, String group,
+                             String precision) throws Exception {
+        if (isZipFile(file)) {
+            insertZipFile(pvizName, description, uploader, file, group, precision);
+        } else {
+            insertSingleFile(pvizName, description, uploader, file, group, precision);
+        }
+    }
+
+    /**
+     * Check the signature of the first entry of a zip file, only the first four bytes are read
+     */
+    private static boolean isZipFile(File file) throws IOException {
+        byte[] magic = new byte[4];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            return false;
+        }
+        return magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+
     /**
-     * Insert a single fie pviz file or a txt file
+     * Insert a single fie pviz file or a txt file. The file is read by an ingestion job, the artifact
+     * stays pending until the job is done.
      * @param pvizName name of the uploaded file
      * @param description description of the file
      * @param uploader the uploader name
      * @param file the actual file
-     * @throws Exception  if the file cannot be inserted
+     * @param precision precision of the positions, the configured default if it is null or not known
+     * @throws Exception  if the file format is not supported or too many uploads are waiting
      */
-    public void insertSingleFile(String pvizName, String description, String uploader, File file, String group) throws Exception {
+    public void insertSingleFile(String pvizName, String description, String uploader, File file, String group,
+                                 String precision) throws Exception {
         MongoConnection con = MongoConnection.getInstance();
-        String dateString = format.format(new Date());
-        int timeSeriesId = Math.abs(new Random().nextInt());
-        Document mainDoc = new Document();
+        final String positions = precision(precision);
+        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            if (PlotFormats.detect(in) == null) {
+                throw new Exception("Unsupported file format: " + pvizName);
+            }
+        }
+
+        final String dateString = format.format(new Date());
+        final int timeSeriesId = Math.abs(new Random().nextInt());
+        final Document mainDoc = new Document();
         mainDoc.append(Constants.Artifact.ID_FIELD, timeSeriesId);
         mainDoc.append(Constants.Artifact.NAME_FIELD, pvizName);
         mainDoc.append(Constants.Artifact.DESC_FIELD, description);
         mainDoc.append(Constants.Artifact.USER, uploader);
         mainDoc.append(Constants.Artifact.DATE_CREATION_FIELD, dateString);
-        mainDoc.append(Constants.Artifact.STATUS_FIELD, "active");
+        mainDoc.append(Constants.Artifact.STATUS_FIELD, Constants.ArtifactStatus.PENDING);
+        mainDoc.append(Constants.Artifact.FILES, new ArrayList<Document>());
+        mainDoc.append(Constants.Artifact.FRAME_COUNT, 0);
         mainDoc.append(Constants.Artifact.GROUP_FIELD, group);
         mainDoc.append(Constants.Artifact.VERSION, 1);
         mainDoc.append(Constants.Artifact.TYPE, Constants.ArtifactType.PLOTVIZ);
-
-
-        String resultSetName = pvizName + "/";
-        // insert the file content to the files collection
-        // lets try to load as a XML
-        try {
-            XMLLoader.load(new FileInputStream(file));
-            // ok this is XML
-            insertXMLFile(0, resultSetName, description, uploader, new FileInputStream(file), timeSeriesId, 0L, pvizName);
-        } catch (Exception e) {
-            // this is not XML
-            insertTextFile(0, resultSetName, description, uploader, new FileInputStream(file), timeSeriesId, 0L, pvizName);
-        }
-
-        Document resultSet = createResultSet(0, resultSetName, description, dateString, uploader, timeSeriesId, 0, pvizName);
-        List<Document> emptyResultSets = new ArrayList<Document>();
-        emptyResultSets.add(resultSet);
-        mainDoc.append(Constants.Artifact.FILES, emptyResultSets);
+        mainDoc.append(Constants.Artifact.PRECISION, positions);
         con.artifactCol.insertOne(mainDoc);
-    }
-
-    private List<PVizPoint> getPointsFromTextFile(InputStream file) {
-        List<PVizPoint> points = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(file))) {
-            String line;
-            int i = 0;
-            while ((line = br.readLine()) != null) {
-                String[] split = line.split("\\s+");
-                if (split.length == 5) {
-                    PVizPoint point = new PVizPoint(i++, 1, "None", new Location(split[1], split[2], split[3]));
-                    points.add(point);
-                } else if (split.length == 3){
-                    PVizPoint point = new PVizPoint(i++, 1, "None", new Location(split[0], split[1], split[2]));
-                    points.add(point);
-                } else if(split.length == 6){
-                    PVizPoint point = new PVizPoint(i++, Integer.valueOf(split[4]), split[5], new Location(split[1], split[2], split[3]));
-                    points.add(point);
-                }
-            }
-        } catch (IOException e) {
-            Logger.error("Failed to read the file", e);
-        }
-        return points;
-    }
-
-  /**
-   * Insert a text file. Text files doesn't have clusters or edges. They only have points.
-   * @param id id
-   * @param name name
-   * @param description description
-   * @param uploader uploader
-   * @param file file
-   * @param parent parent
-   * @param sequenceNumber sequence number
-   * @param originalFileName original file name
-   * @throws Exception
-   */
-    private void insertTextFile(int id, String name, String description, String uploader, InputStream file,
-                                int parent, Long sequenceNumber, String originalFileName) throws Exception {
-        MongoConnection con = MongoConnection.getInstance();
-        // maximum number of points per file
-        final int maxPointsPerFile = 100000;
-        Map<Integer, Integer> clusterPointCount = new HashMap<>();
-        Document rootObject = createRootFileObject(id, name, description, uploader, parent, sequenceNumber, originalFileName);
-
-        // traverse through the clusters and create the cluster list
-        Map<Integer, Document> clusterDBObjectList = new HashMap<Integer, Document>();
-//        Document c = new Document();
-//        c.put(Constants.Cluster.KEY, 1);
-//        c.put(Constants.Cluster.LABEL, "Default");
-//        c.put(Constants.Cluster.SIZE, 1);
-//        c.put(Constants.Cluster.VISIBILE, 1);
-
-        // now traverse through the points and create the point list
-        List<PVizPoint> points = getPointsFromTextFile(file);
-        // point key for each cluster
-        Map<Integer, List<Integer>> pointsForClusters = new HashMap<Integer, List<Integer>>();
-        Map<String, List<String>> pointList = new HashMap<>();
-        int tempcount = 0;
-        for (PVizPoint point : points) {
-
-            tempcount++;
-            int clusterkey = point.getClusterkey();
-            if(!clusterDBObjectList.containsKey(clusterkey)){
-                Document tempcluster = new Document();
-                tempcluster.put(Constants.Cluster.KEY, clusterkey);
-                if(point.getLabel() != null && point.getLabel() != "None" && point.getLabel() != "" && point.getLabel() != " "){
-                    tempcluster.put(Constants.Cluster.LABEL, point.getLabel());
-                }else{
-                    tempcluster.put(Constants.Cluster.LABEL, clusterkey);
-                }
-
-                tempcluster.put(Constants.Cluster.SIZE, 1);
-                tempcluster.put(Constants.Cluster.VISIBILE, 1);
-                tempcluster.put(Constants.Cluster.SHAPE, 3);
-                tempcluster.put(Constants.Cluster.COLOR, color(255,255,255,255));
-                clusterDBObjectList.put(clusterkey, tempcluster);
-            }
-
-            int pointKey = point.getKey();
-            List<Integer> clusterPoints = pointsForClusters.get(clusterkey);
-            if (clusterPoints == null) {
-                clusterPoints = new ArrayList<Integer>();
-                pointsForClusters.put(clusterkey, clusterPoints);
-            }
-            List<String> pointDBObject = createPoint(point.getLocation().getX(), point.getLocation().getY(), point.getLocation().getZ(),point.getLabel());
-            // add the key to cluster and point to point list
-            clusterPoints.add(pointKey);
-            pointList.put(Integer.toString(pointKey), pointDBObject);
-        }
-
-        Iterator<Map.Entry<Integer, List<Integer>>> entries = pointsForClusters.entrySet().iterator();
-        while (entries.hasNext()) {
-            Map.Entry<Integer, List<Integer>> e = entries.next();
-            if (e.getValue() != null && e.getValue().size() > 0) {
-                Document clusterDBObject = clusterDBObjectList.get(e.getKey());
-                clusterDBObject.append(Constants.Cluster.POINTS, e.getValue());
-                clusterPointCount.put(e.getKey(), e.getValue().size());
-            } else {
-                Logger.info("Remove: " + e.getKey());
-                entries.remove();
-            }
-        }
+        AccessCache.invalidate(timeSeriesId);
+        evictListings(mainDoc);
 
-        // remove the clusters without any points
-        for(Iterator<Map.Entry<Integer, Document>> it = clusterDBObjectList.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<Integer, Document> entry = it.next();
-            if (!pointsForClusters.containsKey(entry.getKey())) {
-                it.remove();
+        submit(timeSeriesId, uploader, pvizName, file, new IngestJobs.Task() {
+            @Override
+            public void run(IngestJobs.Job job) throws Exception {
+                job.setFrames(1);
+                String resultSetName = pvizName + "/";
+                // insert the file content to the files collection
+                insertPlotFile(0, resultSetName, description, uploader, new FileInputStream(job.getUpload()), timeSeriesId, 0L, pvizName, positions);
+                job.checkCancelled();
+
+                Document resultSet = createResultSet(0, resultSetName, description, dateString, uploader, timeSeriesId, 0, pvizName);
+                List<Document> resultSets = new ArrayList<Document>();
+                resultSets.add(resultSet);
+                mainDoc.append(Constants.Artifact.FILES, resultSets);
+                mainDoc.append(Constants.Artifact.FRAME_COUNT, resultSets.size());
+                mainDoc.append(Constants.Artifact.STATUS_FIELD, Constants.ArtifactStatus.ACTIVE);
+                con.artifactCol.replaceOne(new Document(Constants.Artifact.ID_FIELD, timeSeriesId), mainDoc);
+                evictListings(mainDoc);
+                job.frameDone();
             }
-        }
 
-        // add the point key list to clusters
-        for (Map.Entry<Integer, List<Integer>> e : pointsForClusters.entrySet()) {
-            Document clusterDocument = clusterDBObjectList.get(e.getKey());
-            clusterDocument.append(Constants.Cluster.POINTS, e.getValue());
-        }
-
-        // add each cluster to clusters object
-        // we are going to create separate docs when total number of points exceeds
-        int count = 0;
-        Map<String, Document> currentClusterList = new HashMap<>();
-        for (Map.Entry<Integer, Document> e : clusterDBObjectList.entrySet()) {
-            count += clusterPointCount.get(e.getKey());
-            currentClusterList.put(Integer.toString(e.getKey()), e.getValue());
-            if (count > maxPointsPerFile) {
-                count = 0;
-                Document preRootObject = createRootFileObject(id, name, description, uploader, parent, sequenceNumber, originalFileName);
-                preRootObject.append(Constants.File.CLUSTERS, currentClusterList);
-                con.filesCol.insertOne(preRootObject);
-                currentClusterList = new HashMap<>();
-                Logger.info("Breaking file clusters: " + originalFileName);
-            }
-        }
-        // we will add the remainder or the whole list, if we didn't exceed the max number
-        if (currentClusterList.size() > 0) {
-            rootObject.append(Constants.File.CLUSTERS, currentClusterList);
-        }
-
-        count = 0;
-        Map<String, List<String>> currentPointList = new HashMap<>();
-        for (Map.Entry<String, List<String>> e : pointList.entrySet()) {
-            currentPointList.put(e.getKey(), e.getValue());
-            count++;
-            if (count > maxPointsPerFile) {
-                count = 0;
-                Document preRootObject = createRootFileObject(id, name, description, uploader, parent, sequenceNumber, originalFileName);
-                preRootObject.append(Constants.File.POINTS, currentPointList);
-                con.filesCol.insertOne(preRootObject);
-                currentPointList = new HashMap<>();
-                Logger.info("Breaking file points: " + originalFileName);
+            @Override
+            public void cleanUp() {
+                // don't leave the chunks written so far behind
+                deleteArtifactData(timeSeriesId);
             }
-        }
-        // we will add the remainder or the whole list, if we didn't exceed the max number
-        if (currentPointList.size() > 0) {
-            rootObject.append(Constants.File.POINTS, currentPointList);
-        }
-
-        con.filesCol.insertOne(rootObject);
-        Logger.info("Inserted document: " + originalFileName);
+        });
     }
 
     /**
@@ -241,25 +187,77 @@ public class ArtifactDAO {
      * @return true if delete successful
      */
     public boolean deleteTimeSeries(int timeSeriesId, String user) {
+        // an upload that is still being read stops, and removes what it writes after the delete
+        IngestJobs.cancel(timeSeriesId, user);
         MongoConnection con = MongoConnection.getInstance();
-        con.artifactCol.deleteOne(new Document(Constants.Artifact.ID_FIELD, timeSeriesId).append(Constants.Artifact.USER, user));
+        Document artifact = con.artifactCol.findOneAndDelete(new Document(Constants.Artifact.ID_FIELD, timeSeriesId)
+                .append(Constants.Artifact.USER, user));
+        AccessCache.invalidate(timeSeriesId);
+        if (artifact != null) {
+            evictListings(artifact);
+        }
         con.filesCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, timeSeriesId));
+        PayloadDAO.delete(timeSeriesId);
+        FrameDeltas.delete(timeSeriesId);
+        LodPyramid.delete(timeSeriesId);
+        PointOctree.delete(timeSeriesId);
+        Trajectories.delete(timeSeriesId);
+        FrameCache.invalidate(timeSeriesId);
         return true;
     }
 
     /**
-     * Insert a zip file containing the time series files
+     * Evict the cached listings an artifact is in
+     * @param versions the artifact before and after a change
+     */
+    private static void evictListings(Document... versions) {
+        List<String> groups = new ArrayList<String>();
+        boolean pub = false;
+        for (Document artifact : versions) {
+            String group = (String) artifact.get(Constants.Artifact.GROUP_FIELD);
+            groups.add(group == null || "".equals(group) ? Constants.Group.DEFAULT_GROUP : group);
+            pub |= Boolean.TRUE.equals(artifact.get(Constants.Artifact.PUBLIC));
+        }
+        ListingCache.evictArtifact((String) versions[0].get(Constants.Artifact.USER), groups, pub);
+    }
+
+    /**
+     * Delete an artifact with all its files, used to remove an upload that failed or was cancelled
+     * @param timeSeriesId artifact id
+     */
+    void deleteArtifactData(int timeSeriesId) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document artifact = con.artifactCol.findOneAndDelete(new Document(Constants.Artifact.ID_FIELD, timeSeriesId));
+        AccessCache.invalidate(timeSeriesId);
+        if (artifact != null) {
+            evictListings(artifact);
+        }
+        con.filesCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, timeSeriesId));
+        PayloadDAO.delete(timeSeriesId);
+        FrameDeltas.delete(timeSeriesId);
+        LodPyramid.delete(timeSeriesId);
+        PointOctree.delete(timeSeriesId);
+        Trajectories.delete(timeSeriesId);
+        FrameCache.invalidate(timeSeriesId);
+    }
+
+    /**
+     * Insert a zip file containing the time series files. The files are read by an ingestion job, the
+     * artifact stays pending until the job is done.
      * @param pvizName name of the uploaded plotviz file
      * @param description description
      * @param uploader the uploader id
      * @param fileName file name
-     * @throws Exception if an error happens while inserting
+     * @param precision precision of the positions, the configured default if it is null or not known
+     * @throws Exception if too many uploads are waiting
      */
-    public void insertZipFile(String pvizName, String description, String uploader, File fileName, String group) throws Exception {
+    public void insertZipFile(String pvizName, String description, String uploader, File fileName, String group,
+                              String precision) throws Exception {
         MongoConnection con = MongoConnection.getInstance();
-        String dateString = format.format(new Date());
-        int timeSeriesId = Math.abs(new Random().nextInt());
-        Document mainDoc = new Document();
+        final String positions = precision(precision);
+        final String dateString = format.format(new Date());
+        final int timeSeriesId = Math.abs(new Random().nextInt());
+        final Document mainDoc = new Document();
         mainDoc.append(Constants.Artifact.ID_FIELD, timeSeriesId);
         mainDoc.append("_id", timeSeriesId);
         mainDoc.append(Constants.Artifact.NAME_FIELD, pvizName);
@@ -269,15 +267,18 @@ public class ArtifactDAO {
         mainDoc.append(Constants.Artifact.STATUS_FIELD, Constants.ArtifactStatus.PENDING);
         List<Document> emptyResultSets = new ArrayList<Document>();
         mainDoc.append(Constants.Artifact.FILES, emptyResultSets);
+        mainDoc.append(Constants.Artifact.FRAME_COUNT, 0);
         mainDoc.append(Constants.Artifact.GROUP_FIELD, group);
         mainDoc.append(Constants.Artifact.TYPE, Constants.ArtifactType.TIME_SERIES);
+        mainDoc.append(Constants.Artifact.PRECISION, positions);
         con.artifactCol.insertOne(mainDoc);
+        AccessCache.invalidate(timeSeriesId);
+        evictListings(mainDoc);
 
-        Thread t = new Thread(new Runnable() {
+        submit(timeSeriesId, uploader, pvizName, fileName, new IngestJobs.Task() {
             @Override
-            public void run() {
-                try {
-                    ZipFile zipFile = new ZipFile(fileName);
+            public void run(final IngestJobs.Job job) throws Exception {
+                try (final ZipFile zipFile = new ZipFile(job.getUpload())) {
                     Enumeration<?> enu = zipFile.entries();
                     List<String> filesInOrder = new ArrayList<String>();
                     Map<String, ZipEntry> fileMap = new HashMap<String, ZipEntry>();
@@ -309,30 +310,110 @@ public class ArtifactDAO {
                         fileMap.put(realFileName, zipEntry);
                     }
 
-                    int i = 0;
-                    List<Document> resultSets = new ArrayList<Document>();
+                    int frameCount = 0;
                     for (String f : filesInOrder) {
                         if (fileMap.get(f) != null) {
-                            Logger.info("adding file: " + f);
-                            String resultSetName = "timeseries_" + f + "_" + i;
-                            insertXMLFile(i, resultSetName, description, uploader, zipFile.getInputStream(fileMap.get(f)), timeSeriesId, (long) i, f);
-                            Document resultSet = createResultSet(i, resultSetName, description, dateString, uploader, timeSeriesId, i, f);
-                            resultSets.add(resultSet);
-                            i++;
+                            frameCount++;
+                        }
+                    }
+                    job.setFrames(frameCount);
 
+                    // the frames are read in parallel, each frame gets its sequence number from the index
+                    final AtomicBoolean stop = new AtomicBoolean(false);
+                    List<Future<Document>> frames = new ArrayList<>();
+                    int i = 0;
+                    for (final String f : filesInOrder) {
+                        final ZipEntry entry = fileMap.get(f);
+                        if (entry != null) {
+                            final int seq = i++;
+                            frames.add(IngestJobs.submitFrame(new Callable<Document>() {
+                                @Override
+                                public Document call() throws Exception {
+                                    if (stop.get()) {
+                                        return null;
+                                    }
+                                    job.checkCancelled();
+                                    Logger.info("adding file: " + f);
+                                    String resultSetName = "timeseries_" + f + "_" + seq;
+                                    insertPlotFile(seq, resultSetName, description, uploader, zipFile.getInputStream(entry), timeSeriesId,
+                                            (long) seq, f, positions);
+                                    job.frameDone();
+                                    return createResultSet(seq, resultSetName, description, dateString, uploader, timeSeriesId, seq, f);
+                                }
+                            }));
+                        }
+                    }
+
+                    // wait for every frame, so nothing is written after a failed job is cleaned up
+                    List<Document> resultSets = new ArrayList<Document>();
+                    Exception failure = null;
+                    for (Future<Document> frame : frames) {
+                        try {
+                            Document resultSet = frame.get();
+                            if (resultSet != null) {
+                                resultSets.add(resultSet);
+                            }
+                        } catch (ExecutionException e) {
+                            stop.set(true);
+                            if (failure == null) {
+                                failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                            }
                         }
                     }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    try {
+                        FrameDeltas.build(timeSeriesId, resultSets.size());
+                    } catch (Exception e) {
+                        // the deltas are built again when they are first asked for
+                        Logger.error("Failed to store delta frames for tid: " + timeSeriesId, e);
+                    }
+                    try {
+                        Trajectories.build(timeSeriesId, resultSets.size());
+                    } catch (Exception e) {
+                        // the trajectories are built again when they are first asked for
+                        Logger.error("Failed to store trajectories for tid: " + timeSeriesId, e);
+                    }
                     mainDoc.append(Constants.Artifact.FILES, resultSets);
-                    zipFile.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    mainDoc.append(Constants.Artifact.FRAME_COUNT, resultSets.size());
                 }
                 mainDoc.append(Constants.Artifact.STATUS_FIELD, Constants.ArtifactStatus.ACTIVE);
-
                 con.artifactCol.replaceOne(new Document(Constants.Artifact.ID_FIELD, timeSeriesId), mainDoc);
+                evictListings(mainDoc);
+            }
+
+            @Override
+            public void cleanUp() {
+                deleteArtifactData(timeSeriesId);
             }
         });
-        t.start();
+    }
+
+    /**
+     * Queue the ingestion of an upload. The file is moved out of the way of the request, which may remove
+     * its temporary files before the ingestion job gets to the file. If the job cannot be queued the
+     * pending artifact is removed and the file is moved back, so the caller can try again.
+     * @param tid the pending artifact
+     * @param file the uploaded file, taken by the job
+     * @param task the work of the job
+     * @throws Exception if the file cannot be moved or too many uploads are waiting
+     */
+    private void submit(int tid, String uploader, String name, File file, IngestJobs.Task task) throws Exception {
+        File upload;
+        try {
+            upload = File.createTempFile("pviz-upload-", ".tmp");
+            Files.move(file.toPath(), upload.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteArtifactData(tid);
+            throw e;
+        }
+        try {
+            IngestJobs.submit(tid, uploader, name, upload, task);
+        } catch (Exception e) {
+            Files.move(upload.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            throw e;
+        }
     }
 
     public void updateArtifactSetting(TimeSeries tid, String json) {
@@ -367,203 +448,52 @@ public class ArtifactDAO {
         return document;
     }
 
-    private BasicDBList color(int a, int r, int g, int b) {
-        BasicDBList list = new BasicDBList();
-        list.add(a);
-        list.add(r);
-        list.add(g);
-        list.add(b);
-        return list;
-    }
-
-    public void insertXMLFile(int id, String name, String description, String uploader, InputStream file,
-                              int parent, Long sequenceNumber, String originalFileName) throws Exception {
-        MongoConnection con = MongoConnection.getInstance();
-        // maximum number of points per file
-        final int maxPointsPerFile = 100000;
-        Map<Integer, Integer> clusterPointCount = new HashMap<>();
-        Document rootObject = createRootFileObject(id, name, description, uploader, parent, sequenceNumber, originalFileName);
-
-        Plotviz plotviz = XMLLoader.load(file);
-
-        // traverse through the clusters and create the cluster list
-        List<models.xml.Cluster> clusters = plotviz.getClusters();
-        Map<Integer, Document> clusterDBObjectList = new HashMap<Integer, Document>();
-        for (models.xml.Cluster cl : clusters) {
-            Document c = new Document();
-            c.put(Constants.Cluster.KEY, cl.getKey());
-            if (cl.getColor() != null) {
-                c.put(Constants.Cluster.COLOR, color(cl.getColor().getA(), cl.getColor().getB(), cl.getColor().getG(), cl.getColor().getR()));
-            }
-            c.put(Constants.Cluster.LABEL, cl.getLabel());
-            c.put(Constants.Cluster.SIZE, cl.getSize());
-            c.put(Constants.Cluster.VISIBILE, cl.getVisible());
-            c.put(Constants.Cluster.SHAPE, cl.getShape());
-            clusterDBObjectList.put(cl.getKey(), c);
-        }
-
-        // now traverse through the points and create the point list
-        List<PVizPoint> points = plotviz.getPoints();
-        // point key for each cluster
-        Map<Integer, List<Integer>> pointsForClusters = new HashMap<Integer, List<Integer>>();
-        Map<String, List<String>> pointList = new HashMap<>();
-        for (PVizPoint point : points) {
-            int clusterkey = point.getClusterkey();
-            int pointKey = point.getKey();
-            List<Integer> clusterPoints = pointsForClusters.get(clusterkey);
-            if (clusterPoints == null) {
-                clusterPoints = new ArrayList<Integer>();
-                pointsForClusters.put(clusterkey, clusterPoints);
-            }
-            List<String> pointDBObject = createPoint(point.getLocation().getX(), point.getLocation().getY(), point.getLocation().getZ(),point.getLabel());
-            // add the key to cluster and point to point list
-            clusterPoints.add(pointKey);
-            pointList.put(Integer.toString(pointKey), pointDBObject);
-        }
-
-        Iterator<Map.Entry<Integer, List<Integer>>> entries = pointsForClusters.entrySet().iterator();
-        while (entries.hasNext()) {
-            Map.Entry<Integer, List<Integer>> e = entries.next();
-            if (e.getValue() != null && e.getValue().size() > 0) {
-                Document clusterDBObject = clusterDBObjectList.get(e.getKey());
-                clusterDBObject.append(Constants.Cluster.POINTS, e.getValue());
-                clusterPointCount.put(e.getKey(), e.getValue().size());
-            } else {
-                Logger.info("Remove: " + e.getKey());
-                entries.remove();
-            }
-        }
-
-        // remove the clusters without any points
-        for(Iterator<Map.Entry<Integer, Document>> it = clusterDBObjectList.entrySet().iterator(); it.hasNext(); ) {
-            Map.Entry<Integer, Document> entry = it.next();
-            if (!pointsForClusters.containsKey(entry.getKey())) {
-                it.remove();
-            }
-        }
-
-        // add the point key list to clusters
-        for (Map.Entry<Integer, List<Integer>> e : pointsForClusters.entrySet()) {
-            Document clusterDocument = clusterDBObjectList.get(e.getKey());
-            clusterDocument.append(Constants.Cluster.POINTS, e.getValue());
-        }
-
-        // clusters to root object
-        // rootObject.append(Constants.File.CLUSTERS, clusterDBObjectList.values());
-        // add points to root object list
-        // rootObject.append(Constants.File.POINTS, pointList);
-
-        // add each cluster to clusters object
-        // we are going to create separate docs when total number of points exceeds
-        int count = 0;
-        Map<String, Document> currentClusterList = new HashMap<>();
-        for (Map.Entry<Integer, Document> e : clusterDBObjectList.entrySet()) {
-            count += clusterPointCount.get(e.getKey());
-            currentClusterList.put(Integer.toString(e.getKey()), e.getValue());
-            if (count > maxPointsPerFile) {
-                count = 0;
-                Document preRootObject = createRootFileObject(id, name, description, uploader, parent, sequenceNumber, originalFileName);
-                preRootObject.append(Constants.File.CLUSTERS, currentClusterList);
-                con.filesCol.insertOne(preRootObject);
-                currentClusterList = new HashMap<>();
-                Logger.info("Breaking file clusters: " + originalFileName);
-            }
-        }
-        // we will add the remainder or the whole list, if we didn't exceed the max number
-        if (currentClusterList.size() > 0) {
-            rootObject.append(Constants.File.CLUSTERS, currentClusterList);
-        }
-
-        count = 0;
-        Map<String, List<String>> currentPointList = new HashMap<>();
-        for (Map.Entry<String, List<String>> e : pointList.entrySet()) {
-            currentPointList.put(e.getKey(), e.getValue());
-            count++;
-            if (count > maxPointsPerFile) {
-                count = 0;
-                Document preRootObject = createRootFileObject(id, name, description, uploader, parent, sequenceNumber, originalFileName);
-                preRootObject.append(Constants.File.POINTS, currentPointList);
-                con.filesCol.insertOne(preRootObject);
-                currentPointList = new HashMap<>();
-                Logger.info("Breaking file points: " + originalFileName);
-            }
-        }
-        // we will add the remainder or the whole list, if we didn't exceed the max number
-        if (currentPointList.size() > 0) {
-            rootObject.append(Constants.File.POINTS, currentPointList);
-        }
-
-        // now insert the edges if there are any
-        Map<String, Document> edgesList = new HashMap<>();
-        List<Edge> edges = plotviz.getEdges();
-        if (edges != null && edges.size() > 0) {
-            for (Edge e : edges) {
-                Document edgeDoc = new Document();
-                List<Vertex> vertexes = e.getVertices();
-                List<Integer> vertices = new ArrayList<>();
-                if (vertexes != null && vertexes.size() > 0) {
-                    List<Document> vertexDocs = new ArrayList<Document>();
-                    for (Vertex v : vertexes) {
-                        vertices.add(v.getKey());
-                    }
-                    edgeDoc.append(Constants.Edge.VERTICES, vertices);
-                } else {
-                    // no point adding this edge, because it doesn't have vertices
-                    continue;
-                }
-                edgesList.put(Integer.toString(e.getKey()), edgeDoc);
-            }
-            rootObject.append(Constants.File.EDGES, edgesList);
-        }
-        con.filesCol.insertOne(rootObject);
-        Logger.info("Inserted document: " + originalFileName);
-    }
-
-    private Document pointsDocument(Map<String, List<Float>> points) {
-        Document pointsDocument = new Document();
-        for (Map.Entry<String, List<Float>> e : points.entrySet()) {
-            pointsDocument.append(e.getKey(), e.getValue());
-        }
-        return pointsDocument;
-    }
-
     /**
-     * Constructs the root cluster object
+     * Insert a plot file in any of the registered {@link PlotFormats}. The format is detected from the
+     * beginning of the file and the file is streamed, chunk documents are written while it is read.
      * @param id id
      * @param name name
      * @param description description
-     * @param uploader user
-     * @param parent the big file
-     * @param sequenceNumber sequence
-     * @param originalFileName original file
-     * @return document
+     * @param uploader uploader
+     * @param file file
+     * @param parent parent
+     * @param sequenceNumber sequence number
+     * @param originalFileName original file name
+     * @param precision precision of the positions, see {@link Constants.Precision}
+     * @throws Exception if the file cannot be read
      */
-    private Document createRootFileObject(int id, String name, String description, String uploader, int parent, Long sequenceNumber, String originalFileName) {
-        Document rootObject = new Document();
-        rootObject.append(Constants.Artifact.ID_FIELD, id);
-        rootObject.append(Constants.Artifact.NAME_FIELD, name);
-        rootObject.append(Constants.Artifact.DESC_FIELD, description);
-        rootObject.append(Constants.Artifact.USER, uploader);
-        rootObject.append(Constants.File.FILE_NAME_FIELD, originalFileName);
-        rootObject.append(Constants.File.TIME_SERIES_ID_FIELD, parent);
-        rootObject.append(Constants.File.TIME_SERIES_SEQ_NUMBER_FIELD, sequenceNumber);
-        return rootObject;
-    }
-
-    /**
-     * Create a point document
-     * @param x
-     * @param y
-     * @param z
-     * @return
-     */
-    public List<String> createPoint(String x, String y, String z, String label) {
-        List<String> list = new ArrayList<>();
-        list.add(x);
-        list.add(y);
-        list.add(z);
-        list.add(label);
-        return list;
+    public void insertPlotFile(int id, String name, String description, String uploader, InputStream file,
+                               int parent, Long sequenceNumber, String originalFileName, String precision) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        try (BufferedInputStream in = new BufferedInputStream(new DigestInputStream(file, digest))) {
+            PlotFormat plotFormat = PlotFormats.detect(in);
+            if (plotFormat == null) {
+                throw new Exception("Unsupported file format: " + originalFileName);
+            }
+            Logger.info("Reading " + originalFileName + " as " + plotFormat.getName());
+            FileChunkWriter writer = new FileChunkWriter(id, name, description, uploader, parent, sequenceNumber,
+                    originalFileName, precision);
+            plotFormat.read(new CloseShieldInputStream(in), writer);
+            // the whole file goes in to the hash, even the part after the plot that the reader didn't need
+            byte[] rest = new byte[8192];
+            while (in.read(rest) != -1) {
+            }
+            writer.close(DatatypeConverter.printHexBinary(digest.digest()).toLowerCase());
+        }
+        try {
+            LodPyramid.build(parent, id);
+        } catch (RuntimeException | IOException e) {
+            // the file is sent whole without levels
+            Logger.error("Failed to store levels of detail of " + originalFileName, e);
+        }
+        // the regions of the file are sent whole until the index is stored
+        PointOctree.schedule(parent, id);
+        try {
+            PayloadDAO.store(parent, id);
+        } catch (IOException e) {
+            // the payload is built again when the file is asked for
+            Logger.error("Failed to store payload of " + originalFileName, e);
+        }
     }
 
     public String getArtifact(int id, String user) {
@@ -584,97 +514,328 @@ public class ArtifactDAO {
         return null;
     }
 
-    public String getFile(int tid, int fid, String user) {
+    /**
+     * Stream the JSON of a file from its chunks
+     * @param tid artifact id
+     * @param fid file id
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @param gzip weather to compress the JSON
+     * @param lod level of detail, see {@link LodPyramid}, null or a level the file doesn't have for all the points
+     * @return the JSON, null if the file cannot be read
+     * @throws RejectedExecutionException if too many files are being streamed
+     */
+    public InputStream getFile(int tid, int fid, String user, boolean gzip, Integer lod) {
+        if (!isReadable(tid, user)) {
+            return null;
+        }
+        FindIterable<Document> level = lod != null ? LodPyramid.chunks(tid, fid, lod) : null;
+        if (level != null) {
+            return streamChunks(level, tid, fid, gzip, null);
+        }
+        return streamFile(tid, fid, gzip, null);
+    }
+
+    /**
+     * Stream the JSON of the part of a file inside a region, see {@link PointOctree}. A file without a
+     * spatial index yet is sent whole.
+     * @param tid artifact id
+     * @param fid file id
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @param gzip weather to compress the JSON
+     * @param planes the planes of the region
+     * @return the JSON, null if the file cannot be read
+     * @throws RejectedExecutionException if too many files are being streamed
+     */
+    public InputStream getFileRegion(int tid, int fid, String user, boolean gzip, double[][] planes) {
+        if (!isReadable(tid, user)) {
+            return null;
+        }
+        // the whole file while the index is being built
+        return streamFile(tid, fid, gzip, PointOctree.query(tid, fid, planes));
+    }
+
+    /**
+     * Stream a range of frames of a time series, the chunks of all the frames are read with one query.
+     * See {@link PlotStream} for the format.
+     * @param tid artifact id
+     * @param from first file id
+     * @param to end of the range, the range has at most {@link #MAX_FRAMES} frames
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @param gzip weather to compress the frames
+     * @return the frames, the files that don't exist are left out, null if the artifact cannot be read
+     * @throws RejectedExecutionException if too many files are being streamed
+     */
+    public InputStream getFrames(int tid, int from, int to, String user, boolean gzip) {
+        if (!isReadable(tid, user)) {
+            return null;
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (int fid = Math.max(0, from); fid < Math.min(to, from + MAX_FRAMES); fid++) {
+            ids.add(fid);
+        }
         MongoConnection con = MongoConnection.getInstance();
-        // if there is no user specified the file has to be public
-        if (user != null) {
-            Document tidQuery = new Document(Constants.Artifact.ID_FIELD, tid).append(Constants.Artifact.USER, user);
-            FindIterable<Document> iterable = con.artifactCol.find(tidQuery);
-            boolean found = false;
-            for (Document d : iterable) {
-                found = true;
-            }
-            if (!found) {
-                return null;
-            }
-        } else {
-            Document tidQuery = new Document(Constants.Artifact.ID_FIELD, tid).append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
-            FindIterable<Document> iterable = con.artifactCol.find(tidQuery);
-            boolean found = false;
-            for (Document d : iterable) {
-                found = true;
-            }
-            if (!found) {
-                return null;
-            }
+        Document query = new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Artifact.ID_FIELD, new Document("$in", ids));
+        // sorted by file id with the index, the chunks of a file stay in their stored order
+        MongoCursor<Document> cursor = con.filesCol.find(query).sort(new Document(Constants.Artifact.ID_FIELD, 1)).iterator();
+        try {
+            Logger.info("Streaming frames " + from + " to " + to + " of tid: " + tid);
+            return PlotStream.openFrames(cursor, gzip, "frames " + from + " to " + to + " of tid: " + tid);
+        } catch (RejectedExecutionException e) {
+            cursor.close();
+            throw e;
+        } catch (IOException e) {
+            cursor.close();
+            Logger.error("Failed to stream frames of tid: " + tid, e);
+            return null;
         }
+    }
 
+    private InputStream streamFile(int tid, int fid, boolean gzip, int[] keys) {
+        MongoConnection con = MongoConnection.getInstance();
         Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
-        FindIterable<Document> iterable = con.filesCol.find(query);
-        Document mainDoc = new Document();
-        for (Document d : iterable) {
-            mainDoc = d;
-            break;
+        return streamChunks(con.filesCol.find(query), tid, fid, gzip, keys);
+    }
+
+    private InputStream streamChunks(FindIterable<Document> chunks, int tid, int fid, boolean gzip, int[] keys) {
+        MongoCursor<Document> cursor = chunks.iterator();
+        if (!cursor.hasNext()) {
+            cursor.close();
+            return null;
+        }
+        try {
+            Logger.info("Streaming document with tid: " + tid + " fid: " + fid);
+            return PlotStream.open(cursor, fid == 0, gzip, keys, "document with tid: " + tid + " fid: " + fid);
+        } catch (RejectedExecutionException e) {
+            cursor.close();
+            throw e;
+        } catch (IOException e) {
+            cursor.close();
+            Logger.error("Failed to stream document with tid: " + tid + " fid: " + fid, e);
+            return null;
         }
+    }
 
-        Map<String, Object> clusters = new HashMap<>();
-        Map<String, Object> edges = new HashMap<>();
-        Map<String, Object> points = new HashMap<>();
-        Map<String, Object> stats = new HashMap<>();
-        for (Document d : iterable) {
-            Object clusterObjects = d.get(Constants.File.CLUSTERS);
-            if (clusterObjects instanceof Document) {
-                clusters.putAll((Document)clusterObjects);
-            }
+    /**
+     * Get the stored gzip compressed JSON of a file, the payloads that are read often are cached
+     * @param tid artifact id
+     * @param fid file id
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @return the payload, null if the file cannot be read or doesn't have a payload yet
+     */
+    public InputStream getFilePayload(int tid, int fid, String user) {
+        if (!isReadable(tid, user)) {
+            return null;
+        }
+        return payload(tid, fid);
+    }
 
-            Object edgeObjects = d.get(Constants.File.EDGES);
-            if (edgeObjects instanceof Document) {
-                edges.putAll((Document)edgeObjects);
-            }
-            Object pointObjects = d.get(Constants.File.POINTS);
-            if (pointObjects instanceof Document) {
-                points.putAll((Document) pointObjects);
+    /**
+     * The payload of a file from the cache or the store, the caller checks the access to the artifact. A
+     * payload stored in several parts is streamed from the store and not cached.
+     */
+    InputStream payload(int tid, int fid) {
+        ByteBuffer cached = FrameCache.get(tid, fid);
+        if (cached != null) {
+            return new FrameCache.BufferStream(cached);
+        }
+        long generation = FrameCache.generation(tid);
+        PayloadDAO.PartStream parts = PayloadDAO.open(tid, fid);
+        if (parts != null && parts.single() != null) {
+            FrameCache.put(tid, fid, parts.single(), generation);
+        }
+        return parts;
+    }
+
+    /**
+     * Get a frame of a time series encoded against the frame before it, see {@link FrameDeltas}
+     * @param tid artifact id
+     * @param frame frame number
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @return the encoded frame, null if the frame cannot be read or the deltas are not built yet
+     */
+    public byte[] getFrameDelta(int tid, int frame, String user) {
+        int frames = frameCount(tid, user);
+        return frames >= 0 ? FrameDeltas.get(tid, frame, frames) : null;
+    }
+
+    /**
+     * Get the trajectories of some points of a time series, see {@link Trajectories}. The points are given
+     * by their keys or by a cluster, the points of a cluster are the points in that cluster in one frame.
+     * @param tid artifact id
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @param keys keys of the points, null to take the points of the cluster
+     * @param cluster the cluster
+     * @param frame the frame the points of the cluster are taken from
+     * @return the trajectories as JSON, null if the time series cannot be read or the trajectories are
+     * not built yet
+     */
+    public String getTrajectories(int tid, String user, int[] keys, int cluster, int frame) {
+        int frames = frameCount(tid, user);
+        if (frames < 0) {
+            return null;
+        }
+        if (keys == null) {
+            FramePoints points = FramePoints.read(MongoConnection.getInstance().filesCol.find(
+                    new Document(Constants.Artifact.ID_FIELD, frame).append(Constants.File.TIME_SERIES_ID_FIELD, tid)));
+            keys = new int[points.size()];
+            int count = 0;
+            for (int i = 0; i < points.size() && count < MAX_TRAJECTORIES; i++) {
+                if (points.cluster(i) == cluster) {
+                    keys[count++] = points.key(i);
+                }
             }
+            keys = Arrays.copyOf(keys, count);
         }
-        if (mainDoc.containsKey(Constants.File.CLUSTERS)) {
-            mainDoc.replace(Constants.File.CLUSTERS, clusters);
+        return Trajectories.get(tid, keys, frames);
+    }
+
+    /**
+     * Number of frames of an active time series, the frames have the file ids 0 to frames - 1
+     * @param tid artifact id
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @return the number of frames, -1 if the time series cannot be read
+     */
+    int frameCount(int tid, String user) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Artifact.ID_FIELD, tid)
+                .append(Constants.Artifact.TYPE, Constants.ArtifactType.TIME_SERIES)
+                .append(Constants.Artifact.STATUS_FIELD, Constants.ArtifactStatus.ACTIVE);
+        if (user != null) {
+            query.append(Constants.Artifact.USER, user);
         } else {
-            mainDoc.append(Constants.File.CLUSTERS, clusters);
+            query.append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
         }
-        if (edges.size() > 0) {
-            mainDoc.replace(Constants.File.EDGES, edges);
+        Document artifact = con.artifactCol.find(query).projection(new Document(Constants.Artifact.FRAME_COUNT, 1)).first();
+        if (artifact == null) {
+            return -1;
         }
-        if (mainDoc.containsKey(Constants.File.POINTS)) {
-            mainDoc.replace(Constants.File.POINTS, points);
-        } else {
-            mainDoc.append(Constants.File.POINTS, points);
+        Object frames = artifact.get(Constants.Artifact.FRAME_COUNT);
+        if (frames instanceof Number) {
+            return ((Number) frames).intValue();
         }
+        // stored before the frame count was
+        artifact = con.artifactCol.find(query).projection(new Document(Constants.Artifact.FILES, 1)).first();
+        if (artifact == null || artifact.get(Constants.Artifact.FILES) == null) {
+            return -1;
+        }
+        return ((List<?>) artifact.get(Constants.Artifact.FILES)).size();
+    }
 
-        //Calculate Stats and append
-        if(fid == 0){
-            double[] means = new double[3];
-            int count = 0;
-            JsonParser jsonParser = new JsonParser();
-            JsonArray jsonArray = null;
-
-            for (Object point : points.values()) {
-                jsonArray = (JsonArray) jsonParser.parse(point.toString());
-                means[0] += jsonArray.get(0).getAsDouble();
-                means[1] += jsonArray.get(1).getAsDouble();
-                means[2] += jsonArray.get(2).getAsDouble();
-                count++;
+    /**
+     * Content hash of a file, only the root chunk is read
+     * @param tid artifact id
+     * @param fid file id
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @return the hash, null if the file cannot be read or was inserted without a hash
+     */
+    public String getFileHash(int tid, int fid, String user) {
+        MongoConnection con = MongoConnection.getInstance();
+        if (!isReadable(tid, user)) {
+            return null;
+        }
+        Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.File.HASH, new Document("$exists", true));
+        Document root = con.filesCol.find(query).projection(new Document(Constants.File.HASH, 1)).first();
+        return root != null ? root.getString(Constants.File.HASH) : null;
+    }
+
+    /**
+     * Get the file in the binary format of {@link PlotBinarySerializer}. The positions are centered on the
+     * means of the first file of the artifact, so all the frames of a time series share the same center.
+     * @param tid artifact id
+     * @param fid file id
+     * @param user the user, null if the artifact has to be public
+     * @param lod level of detail, see {@link LodPyramid}, null or a level the file doesn't have for all the points
+     * @return the file or null if it cannot be found
+     */
+    public byte[] getFileBinary(int tid, int fid, String user, Integer lod) {
+        if (!isReadable(tid, user)) {
+            return null;
+        }
+        FindIterable<Document> level = lod != null ? LodPyramid.chunks(tid, fid, lod) : null;
+        return writeBinary(tid, fid, level, null);
+    }
+
+    /**
+     * Get the part of a file inside a region in the binary format, see {@link #getFileBinary}. The region
+     * is in the coordinates of the file, before the positions are centered. A file without a spatial index
+     * yet is sent whole.
+     * @param tid artifact id
+     * @param fid file id
+     * @param user the user, null if the artifact has to be public
+     * @param planes the planes of the region, see {@link PointOctree}
+     * @return the file or null if it cannot be found
+     */
+    public byte[] getFileBinaryRegion(int tid, int fid, String user, double[][] planes) {
+        if (!isReadable(tid, user)) {
+            return null;
+        }
+        return writeBinary(tid, fid, null, PointOctree.query(tid, fid, planes));
+    }
+
+    /**
+     * @param chunks the chunks of a level, null for the chunks of the file
+     * @param keys the points to write, null for all the points of the chunks
+     */
+    private byte[] writeBinary(int tid, int fid, Iterable<Document> chunks, int[] keys) {
+        MongoConnection con = MongoConnection.getInstance();
+        double[] means = means(tid);
+
+        Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            if (!PlotBinarySerializer.write(chunks != null ? chunks : con.filesCol.find(query), means, keys, out)) {
+                return null;
             }
+        } catch (IOException e) {
+            Logger.error("Failed to serialize document with tid: " + tid + " fid: " + fid, e);
+            return null;
+        }
+        Logger.info("Retreived binary document with tid: " + tid + " fid: " + fid);
+        return out.toByteArray();
+    }
 
-            means[0] = means[0]/count;
-            means[1] = means[1]/count;
-            means[2] = means[2]/count;
+    /**
+     * Means of the first file of an artifact, the files are centered on these. The stats stored at insert
+     * are used, the points are only read for files inserted without stats.
+     * @param tid artifact id
+     * @return x, y, z means
+     */
+    private double[] means(int tid) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        Document stats = con.filesCol.find(new Document(query).append(Constants.File.STATS, new Document("$exists", true)))
+                .projection(new Document(Constants.File.STATS, 1)).first();
+        if (stats != null) {
+            return PlotStatistics.means((Document) stats.get(Constants.File.STATS));
+        }
+        return PlotSerializer.means(con.filesCol.find(query).projection(
+                new Document(Constants.File.POINTS, 1).append(Constants.File.PACKED_COORDINATES, 1)
+                        .append(Constants.File.PACKED_QUANTIZED, 1).append(Constants.File.PACKED_BOUNDS, 1)));
+    }
 
-            stats.put("means",means);
-            mainDoc.append(Constants.File.STATS,stats);
+    /**
+     * Check weather the user can read the artifact
+     * @param tid artifact id
+     * @param user the user, if there is no user specified the artifact has to be public
+     * @return true if the artifact can be read
+     */
+    private boolean isReadable(int tid, String user) {
+        Boolean cached = AccessCache.get(tid, user);
+        if (cached != null) {
+            return cached;
+        }
+        MongoConnection con = MongoConnection.getInstance();
+        Document tidQuery = new Document(Constants.Artifact.ID_FIELD, tid);
+        if (user != null) {
+            tidQuery.append(Constants.Artifact.USER, user);
+        } else {
+            tidQuery.append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
         }
-        String serialize = JSON.serialize(mainDoc);
-        Logger.info("Retreived document with tid: " + tid + " fid: " + fid);
-        return serialize;
+        boolean found = con.artifactCol.find(tidQuery).projection(new Document(Constants.Artifact.ID_FIELD, 1)).first() != null;
+        AccessCache.put(tid, user, found);
+        return found;
     }
 
     public List<Cluster> clusters(int tid, int fid) {
@@ -802,69 +963,162 @@ public class ArtifactDAO {
     }
 
     /**
-     * Get the uploaded entity list
+     * Get the first page of the uploaded entity list
      *
      * @return uploaded entity list
      */
-    public List<TimeSeries> timeSeriesList(String user) {
-        MongoConnection con = MongoConnection.getInstance();
-        FindIterable<Document> iterable;
+    public ArtifactPage timeSeriesList(String user) {
+        return timeSeriesList(user, null, null, 0);
+    }
+
+    /**
+     * Get a page of the uploaded entity list
+     *
+     * @param user the user, if there is no user specified the public artifacts are listed
+     * @param sort Constants.Listing.SORT_DATE or SORT_NAME, by date if null
+     * @param cursor the cursor of the page, null for the first page
+     * @param size number of artifacts in the page, the default page size if 0
+     * @return the page
+     */
+    public ArtifactPage timeSeriesList(String user, String sort, String cursor, int size) {
+        Document filter = new Document();
         if (user != null) {
-            iterable = con.artifactCol.find(new Document(Constants.Artifact.USER, user));
+            filter.append(Constants.Artifact.USER, user);
         } else {
-            iterable = con.artifactCol.find(new Document(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE));
+            filter.append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
         }
-        return getTimeSeriesList(iterable);
+        return page(user, ListingCache.all(), filter, sort, cursor, size);
     }
 
-    public List<TimeSeries> timeSeriesList(Group group, String user) {
-        MongoConnection con = MongoConnection.getInstance();
-        Document findDoc = new Document();
-        findDoc.append(Constants.Artifact.GROUP_FIELD, group.name);
+    public ArtifactPage timeSeriesList(Group group, String user) {
+        return timeSeriesList(group, user, null, null, 0);
+    }
+
+    public ArtifactPage timeSeriesList(Group group, String user, String sort, String cursor, int size) {
+        Document filter = new Document();
+        filter.append(Constants.Artifact.GROUP_FIELD, group.name);
         if (user != null) {
-            findDoc.append(Constants.Artifact.USER, user);
+            filter.append(Constants.Artifact.USER, user);
         } else {
-            findDoc.append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
+            filter.append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
         }
-        FindIterable<Document> iterable = con.artifactCol.find(findDoc);
-        return getTimeSeriesList(iterable);
+        return page(user, ListingCache.group(group.name), filter, sort, cursor, size);
     }
 
-    private List<TimeSeries> getTimeSeriesList(FindIterable<Document> iterable) {
-        List<TimeSeries> timeSeriesList = new ArrayList<TimeSeries>();
-        for (Document document : iterable) {
-            TimeSeries timeSeries = new TimeSeries();
+    /**
+     * A page of the artifacts matching a filter. Only the fields shown in the listing are read. The pages
+     * are sorted by the sort field and then by id, the cursor of a page is the sort field and the id of the
+     * last artifact of the previous page, so a page is found with the index instead of skipping the pages
+     * before it. The pages are cached until an artifact in the listing changes.
+     *
+     * @param user the user of the listing, null for the public
+     * @param listing the listing in the cache, see ListingCache
+     * @param filter the artifacts to list
+     * @param sort Constants.Listing.SORT_DATE or SORT_NAME, by date if null
+     * @param cursor the cursor of the page, null for the first page
+     * @param size number of artifacts in the page, the default page size if 0
+     * @return the page
+     */
+    static ArtifactPage page(String user, String listing, Document filter, String sort, String cursor, int size) {
+        sort = listingSort(sort);
+        size = listingSize(size);
+        ArtifactPage page = ListingCache.getPage(user, listing, sort, cursor, size);
+        if (page != null) {
+            return page;
+        }
+        long read = ListingCache.version();
+        page = readPage(filter, sort, cursor, size);
+        ListingCache.putPage(user, listing, sort, cursor, size, page, read);
+        return page;
+    }
+
+    /**
+     * @param sort the sort asked for
+     * @return Constants.Listing.SORT_NAME or SORT_DATE, the sort of the page
+     */
+    static String listingSort(String sort) {
+        return Constants.Listing.SORT_NAME.equals(sort) ? Constants.Listing.SORT_NAME : Constants.Listing.SORT_DATE;
+    }
+
+    /**
+     * @param size the page size asked for, 0 for the default
+     * @return the size of the page
+     */
+    static int listingSize(int size) {
+        return size > 0 ? Math.min(size, maxPageSize) : pageSize;
+    }
+
+    /**
+     * Read a page of the artifacts matching a filter, without the cache
+     */
+    static ArtifactPage readPage(Document filter, String sort, String cursor, int size) {
+        MongoConnection con = MongoConnection.getInstance();
+        ArtifactPage page = new ArtifactPage();
+        page.sort = listingSort(sort);
+        page.size = listingSize(size);
+        page.count = con.artifactCol.count(filter);
+
+        // newest first, or by name from a to z
+        String field = Constants.Listing.SORT_NAME.equals(page.sort) ? Constants.Artifact.NAME_FIELD : Constants.Artifact.DATE_CREATION_FIELD;
+        int order = Constants.Listing.SORT_NAME.equals(page.sort) ? 1 : -1;
+        String after = order > 0 ? "$gt" : "$lt";
+        Document query = new Document(filter);
+        int separator = cursor != null ? cursor.lastIndexOf('|') : -1;
+        if (separator >= 0) {
             try {
-                timeSeries.dateCreation = format.parse((String) document.get(Constants.Artifact.DATE_CREATION_FIELD));
-            } catch (ParseException e) {
-                e.printStackTrace();
+                String value = cursor.substring(0, separator);
+                int id = Integer.parseInt(cursor.substring(separator + 1));
+                List<Document> or = new ArrayList<Document>();
+                or.add(new Document(field, new Document(after, value)));
+                or.add(new Document(field, value).append(Constants.Artifact.ID_FIELD, new Document(after, id)));
+                query.append("$or", or);
+                page.cursor = cursor;
+            } catch (NumberFormatException e) {
+                Logger.warn("Invalid listing cursor: " + cursor);
             }
-            timeSeries.id = (Integer) document.get(Constants.Artifact.ID_FIELD);
-            timeSeries.name = (String) document.get(Constants.Artifact.NAME_FIELD);
-            timeSeries.description = (String) document.get(Constants.Artifact.DESC_FIELD);
-            timeSeries.uploaderId = (String) document.get(Constants.Artifact.USER);
-            timeSeries.status = (String) document.get(Constants.Artifact.STATUS_FIELD);
-            timeSeries.group = (String) document.get(Constants.Artifact.GROUP_FIELD);
-            Object pub = document.get(Constants.Artifact.PUBLIC);
-            if (pub != null && pub instanceof Boolean) {
-                timeSeries.pub = (boolean) pub;
-            }
-            if (timeSeries.group == null || "".equals(timeSeries.group)) {
-                timeSeries.group = Constants.Group.DEFAULT_GROUP;
-            }
-            Object resultSetsObject = document.get(Constants.Artifact.FILES);
-            if (resultSetsObject != null && resultSetsObject instanceof List) {
-                if (((List)resultSetsObject).size() > 1) {
-                    timeSeries.t = "T";
-                } else {
-                    timeSeries.t = "S";
-                }
-            } else {
-                timeSeries.t = "S";
+        }
+
+        FindIterable<Document> iterable = con.artifactCol.find(query).projection(listingFields)
+                .sort(new Document(field, order).append(Constants.Artifact.ID_FIELD, order)).limit(page.size + 1);
+        Document last = null;
+        for (Document document : iterable) {
+            if (page.items.size() == page.size) {
+                page.next = last.get(field) + "|" + last.get(Constants.Artifact.ID_FIELD);
+                break;
             }
-            timeSeriesList.add(timeSeries);
+            page.items.add(listedTimeSeries(document));
+            last = document;
+        }
+        return page;
+    }
+
+    private static TimeSeries listedTimeSeries(Document document) {
+        TimeSeries timeSeries = new TimeSeries();
+        try {
+            timeSeries.dateCreation = format.parse((String) document.get(Constants.Artifact.DATE_CREATION_FIELD));
+        } catch (ParseException e) {
+            e.printStackTrace();
+        }
+        timeSeries.id = (Integer) document.get(Constants.Artifact.ID_FIELD);
+        timeSeries.name = (String) document.get(Constants.Artifact.NAME_FIELD);
+        timeSeries.description = (String) document.get(Constants.Artifact.DESC_FIELD);
+        timeSeries.uploaderId = (String) document.get(Constants.Artifact.USER);
+        timeSeries.status = (String) document.get(Constants.Artifact.STATUS_FIELD);
+        timeSeries.group = (String) document.get(Constants.Artifact.GROUP_FIELD);
+        Object pub = document.get(Constants.Artifact.PUBLIC);
+        if (pub != null && pub instanceof Boolean) {
+            timeSeries.pub = (boolean) pub;
+        }
+        if (timeSeries.group == null || "".equals(timeSeries.group)) {
+            timeSeries.group = Constants.Group.DEFAULT_GROUP;
+        }
+        Object frames = document.get(Constants.Artifact.FRAME_COUNT);
+        if (frames instanceof Number && ((Number) frames).intValue() > 1) {
+            timeSeries.t = "T";
+        } else {
+            timeSeries.t = "S";
         }
-        return timeSeriesList;
+        return timeSeries;
     }
 
     public boolean timeSeriesExists(TimeSeries timeSeries) {
@@ -889,11 +1143,14 @@ public class ArtifactDAO {
         }
 
         if (findDocument != null) {
+            Document before = new Document(findDocument);
             findDocument.append(Constants.Artifact.NAME_FIELD, newTimeSeries.name);
             findDocument.append(Constants.Artifact.GROUP_FIELD, newTimeSeries.group);
             findDocument.append(Constants.Artifact.DESC_FIELD, newTimeSeries.description);
             findDocument.append(Constants.Artifact.PUBLIC, newTimeSeries.pub);
             con.artifactCol.replaceOne(oldGroupDocument, findDocument);
+            AccessCache.invalidate(old.id);
+            evictListings(before, findDocument);
         }
     }
 
@@ -15,6 +15,16 @@ public class Constants {
         public static final String POINT = "S";
     }
 
+    /**
+     * How the positions of an artifact are stored and sent
+     */
+    public static class Precision {
+        // 32 bit floats
+        public static final String FLOAT = "float";
+        // 16 bit fixed point values relative to the bounding box
+        public static final String FIXED16 = "fixed16";
+    }
+
     public static class ArtifactStatus {
         public static final String ACTIVE = "active";
         public static final String PENDING = "pending";
@@ -27,7 +37,27 @@ public class Constants {
         public static final String EDGES = "edges";
         public static final String POINTS = "points";
         public static final String STATS = "stats";
+        // content hash of the uploaded file, used as the ETag of the file
+        public static final String HASH = "hash";
         public static final String TIME_SERIES_ID_FIELD = "tId";
+        // packed point storage, see PackedChunk
+        public static final String PACKED_KEYS = "pk";
+        public static final String PACKED_COORDINATES = "px";
+        public static final String PACKED_CLUSTERS = "pc";
+        public static final String PACKED_OFFSETS = "po";
+        public static final String PACKED_LABELS = "pl";
+        // fixed point coordinates of the packed points and the bounding box of the chunk
+        public static final String PACKED_QUANTIZED = "pq";
+        public static final String PACKED_BOUNDS = "pb";
+    }
+
+    public static class Stats {
+        public static final String COUNT = "count";
+        public static final String MEANS = "means";
+        public static final String VARIANCE = "variance";
+        public static final String MIN = "min";
+        public static final String MAX = "max";
+        public static final String CLUSTERS = "clusters";
     }
 
     public static class Cluster {
@@ -71,6 +101,9 @@ public class Constants {
         public static final String UDP = "udp";
         public static final String FILES = "files";
         public static final String PUBLIC = "public";
+        public static final String PRECISION = "precision";
+        // number of files of the artifact, so the listings don't read the files
+        public static final String FRAME_COUNT = "frames";
         public static final boolean PUBLIC_TRUE = true;
         public static final boolean PUBLIC_FALSE = false;
     }
@@ -125,5 +158,188 @@ public class Constants {
         public static final String COMMENT_COLLECTION = "comment";
         public static final String TAGS_COLLECTION = "tags";
         public static final String PLOTS_TAGS_COLLECTION = "plottags";
+        public static final String PAYLOADS_COLLECTION = "payloads";
+        public static final String JOBS_COLLECTION = "jobs";
+        public static final String UPLOADS_COLLECTION = "uploads";
+        public static final String DELTAS_COLLECTION = "deltas";
+        public static final String LODS_COLLECTION = "lods";
+        public static final String OCTREES_COLLECTION = "octrees";
+        public static final String TRAJECTORIES_COLLECTION = "trajectories";
+    }
+
+    public static class Storage {
+        public static final String PACKED = "storage.packed";
+        public static final String PACKED_POINTS_PER_CHUNK = "storage.pointsPerChunk";
+        public static final String PAYLOADS = "storage.payloads";
+        public static final String INSERT_BATCH_SIZE = "storage.insertBatchSize";
+        public static final String WRITE_CONCERN = "storage.writeConcern";
+        public static final String PRECISION = "storage.precision";
+    }
+
+    public static class Ingest {
+        public static final String WORKERS = "ingest.workers";
+        public static final String QUEUE_SIZE = "ingest.queueSize";
+        public static final String FRAME_WORKERS = "ingest.frameWorkers";
+        public static final String NODE_ID = "ingest.nodeId";
+        public static final String LEASE = "ingest.lease";
+    }
+
+    /**
+     * Ingestion job of an upload, the job has the id of the artifact it creates
+     */
+    public static class Job {
+        public static final String TIME_SERIES_ID_FIELD = "tid";
+        public static final String USER = "uploader";
+        public static final String FILE_NAME_FIELD = "file";
+        // path of the uploaded file read by the job, not shown to the user
+        public static final String UPLOAD = "upload";
+        public static final String STATUS = "status";
+        public static final String FRAMES = "frames";
+        public static final String FRAMES_DONE = "framesDone";
+        public static final String ERROR = "error";
+        public static final String CREATED = "created";
+        public static final String UPDATED = "updated";
+        // the server running the job, and the time until which it holds the job
+        public static final String OWNER = "owner";
+        public static final String LEASE = "lease";
+    }
+
+    /**
+     * Delta encoded time series frames, see FrameDeltas
+     */
+    public static class Delta {
+        public static final String KEYFRAME = "key";
+        public static final String BASE = "base";
+        public static final String KEYFRAME_INTERVAL = "timeseries.keyframeInterval";
+        public static final String BITS = "timeseries.deltaBits";
+    }
+
+    /**
+     * Level of detail pyramid of a file, see LodPyramid
+     */
+    public static class Lod {
+        public static final String LEVEL = "lod";
+        public static final String LEVELS = "levels";
+        // the chunks of a level, -1 for the header of the file
+        public static final String CHUNK = "chunk";
+        public static final String COUNT = "count";
+        public static final String MIN_POINTS = "lod.minPoints";
+        public static final String FACTOR = "lod.factor";
+    }
+
+    /**
+     * External sort used by the builds over all the points of a file, see SpillSort
+     */
+    public static class Sort {
+        public static final String BUFFER_BYTES = "sort.bufferBytes";
+    }
+
+    /**
+     * Spatial index of a file, see PointOctree
+     */
+    public static class Octree {
+        public static final String BOUNDS = "bounds";
+        public static final String COUNT = "count";
+        // the first code of a part
+        public static final String FIRST = "first";
+        public static final String POINTS_PER_PART = "octree.pointsPerPart";
+    }
+
+    /**
+     * Upload session of a file sent in parts
+     */
+    public static class Upload {
+        public static final String ID_FIELD = "id";
+        public static final String USER = "uploader";
+        public static final String FILE_NAME_FIELD = "fileName";
+        public static final String DESCRIPTION = "desc";
+        public static final String GROUP = "group";
+        public static final String PRECISION = "precision";
+        public static final String SIZE = "size";
+        public static final String PART_SIZE = "partSize";
+        public static final String PARTS = "parts";
+        public static final String CREATED = "created";
+        // the last time a part was received
+        public static final String UPDATED = "updated";
+        public static final String STATUS = "status";
+        public static final String DIR = "upload.dir";
+        // sessions without a part for this long are removed with their file
+        public static final String EXPIRE_AFTER = "upload.expireAfter";
+    }
+
+    public static class UploadStatus {
+        // receiving parts
+        public static final String UPLOADING = "uploading";
+        // handing the file over to the ingestion
+        public static final String COMPLETING = "completing";
+    }
+
+    public static class JobStatus {
+        public static final String QUEUED = "queued";
+        public static final String RUNNING = "running";
+        public static final String DONE = "done";
+        public static final String FAILED = "failed";
+        public static final String CANCELLED = "cancelled";
+    }
+
+    /**
+     * Block of the positions of some points over all the frames of a time series, see Trajectories
+     */
+    public static class Trajectory {
+        public static final String BLOCK = "b";
+        public static final String KEYS = "k";
+        public static final String FRAMES = "frames";
+        public static final String DATA = "d";
+        public static final String GENERATION = "g";
+    }
+
+    /**
+     * Playback of a time series pushed to the client, see PlaybackSession
+     */
+    public static class Playback {
+        public static final String AHEAD_MILLIS = "playback.aheadMillis";
+        public static final String SENDERS = "playback.senders";
+        public static final String QUEUE_SIZE = "playback.queueSize";
+        public static final String RETRY_MILLIS = "playback.retryMillis";
+    }
+
+    /**
+     * Files streamed from their chunks, see PlotStream
+     */
+    public static class Stream {
+        public static final String WRITERS = "stream.writers";
+        public static final String QUEUE_SIZE = "stream.queueSize";
+    }
+
+    /**
+     * Pages of the dashboard listings
+     */
+    public static class Listing {
+        public static final String PAGE_SIZE = "listing.pageSize";
+        public static final String MAX_PAGE_SIZE = "listing.maxPageSize";
+        // newest first
+        public static final String SORT_DATE = "date";
+        // by name, a to z
+        public static final String SORT_NAME = "name";
+    }
+
+    public static class Cache {
+        public static final String FRAMES_MAX_BYTES = "cache.frames.maxBytes";
+        public static final String ACCESS_MAX_ARTIFACTS = "cache.access.maxArtifacts";
+        public static final String ACCESS_TTL = "cache.access.ttl";
+        public static final String LISTING_MAX_USERS = "cache.listing.maxUsers";
+        public static final String LISTING_MAX_PAGES = "cache.listing.maxPages";
+        public static final String LISTING_TTL = "cache.listing.ttl";
+        public static final String PRINCIPALS_MAX_USERS = "cache.principals.maxUsers";
+        public static final String PRINCIPALS_TTL = "cache.principals.ttl";
+    }
+
+    /**
+     * Gzip compressed JSON of a file, split in to parts
+     */
+    public static class Payload {
+        public static final String PART = "n";
+        public static final String PARTS = "parts";
+        public static final String DATA = "data";
     }
 }
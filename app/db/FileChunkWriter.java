@@ -0,0 +1,314 @@
+package db;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import models.xml.Cluster;
+import models.xml.Edge;
+import models.xml.PVizPoint;
+import models.xml.PlotHandler;
+import models.xml.Vertex;
+import org.bson.Document;
+import play.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a plot to the files collection while it is being read. Points and edges are written
+ * as chunk documents as soon as a chunk is full, so only the cluster membership is kept
+ * in memory until the whole plot has been read. With packed storage the points are written as
+ * {@link PackedChunk}s and not even the membership is kept.
+ */
+public class FileChunkWriter implements PlotHandler {
+    // maximum number of points per file
+    private static final int maxPointsPerFile = 100000;
+    private static final boolean packedStorage;
+    private static final int packedPointsPerChunk;
+    // number of chunks sent to the database together
+    private static final int insertBatchSize;
+    private static final MongoCollection<Document> chunksCol;
+
+    static {
+        Config conf = ConfigFactory.load();
+        packedStorage = conf.hasPath(Constants.Storage.PACKED) && conf.getBoolean(Constants.Storage.PACKED);
+        packedPointsPerChunk = conf.hasPath(Constants.Storage.PACKED_POINTS_PER_CHUNK) ?
+                conf.getInt(Constants.Storage.PACKED_POINTS_PER_CHUNK) : 250000;
+        insertBatchSize = Math.max(1, conf.hasPath(Constants.Storage.INSERT_BATCH_SIZE) ?
+                conf.getInt(Constants.Storage.INSERT_BATCH_SIZE) : 4);
+
+        WriteConcern writeConcern = null;
+        if (conf.hasPath(Constants.Storage.WRITE_CONCERN)) {
+            writeConcern = WriteConcern.valueOf(conf.getString(Constants.Storage.WRITE_CONCERN));
+            if (writeConcern == null) {
+                Logger.warn("Unknown write concern " + conf.getString(Constants.Storage.WRITE_CONCERN));
+            }
+        }
+        MongoCollection<Document> filesCol = MongoConnection.getInstance().filesCol;
+        chunksCol = writeConcern != null ? filesCol.withWriteConcern(writeConcern) : filesCol;
+    }
+
+    private final List<Document> pendingChunks = new ArrayList<>();
+
+    private final int id;
+    private final String name;
+    private final String description;
+    private final String uploader;
+    private final int parent;
+    private final Long sequenceNumber;
+    private final String originalFileName;
+
+    private final Map<Integer, Document> clusters = new LinkedHashMap<Integer, Document>();
+    private final Map<Integer, Integer> clusterPointCount = new HashMap<>();
+    private final PlotStatistics stats = new PlotStatistics();
+    // point keys for each cluster
+    private final Map<Integer, List<Integer>> pointsForClusters = new HashMap<Integer, List<Integer>>();
+    private Map<String, List<String>> currentPointList = new HashMap<>();
+    private final PackedChunk packedChunk;
+    private Map<String, Document> currentEdgeList = new HashMap<>();
+    private int edgeVertexCount = 0;
+
+    /**
+     * @param precision how the positions are stored, fixed point positions are always packed
+     */
+    public FileChunkWriter(int id, String name, String description, String uploader,
+                           int parent, Long sequenceNumber, String originalFileName, String precision) {
+        boolean fixed16 = Constants.Precision.FIXED16.equals(precision);
+        this.packedChunk = packedStorage || fixed16 ? new PackedChunk(packedPointsPerChunk, fixed16) : null;
+        this.id = id;
+        this.name = name;
+        this.description = description;
+        this.uploader = uploader;
+        this.parent = parent;
+        this.sequenceNumber = sequenceNumber;
+        this.originalFileName = originalFileName;
+    }
+
+    @Override
+    public void cluster(Cluster cl) {
+        Document c = new Document();
+        c.put(Constants.Cluster.KEY, cl.getKey());
+        if (cl.getColor() != null) {
+            c.put(Constants.Cluster.COLOR, color(cl.getColor().getA(), cl.getColor().getB(), cl.getColor().getG(), cl.getColor().getR()));
+        }
+        c.put(Constants.Cluster.LABEL, cl.getLabel());
+        c.put(Constants.Cluster.SIZE, cl.getSize());
+        c.put(Constants.Cluster.VISIBILE, cl.getVisible());
+        c.put(Constants.Cluster.SHAPE, cl.getShape());
+        clusters.put(cl.getKey(), c);
+    }
+
+    @Override
+    public void point(PVizPoint point) {
+        int clusterKey = point.getClusterkey();
+        if (!clusters.containsKey(clusterKey)) {
+            clusters.put(clusterKey, defaultCluster(clusterKey, point.getLabel()));
+        }
+        Integer count = clusterPointCount.get(clusterKey);
+        clusterPointCount.put(clusterKey, count == null ? 1 : count + 1);
+
+        double x = Double.parseDouble(point.getLocation().getX());
+        double y = Double.parseDouble(point.getLocation().getY());
+        double z = Double.parseDouble(point.getLocation().getZ());
+        stats.add(x, y, z);
+
+        if (packedChunk != null) {
+            if (packedChunk.add(point.getKey(), clusterKey, (float) x, (float) y, (float) z, point.getLabel())) {
+                insertPackedChunk();
+            }
+            return;
+        }
+
+        List<Integer> clusterPoints = pointsForClusters.get(clusterKey);
+        if (clusterPoints == null) {
+            clusterPoints = new ArrayList<Integer>();
+            pointsForClusters.put(clusterKey, clusterPoints);
+        }
+        // add the key to cluster and point to point list
+        clusterPoints.add(point.getKey());
+        currentPointList.put(Integer.toString(point.getKey()), createPoint(point.getLocation().getX(),
+                point.getLocation().getY(), point.getLocation().getZ(), point.getLabel()));
+        if (currentPointList.size() > maxPointsPerFile) {
+            insertChunk(Constants.File.POINTS, currentPointList);
+            currentPointList = new HashMap<>();
+            Logger.info("Breaking file points: " + originalFileName);
+        }
+    }
+
+    @Override
+    public void edge(Edge e) {
+        List<Vertex> vertexes = e.getVertices();
+        if (vertexes == null || vertexes.size() == 0) {
+            // no point adding this edge, because it doesn't have vertices
+            return;
+        }
+        List<Integer> vertices = new ArrayList<>();
+        for (Vertex v : vertexes) {
+            vertices.add(v.getKey());
+        }
+        currentEdgeList.put(Integer.toString(e.getKey()), new Document(Constants.Edge.VERTICES, vertices));
+        edgeVertexCount += vertices.size();
+        if (edgeVertexCount > maxPointsPerFile) {
+            insertChunk(Constants.File.EDGES, currentEdgeList);
+            currentEdgeList = new HashMap<>();
+            edgeVertexCount = 0;
+            Logger.info("Breaking file edges: " + originalFileName);
+        }
+    }
+
+    /**
+     * Write the clusters and whatever is left of the points and edges. Must be called once the
+     * whole plot has been read.
+     * @param contentHash hash of the uploaded file, stored with the root chunk
+     */
+    public void close(String contentHash) {
+        Document rootObject = createRootFileObject();
+
+        // remove the clusters without any points
+        for (Iterator<Map.Entry<Integer, Document>> it = clusters.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Document> entry = it.next();
+            if (!clusterPointCount.containsKey(entry.getKey())) {
+                Logger.info("Remove: " + entry.getKey());
+                it.remove();
+            }
+        }
+
+        if (packedChunk != null && !packedChunk.isEmpty()) {
+            packedChunk.appendTo(rootObject);
+        }
+
+        // add each cluster to clusters object
+        // we are going to create separate docs when total number of points exceeds
+        int count = 0;
+        Map<String, Document> currentClusterList = new HashMap<>();
+        for (Map.Entry<Integer, Document> e : clusters.entrySet()) {
+            if (packedChunk == null) {
+                // packed files take the membership from the point chunks
+                e.getValue().append(Constants.Cluster.POINTS, pointsForClusters.get(e.getKey()));
+                count += clusterPointCount.get(e.getKey());
+            }
+            currentClusterList.put(Integer.toString(e.getKey()), e.getValue());
+            if (count > maxPointsPerFile) {
+                count = 0;
+                insertChunk(Constants.File.CLUSTERS, currentClusterList);
+                currentClusterList = new HashMap<>();
+                Logger.info("Breaking file clusters: " + originalFileName);
+            }
+        }
+
+        // we will add the remainder or the whole list, if we didn't exceed the max number
+        if (currentClusterList.size() > 0) {
+            rootObject.append(Constants.File.CLUSTERS, currentClusterList);
+        }
+        if (currentPointList.size() > 0) {
+            rootObject.append(Constants.File.POINTS, currentPointList);
+        }
+        if (currentEdgeList.size() > 0) {
+            rootObject.append(Constants.File.EDGES, currentEdgeList);
+        }
+        rootObject.append(Constants.File.STATS, stats.toDocument(clusterPointCount));
+        rootObject.append(Constants.File.HASH, contentHash);
+        write(rootObject);
+        flush();
+        Logger.info("Inserted document: " + originalFileName);
+    }
+
+    private void insertPackedChunk() {
+        Document chunk = createRootFileObject();
+        packedChunk.appendTo(chunk);
+        packedChunk.clear();
+        write(chunk);
+        Logger.info("Breaking file points: " + originalFileName);
+    }
+
+    private void insertChunk(String field, Map<String, ?> values) {
+        Document chunk = createRootFileObject();
+        chunk.append(field, values);
+        write(chunk);
+    }
+
+    private void write(Document chunk) {
+        pendingChunks.add(chunk);
+        if (pendingChunks.size() >= insertBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Insert the pending chunks with a single unordered insert, the order of the chunks doesn't matter
+     */
+    private void flush() {
+        if (pendingChunks.isEmpty()) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        chunksCol.insertMany(pendingChunks, new InsertManyOptions().ordered(false));
+        Logger.info("Inserted " + pendingChunks.size() + " chunks of " + originalFileName + " in "
+                + (System.currentTimeMillis() - t0) + " ms");
+        pendingChunks.clear();
+    }
+
+    /**
+     * Constructs the root cluster object
+     * @return document
+     */
+    private Document createRootFileObject() {
+        Document rootObject = new Document();
+        rootObject.append(Constants.Artifact.ID_FIELD, id);
+        rootObject.append(Constants.Artifact.NAME_FIELD, name);
+        rootObject.append(Constants.Artifact.DESC_FIELD, description);
+        rootObject.append(Constants.Artifact.USER, uploader);
+        rootObject.append(Constants.File.FILE_NAME_FIELD, originalFileName);
+        rootObject.append(Constants.File.TIME_SERIES_ID_FIELD, parent);
+        rootObject.append(Constants.File.TIME_SERIES_SEQ_NUMBER_FIELD, sequenceNumber);
+        return rootObject;
+    }
+
+    /**
+     * Cluster used for points that refer to a cluster which is not defined in the file,
+     * text files don't define any clusters at all
+     */
+    private Document defaultCluster(int clusterKey, String label) {
+        Document cluster = new Document();
+        cluster.put(Constants.Cluster.KEY, clusterKey);
+        if (label != null && !"None".equals(label) && !"".equals(label.trim())) {
+            cluster.put(Constants.Cluster.LABEL, label);
+        } else {
+            cluster.put(Constants.Cluster.LABEL, clusterKey);
+        }
+        cluster.put(Constants.Cluster.SIZE, 1);
+        cluster.put(Constants.Cluster.VISIBILE, 1);
+        cluster.put(Constants.Cluster.SHAPE, 3);
+        cluster.put(Constants.Cluster.COLOR, color(255, 255, 255, 255));
+        return cluster;
+    }
+
+    private BasicDBList color(int a, int r, int g, int b) {
+        BasicDBList list = new BasicDBList();
+        list.add(a);
+        list.add(r);
+        list.add(g);
+        list.add(b);
+        return list;
+    }
+
+    /**
+     * Create a point document
+     * @return the point as x, y, z and label
+     */
+    private List<String> createPoint(String x, String y, String z, String label) {
+        List<String> list = new ArrayList<>();
+        list.add(x);
+        list.add(y);
+        list.add(z);
+        list.add(label);
+        return list;
+    }
+}
@@ -0,0 +1,177 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of file payloads, bounded by the total number of bytes. The payloads are
+ * kept in direct buffers outside the heap, so a large cache doesn't add to the garbage collection work.
+ * The direct memory limit of the JVM (-XX:MaxDirectMemorySize) has to be larger than the cache size.
+ * <p>
+ * A payload read from the store before its artifact was invalidated is not cached: the reader takes the
+ * generation of the artifact before reading and put drops the payload if the generation changed since.
+ */
+public class FrameCache {
+    private static final long maxBytes;
+
+    static {
+        Config conf = ConfigFactory.load();
+        maxBytes = conf.hasPath(Constants.Cache.FRAMES_MAX_BYTES) ? conf.getBytes(Constants.Cache.FRAMES_MAX_BYTES) : 0;
+    }
+
+    private static final Map<String, ByteBuffer> frames = new LinkedHashMap<>(16, 0.75f, true);
+    private static long bytes = 0;
+    // the generations of the artifacts, an artifact shares its slot with the ones of the same hash
+    private static final long[] generations = new long[1024];
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Get a cached payload
+     * @param tid artifact id
+     * @param fid file id
+     * @return a read only view of the payload, null if it is not cached
+     */
+    public static ByteBuffer get(int tid, int fid) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        ByteBuffer frame;
+        synchronized (frames) {
+            frame = frames.get(key(tid, fid));
+        }
+        if (frame == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * @param tid artifact id
+     * @return the generation to give to put, taken before the payload is read from the store
+     */
+    public static long generation(int tid) {
+        synchronized (frames) {
+            return generations[slot(tid)];
+        }
+    }
+
+    /**
+     * Cache a payload, the least recently used payloads are evicted to stay within the size of the cache
+     * @param tid artifact id
+     * @param fid file id
+     * @param payload the payload
+     * @param generation the generation of the artifact when the payload was read
+     */
+    public static void put(int tid, int fid, byte[] payload, long generation) {
+        // a single payload shouldn't push out most of the cache
+        if (maxBytes <= 0 || payload.length > maxBytes / 4) {
+            return;
+        }
+        ByteBuffer frame = ByteBuffer.allocateDirect(payload.length);
+        frame.put(payload).flip();
+        synchronized (frames) {
+            // the artifact was invalidated while the payload was read
+            if (generations[slot(tid)] != generation) {
+                return;
+            }
+            ByteBuffer old = frames.put(key(tid, fid), frame);
+            if (old != null) {
+                bytes -= old.capacity();
+            }
+            bytes += payload.length;
+            Iterator<ByteBuffer> it = frames.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().capacity();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove the payloads of all the files of an artifact
+     * @param tid artifact id
+     */
+    public static void invalidate(int tid) {
+        String prefix = tid + "/";
+        synchronized (frames) {
+            generations[slot(tid)]++;
+            for (Iterator<Map.Entry<String, ByteBuffer>> it = frames.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, ByteBuffer> e = it.next();
+                if (e.getKey().startsWith(prefix)) {
+                    bytes -= e.getValue().capacity();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    public static long getBytes() {
+        synchronized (frames) {
+            return bytes;
+        }
+    }
+
+    /**
+     * A stream over a cached payload, read straight from the buffer
+     */
+    public static class BufferStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        public BufferStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static int slot(int tid) {
+        return (tid & 0x7fffffff) % generations.length;
+    }
+
+    private static String key(int tid, int fid) {
+        return tid + "/" + fid;
+    }
+}
@@ -0,0 +1,288 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.bson.Document;
+import play.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delta encoding of the frames of a time series for playback. The positions of all the frames are
+ * quantized on one grid over the bounding box of the time series, with 2^bits - 1 steps on each axis,
+ * so a coordinate is off by at most half a step. A keyframe holds the point keys, the clusters and the
+ * quantized positions, the frames in between hold only the change of each quantized coordinate since the
+ * previous frame. A frame is a keyframe every keyframeInterval frames and whenever its points or their
+ * clusters differ from the previous frame. Because the deltas are taken between quantized values, a
+ * client that adds them up gets exactly the quantized positions of each frame, the error doesn't grow.
+ * A q is negative or above 2^bits - 1 when a position is outside the bounds in the stats of its file,
+ * so the q of a keyframe are zigzag encoded too.
+ * The labels, colors and edges are not part of the encoding, they come from the full frame. The deltas
+ * are only used to send the frames, the files keep all the points of each frame.
+ * <pre>
+ * int32     magic "PVZD"
+ * int32     version, 2
+ * int32     frame number
+ * int32     number of the keyframe the frame builds on, the frame itself for a keyframe
+ * int32     flags, 1 for a keyframe
+ * int32     number of points n, the points are ordered by key
+ * float64[3] origin of the grid
+ * float64[3] step of the grid, a coordinate is origin + q * step
+ * keyframe:
+ *   varint[n]  key of each point minus the key of the point before it, zigzag encoded
+ *   varint[n]  cluster of each point, zigzag encoded
+ *   varint[3n] q of the x, y, z of each point, zigzag encoded
+ * other frames:
+ *   varint[3n] q minus the q of the previous frame, zigzag encoded
+ * </pre>
+ * The varints are little endian base 128, 7 bits in each byte with the high bit set on all bytes but
+ * the last.
+ */
+public class FrameDeltas {
+    public static final String MIME_TYPE = "application/x-pviz-delta";
+    private static final int MAGIC = 0x445A5650;
+    public static final int VERSION = 2;
+    private static final int KEYFRAME = 1;
+
+    private static final int keyframeInterval;
+    private static final int bits;
+
+    static {
+        Config conf = ConfigFactory.load();
+        keyframeInterval = Math.max(1, conf.hasPath(Constants.Delta.KEYFRAME_INTERVAL) ?
+                conf.getInt(Constants.Delta.KEYFRAME_INTERVAL) : 10);
+        bits = Math.min(30, Math.max(1, conf.hasPath(Constants.Delta.BITS) ? conf.getInt(Constants.Delta.BITS) : 16));
+    }
+
+    // time series that are waiting for their deltas to be built
+    private static final Set<Integer> pending = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "delta-builder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Quantized points of the previous frame
+     */
+    private static class Frame {
+        final int[] keys;
+        final int[] clusters;
+        final int[] q;
+
+        Frame(int size) {
+            keys = new int[size];
+            clusters = new int[size];
+            q = new int[size * 3];
+        }
+
+        boolean sameStructure(Frame other) {
+            return Arrays.equals(keys, other.keys) && Arrays.equals(clusters, other.clusters);
+        }
+    }
+
+    /**
+     * Encode and store all the frames of a time series, replacing the old deltas
+     * @param tid artifact id
+     * @param frames number of frames, the files of the time series have the ids 0 to frames - 1
+     */
+    public static void build(int tid, int frames) {
+        long t0 = System.currentTimeMillis();
+        MongoConnection con = MongoConnection.getInstance();
+        double[][] bounds = bounds(tid, frames);
+        double[] origin = bounds[0];
+        double[] step = new double[3];
+        for (int a = 0; a < 3; a++) {
+            double extent = bounds[1][a] - bounds[0][a];
+            step[a] = extent > 0 ? extent / ((1 << bits) - 1) : 1;
+        }
+
+        con.deltasCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid));
+        long bytes = 0;
+        Frame previous = null;
+        int keyframe = 0;
+        for (int n = 0; n < frames; n++) {
+            FramePoints points = FramePoints.read(con.filesCol.find(fileQuery(tid, n)));
+            points.sortByKey();
+            Frame frame = new Frame(points.size());
+            for (int i = 0; i < points.size(); i++) {
+                frame.keys[i] = points.key(i);
+                frame.clusters[i] = points.cluster(i);
+                for (int a = 0; a < 3; a++) {
+                    frame.q[i * 3 + a] = (int) Math.round((points.position(i, a) - origin[a]) / step[a]);
+                }
+            }
+            boolean isKeyframe = previous == null || n % keyframeInterval == 0 || !frame.sameStructure(previous);
+            if (isKeyframe) {
+                keyframe = n;
+            }
+            byte[] data = encode(n, keyframe, isKeyframe, frame, previous, origin, step);
+            bytes += data.length;
+            Document fields = fileQuery(tid, n).append(Constants.Delta.KEYFRAME, isKeyframe)
+                    .append(Constants.Delta.BASE, keyframe);
+            con.deltasCol.insertMany(PayloadDAO.split(fields, data));
+            previous = frame;
+        }
+        Logger.info("Stored " + frames + " delta frames of " + bytes + " bytes for tid: " + tid + " in "
+                + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Get a frame encoded against the frame before it. If the time series doesn't have deltas yet, or
+     * they were stored in an older version of the format, they are built in the background and null is
+     * returned.
+     * @param tid artifact id
+     * @param frame frame number
+     * @param frames number of frames of the time series
+     * @return the encoded frame or null
+     */
+    public static byte[] get(int tid, int frame, int frames) {
+        MongoConnection con = MongoConnection.getInstance();
+        byte[] data = PayloadDAO.join(con.deltasCol.find(fileQuery(tid, frame))
+                .sort(new Document(Constants.Payload.PART, 1)));
+        if (data != null && (data.length < 8
+                || ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).getInt(4) != VERSION)) {
+            data = null;
+        }
+        if (data == null && frame >= 0 && frame < frames) {
+            schedule(tid, frames);
+        }
+        return data;
+    }
+
+    /**
+     * Delete the deltas of a time series
+     * @param tid artifact id
+     */
+    public static void delete(int tid) {
+        MongoConnection con = MongoConnection.getInstance();
+        con.deltasCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid));
+    }
+
+    private static byte[] encode(int n, int keyframe, boolean isKeyframe, Frame frame, Frame previous,
+                                 double[] origin, double[] step) {
+        int size = frame.keys.length;
+        ByteBuffer header = ByteBuffer.allocate(72).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(keyframe).putInt(isKeyframe ? KEYFRAME : 0).putInt(size);
+        for (int a = 0; a < 3; a++) {
+            header.putDouble(origin[a]);
+        }
+        for (int a = 0; a < 3; a++) {
+            header.putDouble(step[a]);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(72 + size * (isKeyframe ? 10 : 3));
+        out.write(header.array(), 0, header.position());
+        if (isKeyframe) {
+            int last = 0;
+            for (int i = 0; i < size; i++) {
+                writeVarint(out, zigzag(frame.keys[i] - last));
+                last = frame.keys[i];
+            }
+            for (int i = 0; i < size; i++) {
+                writeVarint(out, zigzag(frame.clusters[i]));
+            }
+            for (int i = 0; i < size * 3; i++) {
+                writeVarint(out, zigzag(frame.q[i]));
+            }
+        } else {
+            for (int i = 0; i < size * 3; i++) {
+                writeVarint(out, zigzag(frame.q[i] - previous.q[i]));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Bounding box of all the frames, from the stats stored with the files. Files inserted without stats
+     * are read to find their bounds.
+     */
+    private static double[][] bounds(int tid, int frames) {
+        MongoConnection con = MongoConnection.getInstance();
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        boolean[] found = new boolean[frames];
+        for (Document d : con.filesCol.find(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.File.STATS, new Document("$exists", true)))
+                .projection(new Document(Constants.Artifact.ID_FIELD, 1).append(Constants.File.STATS, 1))) {
+            Document stats = (Document) d.get(Constants.File.STATS);
+            int fid = d.getInteger(Constants.Artifact.ID_FIELD);
+            if (fid < 0 || fid >= frames || ((Number) stats.get(Constants.Stats.COUNT)).longValue() == 0) {
+                continue;
+            }
+            found[fid] = true;
+            List<?> statsMin = (List<?>) stats.get(Constants.Stats.MIN);
+            List<?> statsMax = (List<?>) stats.get(Constants.Stats.MAX);
+            for (int a = 0; a < 3; a++) {
+                min[a] = Math.min(min[a], ((Number) statsMin.get(a)).doubleValue());
+                max[a] = Math.max(max[a], ((Number) statsMax.get(a)).doubleValue());
+            }
+        }
+        for (int n = 0; n < frames; n++) {
+            if (!found[n]) {
+                FramePoints points = FramePoints.read(con.filesCol.find(fileQuery(tid, n)));
+                for (int i = 0; i < points.size(); i++) {
+                    for (int a = 0; a < 3; a++) {
+                        min[a] = Math.min(min[a], points.position(i, a));
+                        max[a] = Math.max(max[a], points.position(i, a));
+                    }
+                }
+            }
+        }
+        for (int a = 0; a < 3; a++) {
+            if (min[a] > max[a]) {
+                min[a] = 0;
+                max[a] = 0;
+            }
+        }
+        return new double[][]{min, max};
+    }
+
+    private static Document fileQuery(int tid, int fid) {
+        return new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static void schedule(final int tid, final int frames) {
+        if (!pending.add(tid)) {
+            return;
+        }
+        builder.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(tid, frames);
+                } catch (Exception e) {
+                    Logger.error("Failed to store delta frames for tid: " + tid, e);
+                } finally {
+                    pending.remove(tid);
+                }
+            }
+        });
+    }
+}
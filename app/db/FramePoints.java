@@ -0,0 +1,211 @@
+package db;
+
+import org.bson.Document;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The points of a file as primitive arrays, read from the chunks of the string list or the
+ * {@link PackedChunk} layout. Used by the code that works on the positions only, the labels are not read.
+ */
+public class FramePoints {
+    private int size = 0;
+    private int[] keys = new int[1024];
+    private int[] clusters = new int[1024];
+    private double[] positions = new double[3072];
+
+    /**
+     * Read the points of a file
+     * @param chunks the chunk documents of the file
+     * @return the points in the order of the chunks
+     */
+    public static FramePoints read(Iterable<Document> chunks) {
+        final FramePoints points = new FramePoints();
+        // the string list layout keeps the membership in the clusters
+        final Map<Integer, Integer> clusterOfPoint = new HashMap<>();
+        try {
+            scan(chunks, new Visitor() {
+                @Override
+                public void point(int key, int cluster, double x, double y, double z, String label) {
+                    points.add(key, cluster, x, y, z);
+                }
+
+                @Override
+                public void listPoint(int key, double x, double y, double z, String label) {
+                    points.add(key, 0, x, y, z);
+                }
+
+                @Override
+                public void member(int key, int cluster) {
+                    clusterOfPoint.put(key, cluster);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("The points are only kept in memory", e);
+        }
+        if (!clusterOfPoint.isEmpty()) {
+            for (int i = 0; i < points.size; i++) {
+                Integer cluster = clusterOfPoint.get(points.keys[i]);
+                if (cluster != null) {
+                    points.clusters[i] = cluster;
+                }
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Receives the content of the chunks of a file, one chunk at a time, for the builds that cannot keep all
+     * the points of a file in memory
+     */
+    public abstract static class Visitor {
+        /**
+         * A chunk, called before its points
+         */
+        public void chunk(Document chunk) throws IOException {
+        }
+
+        /**
+         * A point of the packed layout
+         */
+        public void point(int key, int cluster, double x, double y, double z, String label) throws IOException {
+        }
+
+        /**
+         * A point of the string list layout, its cluster is given by {@link #member}
+         */
+        public void listPoint(int key, double x, double y, double z, String label) throws IOException {
+        }
+
+        /**
+         * A point of the string list layout is in a cluster, the points without a cluster are in cluster 0
+         */
+        public void member(int key, int cluster) throws IOException {
+        }
+
+        /**
+         * An edge and the keys of its vertices
+         */
+        public void edge(int key, List<?> vertices) throws IOException {
+        }
+    }
+
+    /**
+     * Read the chunks of a file one at a time
+     * @param chunks the chunk documents of the file
+     * @param visitor gets the content of each chunk
+     * @throws IOException if the visitor fails
+     */
+    public static void scan(Iterable<Document> chunks, Visitor visitor) throws IOException {
+        for (Document d : chunks) {
+            visitor.chunk(d);
+            Object clusterObjects = d.get(Constants.File.CLUSTERS);
+            if (clusterObjects instanceof Document) {
+                for (Map.Entry<String, Object> e : ((Document) clusterObjects).entrySet()) {
+                    Object members = ((Document) e.getValue()).get(Constants.Cluster.POINTS);
+                    if (members instanceof List) {
+                        int cluster = Integer.parseInt(e.getKey());
+                        for (Object key : (List<?>) members) {
+                            visitor.member(((Number) key).intValue(), cluster);
+                        }
+                    }
+                }
+            }
+
+            Object pointObjects = d.get(Constants.File.POINTS);
+            if (pointObjects instanceof Document) {
+                for (Map.Entry<String, Object> e : ((Document) pointObjects).entrySet()) {
+                    List<?> point = (List<?>) e.getValue();
+                    visitor.listPoint(Integer.parseInt(e.getKey()), Double.parseDouble((String) point.get(0)),
+                            Double.parseDouble((String) point.get(1)), Double.parseDouble((String) point.get(2)),
+                            point.size() > 3 ? (String) point.get(3) : null);
+                }
+            }
+
+            Object edgeObjects = d.get(Constants.File.EDGES);
+            if (edgeObjects instanceof Document) {
+                for (Map.Entry<String, Object> e : ((Document) edgeObjects).entrySet()) {
+                    visitor.edge(Integer.parseInt(e.getKey()), (List<?>) ((Document) e.getValue()).get(Constants.Edge.VERTICES));
+                }
+            }
+
+            if (PackedChunk.isPacked(d)) {
+                IntBuffer keys = PackedChunk.ints(d, Constants.File.PACKED_KEYS);
+                FloatBuffer coordinates = PackedChunk.coordinates(d);
+                IntBuffer clusterKeys = PackedChunk.ints(d, Constants.File.PACKED_CLUSTERS);
+                IntBuffer offsets = PackedChunk.ints(d, Constants.File.PACKED_OFFSETS);
+                List<String> labels = PackedChunk.labels(d);
+                for (int i = 0; i < clusterKeys.limit(); i++) {
+                    for (int j = offsets.get(i); j < offsets.get(i + 1); j++) {
+                        visitor.point(keys.get(j), clusterKeys.get(i), coordinates.get(j * 3),
+                                coordinates.get(j * 3 + 1), coordinates.get(j * 3 + 2), labels != null ? labels.get(j) : null);
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(int key, int cluster, double x, double y, double z) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            clusters = Arrays.copyOf(clusters, size * 2);
+            positions = Arrays.copyOf(positions, size * 6);
+        }
+        keys[size] = key;
+        clusters[size] = cluster;
+        positions[size * 3] = x;
+        positions[size * 3 + 1] = y;
+        positions[size * 3 + 2] = z;
+        size++;
+    }
+
+    /**
+     * Order the points by key, so the points of two files can be matched by position
+     */
+    public void sortByKey() {
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(order);
+        int[] sortedKeys = new int[size];
+        int[] sortedClusters = new int[size];
+        double[] sortedPositions = new double[size * 3];
+        for (int i = 0; i < size; i++) {
+            int index = (int) order[i];
+            sortedKeys[i] = keys[index];
+            sortedClusters[i] = clusters[index];
+            System.arraycopy(positions, index * 3, sortedPositions, i * 3, 3);
+        }
+        keys = sortedKeys;
+        clusters = sortedClusters;
+        positions = sortedPositions;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int key(int i) {
+        return keys[i];
+    }
+
+    public int cluster(int i) {
+        return clusters[i];
+    }
+
+    /**
+     * @param i point index
+     * @param axis 0, 1 or 2 for x, y, z
+     * @return the coordinate
+     */
+    public double position(int i, int axis) {
+        return positions[i * 3 + axis];
+    }
+}
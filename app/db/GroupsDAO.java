@@ -51,6 +51,7 @@ public class GroupsDAO {
         groupDocument.append(Constants.Group.USER, group.userId);
         groupDocument.append(Constants.Group.PUBLIC, group.pub);
         db.groupsCol.insertOne(groupDocument);
+        ListingCache.evictGroups(group.userId, group.pub);
     }
 
     public static void updateGroup(Group oldGroup, Group newGroup) {
@@ -65,7 +66,8 @@ public class GroupsDAO {
         groupDocument.append(Constants.Group.USER, newGroup.userId);
         groupDocument.append(Constants.Group.PUBLIC, newGroup.pub);
 
-        db.groupsCol.findOneAndReplace(oldGroupDocument, groupDocument);
+        Document old = db.groupsCol.findOneAndReplace(oldGroupDocument, groupDocument);
+        ListingCache.evictGroups(newGroup.userId, newGroup.pub || (old != null && isPublic(old)));
     }
 
     public static void deleteGroup(Group group) {
@@ -73,10 +75,23 @@ public class GroupsDAO {
         Document groupDocument = new Document();
         groupDocument.append(Constants.Group.NAME, group.name);
         groupDocument.append(Constants.Group.USER, group.userId);
-        db.groupsCol.deleteOne(groupDocument);
+        Document old = db.groupsCol.findOneAndDelete(groupDocument);
+        if (old != null) {
+            ListingCache.evictGroups(group.userId, isPublic(old));
+        }
     }
 
+    /**
+     * The groups of a user, cached until one of them changes
+     * @param uid the user, if there is no user specified the public groups are listed
+     * @return the groups
+     */
     public static List<Group> allGroups(String uid) {
+        List<Group> cached = ListingCache.getGroups(uid);
+        if (cached != null) {
+            return cached;
+        }
+        long read = ListingCache.version();
         MongoConnection db = MongoConnection.getInstance();
         FindIterable<Document> iterable;
         if (uid != null) {
@@ -99,6 +114,11 @@ public class GroupsDAO {
             groups.add(group);
             System.out.println(group.name);
         }
+        ListingCache.putGroups(uid, groups, read);
         return groups;
     }
+
+    private static boolean isPublic(Document group) {
+        return Boolean.TRUE.equals(group.get(Constants.Group.PUBLIC));
+    }
 }
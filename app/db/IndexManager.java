@@ -0,0 +1,193 @@
+package db;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.util.JSON;
+import org.bson.Document;
+import play.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Declares the indexes needed by the queries of the DAOs. At startup the missing indexes are created
+ * and each declared query is explained, a query that still scans the whole collection is reported.
+ * When a DAO gets a new query, its shape should be declared here together with the index that serves it.
+ */
+public class IndexManager {
+    /**
+     * An index and the query shapes it serves. The values in the queries are only placeholders for explain.
+     */
+    private static class IndexSpec {
+        final MongoCollection<Document> collection;
+        final Document keys;
+        final List<Document> queries;
+
+        IndexSpec(MongoCollection<Document> collection, Document keys, Document... queries) {
+            this.collection = collection;
+            this.keys = keys;
+            this.queries = Arrays.asList(queries);
+        }
+    }
+
+    private static List<IndexSpec> declareIndexes(MongoConnection con) {
+        List<IndexSpec> specs = new ArrayList<>();
+        // chunks of a file, all files of an artifact
+        specs.add(new IndexSpec(con.filesCol,
+                keys(Constants.File.TIME_SERIES_ID_FIELD, Constants.Artifact.ID_FIELD),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, 0),
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.payloadsCol,
+                keys(Constants.File.TIME_SERIES_ID_FIELD, Constants.Artifact.ID_FIELD, Constants.Payload.PART),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, 0),
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.deltasCol,
+                keys(Constants.File.TIME_SERIES_ID_FIELD, Constants.Artifact.ID_FIELD, Constants.Payload.PART),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, 0),
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.lodsCol,
+                keys(Constants.File.TIME_SERIES_ID_FIELD, Constants.Artifact.ID_FIELD, Constants.Lod.LEVEL, Constants.Lod.CHUNK),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, 0)
+                        .append(Constants.Lod.LEVEL, 0).append(Constants.Lod.CHUNK, 0),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, 0)
+                        .append(Constants.Lod.LEVEL, new Document("$lte", 0)),
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.trajectoriesCol,
+                keys(Constants.File.TIME_SERIES_ID_FIELD, Constants.Trajectory.KEYS),
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, 0).append(Constants.Trajectory.KEYS, 0),
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.octreesCol,
+                keys(Constants.File.TIME_SERIES_ID_FIELD, Constants.Artifact.ID_FIELD, Constants.Payload.PART),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, 0),
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.jobsCol,
+                keys(Constants.Job.TIME_SERIES_ID_FIELD),
+                new Document(Constants.Job.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.jobsCol,
+                keys(Constants.Job.STATUS),
+                new Document(Constants.Job.STATUS, new Document("$in",
+                        Arrays.asList(Constants.JobStatus.QUEUED, Constants.JobStatus.RUNNING)))));
+        specs.add(new IndexSpec(con.jobsCol,
+                keys(Constants.Job.USER, Constants.Job.CREATED),
+                new Document(Constants.Job.USER, "")));
+        specs.add(new IndexSpec(con.uploadsCol,
+                keys(Constants.Upload.ID_FIELD, Constants.Upload.USER),
+                new Document(Constants.Upload.ID_FIELD, "").append(Constants.Upload.USER, "")));
+        // a single artifact, by its owner or public
+        specs.add(new IndexSpec(con.artifactCol,
+                keys(Constants.Artifact.ID_FIELD),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.Artifact.USER, ""),
+                new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE)));
+        // dashboard listings
+        specs.add(new IndexSpec(con.artifactCol,
+                keys(Constants.Artifact.USER, Constants.Artifact.GROUP_FIELD),
+                new Document(Constants.Artifact.USER, ""),
+                new Document(Constants.Artifact.GROUP_FIELD, "").append(Constants.Artifact.USER, "")));
+        specs.add(new IndexSpec(con.artifactCol,
+                keys(Constants.Artifact.PUBLIC, Constants.Artifact.GROUP_FIELD),
+                new Document(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE),
+                new Document(Constants.Artifact.GROUP_FIELD, "").append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE)));
+        // pages of the dashboard listings, newest first or by name, after the cursor of the previous page
+        for (String owner : new String[]{Constants.Artifact.USER, Constants.Artifact.PUBLIC}) {
+            Object value = Constants.Artifact.USER.equals(owner) ? "" : Constants.Artifact.PUBLIC_TRUE;
+            specs.add(new IndexSpec(con.artifactCol,
+                    keys(owner, Constants.Artifact.DATE_CREATION_FIELD, Constants.Artifact.ID_FIELD),
+                    new Document(owner, value),
+                    new Document(owner, value).append("$or", pageAfter(Constants.Artifact.DATE_CREATION_FIELD, "$lt"))));
+            specs.add(new IndexSpec(con.artifactCol,
+                    keys(owner, Constants.Artifact.NAME_FIELD, Constants.Artifact.ID_FIELD),
+                    new Document(owner, value),
+                    new Document(owner, value).append("$or", pageAfter(Constants.Artifact.NAME_FIELD, "$gt"))));
+        }
+        specs.add(new IndexSpec(con.groupsCol,
+                keys(Constants.Group.USER, Constants.Group.NAME),
+                new Document(Constants.Group.USER, ""),
+                new Document(Constants.Group.NAME, "").append(Constants.Group.USER, "")));
+        specs.add(new IndexSpec(con.groupsCol,
+                keys(Constants.Group.PUBLIC, Constants.Group.NAME),
+                new Document(Constants.Group.PUBLIC, true),
+                new Document(Constants.Group.NAME, "").append(Constants.Group.PUBLIC, true)));
+        specs.add(new IndexSpec(con.tagsCol,
+                keys(Constants.Tags.USER, Constants.Tags.NAME),
+                new Document(Constants.Tags.USER, ""),
+                new Document(Constants.Tags.NAME, "").append(Constants.Tags.USER, "")));
+        specs.add(new IndexSpec(con.tagsCol,
+                keys(Constants.Tags.PUBLIC, Constants.Tags.NAME),
+                new Document(Constants.Tags.PUBLIC, true),
+                new Document(Constants.Tags.NAME, "").append(Constants.Tags.PUBLIC, true)));
+        // the search by tag name uses the tag name as a field name, so it cannot have an index
+        specs.add(new IndexSpec(con.plotTagsCol,
+                keys(Constants.Tags.TIME_SERIES_ID_FIELD),
+                new Document(Constants.Tags.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.commentCol,
+                keys(Constants.Comment.TIME_SERIES_ID_FIELD),
+                new Document(Constants.Comment.TIME_SERIES_ID_FIELD, 0)));
+        specs.add(new IndexSpec(con.experimentCol,
+                keys(Constants.Experiment.TIME_SERIES_ID_FIELD, Constants.Experiment.USER),
+                new Document(Constants.Experiment.TIME_SERIES_ID_FIELD, 0).append(Constants.Experiment.USER, "")));
+        return specs;
+    }
+
+    /**
+     * Create the missing indexes and report the declared queries that scan a whole collection
+     * @param con the connection
+     */
+    public static void ensureIndexes(MongoConnection con) {
+        List<IndexSpec> specs = declareIndexes(con);
+        for (IndexSpec spec : specs) {
+            try {
+                if (!hasIndex(spec)) {
+                    Logger.info("Creating index " + spec.keys.toJson() + " on " + spec.collection.getNamespace());
+                    // a foreground build would lock the database until it is done
+                    spec.collection.createIndex(spec.keys, new IndexOptions().background(true));
+                }
+            } catch (Exception e) {
+                Logger.error("Failed to create index " + spec.keys.toJson() + " on " + spec.collection.getNamespace(), e);
+            }
+        }
+        for (IndexSpec spec : specs) {
+            for (Document query : spec.queries) {
+                explain(spec.collection, query);
+            }
+        }
+    }
+
+    private static boolean hasIndex(IndexSpec spec) {
+        for (Document index : spec.collection.listIndexes()) {
+            if (spec.keys.equals(index.get("key"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void explain(MongoCollection<Document> collection, Document query) {
+        try {
+            Document plan = collection.find(query).modifiers(new Document("$explain", true)).first();
+            String json = plan != null ? JSON.serialize(plan) : "";
+            // COLLSCAN for mongo 3.0 and later, BasicCursor for older servers
+            if (json.contains("\"COLLSCAN\"") || json.contains("BasicCursor")) {
+                Logger.warn("Query " + query.toJson() + " on " + collection.getNamespace() + " scans the collection");
+            }
+        } catch (Exception e) {
+            Logger.warn("Failed to explain query " + query.toJson() + " on " + collection.getNamespace() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The condition of a listing page after the last artifact of the previous page, see ArtifactDAO.readPage
+     */
+    private static List<Document> pageAfter(String field, String after) {
+        return Arrays.asList(new Document(field, new Document(after, "")),
+                new Document(field, "").append(Constants.Artifact.ID_FIELD, new Document(after, 0)));
+    }
+
+    private static Document keys(String... fields) {
+        Document keys = new Document();
+        for (String field : fields) {
+            keys.append(field, 1);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,410 @@
+package db;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.util.JSON;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.bson.Document;
+import play.Logger;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the ingestion of the uploads on a fixed number of workers. Each upload has a job record in the
+ * jobs collection with its status and the number of frames read so far, the record has the id of
+ * the artifact created by the upload. A job can be cancelled while it is queued or between two frames.
+ * <p>
+ * Several servers can share the jobs collection. A job record has the node id of the server running it
+ * and a lease, which the server renews while it has the job. A server that starts fails the jobs it left
+ * over from its last run, and the jobs of any server whose lease ran out are failed by the other servers.
+ */
+public class IngestJobs {
+    /**
+     * The work of a job
+     */
+    public interface Task {
+        /**
+         * Read the upload, {@link Job#frameDone()} should be called after each frame
+         * @param job the job
+         * @throws Exception if the upload cannot be read
+         */
+        void run(Job job) throws Exception;
+
+        /**
+         * Remove whatever was written, called when the job fails or is cancelled
+         */
+        void cleanUp();
+    }
+
+    /**
+     * A queued or running job
+     */
+    public static class Job {
+        private final int tid;
+        private final Task task;
+        private final File upload;
+        private Runnable runnable;
+        // claimed by the worker that runs the job or by the cancel of a queued job
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+        private final AtomicInteger framesDone = new AtomicInteger();
+
+        Job(int tid, Task task, File upload) {
+            this.tid = tid;
+            this.task = task;
+            this.upload = upload;
+        }
+
+        /**
+         * @return the uploaded file read by the job
+         */
+        public File getUpload() {
+            return upload;
+        }
+
+        public void setFrames(int frames) {
+            update(tid, new Document(Constants.Job.FRAMES, frames));
+        }
+
+        /**
+         * Count a frame as done, the frames of a job may be read in parallel
+         */
+        public void frameDone() {
+            MongoConnection con = MongoConnection.getInstance();
+            // $max keeps the count from going back when two updates arrive out of order
+            con.jobsCol.updateOne(new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid),
+                    new Document("$max", new Document(Constants.Job.FRAMES_DONE, framesDone.incrementAndGet()))
+                            .append("$set", new Document(Constants.Job.UPDATED, new Date())));
+        }
+
+        /**
+         * @throws CancellationException if the job is cancelled
+         */
+        public void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+        }
+    }
+
+    private static final ThreadPoolExecutor workers;
+    // reads the frames of the time series, shared by all the jobs
+    private static final ExecutorService frameWorkers;
+    private static final Map<Integer, Job> jobs = new ConcurrentHashMap<>();
+    private static final String nodeId;
+    private static final long lease;
+
+    // renews the leases of the jobs of this server and fails the jobs of servers that stopped
+    private static final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ingest-heartbeat");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        Config conf = ConfigFactory.load();
+        int workerCount = conf.hasPath(Constants.Ingest.WORKERS) ? conf.getInt(Constants.Ingest.WORKERS) : 2;
+        int queueSize = conf.hasPath(Constants.Ingest.QUEUE_SIZE) ? conf.getInt(Constants.Ingest.QUEUE_SIZE) : 50;
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ingest-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        int frameWorkerCount = conf.hasPath(Constants.Ingest.FRAME_WORKERS) ?
+                conf.getInt(Constants.Ingest.FRAME_WORKERS) : Runtime.getRuntime().availableProcessors();
+        frameWorkers = Executors.newFixedThreadPool(frameWorkerCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ingest-frame-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        nodeId = conf.hasPath(Constants.Ingest.NODE_ID) ? conf.getString(Constants.Ingest.NODE_ID) : hostName();
+        lease = conf.hasPath(Constants.Ingest.LEASE) ? conf.getDuration(Constants.Ingest.LEASE, TimeUnit.MILLISECONDS) : 60000;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            Logger.warn("Cannot find the host name, set " + Constants.Ingest.NODE_ID + " to run uploads on several servers");
+            return "localhost";
+        }
+    }
+
+    /**
+     * @return the id of this server in the job records
+     */
+    static String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Read a frame of a job on the frame workers
+     * @param frame the frame
+     * @return the result of the frame
+     */
+    public static <T> Future<T> submitFrame(Callable<T> frame) {
+        return frameWorkers.submit(frame);
+    }
+
+    /**
+     * Queue a job
+     * @param tid id of the artifact created by the job
+     * @param uploader the uploader
+     * @param fileName name of the uploaded file
+     * @param upload the uploaded file, deleted once the job is finished. If the job is not queued the
+     *               file is left to the caller.
+     * @param task the work
+     * @throws Exception if the queue is full
+     */
+    public static void submit(final int tid, String uploader, String fileName, final File upload, final Task task) throws Exception {
+        MongoConnection con = MongoConnection.getInstance();
+        Date now = new Date();
+        con.jobsCol.insertOne(new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Job.USER, uploader)
+                .append(Constants.Job.FILE_NAME_FIELD, fileName)
+                .append(Constants.Job.UPLOAD, upload.getAbsolutePath())
+                .append(Constants.Job.STATUS, Constants.JobStatus.QUEUED)
+                .append(Constants.Job.OWNER, nodeId)
+                .append(Constants.Job.LEASE, new Date(now.getTime() + lease))
+                .append(Constants.Job.FRAMES, 0)
+                .append(Constants.Job.FRAMES_DONE, 0)
+                .append(Constants.Job.CREATED, now)
+                .append(Constants.Job.UPDATED, now));
+
+        final Job job = new Job(tid, task, upload);
+        job.runnable = new Runnable() {
+            @Override
+            public void run() {
+                if (job.started.compareAndSet(false, true)) {
+                    execute(job);
+                }
+            }
+        };
+        jobs.put(tid, job);
+        try {
+            workers.execute(job.runnable);
+        } catch (RejectedExecutionException e) {
+            finish(job, Constants.JobStatus.FAILED, "Too many uploads are waiting", false);
+            throw new Exception("Too many uploads are waiting, try again later.");
+        }
+    }
+
+    private static void execute(Job job) {
+        update(job.tid, new Document(Constants.Job.STATUS, Constants.JobStatus.RUNNING));
+        try {
+            job.checkCancelled();
+            job.task.run(job);
+            finish(job, Constants.JobStatus.DONE, null);
+        } catch (CancellationException e) {
+            Logger.info("Cancelled the upload of artifact " + job.tid);
+            finish(job, Constants.JobStatus.CANCELLED, null);
+        } catch (Exception e) {
+            Logger.error("Failed to read the upload of artifact " + job.tid, e);
+            finish(job, Constants.JobStatus.FAILED, e.getMessage());
+        }
+    }
+
+    private static void finish(Job job, String status, String error) {
+        finish(job, status, error, true);
+    }
+
+    private static void finish(Job job, String status, String error, boolean deleteUpload) {
+        jobs.remove(job.tid);
+        if (!Constants.JobStatus.DONE.equals(status)) {
+            job.task.cleanUp();
+        }
+        if (deleteUpload && job.upload.exists() && !job.upload.delete()) {
+            Logger.warn("Failed to delete upload " + job.upload.getAbsolutePath());
+        }
+        Document fields = new Document(Constants.Job.STATUS, status);
+        if (error != null) {
+            fields.append(Constants.Job.ERROR, error);
+        }
+        update(job.tid, fields);
+    }
+
+    /**
+     * Cancel a job of the user. A queued job is removed right away, a running job stops after the
+     * frame it is reading.
+     * @param tid artifact id of the job
+     * @param uploader the user
+     * @return false if the user doesn't have a queued or running job with this id
+     */
+    public static boolean cancel(int tid, String uploader) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document record = con.jobsCol.find(new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Job.USER, uploader)).first();
+        Job job = jobs.get(tid);
+        if (record == null || job == null) {
+            return false;
+        }
+        job.cancelled = true;
+        // a job that has not started is not run at all, otherwise the worker sees the flag
+        if (job.started.compareAndSet(false, true)) {
+            workers.remove(job.runnable);
+            finish(job, Constants.JobStatus.CANCELLED, null);
+        }
+        return true;
+    }
+
+    /**
+     * Get the job record of an upload
+     * @param tid artifact id of the job
+     * @param uploader the user
+     * @return the record as JSON, null if the user doesn't have a job with this id
+     */
+    public static String getJob(int tid, String uploader) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document record = con.jobsCol.find(new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Job.USER, uploader)).projection(hidden()).first();
+        return record != null ? JSON.serialize(record) : null;
+    }
+
+    /**
+     * Get the latest jobs of a user
+     * @param uploader the user
+     * @return the records as a JSON array
+     */
+    public static String getJobs(String uploader) {
+        MongoConnection con = MongoConnection.getInstance();
+        FindIterable<Document> iterable = con.jobsCol.find(new Document(Constants.Job.USER, uploader))
+                .projection(hidden()).sort(new Document(Constants.Job.CREATED, -1)).limit(50);
+        List<Document> records = new ArrayList<>();
+        for (Document d : iterable) {
+            records.add(d);
+        }
+        return JSON.serialize(records);
+    }
+
+    /**
+     * Fail the jobs this server had queued or running when it stopped, and the jobs of other servers whose
+     * lease ran out. Called when the server starts, before it takes uploads.
+     */
+    public static void recover() {
+        recover(true);
+    }
+
+    /**
+     * Renew the leases of the jobs of this server and fail the jobs of the servers that stopped, every third
+     * of the lease
+     */
+    public static void startHeartbeat() {
+        long period = Math.max(1, lease / 3);
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renewLeases();
+                    recover(false);
+                } catch (Exception e) {
+                    Logger.error("Failed to renew the leases of the ingestion jobs", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    static void renewLeases() {
+        if (jobs.isEmpty()) {
+            return;
+        }
+        MongoConnection con = MongoConnection.getInstance();
+        con.jobsCol.updateMany(new Document(Constants.Job.TIME_SERIES_ID_FIELD, new Document("$in", new ArrayList<>(jobs.keySet())))
+                        .append(Constants.Job.OWNER, nodeId),
+                new Document("$set", new Document(Constants.Job.LEASE, new Date(System.currentTimeMillis() + lease))));
+    }
+
+    /**
+     * Fail the jobs left over by a server, remove the artifacts they were writing and their uploads
+     * @param startup weather the jobs of this server are left over from its last run. Otherwise they are
+     *                not touched, a job of this server may be stored but not yet known to the workers.
+     * @return the number of jobs failed
+     */
+    static int recover(boolean startup) {
+        MongoConnection con = MongoConnection.getInstance();
+        List<Document> stopped = new ArrayList<>();
+        stopped.add(new Document(Constants.Job.LEASE, new Document("$lt", new Date())));
+        // jobs stored before the jobs had a lease
+        stopped.add(new Document(Constants.Job.LEASE, new Document("$exists", false)));
+        if (startup) {
+            stopped.add(new Document(Constants.Job.OWNER, nodeId));
+        }
+        int recovered = 0;
+        for (Document record : con.jobsCol.find(active().append("$or", stopped))) {
+            int tid = record.getInteger(Constants.Job.TIME_SERIES_ID_FIELD);
+            if (jobs.containsKey(tid)) {
+                continue;
+            }
+            // another server can recover the same job, only the one that fails it cleans up
+            Document claim = active().append(Constants.Job.TIME_SERIES_ID_FIELD, tid)
+                    .append(Constants.Job.OWNER, record.get(Constants.Job.OWNER))
+                    .append(Constants.Job.LEASE, record.get(Constants.Job.LEASE));
+            if (con.jobsCol.updateOne(claim, new Document("$set", new Document(Constants.Job.STATUS, Constants.JobStatus.FAILED)
+                    .append(Constants.Job.ERROR, "The server stopped before the upload was read")
+                    .append(Constants.Job.UPDATED, new Date()))).getModifiedCount() == 0) {
+                continue;
+            }
+            if (con.artifactCol.find(new Document(Constants.Artifact.ID_FIELD, tid)
+                    .append(Constants.Artifact.STATUS_FIELD, Constants.ArtifactStatus.PENDING)).first() != null) {
+                ArtifactDAO.getInstance().deleteArtifactData(tid);
+            }
+            String path = record.getString(Constants.Job.UPLOAD);
+            if (path != null) {
+                File upload = new File(path);
+                if (upload.exists() && !upload.delete()) {
+                    Logger.warn("Failed to delete upload " + path);
+                }
+            }
+            recovered++;
+        }
+        if (recovered > 0) {
+            Logger.info("Failed " + recovered + " uploads left over by a stopped server");
+        }
+        return recovered;
+    }
+
+    private static Document active() {
+        return new Document(Constants.Job.STATUS,
+                new Document("$in", Arrays.asList(Constants.JobStatus.QUEUED, Constants.JobStatus.RUNNING)));
+    }
+
+    private static Document hidden() {
+        return new Document("_id", 0).append(Constants.Job.UPLOAD, 0);
+    }
+
+    private static void update(int tid, Document fields) {
+        MongoConnection con = MongoConnection.getInstance();
+        fields.append(Constants.Job.UPDATED, new Date());
+        con.jobsCol.updateOne(new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid), new Document("$set", fields));
+    }
+}
@@ -0,0 +1,333 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import models.ArtifactPage;
+import models.Group;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the dashboard listings of each user and of the public, the pages of artifacts and the groups.
+ * The DAOs evict the listings a change can show up in: a change to an artifact evicts the listings of its
+ * owner, and of the public if the artifact is or was public, that list all the artifacts, its group or
+ * tags. A change to a group evicts the groups of its owner, and a change to the tags of an artifact evicts
+ * the searches for that tag. The listings of the least recently used users are evicted beyond maxUsers,
+ * the least recently used pages of a user beyond maxPages, and a listing is trusted for ttl at most, so
+ * changes made by another server are seen. Only the first page and the pages after a cursor of a cached
+ * page are kept, so made up cursors don't fill the cache.
+ */
+public class ListingCache {
+    private static final int maxUsers;
+    private static final int maxPages;
+    private static final long ttl;
+
+    static {
+        Config conf = ConfigFactory.load();
+        maxUsers = conf.hasPath(Constants.Cache.LISTING_MAX_USERS) ? conf.getInt(Constants.Cache.LISTING_MAX_USERS) : 1000;
+        maxPages = conf.hasPath(Constants.Cache.LISTING_MAX_PAGES) ? conf.getInt(Constants.Cache.LISTING_MAX_PAGES) : 100;
+        ttl = conf.hasPath(Constants.Cache.LISTING_TTL) ? conf.getDuration(Constants.Cache.LISTING_TTL, TimeUnit.MILLISECONDS) : 30000;
+    }
+
+    // the listing of all the artifacts, the listings of a group start with GROUP and the searches with TAGS
+    private static final String ALL = "all";
+    private static final String GROUP = "group:";
+    private static final String TAGS = "tags:";
+
+    private static class Entry<T> {
+        final T value;
+        final long expires;
+
+        Entry(T value) {
+            this.value = value;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+
+        boolean isExpired(long now) {
+            return expires < now;
+        }
+    }
+
+    private static class Page extends Entry<ArtifactPage> {
+        final String listing;
+
+        Page(String listing, ArtifactPage page) {
+            super(page);
+            this.listing = listing;
+        }
+    }
+
+    private static class Scope {
+        // the pages of all the listings, by listing, sort, cursor and size, the least recently used first
+        final Map<String, Page> pages = new LinkedHashMap<String, Page>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+                return size() > maxPages;
+            }
+        };
+        Entry<List<Group>> groups;
+    }
+
+    // the listings of each user, null is the key for the public
+    private static final Map<String, Scope> scopes = new LinkedHashMap<String, Scope>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Scope> eldest) {
+            return size() > maxUsers;
+        }
+    };
+
+    // counts the evictions, a listing read before an eviction is not cached
+    private static long version = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @return the listing of all the artifacts
+     */
+    public static String all() {
+        return ALL;
+    }
+
+    /**
+     * @param name group name
+     * @return the listing of the artifacts of a group
+     */
+    public static String group(String name) {
+        return GROUP + name;
+    }
+
+    /**
+     * @param tags tag names
+     * @return the listing of the artifacts with any of the tags, the same for the same tags in any order
+     */
+    public static String tags(String... tags) {
+        StringBuilder listing = new StringBuilder(TAGS);
+        for (String tag : new TreeSet<>(Arrays.asList(tags))) {
+            listing.append(tag).append(',');
+        }
+        return listing.toString();
+    }
+
+    /**
+     * Get a cached page
+     * @param user the user, null for the public
+     * @param listing all(), group(name) or tags(names)
+     * @param sort the sort of the page, as in ArtifactPage.sort
+     * @param size the size of the page, as in ArtifactPage.size
+     * @return the page, null if it is not known
+     */
+    public static ArtifactPage getPage(String user, String listing, String sort, String cursor, int size) {
+        if (maxUsers <= 0) {
+            return null;
+        }
+        Entry<ArtifactPage> entry = null;
+        synchronized (scopes) {
+            Scope scope = scopes.get(user);
+            if (scope != null) {
+                entry = scope.pages.get(key(listing, sort, cursor, size));
+            }
+        }
+        return value(entry);
+    }
+
+    /**
+     * @return the version to give to putPage and putGroups, taken before the listing is read
+     */
+    public static long version() {
+        synchronized (scopes) {
+            return version;
+        }
+    }
+
+    /**
+     * Cache a page, if it is the first page of the listing or the page after a cached page
+     * @param read the version taken before the page was read
+     */
+    public static void putPage(String user, String listing, String sort, String cursor, int size, ArtifactPage page,
+                               long read) {
+        if (maxUsers <= 0 || maxPages <= 0) {
+            return;
+        }
+        synchronized (scopes) {
+            if (read != version) {
+                return;
+            }
+            Scope scope = scope(user);
+            purge(scope);
+            if (cursor != null && !isIssued(scope, listing, sort, cursor, size)) {
+                return;
+            }
+            scope.pages.put(key(listing, sort, cursor, size), new Page(listing, page));
+        }
+    }
+
+    /**
+     * Get the cached groups of a user
+     * @param user the user, null for the public
+     * @return the groups, null if they are not known
+     */
+    public static List<Group> getGroups(String user) {
+        if (maxUsers <= 0) {
+            return null;
+        }
+        Entry<List<Group>> entry;
+        synchronized (scopes) {
+            Scope scope = scopes.get(user);
+            entry = scope != null ? scope.groups : null;
+        }
+        return value(entry);
+    }
+
+    public static void putGroups(String user, List<Group> groups, long read) {
+        if (maxUsers <= 0) {
+            return;
+        }
+        synchronized (scopes) {
+            if (read != version) {
+                return;
+            }
+            scope(user).groups = new Entry<>(groups);
+        }
+    }
+
+    /**
+     * Forget the listings an artifact is in, after it was inserted, updated or deleted
+     * @param user owner of the artifact
+     * @param groups the groups the artifact was and is in
+     * @param pub weather the artifact was or is public
+     */
+    public static void evictArtifact(String user, List<String> groups, boolean pub) {
+        synchronized (scopes) {
+            version++;
+            evictArtifact(scopes.get(user), groups);
+            if (pub) {
+                evictArtifact(scopes.get(null), groups);
+            }
+        }
+    }
+
+    /**
+     * Forget the groups of a user, after a group was created, updated or deleted
+     * @param user owner of the group
+     * @param pub weather the group was or is public
+     */
+    public static void evictGroups(String user, boolean pub) {
+        synchronized (scopes) {
+            version++;
+            Scope scope = scopes.get(user);
+            if (scope != null) {
+                scope.groups = null;
+            }
+            if (pub && (scope = scopes.get(null)) != null) {
+                scope.groups = null;
+            }
+        }
+    }
+
+    /**
+     * Forget the searches for a tag of every user, after the tag was added to or removed from an artifact
+     * @param tag tag name
+     */
+    public static void evictTag(String tag) {
+        synchronized (scopes) {
+            version++;
+            for (Scope scope : scopes.values()) {
+                for (Iterator<Page> it = scope.pages.values().iterator(); it.hasNext(); ) {
+                    String listing = it.next().listing;
+                    if (listing.startsWith(TAGS) && Arrays.asList(listing.substring(TAGS.length()).split(",")).contains(tag)) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of the lookups that were answered by the cache
+     */
+    public static double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    private static void evictArtifact(Scope scope, List<String> groups) {
+        if (scope == null) {
+            return;
+        }
+        for (Iterator<Page> it = scope.pages.values().iterator(); it.hasNext(); ) {
+            String listing = it.next().listing;
+            // the artifact may have any tags
+            if (listing.equals(ALL) || listing.startsWith(TAGS)
+                    || (listing.startsWith(GROUP) && groups.contains(listing.substring(GROUP.length())))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Weather a cursor is the next cursor of a cached page of the listing
+     */
+    private static boolean isIssued(Scope scope, String listing, String sort, String cursor, int size) {
+        for (Page page : scope.pages.values()) {
+            if (page.listing.equals(listing) && cursor.equals(page.value.next) && sort.equals(page.value.sort)
+                    && size == page.value.size) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the expired pages and groups of a scope
+     */
+    private static void purge(Scope scope) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Page> it = scope.pages.values().iterator(); it.hasNext(); ) {
+            if (it.next().isExpired(now)) {
+                it.remove();
+            }
+        }
+        if (scope.groups != null && scope.groups.isExpired(now)) {
+            scope.groups = null;
+        }
+    }
+
+    private static Scope scope(String user) {
+        Scope scope = scopes.get(user);
+        if (scope == null) {
+            scope = new Scope();
+            scopes.put(user, scope);
+        }
+        return scope;
+    }
+
+    private static String key(String listing, String sort, String cursor, int size) {
+        return listing + "\n" + sort + "\n" + cursor + "\n" + size;
+    }
+
+    private static <T> T value(Entry<T> entry) {
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+}
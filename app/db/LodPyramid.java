@@ -0,0 +1,573 @@
+package db;
+
+import com.mongodb.client.FindIterable;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.bson.Document;
+import play.Logger;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Level of detail pyramid of a file. Level 0 has about minPoints points and each level has factor times
+ * more points than the one before it, a file gets levels until a level would have all the points. The
+ * levels are nested, a level has the points of the level before it. Each cluster keeps its share of the
+ * points. Within a cluster the points are ordered over voxel grids on the bounding box of the file, from
+ * the coarsest to the finest: first one point for each occupied voxel of a coarse grid, then one point
+ * for each voxel of the next grid that doesn't have a point yet, in a random but repeatable order of the
+ * voxels within a grid. So dense regions are thinned and sparse regions keep their points.
+ * <p>
+ * Each level stores the points it adds to the level before it as {@link PackedChunk}s, with the edges that
+ * have all their vertices in the level, so a level is read without reading the file. A header chunk with
+ * the fields, clusters and stats of the file is written last, a file without a header is sent whole.
+ * <p>
+ * The levels are built with a few passes over the chunks of the file and {@link SpillSort}s, so the memory
+ * used doesn't grow with the size of the file.
+ */
+public class LodPyramid {
+    // the finest grid has 2^10 voxels on each axis, so the morton code of a voxel fits in 30 bits
+    private static final int gridBits = 10;
+    // the grid of a point on top of the point before it in its voxel of the finest grid
+    private static final int DUPLICATE = gridBits + 1;
+    // the chunk number of the header
+    private static final int HEADER = -1;
+    // vertices in an edge chunk of a level
+    private static final int verticesPerChunk = 100000;
+
+    private static final int minPoints;
+    private static final int factor;
+    private static final int pointsPerChunk;
+
+    static {
+        Config conf = ConfigFactory.load();
+        minPoints = Math.max(1, conf.hasPath(Constants.Lod.MIN_POINTS) ? conf.getInt(Constants.Lod.MIN_POINTS) : 50000);
+        factor = Math.max(2, conf.hasPath(Constants.Lod.FACTOR) ? conf.getInt(Constants.Lod.FACTOR) : 4);
+        pointsPerChunk = conf.hasPath(Constants.Storage.PACKED_POINTS_PER_CHUNK) ?
+                conf.getInt(Constants.Storage.PACKED_POINTS_PER_CHUNK) : 250000;
+    }
+
+    /**
+     * Build and store the levels of a file, replacing the old levels. Files with at most minPoints points
+     * don't have levels.
+     * @param tid artifact id
+     * @param fid file id
+     * @throws IOException if the temporary files of the sorts cannot be written
+     */
+    public static void build(int tid, int fid) throws IOException {
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        con.lodsCol.deleteMany(query);
+
+        long t0 = System.currentTimeMillis();
+        Document root = con.filesCol.find(new Document(query).append(Constants.File.STATS, new Document("$exists", true)))
+                .projection(new Document(Constants.File.STATS, 1)).first();
+        Document stats = root != null ? (Document) root.get(Constants.File.STATS) : null;
+        if (stats != null && ((Number) stats.get(Constants.Stats.COUNT)).longValue() <= minPoints) {
+            return;
+        }
+
+        try (Build build = new Build(tid, fid)) {
+            if (stats != null) {
+                build.setBounds(list(stats.get(Constants.Stats.MIN)), list(stats.get(Constants.Stats.MAX)));
+            } else {
+                build.findBounds(con.filesCol.find(query));
+            }
+            FramePoints.scan(con.filesCol.find(query), build);
+            build.joinListed();
+            long size = build.grids();
+            List<Integer> targets = new ArrayList<>();
+            for (long target = minPoints; target < size; target *= factor) {
+                targets.add((int) target);
+            }
+            if (targets.isEmpty()) {
+                return;
+            }
+            build.rank();
+            build.writeLevels(targets);
+            build.writeEdges();
+            build.writeHeader(targets.size());
+            Logger.info("Stored " + targets.size() + " levels of detail for tid: " + tid + " fid: " + fid + " in "
+                    + (System.currentTimeMillis() - t0) + " ms");
+        }
+    }
+
+    /**
+     * The chunks of a level, the header of the file followed by the points and edges of the levels up to
+     * this one
+     * @param tid artifact id
+     * @param fid file id
+     * @param level the level
+     * @return the chunks, null if the file doesn't have this level and has to be sent whole
+     */
+    public static FindIterable<Document> chunks(int tid, int fid, int level) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        Document header = con.lodsCol.find(new Document(query).append(Constants.Lod.LEVEL, 0).append(Constants.Lod.CHUNK, HEADER))
+                .projection(new Document(Constants.Lod.LEVELS, 1)).first();
+        if (header == null || level < 0 || level >= header.getInteger(Constants.Lod.LEVELS)) {
+            return null;
+        }
+        return con.lodsCol.find(query.append(Constants.Lod.LEVEL, new Document("$lte", level)))
+                .sort(new Document(Constants.Lod.LEVEL, 1).append(Constants.Lod.CHUNK, 1));
+    }
+
+    /**
+     * Delete the levels of all the files of an artifact
+     * @param tid artifact id
+     */
+    public static void delete(int tid) {
+        MongoConnection con = MongoConnection.getInstance();
+        con.lodsCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid));
+    }
+
+    /**
+     * The passes of a build. A point is carried through the sorts as its key, cluster, x, y, z and label.
+     */
+    private static class Build extends FramePoints.Visitor implements Closeable {
+        private final int tid;
+        private final int fid;
+        private final double[] min = new double[3];
+        private final double[] scale = new double[3];
+        private final SpillSort.Record record = new SpillSort.Record();
+
+        // points of the string list layout by key, and their clusters by key
+        private final SpillSort listed = new SpillSort("lod-listed");
+        private final SpillSort members = new SpillSort("lod-members");
+        // points by cluster and morton code of their voxel on the finest grid
+        private final SpillSort voxels = new SpillSort("lod-voxels");
+        // points by cluster, grid and voxel priority
+        private final SpillSort clusterOrder = new SpillSort("lod-clusters");
+        // points by their share of their cluster, grid and voxel priority
+        private final SpillSort rankOrder = new SpillSort("lod-ranks");
+        // edge key by vertex key, and the vertices by edge key
+        private final SpillSort vertices = new SpillSort("lod-vertices");
+        private final SpillSort edges = new SpillSort("lod-edges");
+        private long edgeCount = 0;
+        // level of each point by key, for the levels of the edges
+        private final SpillSort levels = new SpillSort("lod-levels");
+
+        private final Map<Integer, Long> clusterSizes = new HashMap<>();
+        private Document header;
+        private final Document clusters = new Document();
+        private Object stats;
+        private boolean fixed16 = false;
+        // the next chunk number of each level
+        private int[] chunkNumbers;
+
+        Build(int tid, int fid) {
+            this.tid = tid;
+            this.fid = fid;
+        }
+
+        void setBounds(double[] lo, double[] hi) {
+            for (int a = 0; a < 3; a++) {
+                min[a] = lo[a];
+                scale[a] = hi[a] > lo[a] ? ((1 << gridBits) - 1) / (hi[a] - lo[a]) : 0;
+            }
+        }
+
+        /**
+         * Bounds of a file inserted without stats
+         */
+        void findBounds(Iterable<Document> chunks) throws IOException {
+            final double[] lo = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            final double[] hi = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+            FramePoints.scan(chunks, new FramePoints.Visitor() {
+                @Override
+                public void point(int key, int cluster, double x, double y, double z, String label) {
+                    add(x, y, z);
+                }
+
+                @Override
+                public void listPoint(int key, double x, double y, double z, String label) {
+                    add(x, y, z);
+                }
+
+                private void add(double x, double y, double z) {
+                    double[] p = {x, y, z};
+                    for (int a = 0; a < 3; a++) {
+                        lo[a] = Math.min(lo[a], p[a]);
+                        hi[a] = Math.max(hi[a], p[a]);
+                    }
+                }
+            });
+            setBounds(lo, hi);
+        }
+
+        @Override
+        public void chunk(Document chunk) {
+            if (header == null) {
+                header = new Document();
+                for (Map.Entry<String, Object> e : chunk.entrySet()) {
+                    if (!PlotSerializer.isDataField(e.getKey()) && !"_id".equals(e.getKey())) {
+                        header.append(e.getKey(), e.getValue());
+                    }
+                }
+            }
+            Object clusterObjects = chunk.get(Constants.File.CLUSTERS);
+            if (clusterObjects instanceof Document) {
+                // the points of the clusters are taken from the chunks of the levels
+                for (Map.Entry<String, Object> e : ((Document) clusterObjects).entrySet()) {
+                    Document cluster = new Document((Document) e.getValue());
+                    cluster.remove(Constants.Cluster.POINTS);
+                    clusters.append(e.getKey(), cluster);
+                }
+            }
+            if (chunk.get(Constants.File.STATS) != null) {
+                stats = chunk.get(Constants.File.STATS);
+            }
+            fixed16 |= PackedChunk.isFixed16(chunk);
+        }
+
+        @Override
+        public void point(int key, int cluster, double x, double y, double z, String label) throws IOException {
+            voxels.add(((long) cluster << 32) | morton(x, y, z), pointRecord(key, cluster, x, y, z, label));
+        }
+
+        @Override
+        public void listPoint(int key, double x, double y, double z, String label) throws IOException {
+            listed.add(key, pointRecord(key, 0, x, y, z, label));
+        }
+
+        @Override
+        public void member(int key, int cluster) throws IOException {
+            record.clear().writeInt(cluster);
+            members.add(key, record);
+        }
+
+        @Override
+        public void edge(int key, List<?> edgeVertices) throws IOException {
+            record.clear().writeInt(edgeVertices.size());
+            for (Object vertex : edgeVertices) {
+                record.writeInt(((Number) vertex).intValue());
+            }
+            edges.add(key, record);
+            for (Object vertex : edgeVertices) {
+                record.clear().writeInt(key);
+                vertices.add(((Number) vertex).longValue(), record);
+            }
+            edgeCount++;
+        }
+
+        /**
+         * Give the points of the string list layout their clusters, both are sorted by key
+         */
+        void joinListed() throws IOException {
+            SpillSort.Cursor points = listed.sorted();
+            SpillSort.Cursor clusterOf = members.sorted();
+            boolean hasMember = clusterOf.next();
+            while (points.next()) {
+                while (hasMember && clusterOf.key < points.key) {
+                    hasMember = clusterOf.next();
+                }
+                int cluster = hasMember && clusterOf.key == points.key ? clusterOf.record().readInt() : 0;
+                DataInputStream in = points.record();
+                int key = in.readInt();
+                in.readInt();
+                float x = in.readFloat();
+                float y = in.readFloat();
+                float z = in.readFloat();
+                voxels.add(((long) cluster << 32) | morton(x, y, z), pointRecord(key, cluster, x, y, z, SpillSort.Cursor.readString(in)));
+            }
+            listed.close();
+            members.close();
+        }
+
+        /**
+         * Find the coarsest grid on which each point is the first point of its voxel. The points of a cluster
+         * are sorted by morton code, so the point before it is its neighbour on every grid and the highest
+         * bit where their codes differ gives the coarsest grid that separates them.
+         * @return the number of points
+         */
+        long grids() throws IOException {
+            SpillSort.Cursor sorted = voxels.sorted();
+            long size = 0;
+            boolean first = true;
+            int cluster = 0;
+            long previous = 0;
+            while (sorted.next()) {
+                int pointCluster = (int) (sorted.key >> 32);
+                long code = sorted.key & 0xFFFFFFFFL;
+                int grid;
+                if (first || pointCluster != cluster) {
+                    grid = 0;
+                } else if (code == previous) {
+                    grid = DUPLICATE;
+                } else {
+                    int bit = 63 - Long.numberOfLeadingZeros(code ^ previous);
+                    grid = gridBits - bit / 3;
+                }
+                first = false;
+                cluster = pointCluster;
+                previous = code;
+                Long count = clusterSizes.get(cluster);
+                clusterSizes.put(cluster, count == null ? 1 : count + 1);
+                size++;
+
+                byte[] point = copy(sorted.record());
+                int key = readKey(point);
+                int priority = grid == DUPLICATE ? mix(key) : mix((int) (code >>> 3 * (gridBits - grid)));
+                record.clear().write(point);
+                clusterOrder.add(((long) cluster << 32) | order(grid, priority), record);
+            }
+            voxels.close();
+            return size;
+        }
+
+        /**
+         * Interleave the clusters, the i-th point of a cluster of size s comes at (i + 1) / s so each
+         * cluster keeps its share of every level
+         */
+        void rank() throws IOException {
+            SpillSort.Cursor sorted = clusterOrder.sorted();
+            int cluster = 0;
+            long index = 0;
+            boolean first = true;
+            while (sorted.next()) {
+                int pointCluster = (int) (sorted.key >> 32);
+                if (first || pointCluster != cluster) {
+                    cluster = pointCluster;
+                    index = 0;
+                    first = false;
+                }
+                long share = (index + 1) * Integer.MAX_VALUE / clusterSizes.get(cluster);
+                index++;
+                record.clear().write(copy(sorted.record()));
+                rankOrder.add((share << 32) | (sorted.key & 0xFFFFFFFFL), record);
+            }
+            clusterOrder.close();
+        }
+
+        /**
+         * Write the points of each level in the order of their rank
+         */
+        void writeLevels(List<Integer> targets) throws IOException {
+            SpillSort.Cursor sorted = rankOrder.sorted();
+            PackedChunk chunk = new PackedChunk(pointsPerChunk, fixed16);
+            chunkNumbers = new int[targets.size()];
+            int level = 0;
+            for (long rank = 0; rank < targets.get(targets.size() - 1) && sorted.next(); rank++) {
+                if (rank == targets.get(level)) {
+                    if (!chunk.isEmpty()) {
+                        insert(chunk, level);
+                    }
+                    level++;
+                }
+                DataInputStream in = sorted.record();
+                int key = in.readInt();
+                int cluster = in.readInt();
+                if (chunk.add(key, cluster, in.readFloat(), in.readFloat(), in.readFloat(), SpillSort.Cursor.readString(in))) {
+                    insert(chunk, level);
+                }
+                if (edgeCount > 0) {
+                    record.clear().writeInt(level);
+                    levels.add(key, record);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                insert(chunk, level);
+            }
+            rankOrder.close();
+        }
+
+        private void insert(PackedChunk chunk, int level) {
+            Document document = chunkDocument(level, chunkNumbers[level]++);
+            chunk.appendTo(document);
+            chunk.clear();
+            MongoConnection.getInstance().lodsCol.insertOne(document);
+        }
+
+        /**
+         * Write the edges in the level of their last vertex, the edges with a vertex that is in no level are
+         * left out
+         */
+        void writeEdges() throws IOException {
+            if (edgeCount == 0) {
+                return;
+            }
+            // the level of each vertex of each edge, by edge key
+            SpillSort edgeLevels = new SpillSort("lod-edge-levels");
+            SpillSort byLevel = new SpillSort("lod-edge-order");
+            try {
+                SpillSort.Cursor vertex = vertices.sorted();
+                SpillSort.Cursor levelOf = levels.sorted();
+                boolean hasLevel = levelOf.next();
+                // a point is the vertex of several edges, its level is read once
+                int pointLevel = hasLevel ? levelOf.record().readInt() : -1;
+                while (vertex.next()) {
+                    while (hasLevel && levelOf.key < vertex.key) {
+                        hasLevel = levelOf.next();
+                        pointLevel = hasLevel ? levelOf.record().readInt() : -1;
+                    }
+                    int level = hasLevel && levelOf.key == vertex.key ? pointLevel : -1;
+                    long edgeKey = vertex.record().readInt();
+                    record.clear().writeInt(level);
+                    edgeLevels.add(edgeKey, record);
+                }
+                vertices.close();
+                levels.close();
+
+                SpillSort.Cursor edge = edges.sorted();
+                SpillSort.Cursor edgeLevel = edgeLevels.sorted();
+                boolean hasEdgeLevel = edgeLevel.next();
+                while (edge.next()) {
+                    int level = 0;
+                    while (hasEdgeLevel && edgeLevel.key <= edge.key) {
+                        int vertexLevel = edgeLevel.record().readInt();
+                        if (edgeLevel.key == edge.key) {
+                            level = vertexLevel < 0 || level < 0 ? -1 : Math.max(level, vertexLevel);
+                        }
+                        hasEdgeLevel = edgeLevel.next();
+                    }
+                    if (level >= 0) {
+                        record.clear().writeInt((int) edge.key);
+                        record.write(copy(edge.record()));
+                        byLevel.add(((long) level << 32) | (edge.key & 0xFFFFFFFFL), record);
+                    }
+                }
+                edges.close();
+
+                SpillSort.Cursor sorted = byLevel.sorted();
+                Document chunkEdges = new Document();
+                int level = -1;
+                int count = 0;
+                while (sorted.next()) {
+                    int chunkLevel = (int) (sorted.key >> 32);
+                    if (chunkLevel != level || count >= verticesPerChunk) {
+                        insertEdges(chunkEdges, level);
+                        chunkEdges = new Document();
+                        level = chunkLevel;
+                        count = 0;
+                    }
+                    DataInputStream in = sorted.record();
+                    int key = in.readInt();
+                    int n = in.readInt();
+                    List<Integer> edgeVertices = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        edgeVertices.add(in.readInt());
+                    }
+                    chunkEdges.append(Integer.toString(key), new Document(Constants.Edge.VERTICES, edgeVertices));
+                    count += n;
+                }
+                insertEdges(chunkEdges, level);
+            } finally {
+                edgeLevels.close();
+                byLevel.close();
+            }
+        }
+
+        private void insertEdges(Document chunkEdges, int level) {
+            if (chunkEdges.isEmpty()) {
+                return;
+            }
+            MongoConnection.getInstance().lodsCol.insertOne(chunkDocument(level, chunkNumbers[level]++)
+                    .append(Constants.File.EDGES, chunkEdges));
+        }
+
+        /**
+         * The header, written last so a file only has levels once all of them are stored
+         */
+        void writeHeader(int levelCount) {
+            Document document = chunkDocument(0, HEADER).append(Constants.Lod.LEVELS, levelCount);
+            for (Map.Entry<String, Object> e : header.entrySet()) {
+                if (!document.containsKey(e.getKey())) {
+                    document.append(e.getKey(), e.getValue());
+                }
+            }
+            document.append(Constants.File.CLUSTERS, clusters);
+            if (stats != null) {
+                document.append(Constants.File.STATS, stats);
+            }
+            MongoConnection.getInstance().lodsCol.insertOne(document);
+        }
+
+        private Document chunkDocument(int level, int chunkNumber) {
+            return new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                    .append(Constants.Lod.LEVEL, level).append(Constants.Lod.CHUNK, chunkNumber);
+        }
+
+        private SpillSort.Record pointRecord(int key, int cluster, double x, double y, double z, String label) throws IOException {
+            record.clear();
+            record.writeInt(key);
+            record.writeInt(cluster);
+            record.writeFloat((float) x);
+            record.writeFloat((float) y);
+            record.writeFloat((float) z);
+            record.writeString(label);
+            return record;
+        }
+
+        /**
+         * Morton code of the voxel of a position on the finest grid
+         */
+        private long morton(double x, double y, double z) {
+            double[] p = {x, y, z};
+            long morton = 0;
+            for (int a = 0; a < 3; a++) {
+                int v = (int) ((p[a] - min[a]) * scale[a]);
+                morton |= spread(Math.max(0, Math.min((1 << gridBits) - 1, v))) << a;
+            }
+            return morton;
+        }
+
+        @Override
+        public void close() {
+            for (SpillSort sort : new SpillSort[]{listed, members, voxels, clusterOrder, rankOrder, vertices, edges, levels}) {
+                sort.close();
+            }
+        }
+    }
+
+    private static byte[] copy(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.available()];
+        in.readFully(data);
+        return data;
+    }
+
+    private static int readKey(byte[] point) {
+        return (point[0] & 0xFF) << 24 | (point[1] & 0xFF) << 16 | (point[2] & 0xFF) << 8 | (point[3] & 0xFF);
+    }
+
+    /**
+     * The grid in the high 4 bits and the priority in the low 28 bits
+     */
+    private static long order(int grid, int priority) {
+        return ((long) grid << 28) | (priority & 0x0FFFFFFF);
+    }
+
+    private static double[] list(Object values) {
+        List<?> list = (List<?>) values;
+        return new double[]{((Number) list.get(0)).doubleValue(), ((Number) list.get(1)).doubleValue(),
+                ((Number) list.get(2)).doubleValue()};
+    }
+
+    /**
+     * Spread the bits of a 10 bit value so there are two zero bits between them
+     */
+    private static long spread(int v) {
+        long x = v & 0x3FF;
+        x = (x | (x << 16)) & 0x030000FFL;
+        x = (x | (x << 8)) & 0x0300F00FL;
+        x = (x | (x << 4)) & 0x030C30C3L;
+        x = (x | (x << 2)) & 0x09249249L;
+        return x;
+    }
+
+    /**
+     * Scramble the bits of a voxel code, a non negative priority for picking voxels
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & 0x7FFFFFFF;
+    }
+}
@@ -10,6 +10,8 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import play.Logger;
 
+import java.util.List;
+
 public class MongoConnection {
     public final MongoCollection<Document> artifactCol;
     public final MongoCollection<Document> filesCol;
@@ -18,6 +20,13 @@ public class MongoConnection {
     public final MongoCollection<Document> commentCol;
     public final MongoCollection<Document> tagsCol;
     public final MongoCollection<Document> plotTagsCol;
+    public final MongoCollection<Document> payloadsCol;
+    public final MongoCollection<Document> jobsCol;
+    public final MongoCollection<Document> uploadsCol;
+    public final MongoCollection<Document> deltasCol;
+    public final MongoCollection<Document> lodsCol;
+    public final MongoCollection<Document> octreesCol;
+    public final MongoCollection<Document> trajectoriesCol;
 
     public static MongoConnection con = new MongoConnection();
 
@@ -48,6 +57,13 @@ public class MongoConnection {
         commentCol = db.getCollection(Constants.DB.COMMENT_COLLECTION);
         tagsCol = db.getCollection(Constants.DB.TAGS_COLLECTION);
         plotTagsCol = db.getCollection(Constants.DB.PLOTS_TAGS_COLLECTION);
+        payloadsCol = db.getCollection(Constants.DB.PAYLOADS_COLLECTION);
+        jobsCol = db.getCollection(Constants.DB.JOBS_COLLECTION);
+        uploadsCol = db.getCollection(Constants.DB.UPLOADS_COLLECTION);
+        deltasCol = db.getCollection(Constants.DB.DELTAS_COLLECTION);
+        lodsCol = db.getCollection(Constants.DB.LODS_COLLECTION);
+        octreesCol = db.getCollection(Constants.DB.OCTREES_COLLECTION);
+        trajectoriesCol = db.getCollection(Constants.DB.TRAJECTORIES_COLLECTION);
 
     }
 
@@ -60,6 +76,28 @@ public class MongoConnection {
         }
     }
 
+    public void initIndexes() {
+        IndexManager.ensureIndexes(this);
+    }
+
+    /**
+     * Store the number of files of the artifacts inserted before the count was stored
+     */
+    public void initFrameCounts() {
+        int updated = 0;
+        for (Document artifact : artifactCol.find(new Document(Constants.Artifact.FRAME_COUNT, new Document("$exists", false)))
+                .projection(new Document(Constants.Artifact.ID_FIELD, 1).append(Constants.Artifact.FILES, 1))) {
+            Object files = artifact.get(Constants.Artifact.FILES);
+            int frames = files instanceof List ? ((List<?>) files).size() : 0;
+            artifactCol.updateOne(new Document("_id", artifact.get("_id")),
+                    new Document("$set", new Document(Constants.Artifact.FRAME_COUNT, frames)));
+            updated++;
+        }
+        if (updated > 0) {
+            Logger.info("Stored the frame count of " + updated + " artifacts");
+        }
+    }
+
     public void initTagsCollection() {
         Tag released = new Tag("webplotviziu", "released", "release tag","lifecycle", true);
         Tag indevelopment = new Tag("webplotviziu", "in-development", "development tag","lifecycle", true);
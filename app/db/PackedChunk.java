@@ -0,0 +1,277 @@
+package db;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar point storage. A packed chunk keeps the points of a file as little endian binary arrays
+ * instead of a map of string lists:
+ * <ul>
+ *     <li>point keys as int32, grouped by cluster</li>
+ *     <li>x, y, z for each point as float32</li>
+ *     <li>the cluster keys in the chunk with the offset of their first point, followed by the total
+ *     number of points</li>
+ *     <li>the labels as a list of strings</li>
+ * </ul>
+ * The cluster documents of a packed file don't hold the point keys, the membership is taken from the
+ * offsets of the chunks.
+ * <p>
+ * With 16 bit fixed point coordinates the x, y, z of each point are stored as uint16 relative to the
+ * bounding box of the chunk, which is stored as min x, y, z followed by max x, y, z. A coordinate is
+ * min + q * (max - min) / 65535, so it is off by at most (max - min) / 131070 on each axis.
+ */
+public class PackedChunk {
+    private static final int FIXED16_STEPS = 65535;
+
+    private final int capacity;
+    private final boolean fixed16;
+
+    private int[] keys;
+    private int[] clusters;
+    private float[] coordinates;
+    private String[] labels;
+    private int size = 0;
+    private long bytes = 0;
+
+    // a chunk has to fit in to a 16 MB document, with room for the other fields of the root chunk
+    private static final long maxBytes = 12 * 1024 * 1024;
+    // a label element has a type, its index as the name, a length and a trailing zero
+    private static final int LABEL_OVERHEAD = 13;
+
+    public PackedChunk(int capacity, boolean fixed16) {
+        this.capacity = capacity;
+        this.fixed16 = fixed16;
+    }
+
+    /**
+     * Add a point to the chunk
+     * @return true if the chunk is full and has to be written
+     */
+    public boolean add(int key, int cluster, float x, float y, float z, String label) {
+        if (keys == null) {
+            keys = new int[capacity];
+            clusters = new int[capacity];
+            coordinates = new float[capacity * 3];
+            labels = new String[capacity];
+        }
+        keys[size] = key;
+        clusters[size] = cluster;
+        coordinates[size * 3] = x;
+        coordinates[size * 3 + 1] = y;
+        coordinates[size * 3 + 2] = z;
+        labels[size] = label;
+        // the key, the coordinates, at most one cluster key and offset, and the label
+        bytes += 4 + (fixed16 ? 6 : 12) + 8 + LABEL_OVERHEAD + utf8Length(label);
+        size++;
+        return size >= capacity || bytes >= maxBytes;
+    }
+
+    /**
+     * Size of a string in a document, without allocating the encoded bytes
+     */
+    static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Group the points by cluster and add the binary arrays to the document
+     * @param chunk the chunk document
+     */
+    public void appendTo(Document chunk) {
+        // offset of each cluster, in the order the clusters appear
+        Map<Integer, Integer> slots = new HashMap<>();
+        List<Integer> clusterKeys = new ArrayList<>();
+        int[] counts = new int[Math.min(size, 1024)];
+        for (int i = 0; i < size; i++) {
+            Integer slot = slots.get(clusters[i]);
+            if (slot == null) {
+                slot = clusterKeys.size();
+                slots.put(clusters[i], slot);
+                clusterKeys.add(clusters[i]);
+                if (slot >= counts.length) {
+                    counts = Arrays.copyOf(counts, counts.length * 2);
+                }
+            }
+            counts[slot]++;
+        }
+
+        int[] offsets = new int[clusterKeys.size() + 1];
+        for (int i = 0; i < clusterKeys.size(); i++) {
+            offsets[i + 1] = offsets[i] + counts[i];
+        }
+        int[] next = Arrays.copyOf(offsets, clusterKeys.size());
+
+        double[] min = new double[3];
+        double[] step = new double[3];
+        List<Double> bounds = fixed16 ? bounds(min, step) : null;
+
+        ByteBuffer keyBuffer = buffer(size * 4);
+        ByteBuffer coordinateBuffer = buffer(size * (fixed16 ? 6 : 12));
+        String[] sortedLabels = new String[size];
+        for (int i = 0; i < size; i++) {
+            int position = next[slots.get(clusters[i])]++;
+            keyBuffer.putInt(position * 4, keys[i]);
+            for (int a = 0; a < 3; a++) {
+                if (fixed16) {
+                    int q = step[a] > 0 ? (int) Math.round((coordinates[i * 3 + a] - min[a]) / step[a]) : 0;
+                    coordinateBuffer.putShort(position * 6 + a * 2, (short) q);
+                } else {
+                    coordinateBuffer.putFloat(position * 12 + a * 4, coordinates[i * 3 + a]);
+                }
+            }
+            sortedLabels[position] = labels[i];
+        }
+
+        ByteBuffer clusterBuffer = buffer(clusterKeys.size() * 4);
+        for (int clusterKey : clusterKeys) {
+            clusterBuffer.putInt(clusterKey);
+        }
+        ByteBuffer offsetBuffer = buffer(offsets.length * 4);
+        for (int offset : offsets) {
+            offsetBuffer.putInt(offset);
+        }
+
+        chunk.append(Constants.File.PACKED_KEYS, new Binary(keyBuffer.array()));
+        if (fixed16) {
+            chunk.append(Constants.File.PACKED_QUANTIZED, new Binary(coordinateBuffer.array()));
+            chunk.append(Constants.File.PACKED_BOUNDS, bounds);
+        } else {
+            chunk.append(Constants.File.PACKED_COORDINATES, new Binary(coordinateBuffer.array()));
+        }
+        chunk.append(Constants.File.PACKED_CLUSTERS, new Binary(clusterBuffer.array()));
+        chunk.append(Constants.File.PACKED_OFFSETS, new Binary(offsetBuffer.array()));
+        chunk.append(Constants.File.PACKED_LABELS, Arrays.asList(sortedLabels));
+    }
+
+    /**
+     * Bounding box of the points in the chunk
+     * @param min filled with the minimum of each axis
+     * @param step filled with the step of the fixed point values on each axis
+     * @return min x, y, z and max x, y, z
+     */
+    private List<Double> bounds(double[] min, double[] step) {
+        double[] max = new double[3];
+        for (int a = 0; a < 3; a++) {
+            min[a] = Double.MAX_VALUE;
+            max[a] = -Double.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                min[a] = Math.min(min[a], coordinates[i * 3 + a]);
+                max[a] = Math.max(max[a], coordinates[i * 3 + a]);
+            }
+            if (size == 0 || Double.isInfinite(max[a] - min[a]) || Double.isNaN(max[a] - min[a])) {
+                min[a] = 0;
+                max[a] = 0;
+            }
+            step[a] = (max[a] - min[a]) / FIXED16_STEPS;
+        }
+        return Arrays.asList(min[0], min[1], min[2], max[0], max[1], max[2]);
+    }
+
+    public void clear() {
+        Arrays.fill(labels, 0, size, null);
+        size = 0;
+        bytes = 0;
+    }
+
+    public static boolean isPacked(Document chunk) {
+        return chunk.get(Constants.File.PACKED_KEYS) != null;
+    }
+
+    /**
+     * The x, y, z of the points, fixed point coordinates are converted to floats
+     * @param chunk a packed chunk
+     * @return the coordinates
+     */
+    public static FloatBuffer coordinates(Document chunk) {
+        if (chunk.get(Constants.File.PACKED_QUANTIZED) == null) {
+            return floats(chunk, Constants.File.PACKED_COORDINATES);
+        }
+        ShortBuffer quantized = shorts(chunk, Constants.File.PACKED_QUANTIZED);
+        double[] min = new double[3];
+        double[] step = new double[3];
+        grid(chunk, min, step);
+        float[] coordinates = new float[quantized.limit()];
+        for (int i = 0; i < coordinates.length; i++) {
+            coordinates[i] = (float) (min[i % 3] + (quantized.get(i) & 0xFFFF) * step[i % 3]);
+        }
+        return FloatBuffer.wrap(coordinates);
+    }
+
+    /**
+     * The fixed point grid of a chunk
+     * @param chunk a packed chunk with fixed point coordinates
+     * @param min filled with the minimum of each axis
+     * @param step filled with the step of each axis
+     */
+    public static void grid(Document chunk, double[] min, double[] step) {
+        List<?> bounds = (List<?>) chunk.get(Constants.File.PACKED_BOUNDS);
+        for (int a = 0; a < 3; a++) {
+            min[a] = ((Number) bounds.get(a)).doubleValue();
+            step[a] = (((Number) bounds.get(a + 3)).doubleValue() - min[a]) / FIXED16_STEPS;
+        }
+    }
+
+    public static boolean isFixed16(Document chunk) {
+        return chunk.get(Constants.File.PACKED_QUANTIZED) != null;
+    }
+
+    public static IntBuffer ints(Document chunk, String field) {
+        return wrap(chunk, field).asIntBuffer();
+    }
+
+    public static ShortBuffer shorts(Document chunk, String field) {
+        return wrap(chunk, field).asShortBuffer();
+    }
+
+    public static FloatBuffer floats(Document chunk, String field) {
+        return wrap(chunk, field).asFloatBuffer();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<String> labels(Document chunk) {
+        return (List<String>) chunk.get(Constants.File.PACKED_LABELS);
+    }
+
+    private static ByteBuffer wrap(Document chunk, String field) {
+        Object value = chunk.get(field);
+        byte[] data = value instanceof Binary ? ((Binary) value).getData() : (byte[]) value;
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,236 @@
+package db;
+
+import com.mongodb.client.MongoCursor;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.bson.Document;
+import org.bson.types.Binary;
+import play.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the gzip compressed JSON of each file in the payloads collection, so a file can be sent with a
+ * single read instead of serializing its chunks again. The payload is written when the file is inserted,
+ * files inserted before the payloads existed get one the first time they are asked for.
+ */
+public class PayloadDAO {
+    // stay well below the 16 MB document limit
+    private static final int partSize = 8 * 1024 * 1024;
+    private static final boolean enabled;
+
+    static {
+        Config conf = ConfigFactory.load();
+        enabled = !conf.hasPath(Constants.Storage.PAYLOADS) || conf.getBoolean(Constants.Storage.PAYLOADS);
+    }
+
+    // files that are waiting for a payload to be built
+    private static final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "payload-builder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Serialize, compress and store the payload of a file, replacing the old payload if there is one
+     * @param tid artifact id
+     * @param fid file id
+     * @throws IOException if the file cannot be serialized
+     */
+    public static void store(int tid, int fid) throws IOException {
+        if (!enabled) {
+            return;
+        }
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (Writer out = new OutputStreamWriter(new GZIPOutputStream(compressed), StandardCharsets.UTF_8)) {
+            if (!PlotSerializer.write(con.filesCol.find(query), fid == 0, out)) {
+                return;
+            }
+        }
+
+        byte[] data = compressed.toByteArray();
+        con.payloadsCol.deleteMany(query);
+        con.payloadsCol.insertMany(split(query, data));
+        Logger.info("Stored payload of " + data.length + " bytes for tid: " + tid + " fid: " + fid);
+    }
+
+    /**
+     * Split binary data in to part documents small enough for the document size limit
+     * @param fields fields added to each part
+     * @param data the data
+     * @return the part documents
+     */
+    static List<Document> split(Document fields, byte[] data) {
+        int parts = Math.max(1, (data.length + partSize - 1) / partSize);
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < parts; i++) {
+            Document part = new Document(fields);
+            part.append(Constants.Payload.PART, i);
+            part.append(Constants.Payload.PARTS, parts);
+            part.append(Constants.Payload.DATA, new Binary(Arrays.copyOfRange(data, i * partSize,
+                    Math.min(data.length, (i + 1) * partSize))));
+            documents.add(part);
+        }
+        return documents;
+    }
+
+    /**
+     * Join the part documents written by {@link #split(Document, byte[])}
+     * @param parts the part documents sorted by part number
+     * @return the data, null if there are no parts or some parts are missing
+     */
+    static byte[] join(Iterable<Document> parts) {
+        List<byte[]> data = new ArrayList<>();
+        int expected = 0;
+        int length = 0;
+        for (Document d : parts) {
+            expected = d.getInteger(Constants.Payload.PARTS);
+            byte[] part = ((Binary) d.get(Constants.Payload.DATA)).getData();
+            data.add(part);
+            length += part.length;
+        }
+        if (data.isEmpty() || data.size() != expected) {
+            return null;
+        }
+        if (data.size() == 1) {
+            return data.get(0);
+        }
+        byte[] joined = new byte[length];
+        int offset = 0;
+        for (byte[] part : data) {
+            System.arraycopy(part, 0, joined, offset, part.length);
+            offset += part.length;
+        }
+        return joined;
+    }
+
+    /**
+     * The payload of a file read part after part from the cursor, so a large payload is never held whole
+     */
+    public static class PartStream extends InputStream {
+        private final MongoCursor<Document> cursor;
+        private final int parts;
+        private byte[] part;
+        private int index = 0;
+        private int position = 0;
+
+        PartStream(Document first, MongoCursor<Document> cursor) {
+            this.cursor = cursor;
+            this.parts = first.getInteger(Constants.Payload.PARTS);
+            this.part = ((Binary) first.get(Constants.Payload.DATA)).getData();
+        }
+
+        /**
+         * @return the whole payload if it has a single part, null otherwise
+         */
+        public byte[] single() {
+            return parts == 1 ? part : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (position == part.length) {
+                if (index + 1 == parts) {
+                    return -1;
+                }
+                // the payload was replaced while it was read
+                Document d = cursor.hasNext() ? cursor.next() : null;
+                if (d == null || d.getInteger(Constants.Payload.PART) != index + 1) {
+                    throw new IOException("Missing part " + (index + 1) + " of " + parts);
+                }
+                part = ((Binary) d.get(Constants.Payload.DATA)).getData();
+                index++;
+                position = 0;
+            }
+            int n = Math.min(len, part.length - position);
+            System.arraycopy(part, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Get the payload of a file. If the file doesn't have a payload yet, it is built in the background
+     * and null is returned.
+     * @param tid artifact id
+     * @param fid file id
+     * @return the gzip compressed JSON of the file or null, the stream has to be closed
+     */
+    public static PartStream open(int tid, int fid) {
+        if (!enabled) {
+            return null;
+        }
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        MongoCursor<Document> cursor = con.payloadsCol.find(query).sort(new Document(Constants.Payload.PART, 1)).iterator();
+        Document first = cursor.hasNext() ? cursor.next() : null;
+        if (first == null || first.getInteger(Constants.Payload.PART) != 0) {
+            cursor.close();
+            // missing or being replaced right now
+            schedule(tid, fid);
+            return null;
+        }
+        return new PartStream(first, cursor);
+    }
+
+    /**
+     * Delete the payloads of all the files of an artifact
+     * @param tid artifact id
+     */
+    public static void delete(int tid) {
+        MongoConnection con = MongoConnection.getInstance();
+        con.payloadsCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid));
+    }
+
+    private static void schedule(final int tid, final int fid) {
+        final String key = tid + "/" + fid;
+        if (!pending.add(key)) {
+            return;
+        }
+        builder.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store(tid, fid);
+                } catch (Exception e) {
+                    Logger.error("Failed to store payload for tid: " + tid + " fid: " + fid, e);
+                } finally {
+                    pending.remove(key);
+                }
+            }
+        });
+    }
+}
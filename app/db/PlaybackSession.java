@@ -0,0 +1,304 @@
+package db;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.io.IOUtils;
+import org.bson.Document;
+import play.Logger;
+import play.libs.Json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Server side playback of a time series. The client tells the session where the playhead is, how fast
+ * it plays and in which direction, and the session pushes the frames ahead of the playhead. It sends
+ * the frames the client plays in the next aheadMillis, but never more than the buffer of the client, and
+ * sends more only when the client reports the playhead moved, so a client that falls behind is not sent
+ * more than it can hold. A seek starts a new generation: the frames of the old generation that are not
+ * sent yet are dropped, and the client drops the ones already on the way.
+ * <p>
+ * Each frame is sent as {"frame": n, "generation": g, "plot": the JSON of the file}. When all the senders
+ * are busy the session tries again every retryMillis, and after maxRetries it sends {"status": "busy"},
+ * the client then reads the frames over HTTP.
+ */
+public class PlaybackSession {
+    private static final long aheadMillis;
+    private static final long retryMillis;
+    private static final int maxRetries = 10;
+    // a fixed number of sessions send at the same time, the others wait in the queue
+    private static final ThreadPoolExecutor defaultSenders;
+
+    private static final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "playback-retry");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static {
+        Config conf = ConfigFactory.load();
+        aheadMillis = conf.hasPath(Constants.Playback.AHEAD_MILLIS) ? conf.getLong(Constants.Playback.AHEAD_MILLIS) : 2000;
+        retryMillis = conf.hasPath(Constants.Playback.RETRY_MILLIS) ? conf.getLong(Constants.Playback.RETRY_MILLIS) : 500;
+        int senderCount = conf.hasPath(Constants.Playback.SENDERS) ? conf.getInt(Constants.Playback.SENDERS) : 16;
+        int queueSize = conf.hasPath(Constants.Playback.QUEUE_SIZE) ? conf.getInt(Constants.Playback.QUEUE_SIZE) : 256;
+        defaultSenders = new ThreadPoolExecutor(senderCount, senderCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "playback");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        defaultSenders.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Where the frames go, the web socket of the client
+     */
+    public interface Sink {
+        void send(String message);
+    }
+
+    private final int tid;
+    private final int frames;
+    private final Sink sink;
+    private final Executor senders;
+
+    // the state is guarded by the session
+    private int playhead = 0;
+    private int direction = 1;
+    private int ahead = 1;
+    private int generation = 0;
+    private final Set<Integer> sent = new HashSet<>();
+    private boolean sending = false;
+    private boolean closed = false;
+    // the senders refused the session this many times in a row
+    private int rejected = 0;
+
+    PlaybackSession(int tid, int frames, Sink sink, Executor senders) {
+        this.tid = tid;
+        this.frames = frames;
+        this.sink = sink;
+        this.senders = senders;
+    }
+
+    /**
+     * Start a session, nothing is sent until the client subscribes
+     * @param tid artifact id
+     * @param user the user, if there is no user specified the time series has to be public
+     * @param sink where the frames are sent
+     * @return the session, null if the time series cannot be read
+     */
+    public static PlaybackSession open(int tid, String user, Sink sink) {
+        int frames = ArtifactDAO.getInstance().frameCount(tid, user);
+        return frames >= 0 ? new PlaybackSession(tid, frames, sink, defaultSenders) : null;
+    }
+
+    /**
+     * Handle a message of the client, {"type": "subscribe", "frame": n, "speed": ms, "direction": 1 or -1,
+     * "buffer": frames}, {"type": "position", "frame": n} or {"type": "seek", "frame": n}. A message that
+     * is not JSON is ignored.
+     * @param message the message
+     */
+    public void receive(String message) {
+        JsonNode json;
+        try {
+            json = Json.parse(message);
+        } catch (RuntimeException e) {
+            Logger.warn("Ignoring a playback message of tid: " + tid + " that is not JSON");
+            return;
+        }
+        String type = json.path("type").asText();
+        int frame = json.path("frame").asInt();
+        if ("subscribe".equals(type)) {
+            subscribe(frame, json.path("speed").asLong(), json.path("direction").asInt(1),
+                    json.path("buffer").asInt(ArtifactDAO.MAX_FRAMES));
+        } else if ("position".equals(type)) {
+            position(frame);
+        } else if ("seek".equals(type)) {
+            seek(frame);
+        }
+    }
+
+    /**
+     * Start playing from a frame, this is a seek
+     * @param frame the playhead
+     * @param delay milliseconds each frame is shown
+     * @param direction 1 to play forward, -1 to play backward
+     * @param buffer number of frames the client keeps ahead of the playhead
+     */
+    public void subscribe(int frame, long delay, int direction, int buffer) {
+        synchronized (this) {
+            this.direction = direction < 0 ? -1 : 1;
+            long wanted = delay > 0 ? (aheadMillis + delay - 1) / delay : buffer;
+            this.ahead = (int) Math.max(1, Math.min(Math.min(buffer, ArtifactDAO.MAX_FRAMES), wanted));
+        }
+        seek(frame);
+    }
+
+    /**
+     * Move the playhead, the frames on the way are dropped
+     * @param frame the new playhead
+     */
+    public void seek(int frame) {
+        synchronized (this) {
+            generation++;
+            sent.clear();
+            playhead = frame;
+        }
+        pump();
+    }
+
+    /**
+     * The client played up to a frame, which makes room for more frames
+     * @param frame the playhead
+     */
+    public void position(int frame) {
+        synchronized (this) {
+            playhead = frame;
+            // the client drops the frames that are far behind the playhead, send them again if it goes back
+            for (Iterator<Integer> it = sent.iterator(); it.hasNext(); ) {
+                if (Math.abs(it.next() - playhead) > ahead) {
+                    it.remove();
+                }
+            }
+        }
+        pump();
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+    }
+
+    /**
+     * @return the next frame to send, -1 if the client has all the frames it can take
+     */
+    private int next() {
+        for (int k = 0; k <= ahead; k++) {
+            int frame = playhead + k * direction;
+            if (frame < 0 || frame >= frames) {
+                break;
+            }
+            if (!sent.contains(frame)) {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Send frames until the window is full, on a sender thread so the socket is never blocked
+     */
+    private void pump() {
+        synchronized (this) {
+            if (sending || closed) {
+                return;
+            }
+            sending = true;
+        }
+        Runnable sender = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        int frame;
+                        int current;
+                        synchronized (PlaybackSession.this) {
+                            frame = closed ? -1 : next();
+                            if (frame < 0) {
+                                sending = false;
+                                return;
+                            }
+                            current = generation;
+                            sent.add(frame);
+                        }
+                        String plot = plot(frame);
+                        synchronized (PlaybackSession.this) {
+                            // a seek while the frame was read
+                            if (current != generation || closed) {
+                                continue;
+                            }
+                        }
+                        if (plot != null) {
+                            sink.send("{\"frame\":" + frame + ",\"generation\":" + current + ",\"plot\":" + plot + "}");
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Logger.error("Failed to send frames of tid: " + tid, e);
+                    synchronized (PlaybackSession.this) {
+                        sending = false;
+                    }
+                }
+            }
+        };
+        try {
+            senders.execute(sender);
+            synchronized (this) {
+                rejected = 0;
+            }
+        } catch (RejectedExecutionException e) {
+            boolean retry;
+            synchronized (this) {
+                sending = false;
+                retry = ++rejected <= maxRetries;
+            }
+            if (retry) {
+                retries.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        pump();
+                    }
+                }, retryMillis, TimeUnit.MILLISECONDS);
+            } else {
+                Logger.warn("Too many playback sessions, not sending frames of tid: " + tid);
+                close();
+                sink.send("{\"status\":\"busy\"}");
+            }
+        }
+    }
+
+    /**
+     * The JSON of a frame, from the stored payload if there is one
+     */
+    private String plot(int fid) {
+        try {
+            InputStream payload = ArtifactDAO.getInstance().payload(tid, fid);
+            if (payload != null) {
+                try (InputStream in = new GZIPInputStream(payload)) {
+                    return IOUtils.toString(in, StandardCharsets.UTF_8);
+                } finally {
+                    payload.close();
+                }
+            }
+            StringBuilder out = new StringBuilder();
+            Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+            if (!PlotSerializer.write(MongoConnection.getInstance().filesCol.find(query), fid == 0, out)) {
+                return null;
+            }
+            return out.toString();
+        } catch (IOException e) {
+            Logger.error("Failed to read frame tid: " + tid + " fid: " + fid, e);
+            return null;
+        }
+    }
+}
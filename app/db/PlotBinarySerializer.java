@@ -0,0 +1,260 @@
+package db;
+
+import com.mongodb.util.JSON;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a file in the binary plot format. The positions of each cluster are written as a little endian
+ * float32 array, centered on the given means, so the viewer can use them as a Float32Array directly.
+ * <pre>
+ * int32   magic "PVZB"
+ * int32   version
+ * int32   length of the header, the header is padded with spaces to a multiple of 4 bytes
+ * byte[]  header json: the file fields, the means and the clusters with the number of points n
+ * for each cluster in the order of the header
+ *   int32[n]    point keys
+ *   float32[3n] x, y, z of the points
+ * int32   length of the labels, padded like the header
+ * byte[]  labels json: an array with the point labels of each cluster
+ * </pre>
+ * Files stored with 16 bit fixed point positions are written as version 2. The header has a grid with the
+ * min and the step of each axis, and each cluster has uint16[3n] positions q instead of the floats, padded
+ * with zeros to a multiple of 4 bytes. A position is min + q * step, centered on the means like the floats.
+ * The positions of a file stored in a single chunk are sent as stored, a larger file is put on the grid
+ * of the whole file and a position can be off by one step.
+ */
+public class PlotBinarySerializer {
+    public static final String MIME_TYPE = "application/x-pviz-binary";
+    private static final int MAGIC = 0x425A5650;
+    public static final int VERSION = 1;
+    public static final int VERSION_FIXED16 = 2;
+    private static final int FIXED16_STEPS = 65535;
+
+    /**
+     * Points of a cluster as growing primitive arrays
+     */
+    private static class ClusterColumns {
+        int[] keys = new int[16];
+        float[] positions = new float[48];
+        List<String> labels = new ArrayList<>();
+        int size = 0;
+
+        void add(int key, float x, float y, float z, String label) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                positions = Arrays.copyOf(positions, size * 6);
+            }
+            keys[size] = key;
+            positions[size * 3] = x;
+            positions[size * 3 + 1] = y;
+            positions[size * 3 + 2] = z;
+            labels.add(label);
+            size++;
+        }
+    }
+
+    /**
+     * Write the file
+     * @param chunks the chunk documents of the file
+     * @param means the positions are centered on these values
+     * @param out output
+     * @return false if there were no chunks
+     * @throws IOException if the output cannot be written
+     */
+    public static boolean write(Iterable<Document> chunks, double[] means, OutputStream out) throws IOException {
+        return write(chunks, means, null, out);
+    }
+
+    /**
+     * Write some of the points of the file, see {@link PlotSerializer#write(Iterable, boolean, int[], Appendable)}
+     * @param chunks the chunk documents of the file
+     * @param means the positions are centered on these values
+     * @param keys sorted keys of the points to write, null for all the points
+     * @param out output
+     * @return false if there were no chunks
+     * @throws IOException if the output cannot be written
+     */
+    public static boolean write(Iterable<Document> chunks, double[] means, int[] keys, OutputStream out) throws IOException {
+        Document header = null;
+        Map<String, Object> clusters = new LinkedHashMap<>();
+        Map<String, Object> edges = new LinkedHashMap<>();
+        Map<Integer, ClusterColumns> columns = new HashMap<>();
+        // points of the string list layout, assigned to the clusters once all chunks are read
+        Map<Integer, Integer> pointIndex = new HashMap<>();
+        ClusterColumns points = new ClusterColumns();
+        boolean fixed16 = false;
+
+        for (Document d : chunks) {
+            if (header == null) {
+                header = new Document();
+                for (Map.Entry<String, Object> e : d.entrySet()) {
+                    if (!PlotSerializer.isDataField(e.getKey())) {
+                        header.append(e.getKey(), e.getValue());
+                    }
+                }
+            }
+            Object clusterObjects = d.get(Constants.File.CLUSTERS);
+            if (clusterObjects instanceof Document) {
+                clusters.putAll((Document) clusterObjects);
+            }
+            Object edgeObjects = d.get(Constants.File.EDGES);
+            if (edgeObjects instanceof Document) {
+                edges.putAll((Document) edgeObjects);
+            }
+
+            Object pointObjects = d.get(Constants.File.POINTS);
+            if (pointObjects instanceof Document) {
+                for (Map.Entry<String, Object> e : ((Document) pointObjects).entrySet()) {
+                    if (keys != null && !PlotSerializer.contains(keys, Integer.parseInt(e.getKey()))) {
+                        continue;
+                    }
+                    List<?> point = (List<?>) e.getValue();
+                    pointIndex.put(Integer.valueOf(e.getKey()), points.size);
+                    points.add(Integer.parseInt(e.getKey()), (float) (Double.parseDouble((String) point.get(0)) - means[0]),
+                            (float) (Double.parseDouble((String) point.get(1)) - means[1]),
+                            (float) (Double.parseDouble((String) point.get(2)) - means[2]), (String) point.get(3));
+                }
+            }
+
+            if (PackedChunk.isPacked(d)) {
+                fixed16 |= PackedChunk.isFixed16(d);
+                IntBuffer pointKeys = PackedChunk.ints(d, Constants.File.PACKED_KEYS);
+                FloatBuffer coordinates = PackedChunk.coordinates(d);
+                IntBuffer clusterKeys = PackedChunk.ints(d, Constants.File.PACKED_CLUSTERS);
+                IntBuffer offsets = PackedChunk.ints(d, Constants.File.PACKED_OFFSETS);
+                List<String> labels = PackedChunk.labels(d);
+                for (int i = 0; i < clusterKeys.limit(); i++) {
+                    ClusterColumns c = columns.get(clusterKeys.get(i));
+                    if (c == null) {
+                        c = new ClusterColumns();
+                        columns.put(clusterKeys.get(i), c);
+                    }
+                    for (int j = offsets.get(i); j < offsets.get(i + 1); j++) {
+                        if (keys != null && !PlotSerializer.contains(keys, pointKeys.get(j))) {
+                            continue;
+                        }
+                        c.add(pointKeys.get(j), (float) (coordinates.get(j * 3) - means[0]),
+                                (float) (coordinates.get(j * 3 + 1) - means[1]),
+                                (float) (coordinates.get(j * 3 + 2) - means[2]), labels.get(j));
+                    }
+                }
+            }
+        }
+        if (header == null) {
+            return false;
+        }
+
+        List<Object> clusterHeaders = new ArrayList<>();
+        List<ClusterColumns> clusterColumns = new ArrayList<>();
+        for (Map.Entry<String, Object> e : clusters.entrySet()) {
+            Document cluster = new Document((Document) e.getValue());
+            Object members = cluster.remove(Constants.Cluster.POINTS);
+            ClusterColumns c = columns.get(Integer.valueOf(e.getKey()));
+            if (c == null) {
+                c = new ClusterColumns();
+            }
+            if (members instanceof List) {
+                for (Object key : (List<?>) members) {
+                    Integer index = pointIndex.get(key);
+                    if (index != null) {
+                        c.add(points.keys[index], points.positions[index * 3], points.positions[index * 3 + 1],
+                                points.positions[index * 3 + 2], points.labels.get(index));
+                    }
+                }
+            }
+            cluster.append("n", c.size);
+            clusterHeaders.add(cluster);
+            clusterColumns.add(c);
+        }
+        header.append("means", Arrays.asList(means[0], means[1], means[2]));
+        double[] min = new double[3];
+        double[] step = new double[3];
+        if (fixed16) {
+            grid(clusterColumns, min, step);
+            header.append("grid", new Document("min", Arrays.asList(min[0], min[1], min[2]))
+                    .append("step", Arrays.asList(step[0], step[1], step[2])));
+        }
+        header.append(Constants.File.CLUSTERS, clusterHeaders);
+        if (edges.size() > 0) {
+            header.append(Constants.File.EDGES, keys != null ? PlotSerializer.filterEdges(edges, keys) : edges);
+        }
+
+        ByteBuffer preamble = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        preamble.putInt(MAGIC).putInt(fixed16 ? VERSION_FIXED16 : VERSION);
+        out.write(preamble.array());
+        writeJson(out, JSON.serialize(header));
+
+        List<List<String>> labels = new ArrayList<>();
+        for (ClusterColumns c : clusterColumns) {
+            ByteBuffer section;
+            if (fixed16) {
+                section = ByteBuffer.allocate(c.size * 4 + (c.size * 6 + 3) / 4 * 4).order(ByteOrder.LITTLE_ENDIAN);
+                section.asIntBuffer().put(c.keys, 0, c.size);
+                section.position(c.size * 4);
+                for (int i = 0; i < c.size * 3; i++) {
+                    int a = i % 3;
+                    section.putShort(step[a] > 0 ? (short) Math.round((c.positions[i] - min[a]) / step[a]) : 0);
+                }
+            } else {
+                section = ByteBuffer.allocate(c.size * 16).order(ByteOrder.LITTLE_ENDIAN);
+                section.asIntBuffer().put(c.keys, 0, c.size);
+                section.position(c.size * 4);
+                section.asFloatBuffer().put(c.positions, 0, c.size * 3);
+            }
+            out.write(section.array());
+            labels.add(c.labels);
+        }
+        writeJson(out, JSON.serialize(labels));
+        return true;
+    }
+
+    /**
+     * Bounding box of the positions of all the clusters as a fixed point grid
+     */
+    private static void grid(List<ClusterColumns> clusterColumns, double[] min, double[] step) {
+        double[] max = new double[3];
+        for (int a = 0; a < 3; a++) {
+            min[a] = Double.MAX_VALUE;
+            max[a] = -Double.MAX_VALUE;
+        }
+        for (ClusterColumns c : clusterColumns) {
+            for (int i = 0; i < c.size * 3; i++) {
+                min[i % 3] = Math.min(min[i % 3], c.positions[i]);
+                max[i % 3] = Math.max(max[i % 3], c.positions[i]);
+            }
+        }
+        for (int a = 0; a < 3; a++) {
+            if (min[a] > max[a]) {
+                min[a] = 0;
+                max[a] = 0;
+            }
+            step[a] = (max[a] - min[a]) / FIXED16_STEPS;
+        }
+    }
+
+    private static void writeJson(OutputStream out, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        int padded = (bytes.length + 3) / 4 * 4;
+        ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        length.putInt(padded);
+        out.write(length.array());
+        out.write(bytes);
+        for (int i = bytes.length; i < padded; i++) {
+            out.write(' ');
+        }
+    }
+}
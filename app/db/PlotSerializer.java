@@ -0,0 +1,409 @@
+package db;
+
+import com.mongodb.util.JSON;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the chunk documents of a file as the JSON plot expected by the viewer. The points are written
+ * while the chunks are read, both the string list and the {@link PackedChunk} layouts are supported.
+ * Packed points are written straight from the binary arrays without creating an object per point,
+ * fixed point positions are written with only the decimals their step needs.
+ */
+public class PlotSerializer {
+    private static final Set<String> dataFields = new HashSet<String>(Arrays.asList(
+            Constants.File.CLUSTERS, Constants.File.POINTS, Constants.File.EDGES, Constants.File.STATS, Constants.File.HASH,
+            Constants.File.PACKED_KEYS, Constants.File.PACKED_COORDINATES, Constants.File.PACKED_CLUSTERS,
+            Constants.File.PACKED_OFFSETS, Constants.File.PACKED_LABELS, Constants.File.PACKED_QUANTIZED,
+            Constants.File.PACKED_BOUNDS, Constants.Lod.LEVEL, Constants.Lod.LEVELS, Constants.Lod.CHUNK));
+
+    /**
+     * Write the file
+     * @param chunks the chunk documents of the file
+     * @param stats weather to append the stats of the file, the stats stored with the file are used
+     *              and the means are only computed for files inserted without stats
+     * @param out output
+     * @return false if there were no chunks
+     * @throws IOException if the output cannot be written
+     */
+    public static boolean write(Iterable<Document> chunks, boolean stats, Appendable out) throws IOException {
+        return write(chunks, stats, null, out);
+    }
+
+    /**
+     * Write some of the points of the file, see {@link LodPyramid}. The clusters only list the points that
+     * are written and the edges between points that are not written are left out.
+     * @param chunks the chunk documents of the file
+     * @param stats weather to append the stats of the file
+     * @param keys sorted keys of the points to write, null for all the points
+     * @param out output
+     * @return false if there were no chunks
+     * @throws IOException if the output cannot be written
+     */
+    public static boolean write(Iterable<Document> chunks, boolean stats, int[] keys, Appendable out) throws IOException {
+        Map<String, Object> clusters = new LinkedHashMap<>();
+        Map<String, Object> edges = new LinkedHashMap<>();
+        // point keys of the clusters of packed chunks
+        Map<Integer, List<IntBuffer>> members = new HashMap<>();
+        double[] sums = new double[3];
+        long count = 0;
+        Object storedStats = null;
+        boolean first = true;
+        boolean firstPoint = true;
+
+        for (Document d : chunks) {
+            if (first) {
+                out.append('{');
+                for (Map.Entry<String, Object> e : d.entrySet()) {
+                    if (!dataFields.contains(e.getKey())) {
+                        appendString(out, e.getKey());
+                        out.append(':').append(JSON.serialize(e.getValue())).append(',');
+                    }
+                }
+                appendString(out, Constants.File.POINTS);
+                out.append(":{");
+                first = false;
+            }
+
+            Object clusterObjects = d.get(Constants.File.CLUSTERS);
+            if (clusterObjects instanceof Document) {
+                clusters.putAll((Document) clusterObjects);
+            }
+            Object edgeObjects = d.get(Constants.File.EDGES);
+            if (edgeObjects instanceof Document) {
+                edges.putAll((Document) edgeObjects);
+            }
+            if (d.get(Constants.File.STATS) != null) {
+                storedStats = d.get(Constants.File.STATS);
+            }
+
+            Object pointObjects = d.get(Constants.File.POINTS);
+            if (pointObjects instanceof Document) {
+                for (Map.Entry<String, Object> e : ((Document) pointObjects).entrySet()) {
+                    if (keys != null && !contains(keys, Integer.parseInt(e.getKey()))) {
+                        continue;
+                    }
+                    List<?> point = (List<?>) e.getValue();
+                    if (!firstPoint) {
+                        out.append(',');
+                    }
+                    firstPoint = false;
+                    appendString(out, e.getKey());
+                    out.append(":[");
+                    for (int i = 0; i < point.size(); i++) {
+                        if (i > 0) {
+                            out.append(',');
+                        }
+                        appendString(out, (String) point.get(i));
+                    }
+                    out.append(']');
+                    if (stats && storedStats == null) {
+                        for (int i = 0; i < 3; i++) {
+                            sums[i] += Double.parseDouble((String) point.get(i));
+                        }
+                    }
+                    count++;
+                }
+            }
+
+            if (PackedChunk.isPacked(d)) {
+                IntBuffer pointKeys = PackedChunk.ints(d, Constants.File.PACKED_KEYS);
+                boolean fixed16 = PackedChunk.isFixed16(d);
+                FloatBuffer coordinates = fixed16 ? null : PackedChunk.floats(d, Constants.File.PACKED_COORDINATES);
+                ShortBuffer quantized = fixed16 ? PackedChunk.shorts(d, Constants.File.PACKED_QUANTIZED) : null;
+                double[] min = new double[3];
+                double[] step = new double[3];
+                int[] decimals = new int[3];
+                if (fixed16) {
+                    PackedChunk.grid(d, min, step);
+                    for (int j = 0; j < 3; j++) {
+                        decimals[j] = decimals(step[j]);
+                    }
+                }
+                IntBuffer clusterKeys = PackedChunk.ints(d, Constants.File.PACKED_CLUSTERS);
+                IntBuffer offsets = PackedChunk.ints(d, Constants.File.PACKED_OFFSETS);
+                List<String> labels = PackedChunk.labels(d);
+
+                for (int i = 0; i < clusterKeys.limit(); i++) {
+                    IntBuffer clusterPoints = pointKeys.duplicate();
+                    clusterPoints.position(offsets.get(i)).limit(offsets.get(i + 1));
+                    List<IntBuffer> list = members.get(clusterKeys.get(i));
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        members.put(clusterKeys.get(i), list);
+                    }
+                    list.add(clusterPoints.slice());
+                }
+
+                for (int i = 0; i < pointKeys.limit(); i++) {
+                    if (keys != null && !contains(keys, pointKeys.get(i))) {
+                        continue;
+                    }
+                    if (!firstPoint) {
+                        out.append(',');
+                    }
+                    firstPoint = false;
+                    out.append('"').append(Integer.toString(pointKeys.get(i))).append("\":[");
+                    for (int j = 0; j < 3; j++) {
+                        double v;
+                        if (fixed16) {
+                            v = min[j] + (quantized.get(i * 3 + j) & 0xFFFF) * step[j];
+                            appendFixed(out, v, decimals[j]);
+                        } else {
+                            v = coordinates.get(i * 3 + j);
+                            appendNumber(out, (float) v);
+                        }
+                        out.append(',');
+                        if (stats && storedStats == null) {
+                            sums[j] += v;
+                        }
+                    }
+                    appendString(out, labels.get(i));
+                    out.append(']');
+                    count++;
+                }
+            }
+        }
+
+        if (first) {
+            return false;
+        }
+        out.append('}');
+
+        out.append(',');
+        appendString(out, Constants.File.CLUSTERS);
+        out.append(":{");
+        boolean firstCluster = true;
+        for (Map.Entry<String, Object> e : clusters.entrySet()) {
+            if (!firstCluster) {
+                out.append(',');
+            }
+            firstCluster = false;
+            appendString(out, e.getKey());
+            out.append(':');
+            appendCluster(out, (Document) e.getValue(), members.get(Integer.valueOf(e.getKey())), keys);
+        }
+        out.append('}');
+
+        if (edges.size() > 0) {
+            out.append(',');
+            appendString(out, Constants.File.EDGES);
+            out.append(':').append(JSON.serialize(keys != null ? filterEdges(edges, keys) : edges));
+        }
+
+        if (stats && storedStats != null) {
+            out.append(',');
+            appendString(out, Constants.File.STATS);
+            out.append(':').append(JSON.serialize(storedStats));
+        } else if (stats) {
+            out.append(',');
+            appendString(out, Constants.File.STATS);
+            out.append(":{\"means\":[");
+            for (int i = 0; i < 3; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(Double.toString(count > 0 ? sums[i] / count : 0));
+            }
+            out.append("]}");
+        }
+        out.append('}');
+        return true;
+    }
+
+    /**
+     * Means of the points of a file, only the point fields of the chunks are needed
+     * @param chunks the chunk documents of the file
+     * @return x, y, z means
+     */
+    public static double[] means(Iterable<Document> chunks) {
+        double[] sums = new double[3];
+        long count = 0;
+        for (Document d : chunks) {
+            Object pointObjects = d.get(Constants.File.POINTS);
+            if (pointObjects instanceof Document) {
+                for (Object point : ((Document) pointObjects).values()) {
+                    for (int i = 0; i < 3; i++) {
+                        sums[i] += Double.parseDouble((String) ((List<?>) point).get(i));
+                    }
+                    count++;
+                }
+            }
+            if (d.get(Constants.File.PACKED_COORDINATES) != null || PackedChunk.isFixed16(d)) {
+                FloatBuffer coordinates = PackedChunk.coordinates(d);
+                for (int i = 0; i < coordinates.limit(); i++) {
+                    sums[i % 3] += coordinates.get(i);
+                }
+                count += coordinates.limit() / 3;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            sums[i] = count > 0 ? sums[i] / count : 0;
+        }
+        return sums;
+    }
+
+    static boolean contains(int[] keys, int key) {
+        return Arrays.binarySearch(keys, key) >= 0;
+    }
+
+    /**
+     * The edges with all their vertices in the keys
+     */
+    static Map<String, Object> filterEdges(Map<String, Object> edges, int[] keys) {
+        Map<String, Object> kept = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> e : edges.entrySet()) {
+            boolean all = true;
+            for (Object vertex : (List<?>) ((Document) e.getValue()).get(Constants.Edge.VERTICES)) {
+                all &= contains(keys, ((Number) vertex).intValue());
+            }
+            if (all) {
+                kept.put(e.getKey(), e.getValue());
+            }
+        }
+        return kept;
+    }
+
+    static boolean isDataField(String field) {
+        return dataFields.contains(field);
+    }
+
+    private static void appendCluster(Appendable out, Document cluster, List<IntBuffer> members, int[] keys) throws IOException {
+        if (members == null) {
+            Object points = cluster.get(Constants.Cluster.POINTS);
+            if (keys != null && points instanceof List) {
+                List<Object> kept = new ArrayList<>();
+                for (Object key : (List<?>) points) {
+                    if (contains(keys, ((Number) key).intValue())) {
+                        kept.add(key);
+                    }
+                }
+                cluster = new Document(cluster).append(Constants.Cluster.POINTS, kept);
+            }
+            out.append(JSON.serialize(cluster));
+            return;
+        }
+        out.append('{');
+        for (Map.Entry<String, Object> e : cluster.entrySet()) {
+            appendString(out, e.getKey());
+            out.append(':').append(JSON.serialize(e.getValue())).append(',');
+        }
+        appendString(out, Constants.Cluster.POINTS);
+        out.append(":[");
+        boolean first = true;
+        for (IntBuffer clusterKeys : members) {
+            for (int i = 0; i < clusterKeys.limit(); i++) {
+                if (keys != null && !contains(keys, clusterKeys.get(i))) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append(Integer.toString(clusterKeys.get(i)));
+            }
+        }
+        out.append("]}");
+    }
+
+    static void appendNumber(Appendable out, float v) throws IOException {
+        if (Float.isNaN(v) || Float.isInfinite(v)) {
+            out.append('0');
+        } else {
+            out.append(Float.toString(v));
+        }
+    }
+
+    /**
+     * Number of decimals that keep the rounding of a fixed point coordinate below a tenth of its step
+     */
+    private static int decimals(double step) {
+        if (step <= 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(12, (int) Math.ceil(-Math.log10(step / 10))));
+    }
+
+    /**
+     * Append a number with at most the given number of decimals, trailing zeros are left out
+     */
+    static void appendFixed(Appendable out, double v, int decimals) throws IOException {
+        double scale = Math.pow(10, decimals);
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            out.append('0');
+            return;
+        }
+        if (Math.abs(v) * scale >= 1e17) {
+            out.append(Double.toString(v));
+            return;
+        }
+        long scaled = Math.round(v * scale);
+        if (scaled < 0) {
+            out.append('-');
+            scaled = -scaled;
+        }
+        long unit = (long) scale;
+        out.append(Long.toString(scaled / unit));
+        long fraction = scaled % unit;
+        if (fraction != 0) {
+            int digits = decimals;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            String f = Long.toString(fraction);
+            out.append('.');
+            for (int i = f.length(); i < digits; i++) {
+                out.append('0');
+            }
+            out.append(f);
+        }
+    }
+
+    static void appendString(Appendable out, String value) throws IOException {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,69 @@
+package db;
+
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statistics of the points of a file, computed once while the file is inserted.
+ * The variance is updated with Welford's method.
+ */
+public class PlotStatistics {
+    private long count = 0;
+    private final double[] means = new double[3];
+    private final double[] m2 = new double[3];
+    private final double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    private final double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+    public void add(double x, double y, double z) {
+        count++;
+        update(0, x);
+        update(1, y);
+        update(2, z);
+    }
+
+    private void update(int axis, double value) {
+        double delta = value - means[axis];
+        means[axis] += delta / count;
+        m2[axis] += delta * (value - means[axis]);
+        min[axis] = Math.min(min[axis], value);
+        max[axis] = Math.max(max[axis], value);
+    }
+
+    /**
+     * Create the stats document stored with the file
+     * @param clusterCounts number of points of each cluster
+     * @return the document
+     */
+    public Document toDocument(Map<Integer, Integer> clusterCounts) {
+        Document clusters = new Document();
+        for (Map.Entry<Integer, Integer> e : clusterCounts.entrySet()) {
+            clusters.append(Integer.toString(e.getKey()), e.getValue());
+        }
+        Document stats = new Document();
+        stats.append(Constants.Stats.COUNT, count);
+        stats.append(Constants.Stats.MEANS, list(count > 0 ? means : new double[3]));
+        stats.append(Constants.Stats.VARIANCE, list(count > 0 ? new double[]{m2[0] / count, m2[1] / count, m2[2] / count} : new double[3]));
+        stats.append(Constants.Stats.MIN, list(count > 0 ? min : new double[3]));
+        stats.append(Constants.Stats.MAX, list(count > 0 ? max : new double[3]));
+        stats.append(Constants.Stats.CLUSTERS, clusters);
+        return stats;
+    }
+
+    /**
+     * Read the means from a stored stats document
+     * @param stats the stats document
+     * @return x, y, z means
+     */
+    public static double[] means(Document stats) {
+        List<?> means = (List<?>) stats.get(Constants.Stats.MEANS);
+        return new double[]{((Number) means.get(0)).doubleValue(), ((Number) means.get(1)).doubleValue(),
+                ((Number) means.get(2)).doubleValue()};
+    }
+
+    private static List<Double> list(double[] values) {
+        return Arrays.asList(values[0], values[1], values[2]);
+    }
+}
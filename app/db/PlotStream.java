@@ -0,0 +1,232 @@
+package db;
+
+import com.mongodb.client.MongoCursor;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.bson.Document;
+import play.Logger;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the JSON of a file while its chunks are read from the cursor. The chunks are written to a
+ * pipe by a writer thread and the response reads the other end, so the memory used is bounded by the
+ * pipe and the first bytes are sent before the last chunk is read.
+ * <p>
+ * A range of frames is sent as a sequence of frames, each one is
+ * <pre>
+ * int32   file id, little endian
+ * int32   length n of the JSON, little endian
+ * byte[n] the JSON of the file
+ * </pre>
+ * The files are written by a fixed number of writers, a file waits in a queue when they are all busy and is
+ * refused when the queue is full. If writing fails the stream ends with an error instead of an end of file,
+ * so the response is aborted rather than sent truncated.
+ */
+public class PlotStream {
+    private static final int pipeSize = 64 * 1024;
+
+    private static final ThreadPoolExecutor writers;
+
+    static {
+        Config conf = ConfigFactory.load();
+        int writerCount = conf.hasPath(Constants.Stream.WRITERS) ? conf.getInt(Constants.Stream.WRITERS) : 16;
+        int queueSize = conf.hasPath(Constants.Stream.QUEUE_SIZE) ? conf.getInt(Constants.Stream.QUEUE_SIZE) : 64;
+        writers = new ThreadPoolExecutor(writerCount, writerCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "plot-stream");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        writers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The reading end of the pipe, it throws the error of the writer instead of returning the end of file
+     */
+    private static class Pipe extends PipedInputStream {
+        private volatile IOException error;
+
+        Pipe() {
+            super(pipeSize);
+        }
+
+        void fail(String message, Throwable cause) {
+            error = new IOException(message, cause);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return check(super.read());
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            return check(super.read(b, off, len));
+        }
+
+        private int check(int n) throws IOException {
+            if (n < 0 && error != null) {
+                throw error;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Start writing the file
+     * @param cursor cursor over the chunks of the file, closed once the file is written
+     * @param stats weather to append the stats of the file
+     * @param gzip weather to compress the JSON
+     * @param keys sorted keys of the points to write, null for all the points
+     * @param name name used in the log
+     * @return the stream with the JSON of the file
+     * @throws IOException if the pipe cannot be created
+     * @throws RejectedExecutionException if too many files are being written
+     */
+    public static InputStream open(final MongoCursor<Document> cursor, final boolean stats, final boolean gzip,
+                                   final int[] keys, final String name) throws IOException {
+        final Pipe in = new Pipe();
+        final PipedOutputStream pipe = new PipedOutputStream(in);
+        execute(in, pipe, new Runnable() {
+            @Override
+            public void run() {
+                Writer out = null;
+                try {
+                    out = new BufferedWriter(new OutputStreamWriter(gzip ? new GZIPOutputStream(pipe) : pipe,
+                            StandardCharsets.UTF_8));
+                    PlotSerializer.write(new Iterable<Document>() {
+                        @Override
+                        public Iterator<Document> iterator() {
+                            return cursor;
+                        }
+                    }, stats, keys, out);
+                    out.flush();
+                } catch (IOException e) {
+                    // the response reading the pipe is closed when the client goes away
+                    Logger.info("Stopped streaming " + name + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    Logger.error("Failed to serialize " + name, e);
+                    in.fail("Failed to serialize " + name, e);
+                } finally {
+                    cursor.close();
+                    try {
+                        if (out != null) {
+                            out.close();
+                        } else {
+                            pipe.close();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+        return in;
+    }
+
+    /**
+     * Start writing the frames of a time series. The chunks of all the frames are read from one cursor
+     * sorted by file id, so only the chunks of one frame are held at a time.
+     * @param cursor cursor over the chunks of the frames sorted by file id, closed once the frames are written
+     * @param gzip weather to compress the whole sequence
+     * @param name name used in the log
+     * @return the stream with the sequence of frames
+     * @throws IOException if the pipe cannot be created
+     * @throws RejectedExecutionException if too many files are being written
+     */
+    public static InputStream openFrames(final MongoCursor<Document> cursor, final boolean gzip, final String name)
+            throws IOException {
+        final Pipe in = new Pipe();
+        final PipedOutputStream pipe = new PipedOutputStream(in);
+        execute(in, pipe, new Runnable() {
+            @Override
+            public void run() {
+                OutputStream out = null;
+                try {
+                    out = gzip ? new GZIPOutputStream(pipe) : pipe;
+                    // the chunks come sorted by file id, a frame is written as soon as the next one starts
+                    ByteArrayOutputStream frame = new ByteArrayOutputStream(pipeSize);
+                    List<Document> chunks = new ArrayList<>();
+                    int fid = -1;
+                    while (cursor.hasNext()) {
+                        Document d = cursor.next();
+                        int id = d.getInteger(Constants.Artifact.ID_FIELD);
+                        if (id != fid && !chunks.isEmpty()) {
+                            writeFrame(fid, chunks, frame, out);
+                        }
+                        fid = id;
+                        chunks.add(d);
+                    }
+                    if (!chunks.isEmpty()) {
+                        writeFrame(fid, chunks, frame, out);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    Logger.info("Stopped streaming " + name + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    Logger.error("Failed to serialize " + name, e);
+                    in.fail("Failed to serialize " + name, e);
+                } finally {
+                    cursor.close();
+                    try {
+                        if (out != null) {
+                            out.close();
+                        } else {
+                            pipe.close();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        });
+        return in;
+    }
+
+    private static void execute(PipedInputStream in, PipedOutputStream pipe, Runnable writer) throws IOException {
+        try {
+            writers.execute(writer);
+        } catch (RejectedExecutionException e) {
+            pipe.close();
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a frame of a sequence and forget its chunks
+     * @param frame buffer for the JSON of the frame, its length is written before it
+     */
+    private static void writeFrame(int fid, List<Document> chunks, ByteArrayOutputStream frame, OutputStream out)
+            throws IOException {
+        frame.reset();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(frame, StandardCharsets.UTF_8));
+        PlotSerializer.write(chunks, fid == 0, writer);
+        writer.flush();
+        chunks.clear();
+        out.write(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(fid).putInt(frame.size()).array());
+        frame.writeTo(out);
+    }
+}
@@ -0,0 +1,427 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.bson.Document;
+import org.bson.types.Binary;
+import play.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spatial index of a file. The bounding box of the file is split in to a grid of 2^16 voxels on each axis
+ * and the points are sorted by the morton code of their voxel, which makes the sorted codes a linear
+ * octree: the points of a node at any depth are a range of the codes, found with a binary search. A query
+ * walks down the nodes that cut the region, takes all the points of the nodes inside it and skips the
+ * nodes outside it. The points in a voxel on the border of the region are taken, a voxel is 1 / 65536 of
+ * the bounding box on each axis.
+ * <p>
+ * The index is stored in parts of pointsPerPart points, each part has the int64 codes followed by the
+ * int32 keys of its points and the first code of the part. A query reads the first codes and then only
+ * the parts its nodes fall in. The index is built from the stored chunks with a {@link SpillSort}, in the
+ * background, and a file is sent whole until its index is stored.
+ * <p>
+ * A region is a set of planes, a point is inside when a * x + b * y + c * z + d >= 0 for every plane.
+ */
+public class PointOctree {
+    private static final int depth = 16;
+    private static final int pointsPerPart;
+    // parts of an index kept while a query walks it
+    private static final int partsPerQuery = 4;
+
+    private static final int OUTSIDE = 0;
+    private static final int INSIDE = 1;
+    private static final int CROSSING = 2;
+
+    static {
+        Config conf = ConfigFactory.load();
+        // 12 bytes for each point, well below the 16 MB document limit
+        pointsPerPart = Math.max(1, conf.hasPath(Constants.Octree.POINTS_PER_PART) ?
+                conf.getInt(Constants.Octree.POINTS_PER_PART) : 8 * 1024 * 1024 / 12);
+    }
+
+    // files that are waiting for their index to be built
+    private static final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "octree-builder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Build and store the index of a file, replacing the old index
+     * @param tid artifact id
+     * @param fid file id
+     * @throws IOException if the temporary files of the sort cannot be written
+     */
+    public static void build(int tid, int fid) throws IOException {
+        MongoConnection con = MongoConnection.getInstance();
+        final Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        con.octreesCol.deleteMany(query);
+        long t0 = System.currentTimeMillis();
+
+        // the bounds of the stored positions, so every point is in a voxel of the grid
+        final double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        final double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        final long[] size = {0};
+        FramePoints.scan(con.filesCol.find(query), new FramePoints.Visitor() {
+            @Override
+            public void point(int key, int cluster, double x, double y, double z, String label) {
+                listPoint(key, x, y, z, label);
+            }
+
+            @Override
+            public void listPoint(int key, double x, double y, double z, String label) {
+                double[] p = {x, y, z};
+                for (int a = 0; a < 3; a++) {
+                    min[a] = Math.min(min[a], p[a]);
+                    max[a] = Math.max(max[a], p[a]);
+                }
+                size[0]++;
+            }
+        });
+        if (size[0] == 0) {
+            Arrays.fill(min, 0);
+            Arrays.fill(max, 0);
+        }
+        List<Double> bounds = new ArrayList<>();
+        for (double v : min) {
+            bounds.add(v);
+        }
+        for (double v : max) {
+            bounds.add(v);
+        }
+
+        try (final SpillSort sort = new SpillSort("octree")) {
+            final SpillSort.Record record = new SpillSort.Record();
+            FramePoints.scan(con.filesCol.find(query), new FramePoints.Visitor() {
+                @Override
+                public void point(int key, int cluster, double x, double y, double z, String label) throws IOException {
+                    listPoint(key, x, y, z, label);
+                }
+
+                @Override
+                public void listPoint(int key, double x, double y, double z, String label) throws IOException {
+                    record.clear().writeInt(key);
+                    sort.add(code(new double[]{x, y, z}, min, max), record);
+                }
+            });
+
+            int parts = (int) Math.max(1, (size[0] + pointsPerPart - 1) / pointsPerPart);
+            SpillSort.Cursor sorted = sort.sorted();
+            for (int part = 0; part < parts; part++) {
+                int count = (int) Math.min(pointsPerPart, size[0] - (long) part * pointsPerPart);
+                ByteBuffer data = ByteBuffer.allocate(count * 12).order(ByteOrder.LITTLE_ENDIAN);
+                long first = 0;
+                for (int i = 0; i < count && sorted.next(); i++) {
+                    if (i == 0) {
+                        first = sorted.key;
+                    }
+                    data.putLong(i * 8, sorted.key);
+                    data.putInt(count * 8 + i * 4, sorted.record().readInt());
+                }
+                con.octreesCol.insertOne(new Document(query).append(Constants.Payload.PART, part)
+                        .append(Constants.Payload.PARTS, parts).append(Constants.Octree.FIRST, first)
+                        .append(Constants.Octree.BOUNDS, bounds).append(Constants.Octree.COUNT, size[0])
+                        .append(Constants.Payload.DATA, new Binary(data.array())));
+            }
+        }
+        Logger.info("Stored the spatial index of tid: " + tid + " fid: " + fid + " in "
+                + (System.currentTimeMillis() - t0) + " ms");
+    }
+
+    /**
+     * Build the index of a file in the background, unless it is already waiting for a build
+     * @param tid artifact id
+     * @param fid file id
+     */
+    public static void schedule(final int tid, final int fid) {
+        final String key = tid + "/" + fid;
+        if (!pending.add(key)) {
+            return;
+        }
+        builder.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(tid, fid);
+                } catch (Exception e) {
+                    Logger.error("Failed to store the spatial index of tid: " + tid + " fid: " + fid, e);
+                } finally {
+                    pending.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Keys of the points of a file inside a region. A file without a complete index gets one built in the
+     * background.
+     * @param tid artifact id
+     * @param fid file id
+     * @param planes the planes of the region as a, b, c, d
+     * @return the sorted keys, null if the file doesn't have an index yet
+     */
+    public static int[] query(int tid, int fid, double[][] planes) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Artifact.ID_FIELD, fid).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+        Parts parts = Parts.read(query);
+        if (parts == null) {
+            if (con.filesCol.find(query).projection(new Document(Constants.Artifact.ID_FIELD, 1)).first() != null) {
+                schedule(tid, fid);
+            }
+            return null;
+        }
+        if (parts.size == 0) {
+            return new int[0];
+        }
+
+        Found found = new Found();
+        walk(parts, planes, parts.min, parts.max, 0, 0, 0, 0, 0, parts.size, found);
+        int[] keys = Arrays.copyOf(found.keys, found.count);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Delete the indexes of all the files of an artifact
+     * @param tid artifact id
+     */
+    public static void delete(int tid) {
+        MongoConnection con = MongoConnection.getInstance();
+        con.octreesCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid));
+    }
+
+    /**
+     * A region given by its corners, the six planes of the box
+     * @param box min x, y, z and max x, y, z
+     * @return the planes
+     */
+    public static double[][] box(double[] box) {
+        return new double[][]{
+                {1, 0, 0, -box[0]}, {0, 1, 0, -box[1]}, {0, 0, 1, -box[2]},
+                {-1, 0, 0, box[3]}, {0, -1, 0, box[4]}, {0, 0, -1, box[5]}};
+    }
+
+    /**
+     * The stored index of a file, the parts are read when the walk needs them
+     */
+    private static class Parts {
+        final Document query;
+        final int size;
+        final long[] firsts;
+        final double[] min = new double[3];
+        final double[] max = new double[3];
+        // the parts read so far, the least recently used is dropped
+        private final Map<Integer, ByteBuffer> loaded = new LinkedHashMap<Integer, ByteBuffer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ByteBuffer> eldest) {
+                return size() > partsPerQuery;
+            }
+        };
+
+        private Parts(Document query, int size, long[] firsts) {
+            this.query = query;
+            this.size = size;
+            this.firsts = firsts;
+        }
+
+        /**
+         * @return the index, null if it is missing, being built or was stored before the parts had their first code
+         */
+        static Parts read(Document query) {
+            MongoConnection con = MongoConnection.getInstance();
+            List<Document> headers = new ArrayList<>();
+            for (Document d : con.octreesCol.find(query).projection(new Document(Constants.Payload.DATA, 0))
+                    .sort(new Document(Constants.Payload.PART, 1))) {
+                headers.add(d);
+            }
+            if (headers.isEmpty() || headers.get(0).getInteger(Constants.Payload.PARTS) != headers.size()) {
+                return null;
+            }
+            long[] firsts = new long[headers.size()];
+            for (int i = 0; i < firsts.length; i++) {
+                Document header = headers.get(i);
+                if (header.getInteger(Constants.Payload.PART) != i || header.get(Constants.Octree.FIRST) == null) {
+                    return null;
+                }
+                firsts[i] = ((Number) header.get(Constants.Octree.FIRST)).longValue();
+            }
+            Document header = headers.get(0);
+            Parts parts = new Parts(query, ((Number) header.get(Constants.Octree.COUNT)).intValue(), firsts);
+            List<?> bounds = (List<?>) header.get(Constants.Octree.BOUNDS);
+            for (int a = 0; a < 3; a++) {
+                parts.min[a] = ((Number) bounds.get(a)).doubleValue();
+                parts.max[a] = ((Number) bounds.get(a + 3)).doubleValue();
+            }
+            return parts;
+        }
+
+        long code(int i) {
+            return part(i / pointsPerPart).getLong((i % pointsPerPart) * 8);
+        }
+
+        int key(int i) {
+            ByteBuffer part = part(i / pointsPerPart);
+            return part.getInt(part.capacity() / 12 * 8 + (i % pointsPerPart) * 4);
+        }
+
+        private ByteBuffer part(int n) {
+            ByteBuffer part = loaded.get(n);
+            if (part == null) {
+                Document d = MongoConnection.getInstance().octreesCol.find(new Document(query).append(Constants.Payload.PART, n))
+                        .projection(new Document(Constants.Payload.DATA, 1)).first();
+                if (d == null) {
+                    throw new IllegalStateException("Part " + n + " of the spatial index was replaced");
+                }
+                part = ByteBuffer.wrap(((Binary) d.get(Constants.Payload.DATA)).getData()).order(ByteOrder.LITTLE_ENDIAN);
+                loaded.put(n, part);
+            }
+            return part;
+        }
+
+        /**
+         * The first point in from to to with a code at least code. The first codes of the parts give the
+         * one part the bound is in, only that part is searched.
+         */
+        int lowerBound(int from, int to, long code) {
+            // the last part starting below the code, the points before it are below the code too
+            int p = Arrays.binarySearch(firsts, code);
+            p = p >= 0 ? p - 1 : -p - 2;
+            // equal codes can span parts, step back over the parts that start with the code
+            while (p >= 0 && firsts[p] >= code) {
+                p--;
+            }
+            int lo = Math.max(from, p < 0 ? 0 : p * pointsPerPart);
+            int hi = Math.min(to, (p + 1) * pointsPerPart);
+            if (lo >= hi) {
+                return lo >= to ? to : from;
+            }
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (code(mid) < code) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static class Found {
+        int[] keys = new int[1024];
+        int count = 0;
+
+        void add(int key) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            keys[count++] = key;
+        }
+    }
+
+    /**
+     * Add the keys of the points of a node that are in the region
+     * @param level depth of the node, 0 for the whole bounding box
+     * @param x voxel of the corner of the node on the grid of its depth
+     * @param from first point of the node
+     * @param to end of the points of the node
+     */
+    private static void walk(Parts parts, double[][] planes, double[] min, double[] max,
+                             int level, int x, int y, int z, int from, int to, Found found) {
+        if (from >= to) {
+            return;
+        }
+        int[] corner = {x, y, z};
+        double[] lo = new double[3];
+        double[] hi = new double[3];
+        for (int a = 0; a < 3; a++) {
+            double cell = (max[a] - min[a]) / (1 << level);
+            lo[a] = min[a] + corner[a] * cell;
+            hi[a] = lo[a] + cell;
+        }
+        int side = classify(planes, lo, hi);
+        if (side == OUTSIDE) {
+            return;
+        }
+        if (side == INSIDE || level == depth) {
+            for (int i = from; i < to; i++) {
+                found.add(parts.key(i));
+            }
+            return;
+        }
+        // the children are ranges of the codes in morton order
+        int shift = 3 * (depth - level - 1);
+        long base = parts.code(from) >>> (shift + 3) << (shift + 3);
+        int start = from;
+        for (int c = 0; c < 8; c++) {
+            int end = c == 7 ? to : parts.lowerBound(start, to, base + ((long) (c + 1) << shift));
+            walk(parts, planes, min, max, level + 1,
+                    x * 2 + (c & 1), y * 2 + ((c >> 1) & 1), z * 2 + ((c >> 2) & 1), start, end, found);
+            start = end;
+        }
+    }
+
+    /**
+     * @return if the box is outside a plane, inside all the planes or crossing some
+     */
+    private static int classify(double[][] planes, double[] lo, double[] hi) {
+        int side = INSIDE;
+        for (double[] p : planes) {
+            // the corner furthest along the normal of the plane and the one furthest against it
+            double far = p[3];
+            double near = p[3];
+            for (int a = 0; a < 3; a++) {
+                far += p[a] * (p[a] >= 0 ? hi[a] : lo[a]);
+                near += p[a] * (p[a] >= 0 ? lo[a] : hi[a]);
+            }
+            if (far < 0) {
+                return OUTSIDE;
+            }
+            if (near < 0) {
+                side = CROSSING;
+            }
+        }
+        return side;
+    }
+
+    private static long code(double[] position, double[] min, double[] max) {
+        long code = 0;
+        for (int a = 0; a < 3; a++) {
+            double extent = max[a] - min[a];
+            int v = extent > 0 ? (int) ((position[a] - min[a]) / extent * (1 << depth)) : 0;
+            code |= spread(Math.max(0, Math.min((1 << depth) - 1, v))) << a;
+        }
+        return code;
+    }
+
+    /**
+     * Spread the bits of a 16 bit value so there are two zero bits between them
+     */
+    private static long spread(int v) {
+        long x = v & 0xFFFF;
+        x = (x | (x << 16)) & 0x0000FF0000FFL;
+        x = (x | (x << 8)) & 0x00F00F00F00FL;
+        x = (x | (x << 4)) & 0x0C30C30C30C3L;
+        x = (x | (x << 2)) & 0x249249249249L;
+        return x;
+    }
+}
@@ -1,49 +1,37 @@
 package db;
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.QueryBuilder;
 import com.mongodb.client.FindIterable;
-import models.TimeSeries;
+import models.ArtifactPage;
 import org.bson.Document;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.List;
 
 public class SearchDAO {
-    private static SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-
-    public static List<TimeSeries> getArtifactsByTag(String user, String tagname) {
-        MongoConnection db = MongoConnection.getInstance();
-        Document document = new Document();
-        document.append(Constants.Tags.TAGS_FIELD + "." + tagname + "." + Constants.Tags.NAME, tagname);
-        FindIterable<Document> iterable = db.plotTagsCol.find(document);
-
-        ArrayList<Integer> tidarray = new ArrayList<Integer>();
-        for (Document d : iterable) {
-            Integer tid = (Integer) d.get(Constants.Tags.TIME_SERIES_ID_FIELD);
-            tidarray.add(tid);
-        }
-
-        QueryBuilder query = new QueryBuilder();
-        if (query == null) {
-            query = QueryBuilder.start();
-        }
-        BasicDBObject idfield = new BasicDBObject(Constants.Artifact.ID_FIELD, new BasicDBObject("$in", tidarray));
-        BasicDBObject userfield;
-        if (user != null) {
-            userfield = new BasicDBObject(Constants.Artifact.USER, user);
-        } else {
-            userfield = new BasicDBObject(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
-        }
-        BasicDBObject queryobj = (BasicDBObject) query.and(idfield, userfield).get();
-
-        FindIterable<Document> iterableTimesSeries = db.artifactCol.find(queryobj);
-        return getTimeSeriesList(iterableTimesSeries);
+    /**
+     * A page of the artifacts with a tag
+     * @param user the user, if there is no user specified the public artifacts are listed
+     * @param tagname the tag
+     * @param sort Constants.Listing.SORT_DATE or SORT_NAME
+     * @param cursor the cursor of the page, null for the first page
+     * @param size number of artifacts in the page, the default page size if 0
+     * @return the page
+     */
+    public static ArtifactPage getArtifactsByTag(String user, String tagname, String sort, String cursor, int size) {
+        return getArtifactsByTags(user, new String[]{tagname}, sort, cursor, size);
     }
 
-    public static List<TimeSeries> getArtifactsByTags(String user, String[] tags) {
+    /**
+     * A page of the artifacts with any of some tags
+     */
+    public static ArtifactPage getArtifactsByTags(String user, String[] tags, String sort, String cursor, int size) {
+        String listing = ListingCache.tags(tags);
+        sort = ArtifactDAO.listingSort(sort);
+        size = ArtifactDAO.listingSize(size);
+        ArtifactPage page = ListingCache.getPage(user, listing, sort, cursor, size);
+        if (page != null) {
+            return page;
+        }
+        long read = ListingCache.version();
         MongoConnection db = MongoConnection.getInstance();
         ArrayList<Integer> tidarray = new ArrayList<Integer>();
         for (String tagname : tags) {
@@ -59,58 +47,14 @@ public class SearchDAO {
             }
         }
 
-        QueryBuilder query = new QueryBuilder();
-        if (query == null) {
-            query = QueryBuilder.start();
-        }
-        BasicDBObject idfield = new BasicDBObject(Constants.Artifact.ID_FIELD, new BasicDBObject("$in", tidarray));
-        BasicDBObject userfield;
+        Document query = new Document(Constants.Artifact.ID_FIELD, new Document("$in", tidarray));
         if (user != null) {
-            userfield = new BasicDBObject(Constants.Artifact.USER, user);
+            query.append(Constants.Artifact.USER, user);
         } else {
-            userfield = new BasicDBObject(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
+            query.append(Constants.Artifact.PUBLIC, Constants.Artifact.PUBLIC_TRUE);
         }
-        BasicDBObject queryobj = (BasicDBObject) query.and(idfield, userfield).get();
-
-        FindIterable<Document> iterableTimesSeries = db.artifactCol.find(queryobj);
-        return getTimeSeriesList(iterableTimesSeries);
+        page = ArtifactDAO.readPage(query, sort, cursor, size);
+        ListingCache.putPage(user, listing, sort, cursor, size, page, read);
+        return page;
     }
-
-    public static List<TimeSeries> getTimeSeriesList(FindIterable<Document> iterable) {
-        List<TimeSeries> timeSeriesList = new ArrayList<TimeSeries>();
-        for (Document document : iterable) {
-            TimeSeries timeSeries = new TimeSeries();
-            try {
-                timeSeries.dateCreation = format.parse((String) document.get(Constants.Artifact.DATE_CREATION_FIELD));
-            } catch (ParseException e) {
-                e.printStackTrace();
-            }
-            timeSeries.id = (Integer) document.get(Constants.Artifact.ID_FIELD);
-            timeSeries.name = (String) document.get(Constants.Artifact.NAME_FIELD);
-            timeSeries.description = (String) document.get(Constants.Artifact.DESC_FIELD);
-            timeSeries.uploaderId = (String) document.get(Constants.Artifact.USER);
-            timeSeries.status = (String) document.get(Constants.Artifact.STATUS_FIELD);
-            timeSeries.group = (String) document.get(Constants.Artifact.GROUP_FIELD);
-            Object pub = document.get(Constants.Artifact.PUBLIC);
-            if (pub != null && pub instanceof Boolean) {
-                timeSeries.pub = (boolean) pub;
-            }
-            if (timeSeries.group == null || "".equals(timeSeries.group)) {
-                timeSeries.group = Constants.Group.DEFAULT_GROUP;
-            }
-            Object resultSetsObject = document.get(Constants.Artifact.FILES);
-            if (resultSetsObject != null && resultSetsObject instanceof List) {
-                if (((List) resultSetsObject).size() > 1) {
-                    timeSeries.t = "T";
-                } else {
-                    timeSeries.t = "S";
-                }
-            } else {
-                timeSeries.t = "S";
-            }
-            timeSeriesList.add(timeSeries);
-        }
-        return timeSeriesList;
-    }
-
 }
@@ -0,0 +1,366 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External sort of records by a long key, for the builds that have to order all the points of a file. The
+ * records are kept in memory up to bufferBytes, sorted with a radix sort on the keys and written to a
+ * temporary file as a sorted run when the buffer is full. The runs are merged while the records are read
+ * back, so the memory used is the buffer and a read buffer for each run, whatever the size of the file.
+ * <p>
+ * Records with the same key are read back in the order they were added.
+ */
+class SpillSort implements Closeable {
+    private static final long bufferBytes;
+    // memory used for each record besides its data: the key, the offset and the radix sort scratch
+    private static final int recordOverhead = 36;
+    private static final int runBufferSize = 64 * 1024;
+
+    static {
+        Config conf = ConfigFactory.load();
+        bufferBytes = Math.max(64 * 1024, conf.hasPath(Constants.Sort.BUFFER_BYTES) ?
+                conf.getBytes(Constants.Sort.BUFFER_BYTES) : 16 * 1024 * 1024);
+    }
+
+    private final String name;
+    private long[] keys = new long[1024];
+    private int[] offsets = new int[1025];
+    private byte[] data = new byte[64 * 1024];
+    private int size = 0;
+    private final List<File> runs = new ArrayList<>();
+    private final List<DataInputStream> open = new ArrayList<>();
+
+    /**
+     * @param name used for the temporary files of the runs
+     */
+    SpillSort(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Add a record
+     * @param key the sort key
+     * @param record the data of the record, copied
+     */
+    void add(long key, Record record) {
+        int length = record.size();
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2 + 1);
+        }
+        int end = offsets[size] + length;
+        if (end > data.length) {
+            data = Arrays.copyOf(data, Math.max(end, data.length * 2));
+        }
+        System.arraycopy(record.bytes(), 0, data, offsets[size], length);
+        keys[size] = key;
+        offsets[size + 1] = end;
+        size++;
+        if ((long) size * recordOverhead + end >= bufferBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * Read the records in the order of their keys, no record can be added after this
+     * @return the cursor, closed with the sort
+     */
+    Cursor sorted() {
+        if (runs.isEmpty()) {
+            return new MemoryCursor(order());
+        }
+        if (size > 0) {
+            spill();
+        }
+        keys = null;
+        offsets = null;
+        data = null;
+        try {
+            return new MergeCursor();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the runs of " + name, e);
+        }
+    }
+
+    /**
+     * Delete the runs
+     */
+    @Override
+    public void close() {
+        for (DataInputStream in : open) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // deleted below
+            }
+        }
+        open.clear();
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    private void spill() {
+        int[] order = order();
+        try {
+            File run = File.createTempFile("pviz-" + name, ".run");
+            runs.add(run);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), runBufferSize))) {
+                for (int index : order) {
+                    out.writeLong(keys[index]);
+                    out.writeInt(offsets[index + 1] - offsets[index]);
+                    out.write(data, offsets[index], offsets[index + 1] - offsets[index]);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Failed to write a run of " + name, e);
+        }
+        size = 0;
+        offsets[0] = 0;
+    }
+
+    /**
+     * Indexes of the records in the buffer sorted by key, a least significant byte first radix sort so
+     * records with equal keys keep their order
+     */
+    private int[] order() {
+        int[] order = new int[size];
+        int[] scratch = new int[size];
+        long[] sortKeys = new long[size];
+        long[] scratchKeys = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            // the sign bit is flipped so the negative keys come first
+            sortKeys[i] = keys[i] ^ Long.MIN_VALUE;
+        }
+        int[] counts = new int[257];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(int) (sortKeys[i] >>> shift & 0xFF) + 1]++;
+            }
+            if (counts[(int) (sortKeys.length > 0 ? (sortKeys[0] >>> shift & 0xFF) + 1 : 0)] == size) {
+                // all the keys have the same byte
+                continue;
+            }
+            for (int b = 0; b < 256; b++) {
+                counts[b + 1] += counts[b];
+            }
+            for (int i = 0; i < size; i++) {
+                int slot = counts[(int) (sortKeys[i] >>> shift & 0xFF)]++;
+                scratch[slot] = order[i];
+                scratchKeys[slot] = sortKeys[i];
+            }
+            int[] t = order;
+            order = scratch;
+            scratch = t;
+            long[] k = sortKeys;
+            sortKeys = scratchKeys;
+            scratchKeys = k;
+        }
+        return order;
+    }
+
+    /**
+     * The data of a record, written with the methods of DataOutputStream and reused between records
+     */
+    static class Record extends DataOutputStream {
+        Record() {
+            super(new Buffer());
+        }
+
+        /**
+         * Start a new record
+         * @return this record
+         */
+        Record clear() {
+            ((Buffer) out).reset();
+            written = 0;
+            return this;
+        }
+
+        /**
+         * A string that can be null and has no length limit
+         */
+        void writeString(String value) throws IOException {
+            if (value == null) {
+                writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            write(bytes);
+        }
+
+        byte[] bytes() {
+            return ((Buffer) out).bytes();
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /**
+     * The records in the order of their keys
+     */
+    abstract static class Cursor {
+        private final Input input = new Input();
+        private final DataInputStream record = new DataInputStream(input);
+        long key;
+
+        /**
+         * Move to the next record
+         * @return false after the last record
+         */
+        abstract boolean next();
+
+        /**
+         * @return the data of the current record
+         */
+        DataInputStream record() {
+            return record;
+        }
+
+        void set(long key, byte[] data, int offset, int length) {
+            this.key = key;
+            input.set(data, offset, length);
+        }
+
+        static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class Input extends ByteArrayInputStream {
+        Input() {
+            super(new byte[0]);
+        }
+
+        void set(byte[] data, int offset, int length) {
+            buf = data;
+            pos = offset;
+            count = offset + length;
+            mark = offset;
+        }
+    }
+
+    private class MemoryCursor extends Cursor {
+        private final int[] order;
+        private int position = 0;
+
+        MemoryCursor(int[] order) {
+            this.order = order;
+        }
+
+        @Override
+        boolean next() {
+            if (position == order.length) {
+                return false;
+            }
+            int index = order[position++];
+            set(keys[index], data, offsets[index], offsets[index + 1] - offsets[index]);
+            return true;
+        }
+    }
+
+    /**
+     * The head record of a run
+     */
+    private static class Run {
+        final int index;
+        final DataInputStream in;
+        long key;
+        byte[] data = new byte[64];
+        int length;
+
+        Run(int index, DataInputStream in) {
+            this.index = index;
+            this.in = in;
+        }
+
+        boolean read() throws IOException {
+            try {
+                key = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            length = in.readInt();
+            if (length > data.length) {
+                data = new byte[Math.max(length, data.length * 2)];
+            }
+            in.readFully(data, 0, length);
+            return true;
+        }
+    }
+
+    private class MergeCursor extends Cursor {
+        private final PriorityQueue<Run> heads = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Run>() {
+            @Override
+            public int compare(Run a, Run b) {
+                int c = Long.compare(a.key, b.key);
+                // the earlier run has the records that were added first
+                return c != 0 ? c : Integer.compare(a.index, b.index);
+            }
+        });
+        private Run current;
+
+        MergeCursor() throws IOException {
+            for (int i = 0; i < runs.size(); i++) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)), runBufferSize));
+                open.add(in);
+                Run run = new Run(i, in);
+                if (run.read()) {
+                    heads.add(run);
+                }
+            }
+        }
+
+        @Override
+        boolean next() {
+            try {
+                if (current != null && current.read()) {
+                    heads.add(current);
+                }
+                current = heads.poll();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read a run of " + name, e);
+            }
+            if (current == null) {
+                return false;
+            }
+            set(current.key, current.data, 0, current.length);
+            return true;
+        }
+    }
+}
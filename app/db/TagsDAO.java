@@ -132,6 +132,7 @@ public class TagsDAO {
             findDocument.replace(Constants.Tags.TAGS_FIELD, tagsdoc);
             db.plotTagsCol.replaceOne(document, findDocument);
         }
+        ListingCache.evictTag(tag);
     }
 
     public static void removeTag(int artifactId, String tagname){
@@ -159,6 +160,7 @@ public class TagsDAO {
             tagsDoc.remove(tagname);
             findDocument.replace(Constants.Tags.TAGS_FIELD, tagsDoc);
             db.plotTagsCol.replaceOne(document, findDocument);
+            ListingCache.evictTag(tagname);
             return;
         }
 
@@ -0,0 +1,267 @@
+package db;
+
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.types.Binary;
+import play.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The positions of each point of a time series over all the frames, so the trajectory of a point is read
+ * without reading the frames. The frames are transposed through a temporary file that holds the positions
+ * point after point, so the memory used doesn't grow with the size of the time series.
+ * <p>
+ * The points are stored in blocks of about blockBytes, each block has the sorted keys of its points and
+ * float32 little endian x, y, z of each point in each frame, point after point. A point that is not in a
+ * frame has NaN positions in that frame.
+ * <p>
+ * Each build writes its blocks under a new generation, and then a marker that names the generation of the
+ * complete trajectories. The blocks are read only for the generation of the marker, so a build that is not
+ * finished or that failed is never read.
+ */
+public class Trajectories {
+    private static final int blockBytes = 4 * 1024 * 1024;
+    // the temporary file is mapped in segments of about this size
+    private static final long segmentBytes = 1L << 30;
+    // the block number of the marker
+    private static final int MARKER = -1;
+
+    // time series that are waiting for their trajectories to be built
+    private static final Set<Integer> pending = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "trajectory-builder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Transpose and store the frames of a time series, replacing the old trajectories once the new ones are
+     * stored
+     * @param tid artifact id
+     * @param frames number of frames, the files of the time series have the ids 0 to frames - 1
+     * @throws IOException if the temporary file cannot be written
+     */
+    public static void build(int tid, int frames) throws IOException {
+        long t0 = System.currentTimeMillis();
+        MongoConnection con = MongoConnection.getInstance();
+        if (frames == 0) {
+            delete(tid);
+            return;
+        }
+        long generation = System.currentTimeMillis();
+
+        int pointBytes = frames * 12;
+        int pointsPerSegment = (int) Math.max(1, segmentBytes / pointBytes);
+        File file = File.createTempFile("pviz-trajectories", ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            // the index of each point in the temporary file, in the order they are first seen
+            Map<Integer, Integer> index = new HashMap<>();
+            List<MappedByteBuffer> segments = new ArrayList<>();
+            for (int n = 0; n < frames; n++) {
+                FramePoints points = FramePoints.read(con.filesCol.find(new Document(Constants.Artifact.ID_FIELD, n)
+                        .append(Constants.File.TIME_SERIES_ID_FIELD, tid)));
+                for (int i = 0; i < points.size(); i++) {
+                    Integer p = index.get(points.key(i));
+                    boolean seen = p != null;
+                    if (!seen) {
+                        p = index.size();
+                        index.put(points.key(i), p);
+                    }
+                    ByteBuffer segment = segment(channel, segments, p / pointsPerSegment, pointsPerSegment, pointBytes);
+                    if (!seen) {
+                        // the point is not in the frames it is not written for
+                        int row = (p % pointsPerSegment) * pointBytes;
+                        for (int f = 0; f < frames * 3; f++) {
+                            segment.putFloat(row + f * 4, Float.NaN);
+                        }
+                    }
+                    int offset = (p % pointsPerSegment) * pointBytes + n * 12;
+                    for (int a = 0; a < 3; a++) {
+                        segment.putFloat(offset + a * 4, (float) points.position(i, a));
+                    }
+                }
+            }
+
+            int[] keys = new int[index.size()];
+            int k = 0;
+            for (Integer key : index.keySet()) {
+                keys[k++] = key;
+            }
+            Arrays.sort(keys);
+            int pointsPerBlock = Math.max(1, blockBytes / pointBytes);
+            int blocks = 0;
+            for (int start = 0; start < keys.length; start += pointsPerBlock) {
+                int end = Math.min(keys.length, start + pointsPerBlock);
+                ByteBuffer data = ByteBuffer.allocate((end - start) * pointBytes).order(ByteOrder.LITTLE_ENDIAN);
+                List<Integer> blockKeys = new ArrayList<>();
+                for (int j = start; j < end; j++) {
+                    int p = index.get(keys[j]);
+                    ByteBuffer segment = segment(channel, segments, p / pointsPerSegment, pointsPerSegment, pointBytes);
+                    int offset = (p % pointsPerSegment) * pointBytes;
+                    for (int f = 0; f < frames * 3; f++) {
+                        data.putFloat(segment.getFloat(offset + f * 4));
+                    }
+                    blockKeys.add(keys[j]);
+                }
+                con.trajectoriesCol.insertOne(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                        .append(Constants.Trajectory.GENERATION, generation).append(Constants.Trajectory.BLOCK, blocks++)
+                        .append(Constants.Trajectory.KEYS, blockKeys)
+                        .append(Constants.Trajectory.FRAMES, frames).append(Constants.Trajectory.DATA, data.array()));
+            }
+            // the newest build wins, the blocks of the older ones are removed
+            Document marker = new Document(Constants.File.TIME_SERIES_ID_FIELD, tid).append(Constants.Trajectory.BLOCK, MARKER);
+            con.trajectoriesCol.updateOne(marker, new Document("$max", new Document(Constants.Trajectory.GENERATION, generation)),
+                    new UpdateOptions().upsert(true));
+            Document blocksOf = new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                    .append(Constants.Trajectory.BLOCK, new Document("$ne", MARKER));
+            if (generation(tid) == generation) {
+                con.trajectoriesCol.deleteMany(blocksOf.append("$or", Arrays.asList(
+                        new Document(Constants.Trajectory.GENERATION, new Document("$lt", generation)),
+                        new Document(Constants.Trajectory.GENERATION, new Document("$exists", false)))));
+            } else {
+                con.trajectoriesCol.deleteMany(blocksOf.append(Constants.Trajectory.GENERATION, generation));
+            }
+            Logger.info("Stored the trajectories of " + keys.length + " points in " + blocks + " blocks for tid: " + tid
+                    + " in " + (System.currentTimeMillis() - t0) + " ms");
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Trajectories of some points as JSON, {"frames": n, "points": {"key": [x0, y0, z0, x1, ...]}} with null
+     * for the frames a point is not in. If the time series doesn't have trajectories yet, they are built in
+     * the background and null is returned.
+     * @param tid artifact id
+     * @param keys keys of the points
+     * @param frames number of frames of the time series
+     * @return the JSON or null
+     */
+    public static String get(int tid, int[] keys, int frames) {
+        MongoConnection con = MongoConnection.getInstance();
+        Long generation = generation(tid);
+        if (generation == null) {
+            if (frames > 0) {
+                schedule(tid, frames);
+            }
+            return null;
+        }
+        keys = keys.clone();
+        Arrays.sort(keys);
+        List<Integer> wanted = new ArrayList<>();
+        for (int key : keys) {
+            wanted.add(key);
+        }
+        StringBuilder out = new StringBuilder();
+        out.append("{\"frames\":").append(frames).append(",\"points\":{");
+        boolean first = true;
+        for (Document d : con.trajectoriesCol.find(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Trajectory.KEYS, new Document("$in", wanted))
+                .append(Constants.Trajectory.GENERATION, generation))) {
+            List<?> blockKeys = (List<?>) d.get(Constants.Trajectory.KEYS);
+            int blockFrames = d.getInteger(Constants.Trajectory.FRAMES);
+            FloatBuffer data = ByteBuffer.wrap(((Binary) d.get(Constants.Trajectory.DATA)).getData())
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            for (int j = 0; j < blockKeys.size(); j++) {
+                int key = ((Number) blockKeys.get(j)).intValue();
+                if (Arrays.binarySearch(keys, key) < 0) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append('"').append(key).append("\":[");
+                for (int i = 0; i < blockFrames * 3; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    float v = data.get(j * blockFrames * 3 + i);
+                    if (Float.isNaN(v)) {
+                        out.append("null");
+                    } else {
+                        out.append(v);
+                    }
+                }
+                out.append(']');
+            }
+        }
+        return out.append("}}").toString();
+    }
+
+    /**
+     * Delete the trajectories of a time series
+     * @param tid artifact id
+     */
+    public static void delete(int tid) {
+        MongoConnection con = MongoConnection.getInstance();
+        con.trajectoriesCol.deleteMany(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid));
+    }
+
+    /**
+     * @return the generation of the complete trajectories of a time series, null if there are none
+     */
+    private static Long generation(int tid) {
+        Document marker = MongoConnection.getInstance().trajectoriesCol.find(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Trajectory.BLOCK, MARKER)).first();
+        return marker != null ? marker.getLong(Constants.Trajectory.GENERATION) : null;
+    }
+
+    private static ByteBuffer segment(FileChannel channel, List<MappedByteBuffer> segments, int s,
+                                      int pointsPerSegment, int pointBytes) throws IOException {
+        while (segments.size() <= s) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(s);
+        if (segment == null) {
+            long size = (long) pointsPerSegment * pointBytes;
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, s * size, size);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.set(s, segment);
+        }
+        return segment;
+    }
+
+    private static void schedule(final int tid, final int frames) {
+        if (!pending.add(tid)) {
+            return;
+        }
+        builder.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(tid, frames);
+                } catch (Exception e) {
+                    Logger.error("Failed to store trajectories for tid: " + tid, e);
+                } finally {
+                    pending.remove(tid);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,322 @@
+package db;
+
+import com.mongodb.util.JSON;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.bson.Document;
+import play.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload sessions for large files sent in numbered parts. All the parts have the same size except the
+ * last one, each part is written at its offset in a single file, so the parts can arrive in any order
+ * and a failed part can be sent again. When all the parts are received the file is handed to the
+ * ingestion job as it is, it is moved and not copied.
+ */
+public class UploadDAO {
+    /**
+     * Largest part accepted, the body of a part request is limited to this size
+     */
+    public static final int MAX_PART_SIZE = 64 * 1024 * 1024;
+
+    // keeps the list of parts in the session document small
+    private static final int MAX_PARTS = 10000;
+
+    private static final File uploadDir;
+    private static final long expireAfter;
+
+    static {
+        Config conf = ConfigFactory.load();
+        uploadDir = conf.hasPath(Constants.Upload.DIR) ? new File(conf.getString(Constants.Upload.DIR)) :
+                new File(System.getProperty("java.io.tmpdir"), "pviz-uploads");
+        expireAfter = conf.hasPath(Constants.Upload.EXPIRE_AFTER) ?
+                conf.getDuration(Constants.Upload.EXPIRE_AFTER, TimeUnit.MILLISECONDS) : TimeUnit.HOURS.toMillis(24);
+    }
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "upload-sweeper");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Start an upload session
+     * @param uploader the uploader
+     * @param fileName name of the file
+     * @param description description of the file
+     * @param group group of the artifact
+     * @param precision precision of the positions, may be null
+     * @param size size of the file in bytes
+     * @param partSize size of the parts in bytes
+     * @return the session as JSON
+     * @throws Exception if the sizes are not valid or the file cannot be created
+     */
+    public static String create(String uploader, String fileName, String description, String group,
+                                String precision, long size, int partSize) throws Exception {
+        if (size <= 0) {
+            throw new Exception("Empty file: " + fileName);
+        }
+        if (partSize <= 0 || partSize > MAX_PART_SIZE) {
+            throw new Exception("The part size should be between 1 and " + MAX_PART_SIZE + " bytes");
+        }
+        if ((size + partSize - 1) / partSize > MAX_PARTS) {
+            throw new Exception("Too many parts for file: " + fileName);
+        }
+        String id = UUID.randomUUID().toString();
+        if (!uploadDir.isDirectory() && !uploadDir.mkdirs()) {
+            throw new IOException("Failed to create upload directory " + uploadDir.getAbsolutePath());
+        }
+        try (RandomAccessFile file = new RandomAccessFile(sessionFile(id), "rw")) {
+            file.setLength(size);
+        }
+
+        MongoConnection con = MongoConnection.getInstance();
+        Document session = new Document(Constants.Upload.ID_FIELD, id)
+                .append(Constants.Upload.USER, uploader)
+                .append(Constants.Upload.FILE_NAME_FIELD, fileName)
+                .append(Constants.Upload.DESCRIPTION, description)
+                .append(Constants.Upload.GROUP, group)
+                .append(Constants.Upload.PRECISION, precision)
+                .append(Constants.Upload.SIZE, size)
+                .append(Constants.Upload.PART_SIZE, partSize)
+                .append(Constants.Upload.PARTS, new ArrayList<Integer>())
+                .append(Constants.Upload.STATUS, Constants.UploadStatus.UPLOADING)
+                .append(Constants.Upload.CREATED, new Date())
+                .append(Constants.Upload.UPDATED, new Date());
+        con.uploadsCol.insertOne(session);
+        Logger.info(String.format("User %s started uploading %s in %d parts", uploader, fileName, partCount(session)));
+        return toJson(session);
+    }
+
+    /**
+     * Get an upload session, the client resumes an upload by sending the missing parts
+     * @param id session id
+     * @param uploader the uploader
+     * @return the session with the received and the missing parts as JSON, null if there is no such session
+     */
+    public static String get(String id, String uploader) {
+        Document session = find(id, uploader);
+        return session != null ? toJson(session) : null;
+    }
+
+    /**
+     * Write a part of the file, a part that was already received is overwritten
+     * @param id session id
+     * @param uploader the uploader
+     * @param part number of the part, starting from 0
+     * @param data file with the data of the part
+     * @return false if there is no such session
+     * @throws Exception if the part number or the size of the part is not valid
+     */
+    public static boolean writePart(String id, String uploader, int part, File data) throws Exception {
+        Document session = find(id, uploader);
+        if (session == null) {
+            return false;
+        }
+        if (Constants.UploadStatus.COMPLETING.equals(session.getString(Constants.Upload.STATUS))) {
+            throw new Exception("The upload is being completed");
+        }
+        long size = session.getLong(Constants.Upload.SIZE);
+        int partSize = session.getInteger(Constants.Upload.PART_SIZE);
+        int parts = partCount(session);
+        if (part < 0 || part >= parts) {
+            throw new Exception("Part " + part + " is not between 0 and " + (parts - 1));
+        }
+        long offset = (long) part * partSize;
+        long expected = Math.min(partSize, size - offset);
+        if (data.length() != expected) {
+            throw new Exception("Part " + part + " should have " + expected + " bytes, received " + data.length());
+        }
+
+        try (FileChannel in = new FileInputStream(data).getChannel();
+             FileChannel out = new RandomAccessFile(sessionFile(id), "rw").getChannel()) {
+            long written = 0;
+            while (written < expected) {
+                written += out.transferFrom(in, offset + written, expected - written);
+            }
+        }
+        // the part is recorded only after it is written, so a failed write is sent again
+        MongoConnection con = MongoConnection.getInstance();
+        con.uploadsCol.updateOne(new Document(Constants.Upload.ID_FIELD, id),
+                new Document("$addToSet", new Document(Constants.Upload.PARTS, part))
+                        .append("$set", new Document(Constants.Upload.UPDATED, new Date())));
+        return true;
+    }
+
+    /**
+     * Finish an upload session and start the ingestion of the file. The session is removed only once the
+     * ingestion job has the file, if the job cannot be started the session stays and the upload can be
+     * completed again.
+     * @param id session id
+     * @param uploader the uploader
+     * @return false if there is no such session
+     * @throws Exception if parts are missing, the file format is not supported or too many uploads are waiting
+     */
+    public static boolean complete(String id, String uploader) throws Exception {
+        Document session = find(id, uploader);
+        if (session == null) {
+            return false;
+        }
+        List<Integer> missing = missingParts(session);
+        if (!missing.isEmpty()) {
+            throw new Exception("Missing parts " + missing);
+        }
+        // only one request gets to hand the file over
+        MongoConnection con = MongoConnection.getInstance();
+        Document query = new Document(Constants.Upload.ID_FIELD, id).append(Constants.Upload.USER, uploader);
+        if (con.uploadsCol.findOneAndUpdate(new Document(query).append(Constants.Upload.STATUS,
+                        new Document("$ne", Constants.UploadStatus.COMPLETING)),
+                new Document("$set", new Document(Constants.Upload.STATUS, Constants.UploadStatus.COMPLETING)
+                        .append(Constants.Upload.UPDATED, new Date()))) == null) {
+            throw new Exception("The upload is being completed");
+        }
+        String fileName = session.getString(Constants.Upload.FILE_NAME_FIELD);
+        try {
+            // the file is moved to the ingestion job, or left in place if the job is not started
+            ArtifactDAO.getInstance().insertUpload(fileName, session.getString(Constants.Upload.DESCRIPTION),
+                    uploader, sessionFile(id), session.getString(Constants.Upload.GROUP),
+                    session.getString(Constants.Upload.PRECISION));
+        } catch (Exception e) {
+            con.uploadsCol.updateOne(query, new Document("$set",
+                    new Document(Constants.Upload.STATUS, Constants.UploadStatus.UPLOADING)));
+            throw e;
+        }
+        con.uploadsCol.deleteOne(query);
+        Logger.info(String.format("User %s uploaded a new result of name %s", uploader, fileName));
+        return true;
+    }
+
+    /**
+     * Abandon an upload session
+     * @param id session id
+     * @param uploader the uploader
+     * @return false if there is no such session
+     */
+    public static boolean delete(String id, String uploader) {
+        MongoConnection con = MongoConnection.getInstance();
+        Document session = con.uploadsCol.findOneAndDelete(new Document(Constants.Upload.ID_FIELD, id)
+                .append(Constants.Upload.USER, uploader));
+        if (session == null) {
+            return false;
+        }
+        deleteFile(sessionFile(id));
+        return true;
+    }
+
+    /**
+     * Remove the abandoned sessions every hour, and the upload files left without a session
+     */
+    public static void startSweeper() {
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (Exception e) {
+                    Logger.error("Failed to remove abandoned uploads", e);
+                }
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Remove the sessions that didn't receive a part for expireAfter, with their files
+     * @return the number of sessions removed
+     */
+    public static int sweep() {
+        MongoConnection con = MongoConnection.getInstance();
+        Date expired = new Date(System.currentTimeMillis() - expireAfter);
+        List<Document> stale = new ArrayList<>();
+        stale.add(new Document(Constants.Upload.UPDATED, new Document("$lt", expired)));
+        // sessions started before the last part time was kept
+        stale.add(new Document(Constants.Upload.UPDATED, new Document("$exists", false))
+                .append(Constants.Upload.CREATED, new Document("$lt", expired)));
+        int removed = 0;
+        Set<String> live = new HashSet<>();
+        for (Document session : con.uploadsCol.find(new Document()).projection(new Document(Constants.Upload.ID_FIELD, 1))) {
+            live.add(session.getString(Constants.Upload.ID_FIELD));
+        }
+        Document session;
+        while ((session = con.uploadsCol.findOneAndDelete(new Document("$or", stale))) != null) {
+            String id = session.getString(Constants.Upload.ID_FIELD);
+            live.remove(id);
+            deleteFile(sessionFile(id));
+            removed++;
+        }
+        // files of sessions that are gone, written before their session was inserted or after it was removed
+        File[] files = uploadDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(".upload") && !live.contains(name.substring(0, name.length() - ".upload".length()))
+                        && file.lastModified() < expired.getTime()) {
+                    deleteFile(file);
+                }
+            }
+        }
+        if (removed > 0) {
+            Logger.info("Removed " + removed + " abandoned uploads");
+        }
+        return removed;
+    }
+
+    private static Document find(String id, String uploader) {
+        MongoConnection con = MongoConnection.getInstance();
+        return con.uploadsCol.find(new Document(Constants.Upload.ID_FIELD, id)
+                .append(Constants.Upload.USER, uploader)).first();
+    }
+
+    private static int partCount(Document session) {
+        long size = session.getLong(Constants.Upload.SIZE);
+        int partSize = session.getInteger(Constants.Upload.PART_SIZE);
+        return (int) ((size + partSize - 1) / partSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Integer> missingParts(Document session) {
+        Set<Integer> received = new HashSet<>((List<Integer>) session.get(Constants.Upload.PARTS));
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < partCount(session); i++) {
+            if (!received.contains(i)) {
+                missing.add(i);
+            }
+        }
+        return missing;
+    }
+
+    private static String toJson(Document session) {
+        Document json = new Document(session);
+        json.remove("_id");
+        json.append("missing", missingParts(session));
+        return JSON.serialize(json);
+    }
+
+    private static File sessionFile(String id) {
+        // the id is checked against the sessions collection before it is used as a file name
+        return new File(uploadDir, id + ".upload");
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Logger.warn("Failed to delete upload " + file.getAbsolutePath());
+        }
+    }
+}
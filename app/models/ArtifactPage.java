@@ -0,0 +1,24 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of a listing of artifacts
+ */
+public class ArtifactPage {
+    public List<TimeSeries> items = new ArrayList<TimeSeries>();
+
+    // number of artifacts in the whole listing
+    public long count;
+
+    public String sort;
+
+    public int size;
+
+    // the cursor of the next page, null on the last page
+    public String next;
+
+    // the cursor of this page, null on the first page
+    public String cursor;
+}
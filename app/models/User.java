@@ -20,6 +20,7 @@ package models;
 
 import models.utils.AppException;
 import models.utils.Hash;
+import models.utils.PrincipalCache;
 import play.data.format.Formats;
 import play.data.validation.Constraints;
 import play.db.ebean.Model;
@@ -92,4 +93,24 @@ public class User extends Model {
         return u;
     }
 
+    // the signed in users are cached by email, a change is seen by the next request
+
+    @Override
+    public void save() {
+        super.save();
+        PrincipalCache.invalidate(email);
+    }
+
+    @Override
+    public void update() {
+        super.update();
+        PrincipalCache.invalidate(email);
+    }
+
+    @Override
+    public void delete() {
+        super.delete();
+        PrincipalCache.invalidate(email);
+    }
+
 }
@@ -0,0 +1,52 @@
+package models.formats;
+
+import com.opencsv.CSVReader;
+import models.xml.PVizPoint;
+import models.xml.PlotHandler;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Comma separated files with the same columns as {@link TextFormat}. A header line is allowed.
+ */
+public class CsvFormat implements PlotFormat {
+    @Override
+    public String getName() {
+        return "csv";
+    }
+
+    @Override
+    public boolean accepts(byte[] header, int length) {
+        List<String> lines = TextFormat.lines(header, length);
+        if (lines.isEmpty() || !lines.get(0).contains(",")) {
+            return false;
+        }
+        for (String line : lines) {
+            if (TextFormat.toPoint(line.split(","), 0) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void read(InputStream file, PlotHandler handler) throws Exception {
+        try (CSVReader reader = new CSVReader(new InputStreamReader(file, StandardCharsets.UTF_8))) {
+            String[] line;
+            int i = 0;
+            while ((line = reader.readNext()) != null) {
+                if (line.length > 0) {
+                    line[0] = line[0].replace("\uFEFF", "");
+                }
+                PVizPoint point = TextFormat.toPoint(line, i);
+                if (point != null) {
+                    handler.point(point);
+                    i++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package models.formats;
+
+import models.xml.PlotHandler;
+
+import java.io.InputStream;
+
+/**
+ * A file format that can be uploaded as a plot. Formats are registered in {@link PlotFormats}
+ * and picked by looking at the first few KB of the upload only.
+ */
+public interface PlotFormat {
+    /**
+     * Name of the format
+     * @return name
+     */
+    String getName();
+
+    /**
+     * Check weather the file looks like this format
+     * @param header the beginning of the file, at most {@link PlotFormats#HEADER_SIZE} bytes
+     * @param length number of valid bytes in the header
+     * @return true if this format can read the file
+     */
+    boolean accepts(byte[] header, int length);
+
+    /**
+     * Read the whole file and pass the clusters, points and edges to the handler
+     * @param file the file, positioned at the beginning
+     * @param handler handler
+     * @throws Exception if the file cannot be read
+     */
+    void read(InputStream file, PlotHandler handler) throws Exception;
+}
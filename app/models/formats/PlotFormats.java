@@ -0,0 +1,56 @@
+package models.formats;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of the supported plot formats
+ */
+public class PlotFormats {
+    /** Number of bytes looked at to detect the format */
+    public static final int HEADER_SIZE = 4096;
+
+    private static final List<PlotFormat> formats = new CopyOnWriteArrayList<PlotFormat>();
+
+    static {
+        register(new PvizFormat());
+        register(new CsvFormat());
+        register(new TextFormat());
+    }
+
+    /**
+     * Register a new format. Formats are tried in the order they are registered.
+     * @param format format
+     */
+    public static void register(PlotFormat format) {
+        formats.add(format);
+    }
+
+    /**
+     * Detect the format from the beginning of the stream. The stream is reset, so it can be
+     * passed to {@link PlotFormat#read(InputStream, models.xml.PlotHandler)} afterwards.
+     * @param file the file
+     * @return the format or null if no format accepts the file
+     * @throws IOException if the stream cannot be read
+     */
+    public static PlotFormat detect(BufferedInputStream file) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        file.mark(HEADER_SIZE);
+        int length = 0;
+        int read;
+        while (length < HEADER_SIZE && (read = file.read(header, length, HEADER_SIZE - length)) != -1) {
+            length += read;
+        }
+        file.reset();
+
+        for (PlotFormat format : formats) {
+            if (format.accepts(header, length)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
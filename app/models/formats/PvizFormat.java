@@ -0,0 +1,34 @@
+package models.formats;
+
+import models.xml.PlotHandler;
+import models.xml.PlotvizReader;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The XML pviz format
+ */
+public class PvizFormat implements PlotFormat {
+    @Override
+    public String getName() {
+        return "pviz";
+    }
+
+    @Override
+    public boolean accepts(byte[] header, int length) {
+        String text = new String(header, 0, length, StandardCharsets.UTF_8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\uFEFF' && !Character.isWhitespace(c)) {
+                return c == '<';
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void read(InputStream file, PlotHandler handler) throws Exception {
+        PlotvizReader.read(file, handler);
+    }
+}
@@ -0,0 +1,97 @@
+package models.formats;
+
+import models.xml.Location;
+import models.xml.PVizPoint;
+import models.xml.PlotHandler;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Whitespace separated text files. Lines can have 3 columns (x y z), 5 columns (id x y z cluster)
+ * where the cluster is ignored, or 6 columns (id x y z cluster label).
+ */
+public class TextFormat implements PlotFormat {
+    @Override
+    public String getName() {
+        return "text";
+    }
+
+    @Override
+    public boolean accepts(byte[] header, int length) {
+        for (String line : lines(header, length)) {
+            if (line.contains(",")) {
+                return false;
+            }
+            if (toPoint(line.split("\\s+"), 0) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void read(InputStream file, PlotHandler handler) throws Exception {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            int i = 0;
+            while ((line = br.readLine()) != null) {
+                PVizPoint point = toPoint(line.trim().split("\\s+"), i);
+                if (point != null) {
+                    handler.point(point);
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert the columns of a line to a point
+     * @param split columns
+     * @param key the key of the point
+     * @return the point or null if the line is not a point
+     */
+    static PVizPoint toPoint(String[] split, int key) {
+        try {
+            if (split.length == 5) {
+                return new PVizPoint(key, 1, "None", location(split[1], split[2], split[3]));
+            } else if (split.length == 3) {
+                return new PVizPoint(key, 1, "None", location(split[0], split[1], split[2]));
+            } else if (split.length == 6) {
+                return new PVizPoint(key, Integer.valueOf(split[4].trim()), split[5].trim(), location(split[1], split[2], split[3]));
+            }
+        } catch (NumberFormatException e) {
+            // not a point, may be a header line
+        }
+        return null;
+    }
+
+    private static Location location(String x, String y, String z) {
+        x = x.trim();
+        y = y.trim();
+        z = z.trim();
+        Double.parseDouble(x);
+        Double.parseDouble(y);
+        Double.parseDouble(z);
+        return new Location(x, y, z);
+    }
+
+    /**
+     * The non empty lines of the header
+     */
+    static List<String> lines(byte[] header, int length) {
+        String text = new String(header, 0, length, StandardCharsets.UTF_8);
+        List<String> lines = new ArrayList<String>();
+        for (String line : text.split("\r?\n")) {
+            line = line.replace("\uFEFF", "").trim();
+            if (line.length() > 0) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+}
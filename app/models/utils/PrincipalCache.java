@@ -0,0 +1,119 @@
+package models.utils;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import db.Constants;
+import models.User;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the signed in users by email, so a request doesn't query the user table. The least recently
+ * used users are evicted beyond maxUsers, and a user is trusted for ttl at most. Emails without a user are
+ * not cached, so a user is found as soon as it registers. A user saved, updated or deleted on this server
+ * is forgotten right away, a change made by another server is seen after ttl.
+ */
+public class PrincipalCache {
+    private static final int maxUsers;
+    private static final long ttl;
+
+    static {
+        Config conf = ConfigFactory.load();
+        maxUsers = conf.hasPath(Constants.Cache.PRINCIPALS_MAX_USERS) ? conf.getInt(Constants.Cache.PRINCIPALS_MAX_USERS) : 10000;
+        ttl = conf.hasPath(Constants.Cache.PRINCIPALS_TTL) ? conf.getDuration(Constants.Cache.PRINCIPALS_TTL, TimeUnit.MILLISECONDS) : 60000;
+    }
+
+    private static class Principal {
+        final User user;
+        final long expires;
+
+        Principal(User user, long expires) {
+            this.user = user;
+            this.expires = expires;
+        }
+    }
+
+    private static final Map<String, Principal> principals = new LinkedHashMap<String, Principal>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Principal> eldest) {
+            return size() > maxUsers;
+        }
+    };
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Where the users that are not cached are read from
+     */
+    interface Users {
+        User find(String email);
+    }
+
+    private static final Users table = new Users() {
+        @Override
+        public User find(String email) {
+            return User.findByEmail(email);
+        }
+    };
+
+    /**
+     * Get a user from the cache, or from the user table if it is not cached
+     * @param email email of the user
+     * @return the user, null if there is no user with the email
+     */
+    public static User get(String email) {
+        return get(email, table);
+    }
+
+    static User get(String email, Users users) {
+        if (maxUsers > 0) {
+            Principal principal;
+            synchronized (principals) {
+                principal = principals.get(email);
+            }
+            if (principal != null && principal.expires >= System.currentTimeMillis()) {
+                hits.incrementAndGet();
+                return principal.user;
+            }
+        }
+        misses.incrementAndGet();
+        User user = users.find(email);
+        if (user != null && maxUsers > 0) {
+            synchronized (principals) {
+                principals.put(email, new Principal(user, System.currentTimeMillis() + ttl));
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Forget a user, after it was saved, updated or deleted
+     * @param email email of the user
+     */
+    public static void invalidate(String email) {
+        synchronized (principals) {
+            principals.remove(email);
+        }
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of the lookups that were answered by the cache
+     */
+    public static double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total > 0 ? (double) h / total : 0;
+    }
+}
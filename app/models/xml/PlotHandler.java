@@ -0,0 +1,28 @@
+package models.xml;
+
+/**
+ * Receives the elements of a plot one at a time while it is being read, so that
+ * a plot never has to be held in memory as a whole.
+ */
+public interface PlotHandler {
+    /**
+     * Called for every cluster definition, before any of the points
+     * @param cluster the cluster
+     * @throws Exception if the cluster cannot be handled
+     */
+    void cluster(Cluster cluster) throws Exception;
+
+    /**
+     * Called for every point
+     * @param point the point
+     * @throws Exception if the point cannot be handled
+     */
+    void point(PVizPoint point) throws Exception;
+
+    /**
+     * Called for every edge
+     * @param edge the edge
+     * @throws Exception if the edge cannot be handled
+     */
+    void edge(Edge edge) throws Exception;
+}
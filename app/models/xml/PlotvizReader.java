@@ -0,0 +1,167 @@
+package models.xml;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single pass StAX reader for the pviz format. Unlike {@link XMLLoader} it never builds the
+ * {@link Plotviz} object graph, every cluster, point and edge is handed to a {@link PlotHandler}
+ * as soon as it is read.
+ */
+public class PlotvizReader {
+    private static final XMLInputFactory factory = createFactory();
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        f.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return f;
+    }
+
+    public static void read(InputStream file, PlotHandler handler) throws Exception {
+        XMLStreamReader reader = null;
+        try {
+            reader = factory.createXMLStreamReader(file);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (reader.getLocalName()) {
+                    case "cluster":
+                        handler.cluster(readCluster(reader));
+                        break;
+                    case "point":
+                        handler.point(readPoint(reader));
+                        break;
+                    case "edge":
+                        handler.edge(readEdge(reader));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new Exception("Failed to load file.", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignore) {
+                }
+            }
+        }
+    }
+
+    private static Cluster readCluster(XMLStreamReader reader) throws XMLStreamException {
+        Cluster cluster = new Cluster();
+        while (next(reader, "cluster")) {
+            switch (reader.getLocalName()) {
+                case "key":
+                    cluster.setKey(intValue(reader));
+                    break;
+                case "label":
+                    cluster.setLabel(reader.getElementText());
+                    break;
+                case "visible":
+                    cluster.setVisible(intValue(reader));
+                    break;
+                case "default":
+                    cluster.setDefaultValue(intValue(reader));
+                    break;
+                case "size":
+                    cluster.setSize(intValue(reader));
+                    break;
+                case "shape":
+                    cluster.setShape(reader.getElementText().trim());
+                    break;
+                case "color":
+                    Color color = new Color();
+                    color.setR(intAttribute(reader, "r"));
+                    color.setG(intAttribute(reader, "g"));
+                    color.setB(intAttribute(reader, "b"));
+                    color.setA(intAttribute(reader, "a"));
+                    cluster.setColor(color);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return cluster;
+    }
+
+    private static PVizPoint readPoint(XMLStreamReader reader) throws XMLStreamException {
+        PVizPoint point = new PVizPoint();
+        while (next(reader, "point")) {
+            switch (reader.getLocalName()) {
+                case "key":
+                    point.setKey(intValue(reader));
+                    break;
+                case "clusterkey":
+                    point.setClusterkey(intValue(reader));
+                    break;
+                case "label":
+                    point.setLabel(reader.getElementText());
+                    break;
+                case "location":
+                    point.setLocation(new Location(reader.getAttributeValue(null, "x"),
+                            reader.getAttributeValue(null, "y"), reader.getAttributeValue(null, "z")));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return point;
+    }
+
+    private static Edge readEdge(XMLStreamReader reader) throws XMLStreamException {
+        Edge edge = new Edge();
+        List<Vertex> vertices = new ArrayList<Vertex>();
+        while (next(reader, "edge")) {
+            switch (reader.getLocalName()) {
+                case "key":
+                    edge.setKey(intValue(reader));
+                    break;
+                case "vertex":
+                    Vertex vertex = new Vertex();
+                    vertex.setKey(intAttribute(reader, "key"));
+                    vertices.add(vertex);
+                    break;
+                default:
+                    break;
+            }
+        }
+        edge.setVertices(vertices);
+        return edge;
+    }
+
+    /**
+     * Move to the next start element inside the given element
+     * @return false once the end of the element is reached
+     */
+    private static boolean next(XMLStreamReader reader, String element) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            } else if (event == XMLStreamConstants.END_ELEMENT && element.equals(reader.getLocalName())) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static int intValue(XMLStreamReader reader) throws XMLStreamException {
+        return Integer.parseInt(reader.getElementText().trim());
+    }
+
+    private static int intAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value != null ? Integer.parseInt(value.trim()) : 0;
+    }
+}
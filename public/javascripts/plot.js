@@ -1615,6 +1615,7 @@ var SingleGraphControls = {
 }
 var timeSeriesControls = {
     MAX_PLOTS_STORED: 20,
+    MAX_FRAMES_PER_REQUEST: 100, // ArtifactDAO.MAX_FRAMES
     fileNames: {},
     resultSets: null,
     timeSeriesLength: null,
@@ -1631,6 +1632,7 @@ var timeSeriesControls = {
             hide_min_max: true,
             hide_from_to: true,
             onChange: function (data) {
+                playbackChannel.seek(data.from);
                 timeSeriesControls.updatePlot(data.from);
             }
         });
@@ -1666,6 +1668,7 @@ var timeSeriesControls = {
         $("#progress").css({display: "block"});
         intialSetup(artifact.settings, false);
         timeSeriesControls.initPlotData();
+        playbackChannel.open(id, pub);
         timeSeriesControls.generateTimeSeries(timeSeriesControls.resultSets);
         controlBox.setupGuiTimeSeries();
     },
@@ -1723,7 +1726,10 @@ var timeSeriesControls = {
     },
     initBufferAndLoad: function(){
         setTimeout(function () {
-            if (Object.keys(dataSets).length < timeSeriesControls.timeSeriesLength && Object.keys(dataSets).length < timeSeriesControls.MAX_PLOTS_STORED) {
+            if (playbackChannel.active() && !dataSets[0]) {
+                // the first frames are pushed by the server
+                timeSeriesControls.initBufferAndLoad();
+            } else if (!playbackChannel.active() && Object.keys(dataSets).length < timeSeriesControls.timeSeriesLength && Object.keys(dataSets).length < timeSeriesControls.MAX_PLOTS_STORED) {
                 if (timeSeriesControls.timeSeriesLength > timeSeriesControls.MAX_PLOTS_STORED) {
                     timeSeriesControls.loadPlotData(0, timeSeriesControls.MAX_PLOTS_STORED);
                 } else {
@@ -1754,7 +1760,9 @@ var timeSeriesControls = {
                 loadStartIndex = currentIndex - controlBox.loadSize;
             }
             threejsUtils.clearThreeJS(loadStartIndex, loadend);
-            timeSeriesControls.loadPlotData(loadStartIndex, loadend);
+            if (!playbackChannel.active()) {
+                timeSeriesControls.loadPlotData(loadStartIndex, loadend);
+            }
             if (timeSeriesControls.playStatus == playEnum.PAUSE && !timeSeriesControls.currentPlotUpdated) {
                 if (indx && indx != currentIndex) {
                     timeSeriesControls.updatePlot(currentIndex);
@@ -1894,32 +1902,116 @@ var timeSeriesControls = {
             // render();
             $("#plot-title").text(timeSeriesControls.fileNames[index]);
             //savePlotSettings(controlBox.settings);
+            playbackChannel.position(index);
             return true;
         } else {
             return false;
         }
     },
     loadPlotData: function(start, end){
-        for (var i = start; i < end; i++) {
-            // check weather we already have a value
-            if (particleSets[i] || timeSeriesControls.bufferRequestMade[i]) {
+        // the missing frames with consecutive file ids are asked for in one request
+        var runStart = -1;
+        for (var i = start; i <= end; i++) {
+            var missing = i < end && !particleSets[i] && !timeSeriesControls.bufferRequestMade[i];
+            if (missing && runStart >= 0 && i - runStart < timeSeriesControls.MAX_FRAMES_PER_REQUEST
+                && timeSeriesControls.resultSets[i].id == timeSeriesControls.resultSets[i - 1].id + 1) {
                 continue;
             }
-            if (!publicUrl) {
-                clusterUrl = "/resultssetall/" + timeSeriesControls.resultSets[i].tId + "/file/" + timeSeriesControls.resultSets[i].id;
-            } else {
-                clusterUrl = "/public/resultssetall/" + timeSeriesControls.resultSets[i].tId + "/file/" + timeSeriesControls.resultSets[i].id;
+            if (runStart >= 0) {
+                timeSeriesControls.loadFrameRange(runStart, i);
+                runStart = -1;
             }
+            if (missing) {
+                runStart = i;
+            }
+        }
+    },
+    loadFrameRange: function(start, end){
+        var tId = timeSeriesControls.resultSets[start].tId;
+        var from = timeSeriesControls.resultSets[start].id;
+        var framesUrl = (publicUrl ? "/public" : "") + "/resultssetall/" + tId + "/frames?from=" + from + "&to=" + (from + end - start);
+        for (var i = start; i < end; i++) {
             timeSeriesControls.bufferRequestMade[i] = true;
-            (function (i) {
-                $.getJSON(clusterUrl, function (data) {
-                    // convertDataToThreeJsFormat(data);
-                    dataSets[data.seq] = data;
-                }).fail(function () {
-                    timeSeriesControls.bufferRequestMade[i] = false;
-                });
-            })(i);
         }
+        var failed = function () {
+            for (var i = start; i < end; i++) {
+                timeSeriesControls.bufferRequestMade[i] = false;
+            }
+        };
+        var xhr = new XMLHttpRequest();
+        xhr.open("GET", framesUrl, true);
+        xhr.responseType = "arraybuffer";
+        xhr.onload = function () {
+            if (xhr.status != 200) {
+                failed();
+                return;
+            }
+            // each frame is the file id and the length of its JSON followed by the JSON
+            var view = new DataView(xhr.response);
+            var decoder = new TextDecoder("utf-8");
+            var offset = 0;
+            while (offset + 8 <= view.byteLength) {
+                var length = view.getInt32(offset + 4, true);
+                var data = JSON.parse(decoder.decode(new Uint8Array(xhr.response, offset + 8, length)));
+                dataSets[data.seq] = data;
+                offset += 8 + length;
+            }
+        };
+        xhr.onerror = failed;
+        xhr.send();
+    }
+}
+// frames pushed by the server over a web socket while the time series plays, see PlaybackSession
+var playbackChannel = {
+    socket: null,
+    generation: 0, // counts the subscribes and seeks, the frames sent before the last one are dropped
+    open: function(tid, pub){
+        if (!window.WebSocket) {
+            return;
+        }
+        var url = (location.protocol == "https:" ? "wss://" : "ws://") + location.host + (pub ? "/public" : "") + "/timeseries/" + tid + "/playback";
+        var socket = new WebSocket(url);
+        playbackChannel.socket = socket;
+        playbackChannel.generation = 0;
+        socket.onopen = function () {
+            playbackChannel.subscribe(parseInt($("#plot-slider").prop("value")) || 0);
+        };
+        socket.onmessage = function (event) {
+            var message = JSON.parse(event.data);
+            if (message.generation == playbackChannel.generation) {
+                dataSets[message.plot.seq] = message.plot;
+            }
+        };
+        // the frames are asked for over http again
+        socket.onclose = function () {
+            if (playbackChannel.socket === socket) {
+                playbackChannel.socket = null;
+            }
+        };
+    },
+    active: function(){
+        return playbackChannel.socket != null;
+    },
+    send: function(message){
+        var socket = playbackChannel.socket;
+        if (socket && socket.readyState == WebSocket.OPEN) {
+            socket.send(JSON.stringify(message));
+            return true;
+        }
+        return false;
+    },
+    subscribe: function(frame){
+        if (playbackChannel.send({type: "subscribe", frame: frame, speed: controlBox.delay, direction: 1, buffer: controlBox.loadSize})) {
+            playbackChannel.generation++;
+        }
+    },
+    seek: function(frame){
+        if (playbackChannel.send({type: "seek", frame: frame})) {
+            playbackChannel.generation++;
+        }
+    },
+    position: function(frame){
+        playbackChannel.send({type: "position", frame: frame});
     }
 }
 var edgeControls = {
@@ -3203,7 +3295,9 @@ var controlBox = {
         gui = new dat.GUI({autoPlace: false});
         var customContainer = document.getElementById('plot-controls');
         customContainer.appendChild(gui.domElement);
-        gui.add(controlBox, 'delay', 10.0, 2000.0, controlBox.delay).name("Play Delay(ms)");
+        gui.add(controlBox, 'delay', 10.0, 2000.0, controlBox.delay).name("Play Delay(ms)").onFinishChange(function () {
+            playbackChannel.subscribe(parseInt($("#plot-slider").prop("value")) || 0);
+        });
         gui.add(controlBox, 'pointsize', 0.001, 5.0, controlBox.pointsize).name("Point Size").onFinishChange(pointControls.changePointSize);
         gui.add(controlBox, 'glyphsize', 0.001, 5.0, controlBox.glyphsize).name("Glyph Size").onFinishChange(glyphControls.changeGlyphSize);
         gui.add(axisControls, 'axisLength', 0.001, 2.0, controlBox.glyphsize).name("Axis Length").onFinishChange(axisControls.changeAxis);
@@ -0,0 +1,37 @@
+package controllers;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ApplicationCacheTest {
+
+    @Test
+    public void eachRepresentationHasItsOwnETag() {
+        assertThat(Application.etag("h", false, false, null)).isEqualTo("\"h-j\"");
+        assertThat(Application.etag("h", false, false, 1)).isEqualTo("\"h-j-l1\"");
+        assertThat(Application.etag("h", true, false, null)).startsWith("\"h-b");
+        // the compressed bytes depend on how the file was compressed
+        assertThat(Application.etag("h", false, true, null)).isEqualTo("W/\"h-jz\"");
+    }
+
+    @Test
+    public void ifNoneMatchIsComparedWeakly() {
+        String strong = Application.etag("h", false, false, null);
+        String weak = Application.etag("h", false, true, null);
+        assertThat(Application.matches(null, strong)).isFalse();
+        assertThat(Application.matches(strong, strong)).isTrue();
+        assertThat(Application.matches(weak, weak)).isTrue();
+        assertThat(Application.matches("\"h-jz\"", weak)).isTrue();
+        assertThat(Application.matches("\"x\", W/\"h-j\"", strong)).isTrue();
+        assertThat(Application.matches("*", weak)).isTrue();
+        assertThat(Application.matches(weak, strong)).isFalse();
+        assertThat(Application.matches("\"h-j-l1\"", strong)).isFalse();
+    }
+
+    @Test
+    public void publicFilesAreRevalidated() {
+        assertThat(Application.cacheControl("public")).isEqualTo("public, no-cache");
+        assertThat(Application.cacheControl("private")).isEqualTo("private, max-age=31536000");
+    }
+}
@@ -0,0 +1,85 @@
+package db;
+
+import models.TimeSeries;
+import models.xml.Location;
+import models.xml.PVizPoint;
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AccessCacheTest {
+    private static final String USER = "access@test";
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void decisionsAreKeptForEachUserAndThePublic() {
+        int tid = TestMongo.nextId();
+        assertThat(AccessCache.get(tid, USER)).isNull();
+        AccessCache.put(tid, USER, true);
+        AccessCache.put(tid, null, false);
+        assertThat(AccessCache.get(tid, USER)).isTrue();
+        assertThat(AccessCache.get(tid, null)).isFalse();
+        assertThat(AccessCache.get(tid, "other@test")).isNull();
+        assertThat(AccessCache.get(tid + 1, USER)).isNull();
+
+        AccessCache.invalidate(tid);
+        assertThat(AccessCache.get(tid, USER)).isNull();
+        assertThat(AccessCache.get(tid, null)).isNull();
+    }
+
+    @Test
+    public void readsUseTheCachedDecision() {
+        int tid = insertArtifact();
+        ArtifactDAO dao = ArtifactDAO.getInstance();
+        long hits = AccessCache.getHits();
+        assertThat(dao.getFileHash(tid, 0, USER)).isEqualTo("hash");
+        assertThat(dao.getFileHash(tid, 0, USER)).isEqualTo("hash");
+        assertThat(AccessCache.getHits()).isGreaterThan(hits);
+
+        // the artifact is gone behind the back of the DAO, the decision stands until it is invalidated
+        MongoConnection.getInstance().artifactCol.deleteOne(new Document(Constants.Artifact.ID_FIELD, tid));
+        assertThat(dao.getFileHash(tid, 0, USER)).isEqualTo("hash");
+        AccessCache.invalidate(tid);
+        assertThat(dao.getFileHash(tid, 0, USER)).isNull();
+    }
+
+    @Test
+    public void updateMakesTheArtifactPublicRightAway() {
+        int tid = insertArtifact();
+        ArtifactDAO dao = ArtifactDAO.getInstance();
+        assertThat(dao.getFileHash(tid, 0, null)).isNull();
+
+        TimeSeries old = new TimeSeries();
+        old.id = tid;
+        old.uploaderId = USER;
+        TimeSeries updated = new TimeSeries();
+        updated.name = "access";
+        updated.description = "";
+        updated.pub = true;
+        dao.updateTimeSeries(old, updated);
+        assertThat(dao.getFileHash(tid, 0, null)).isEqualTo("hash");
+
+        updated.pub = false;
+        dao.updateTimeSeries(old, updated);
+        assertThat(dao.getFileHash(tid, 0, null)).isNull();
+        assertThat(dao.getFileHash(tid, 0, USER)).isEqualTo("hash");
+    }
+
+    private static int insertArtifact() {
+        int tid = TestMongo.nextId();
+        MongoConnection.getInstance().artifactCol.insertOne(new Document(Constants.Artifact.ID_FIELD, tid)
+                .append(Constants.Artifact.NAME_FIELD, "access").append(Constants.Artifact.USER, USER)
+                .append(Constants.Artifact.GROUP_FIELD, Constants.Group.DEFAULT_GROUP)
+                .append(Constants.Artifact.PUBLIC, false));
+        FileChunkWriter writer = new FileChunkWriter(0, "access", "", USER, tid, 0L, "access.txt", Constants.Precision.FLOAT);
+        writer.point(new PVizPoint(0, 0, "p", new Location("0", "0", "0")));
+        writer.close("hash");
+        return tid;
+    }
+}
@@ -0,0 +1,158 @@
+package db;
+
+import models.ArtifactPage;
+import models.TimeSeries;
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ArtifactPagingTest {
+    private static final int ARTIFACTS = 23;
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void datePagesAreNewestFirst() {
+        String user = "paging-date@test";
+        List<Document> artifacts = insertArtifacts(user);
+        sort(artifacts, Constants.Artifact.DATE_CREATION_FIELD, -1);
+        assertThat(readAll(user, Constants.Listing.SORT_DATE, 5)).isEqualTo(ids(artifacts));
+    }
+
+    @Test
+    public void namePagesAreFromAToZ() {
+        String user = "paging-name@test";
+        List<Document> artifacts = insertArtifacts(user);
+        sort(artifacts, Constants.Artifact.NAME_FIELD, 1);
+        assertThat(readAll(user, Constants.Listing.SORT_NAME, 4)).isEqualTo(ids(artifacts));
+    }
+
+    @Test
+    public void pagesAreNotShiftedByNewArtifacts() {
+        String user = "paging-insert@test";
+        List<Document> artifacts = insertArtifacts(user);
+        sort(artifacts, Constants.Artifact.DATE_CREATION_FIELD, -1);
+        Document filter = new Document(Constants.Artifact.USER, user);
+
+        ArtifactPage first = ArtifactDAO.readPage(filter, null, null, 10);
+        assertThat(first.sort).isEqualTo(Constants.Listing.SORT_DATE);
+        assertThat(first.cursor).isNull();
+        assertThat(first.count).isEqualTo((long) ARTIFACTS);
+        // an artifact newer than all the others comes before the cursor, the next page doesn't move
+        MongoConnection.getInstance().artifactCol.insertOne(artifact(user, TestMongo.nextId(), "new", "2030-01-01 00:00:00"));
+        ArtifactPage second = ArtifactDAO.readPage(filter, null, first.next, 10);
+        assertThat(second.cursor).isEqualTo(first.next);
+        assertThat(ids(second)).isEqualTo(ids(artifacts).subList(10, 20));
+    }
+
+    @Test
+    public void invalidCursorReadsTheFirstPage() {
+        String user = "paging-cursor@test";
+        List<Document> artifacts = insertArtifacts(user);
+        sort(artifacts, Constants.Artifact.DATE_CREATION_FIELD, -1);
+        ArtifactPage page = ArtifactDAO.readPage(new Document(Constants.Artifact.USER, user), null, "2016|x", 3);
+        assertThat(page.cursor).isNull();
+        assertThat(ids(page)).isEqualTo(ids(artifacts).subList(0, 3));
+    }
+
+    @Test
+    public void lastPageHasNoNext() {
+        String user = "paging-last@test";
+        insertArtifacts(user);
+        ArtifactPage page = ArtifactDAO.getInstance().timeSeriesList(user, null, null, ARTIFACTS);
+        assertThat(page.items.size()).isEqualTo(ARTIFACTS);
+        assertThat(page.next).isNull();
+        page = ArtifactDAO.getInstance().timeSeriesList(user, null, null, ARTIFACTS - 1);
+        assertThat(page.next).isNotNull();
+    }
+
+    @Test
+    public void namePagesHaveAnIndex() {
+        MongoConnection con = MongoConnection.getInstance();
+        IndexManager.ensureIndexes(con);
+        List<Object> keys = new ArrayList<>();
+        for (Document index : con.artifactCol.listIndexes()) {
+            keys.add(index.get("key"));
+        }
+        for (String owner : new String[]{Constants.Artifact.USER, Constants.Artifact.PUBLIC}) {
+            assertThat(keys).contains(new Document(owner, 1).append(Constants.Artifact.NAME_FIELD, 1)
+                    .append(Constants.Artifact.ID_FIELD, 1));
+            assertThat(keys).contains(new Document(owner, 1).append(Constants.Artifact.DATE_CREATION_FIELD, 1)
+                    .append(Constants.Artifact.ID_FIELD, 1));
+        }
+    }
+
+    /**
+     * Insert artifacts with repeated names and dates, so the pages break between equal values
+     */
+    private static List<Document> insertArtifacts(String user) {
+        List<Document> artifacts = new ArrayList<>();
+        for (int i = 0; i < ARTIFACTS; i++) {
+            String date = String.format("2016-03-%02d 10:00:00", 1 + i / 3);
+            artifacts.add(artifact(user, TestMongo.nextId(), "artifact " + (char) ('a' + i % 4), date));
+        }
+        MongoConnection.getInstance().artifactCol.insertMany(new ArrayList<>(artifacts));
+        return artifacts;
+    }
+
+    private static Document artifact(String user, int id, String name, String date) {
+        return new Document(Constants.Artifact.ID_FIELD, id).append(Constants.Artifact.NAME_FIELD, name)
+                .append(Constants.Artifact.USER, user).append(Constants.Artifact.DATE_CREATION_FIELD, date)
+                .append(Constants.Artifact.PUBLIC, false);
+    }
+
+    private static List<Integer> readAll(String user, String sort, int size) {
+        List<Integer> ids = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ArtifactPage page = ArtifactDAO.getInstance().timeSeriesList(user, sort, cursor, size);
+            assertThat(page.items.size()).isLessThanOrEqualTo(size);
+            assertThat(page.count).isEqualTo((long) ARTIFACTS);
+            ids.addAll(ids(page));
+            cursor = page.next;
+            pages++;
+        } while (cursor != null);
+        assertThat(pages).isEqualTo((ARTIFACTS + size - 1) / size);
+        return ids;
+    }
+
+    private static void sort(List<Document> artifacts, final String field, final int order) {
+        Collections.sort(artifacts, new Comparator<Document>() {
+            @Override
+            public int compare(Document a, Document b) {
+                int c = a.getString(field).compareTo(b.getString(field));
+                if (c == 0) {
+                    c = a.getInteger(Constants.Artifact.ID_FIELD).compareTo(b.getInteger(Constants.Artifact.ID_FIELD));
+                }
+                return c * order;
+            }
+        });
+    }
+
+    private static List<Integer> ids(List<Document> artifacts) {
+        List<Integer> ids = new ArrayList<>();
+        for (Document artifact : artifacts) {
+            ids.add(artifact.getInteger(Constants.Artifact.ID_FIELD));
+        }
+        return ids;
+    }
+
+    private static List<Integer> ids(ArtifactPage page) {
+        List<Integer> ids = new ArrayList<>();
+        for (TimeSeries timeSeries : page.items) {
+            ids.add(timeSeries.id);
+        }
+        return ids;
+    }
+}
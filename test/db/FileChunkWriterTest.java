@@ -0,0 +1,74 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import models.xml.Location;
+import models.xml.PVizPoint;
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class FileChunkWriterTest {
+    private static int pointsPerChunk;
+    private static int insertBatchSize;
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+        Config conf = ConfigFactory.load();
+        pointsPerChunk = conf.hasPath(Constants.Storage.PACKED_POINTS_PER_CHUNK) ?
+                conf.getInt(Constants.Storage.PACKED_POINTS_PER_CHUNK) : 250000;
+        insertBatchSize = Math.max(1, conf.hasPath(Constants.Storage.INSERT_BATCH_SIZE) ?
+                conf.getInt(Constants.Storage.INSERT_BATCH_SIZE) : 4);
+    }
+
+    @Test
+    public void chunksAreInsertedInBatches() {
+        int tid = TestMongo.nextId();
+        int chunks = insertBatchSize * 2 + 1;
+        int size = chunks * pointsPerChunk + pointsPerChunk / 2;
+        FileChunkWriter writer = new FileChunkWriter(0, "batches", "", "writer@test", tid, 0L, "batches.txt",
+                Constants.Precision.FIXED16);
+        for (int i = 0; i < size; i++) {
+            writer.point(new PVizPoint(i, i % 3, "p" + i, new Location(Integer.toString(i), "1.5", "-2")));
+            if ((i + 1) % pointsPerChunk == 0) {
+                // a full chunk waits until a batch of chunks can be inserted
+                int full = (i + 1) / pointsPerChunk;
+                assertThat(count(tid)).isEqualTo((long) (full / insertBatchSize * insertBatchSize));
+            }
+        }
+        assertThat(count(tid)).isEqualTo((long) (chunks / insertBatchSize * insertBatchSize));
+
+        writer.close("hash");
+        // the chunks left over and the root chunk with the rest of the points
+        assertThat(count(tid)).isEqualTo((long) chunks + 1);
+        assertThat(MongoConnection.getInstance().filesCol.count(query(tid).append(Constants.File.HASH, "hash")))
+                .isEqualTo(1L);
+        FramePoints points = FramePoints.read(MongoConnection.getInstance().filesCol.find(query(tid)));
+        assertThat(points.size()).isEqualTo(size);
+    }
+
+    @Test
+    public void smallFileIsOneChunk() {
+        int tid = TestMongo.nextId();
+        FileChunkWriter writer = new FileChunkWriter(0, "small", "", "writer@test", tid, 0L, "small.txt",
+                Constants.Precision.FLOAT);
+        for (int i = 0; i < 10; i++) {
+            writer.point(new PVizPoint(i, 1, "p" + i, new Location("0", Integer.toString(i), "0")));
+        }
+        assertThat(count(tid)).isEqualTo(0L);
+        writer.close("hash");
+        assertThat(count(tid)).isEqualTo(1L);
+        assertThat(FramePoints.read(MongoConnection.getInstance().filesCol.find(query(tid))).size()).isEqualTo(10);
+    }
+
+    private static Document query(int tid) {
+        return new Document(Constants.File.TIME_SERIES_ID_FIELD, tid).append(Constants.Artifact.ID_FIELD, 0);
+    }
+
+    private static long count(int tid) {
+        return MongoConnection.getInstance().filesCol.count(query(tid));
+    }
+}
@@ -0,0 +1,83 @@
+package db;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Runs with cache.frames.maxBytes=1m
+ */
+public class FrameCacheTest {
+    private static final int PAYLOAD = 256 * 1024;
+
+    @Test
+    public void cachedPayloadIsReadOnlyAndReadFromTheStart() throws IOException {
+        int tid = TestMongo.nextId();
+        byte[] payload = payload(1000, 1);
+        FrameCache.put(tid, 0, payload, FrameCache.generation(tid));
+
+        ByteBuffer first = FrameCache.get(tid, 0);
+        assertThat(first.isReadOnly()).isTrue();
+        byte[] read = new byte[payload.length];
+        assertThat(new FrameCache.BufferStream(first).read(read, 0, read.length)).isEqualTo(payload.length);
+        assertThat(read).isEqualTo(payload);
+        // reading a view doesn't move the next one
+        assertThat(FrameCache.get(tid, 0).remaining()).isEqualTo(payload.length);
+        assertThat(FrameCache.get(tid, 1)).isNull();
+    }
+
+    @Test
+    public void invalidateDropsTheArtifactAndStalePuts() {
+        int tid = TestMongo.nextId();
+        int other = TestMongo.nextId();
+        FrameCache.put(tid, 0, payload(10, 1), FrameCache.generation(tid));
+        FrameCache.put(other, 0, payload(10, 2), FrameCache.generation(other));
+        // a payload read before the artifact changed
+        long read = FrameCache.generation(tid);
+
+        FrameCache.invalidate(tid);
+        assertThat(FrameCache.get(tid, 0)).isNull();
+        assertThat(FrameCache.get(other, 0)).isNotNull();
+        FrameCache.put(tid, 1, payload(10, 3), read);
+        assertThat(FrameCache.get(tid, 1)).isNull();
+        FrameCache.put(tid, 1, payload(10, 3), FrameCache.generation(tid));
+        assertThat(FrameCache.get(tid, 1)).isNotNull();
+    }
+
+    @Test
+    public void leastRecentlyUsedPayloadsAreEvicted() {
+        int tid = TestMongo.nextId();
+        long evictions = FrameCache.getEvictions();
+        for (int fid = 0; fid < 4; fid++) {
+            FrameCache.put(tid, fid, payload(PAYLOAD, fid), FrameCache.generation(tid));
+        }
+        assertThat(FrameCache.getBytes()).isLessThanOrEqualTo(1024L * 1024);
+        // the first payload is read, so the second is the least recently used
+        assertThat(FrameCache.get(tid, 0)).isNotNull();
+        FrameCache.put(tid, 4, payload(PAYLOAD, 4), FrameCache.generation(tid));
+
+        assertThat(FrameCache.getBytes()).isLessThanOrEqualTo(1024L * 1024);
+        assertThat(FrameCache.getEvictions()).isGreaterThan(evictions);
+        assertThat(FrameCache.get(tid, 1)).isNull();
+        assertThat(FrameCache.get(tid, 0)).isNotNull();
+        assertThat(FrameCache.get(tid, 4)).isNotNull();
+    }
+
+    @Test
+    public void payloadOverAQuarterOfTheCacheIsNotCached() {
+        int tid = TestMongo.nextId();
+        FrameCache.put(tid, 0, payload(PAYLOAD + 1, 1), FrameCache.generation(tid));
+        assertThat(FrameCache.get(tid, 0)).isNull();
+    }
+
+    private static byte[] payload(int size, int value) {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) value);
+        payload[0] = (byte) (value + 100);
+        return payload;
+    }
+}
@@ -0,0 +1,225 @@
+package db;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class FrameDeltasTest {
+    private static final int FRAMES = 23;
+    private static final int POINTS = 200;
+    // the frame without its last point
+    private static final int SHORT_FRAME = 14;
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void decodedFramesMatchTheQuantizedPositions() {
+        int tid = TestMongo.nextId();
+        float[][][] frames = insertFrames(tid);
+        FrameDeltas.build(tid, FRAMES);
+
+        Decoder decoder = new Decoder();
+        for (int n = 0; n < FRAMES; n++) {
+            byte[] data = FrameDeltas.get(tid, n, FRAMES);
+            assertThat(data).isNotNull();
+            decoder.decode(data);
+            assertThat(decoder.frame).isEqualTo(n);
+            assertThat(decoder.isKeyframe).isEqualTo(n % 10 == 0 || n == SHORT_FRAME || n == SHORT_FRAME + 1);
+
+            int size = n == SHORT_FRAME ? POINTS - 1 : POINTS;
+            assertThat(decoder.keys.length).isEqualTo(size);
+            for (int i = 0; i < size; i++) {
+                assertThat(decoder.keys[i]).isEqualTo(i);
+                assertThat(decoder.clusters[i]).isEqualTo(i % 5 - 2);
+                for (int a = 0; a < 3; a++) {
+                    // the deltas add up to exactly the quantized position, at every distance from the keyframe
+                    double position = frames[n][i][a];
+                    long q = Math.round((position - decoder.origin[a]) / decoder.step[a]);
+                    assertThat((long) decoder.q[i * 3 + a]).isEqualTo(q);
+                    double decoded = decoder.origin[a] + decoder.q[i * 3 + a] * decoder.step[a];
+                    assertThat(Math.abs(decoded - position) <= decoder.step[a] / 2 * 1.000001).isTrue();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void positionsOutsideTheStatsAreDecoded() {
+        int tid = TestMongo.nextId();
+        MongoConnection con = MongoConnection.getInstance();
+        // stats that don't cover the points, the positions below the min have a negative q
+        for (int n = 0; n < 2; n++) {
+            PackedChunk chunk = new PackedChunk(3, false);
+            chunk.add(0, 0, -5 - n, 0, 0, null);
+            chunk.add(1, 0, 5, 10, 0, null);
+            chunk.add(2, 0, 20, 5, -1, null);
+            Document file = new Document(Constants.Artifact.ID_FIELD, n).append(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                    .append(Constants.File.STATS, new Document(Constants.Stats.COUNT, 3)
+                            .append(Constants.Stats.MIN, Arrays.asList(0.0, 0.0, 0.0))
+                            .append(Constants.Stats.MAX, Arrays.asList(10.0, 10.0, 1.0)));
+            chunk.appendTo(file);
+            con.filesCol.insertOne(file);
+        }
+        FrameDeltas.build(tid, 2);
+
+        Decoder decoder = new Decoder();
+        float[][] expected = {{-5, 0, 0}, {5, 10, 0}, {20, 5, -1}};
+        for (int n = 0; n < 2; n++) {
+            decoder.decode(FrameDeltas.get(tid, n, 2));
+            expected[0][0] = -5 - n;
+            for (int i = 0; i < 3; i++) {
+                for (int a = 0; a < 3; a++) {
+                    double decoded = decoder.origin[a] + decoder.q[i * 3 + a] * decoder.step[a];
+                    assertThat(Math.abs(decoded - expected[i][a]) <= decoder.step[a] / 2 * 1.000001).isTrue();
+                }
+            }
+        }
+        assertThat(decoder.q[0]).isLessThan(0);
+    }
+
+    @Test
+    public void deltasOfAnOlderVersionAreRebuilt() throws Exception {
+        int tid = TestMongo.nextId();
+        insertFrames(tid);
+        FrameDeltas.build(tid, FRAMES);
+        MongoConnection con = MongoConnection.getInstance();
+        Document part = con.deltasCol.find(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Artifact.ID_FIELD, 0)).first();
+        byte[] data = ((Binary) part.get(Constants.Payload.DATA)).getData();
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).putInt(4, FrameDeltas.VERSION - 1);
+        con.deltasCol.replaceOne(new Document("_id", part.get("_id")),
+                part.append(Constants.Payload.DATA, new Binary(data)));
+
+        assertThat(FrameDeltas.get(tid, 0, FRAMES)).isNull();
+        byte[] rebuilt = null;
+        for (int i = 0; i < 100 && rebuilt == null; i++) {
+            Thread.sleep(50);
+            rebuilt = FrameDeltas.get(tid, 0, FRAMES);
+        }
+        new Decoder().decode(rebuilt);
+    }
+
+    @Test
+    public void missingDeltasAreNull() {
+        int tid = TestMongo.nextId();
+        assertThat(FrameDeltas.get(tid, FRAMES, FRAMES)).isNull();
+    }
+
+    @Test
+    public void deleteRemovesTheDeltas() {
+        int tid = TestMongo.nextId();
+        insertFrames(tid);
+        FrameDeltas.build(tid, FRAMES);
+        FrameDeltas.delete(tid);
+        assertThat(MongoConnection.getInstance().deltasCol.count(
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, tid))).isEqualTo(0L);
+    }
+
+    /**
+     * Insert frames of points taking a random walk, the keys are inserted in reverse order
+     */
+    private static float[][][] insertFrames(int tid) {
+        Random random = new Random(tid);
+        float[][][] frames = new float[FRAMES][POINTS][3];
+        for (int i = 0; i < POINTS; i++) {
+            frames[0][i] = new float[]{random.nextFloat() * 100, random.nextFloat() - 0.5f, random.nextFloat() * 1e-3f};
+        }
+        for (int n = 0; n < FRAMES; n++) {
+            if (n > 0) {
+                for (int i = 0; i < POINTS; i++) {
+                    for (int a = 0; a < 3; a++) {
+                        frames[n][i][a] = frames[n - 1][i][a] + (random.nextFloat() - 0.5f) * 1e-2f;
+                    }
+                }
+            }
+            PackedChunk chunk = new PackedChunk(POINTS, false);
+            int size = n == SHORT_FRAME ? POINTS - 1 : POINTS;
+            for (int i = size - 1; i >= 0; i--) {
+                chunk.add(i, i % 5 - 2, frames[n][i][0], frames[n][i][1], frames[n][i][2], null);
+            }
+            Document file = new Document(Constants.Artifact.ID_FIELD, n).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+            chunk.appendTo(file);
+            MongoConnection.getInstance().filesCol.insertOne(file);
+        }
+        return frames;
+    }
+
+    /**
+     * Client side decoding of the frames, following the format in the FrameDeltas doc
+     */
+    private static class Decoder {
+        int frame;
+        boolean isKeyframe;
+        double[] origin = new double[3];
+        double[] step = new double[3];
+        int[] keys;
+        int[] clusters;
+        int[] q;
+
+        void decode(byte[] data) {
+            ByteBuffer in = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            assertThat(in.getInt()).isEqualTo(0x445A5650);
+            assertThat(in.getInt()).isEqualTo(FrameDeltas.VERSION);
+            frame = in.getInt();
+            int keyframe = in.getInt();
+            isKeyframe = (in.getInt() & 1) != 0;
+            int n = in.getInt();
+            for (int a = 0; a < 3; a++) {
+                origin[a] = in.getDouble();
+            }
+            for (int a = 0; a < 3; a++) {
+                step[a] = in.getDouble();
+            }
+            if (isKeyframe) {
+                assertThat(keyframe).isEqualTo(frame);
+                keys = new int[n];
+                clusters = new int[n];
+                q = new int[n * 3];
+                int last = 0;
+                for (int i = 0; i < n; i++) {
+                    keys[i] = last + unzigzag(readVarint(in));
+                    last = keys[i];
+                }
+                for (int i = 0; i < n; i++) {
+                    clusters[i] = unzigzag(readVarint(in));
+                }
+                for (int i = 0; i < n * 3; i++) {
+                    q[i] = unzigzag(readVarint(in));
+                }
+            } else {
+                assertThat(keyframe).isLessThan(frame);
+                assertThat(n).isEqualTo(keys.length);
+                for (int i = 0; i < n * 3; i++) {
+                    q[i] += unzigzag(readVarint(in));
+                }
+            }
+            assertThat(in.remaining()).isEqualTo(0);
+        }
+
+        private static int readVarint(ByteBuffer in) {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.get() & 0xFF;
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+        }
+
+        private static int unzigzag(int v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
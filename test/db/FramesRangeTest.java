@@ -0,0 +1,121 @@
+package db;
+
+import models.xml.Location;
+import models.xml.PVizPoint;
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Runs with storage.pointsPerChunk=1000, so each frame has several chunks
+ */
+public class FramesRangeTest {
+    private static final String USER = "frames@test";
+    // the points of each frame, frame 2 is missing
+    private static final int[] POINTS = {2500, 10, 0, 1200, 3};
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void framesAreSentInOrderWithTheirPoints() throws IOException {
+        int tid = insertTimeSeries();
+        List<Document> frames = read(ArtifactDAO.getInstance().getFrames(tid, 0, POINTS.length, USER, false), false);
+        assertThat(ids(frames)).isEqualTo(Arrays.asList(0, 1, 3, 4));
+        for (Document frame : frames) {
+            int fid = frame.getInteger(Constants.Artifact.ID_FIELD);
+            assertThat(((Document) frame.get(Constants.File.POINTS)).size()).isEqualTo(POINTS[fid]);
+        }
+    }
+
+    @Test
+    public void compressedRangeHasTheSameFrames() throws IOException {
+        int tid = insertTimeSeries();
+        List<Document> plain = read(ArtifactDAO.getInstance().getFrames(tid, 1, 4, USER, false), false);
+        List<Document> compressed = read(ArtifactDAO.getInstance().getFrames(tid, 1, 4, USER, true), true);
+        assertThat(ids(plain)).isEqualTo(Arrays.asList(1, 3));
+        assertThat(compressed).isEqualTo(plain);
+    }
+
+    @Test
+    public void rangeOutsideTheFramesIsEmpty() throws IOException {
+        int tid = insertTimeSeries();
+        assertThat(read(ArtifactDAO.getInstance().getFrames(tid, POINTS.length, POINTS.length + 5, USER, false), false))
+                .isEmpty();
+        assertThat(ids(read(ArtifactDAO.getInstance().getFrames(tid, -3, 1, USER, false), false)))
+                .isEqualTo(Arrays.asList(0));
+    }
+
+    @Test
+    public void otherUsersCannotReadTheFrames() {
+        int tid = insertTimeSeries();
+        assertThat(ArtifactDAO.getInstance().getFrames(tid, 0, POINTS.length, "other@test", false)).isNull();
+        assertThat(ArtifactDAO.getInstance().getFrames(tid, 0, POINTS.length, null, false)).isNull();
+    }
+
+    private static int insertTimeSeries() {
+        int tid = TestMongo.nextId();
+        MongoConnection.getInstance().artifactCol.insertOne(new Document(Constants.Artifact.ID_FIELD, tid)
+                .append(Constants.Artifact.NAME_FIELD, "frames").append(Constants.Artifact.USER, USER)
+                .append(Constants.Artifact.PUBLIC, false));
+        for (int fid = 0; fid < POINTS.length; fid++) {
+            if (POINTS[fid] == 0) {
+                continue;
+            }
+            FileChunkWriter writer = new FileChunkWriter(fid, "frame " + fid, "", USER, tid, (long) fid,
+                    "frame" + fid + ".txt", Constants.Precision.FLOAT);
+            for (int i = 0; i < POINTS[fid]; i++) {
+                writer.point(new PVizPoint(i, i % 3, "p" + i, new Location(Integer.toString(i), Integer.toString(fid), "0")));
+            }
+            writer.close("hash" + fid);
+        }
+        return tid;
+    }
+
+    /**
+     * Read the sequence of frames, see PlotStream
+     */
+    private static List<Document> read(InputStream stream, boolean gzip) throws IOException {
+        assertThat(stream).isNotNull();
+        List<Document> frames = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(gzip ? new GZIPInputStream(stream) : stream)) {
+            byte[] header = new byte[8];
+            while (true) {
+                try {
+                    in.readFully(header);
+                } catch (EOFException e) {
+                    return frames;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+                int fid = buffer.getInt();
+                byte[] json = new byte[buffer.getInt()];
+                in.readFully(json);
+                frames.add(Document.parse(new String(json, StandardCharsets.UTF_8)).append(Constants.Artifact.ID_FIELD, fid));
+            }
+        }
+    }
+
+    private static List<Integer> ids(List<Document> frames) {
+        List<Integer> ids = new ArrayList<>();
+        for (Document frame : frames) {
+            ids.add(frame.getInteger(Constants.Artifact.ID_FIELD));
+        }
+        return ids;
+    }
+}
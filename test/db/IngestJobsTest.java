@@ -0,0 +1,97 @@
+package db;
+
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class IngestJobsTest {
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void onlyJobsOfStoppedServersAreRecovered() {
+        long now = System.currentTimeMillis();
+        int own = insertJob(IngestJobs.getNodeId(), new Date(now + 60000));
+        int running = insertJob("other-node", new Date(now + 60000));
+        int expired = insertJob("other-node", new Date(now - 1000));
+        int withoutLease = insertJob(null, null);
+
+        // a running server leaves its own jobs alone, they may not have reached the workers yet
+        IngestJobs.recover(false);
+        assertThat(status(own)).isEqualTo(Constants.JobStatus.RUNNING);
+        assertThat(status(running)).isEqualTo(Constants.JobStatus.RUNNING);
+        assertThat(status(expired)).isEqualTo(Constants.JobStatus.FAILED);
+        assertThat(status(withoutLease)).isEqualTo(Constants.JobStatus.FAILED);
+
+        // at startup the jobs of the last run of this server are left over
+        IngestJobs.recover();
+        assertThat(status(own)).isEqualTo(Constants.JobStatus.FAILED);
+        assertThat(status(running)).isEqualTo(Constants.JobStatus.RUNNING);
+    }
+
+    @Test
+    public void jobOfThisServerIsLeasedAndKept() throws Exception {
+        int tid = TestMongo.nextId();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        File upload = File.createTempFile("ingest", ".txt");
+        IngestJobs.submit(tid, "ingest@test", "ingest.txt", upload, new IngestJobs.Task() {
+            @Override
+            public void run(IngestJobs.Job job) throws Exception {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            }
+
+            @Override
+            public void cleanUp() {
+            }
+        });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        Document record = record(tid);
+        assertThat(record.getString(Constants.Job.OWNER)).isEqualTo(IngestJobs.getNodeId());
+        Date leased = record.getDate(Constants.Job.LEASE);
+        assertThat(leased.after(new Date())).isTrue();
+
+        Thread.sleep(10);
+        IngestJobs.renewLeases();
+        assertThat(record(tid).getDate(Constants.Job.LEASE).after(leased)).isTrue();
+        IngestJobs.recover();
+        assertThat(status(tid)).isEqualTo(Constants.JobStatus.RUNNING);
+
+        release.countDown();
+        for (int i = 0; i < 100 && !Constants.JobStatus.DONE.equals(status(tid)); i++) {
+            Thread.sleep(50);
+        }
+        assertThat(status(tid)).isEqualTo(Constants.JobStatus.DONE);
+    }
+
+    private static int insertJob(String owner, Date lease) {
+        int tid = TestMongo.nextId();
+        Document record = new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Job.USER, "ingest@test")
+                .append(Constants.Job.STATUS, Constants.JobStatus.RUNNING);
+        if (owner != null) {
+            record.append(Constants.Job.OWNER, owner).append(Constants.Job.LEASE, lease);
+        }
+        MongoConnection.getInstance().jobsCol.insertOne(record);
+        return tid;
+    }
+
+    private static Document record(int tid) {
+        return MongoConnection.getInstance().jobsCol.find(new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid)).first();
+    }
+
+    private static String status(int tid) {
+        return record(tid).getString(Constants.Job.STATUS);
+    }
+}
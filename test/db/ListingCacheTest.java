@@ -0,0 +1,120 @@
+package db;
+
+import models.ArtifactPage;
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ListingCacheTest {
+    private static final int ARTIFACTS = 12;
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void equalPagesShareAnEntry() {
+        String user = insertArtifacts("cache-key@test");
+        ArtifactDAO dao = ArtifactDAO.getInstance();
+        ArtifactPage page = dao.timeSeriesList(user, null, null, 0);
+        // the default sort and size, and a sort that isn't known
+        assertThat(dao.timeSeriesList(user, Constants.Listing.SORT_DATE, null, page.size)).isSameAs(page);
+        assertThat(dao.timeSeriesList(user, "size", null, 0)).isSameAs(page);
+
+        ArtifactPage largest = dao.timeSeriesList(user, Constants.Listing.SORT_NAME, null, 1000000);
+        assertThat(dao.timeSeriesList(user, Constants.Listing.SORT_NAME, null, largest.size)).isSameAs(largest);
+        assertThat(dao.timeSeriesList(user, Constants.Listing.SORT_NAME, null, 1000001)).isSameAs(largest);
+    }
+
+    @Test
+    public void onlyIssuedCursorsAreCached() {
+        String user = insertArtifacts("cache-cursor@test");
+        ArtifactDAO dao = ArtifactDAO.getInstance();
+        ArtifactPage first = dao.timeSeriesList(user, null, null, 5);
+        ArtifactPage second = dao.timeSeriesList(user, null, first.next, 5);
+        assertThat(second.cursor).isEqualTo(first.next);
+        assertThat(dao.timeSeriesList(user, null, first.next, 5)).isSameAs(second);
+
+        // a cursor that no cached page handed out is read again each time
+        String madeUp = "2016-03-02 10:00:00|" + Integer.MAX_VALUE;
+        ArtifactPage page = dao.timeSeriesList(user, null, madeUp, 5);
+        assertThat(page.cursor).isEqualTo(madeUp);
+        assertThat(dao.timeSeriesList(user, null, madeUp, 5)).isNotSameAs(page);
+    }
+
+    @Test
+    public void leastRecentlyUsedPagesAreEvicted() {
+        String user = "cache-pages@test";
+        List<ArtifactPage> pages = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            ArtifactPage page = new ArtifactPage();
+            pages.add(page);
+            ListingCache.putPage(user, ListingCache.group("g" + i), Constants.Listing.SORT_DATE, null, 25, page,
+                    ListingCache.version());
+            // the first page stays in use
+            assertThat(ListingCache.getPage(user, ListingCache.group("g0"), Constants.Listing.SORT_DATE, null, 25))
+                    .isSameAs(pages.get(0));
+        }
+        assertThat(ListingCache.getPage(user, ListingCache.group("g1"), Constants.Listing.SORT_DATE, null, 25)).isNull();
+        assertThat(ListingCache.getPage(user, ListingCache.group("g149"), Constants.Listing.SORT_DATE, null, 25))
+                .isSameAs(pages.get(149));
+    }
+
+    @Test
+    public void evictionRemovesTheListingsOfTheArtifact() {
+        String user = "cache-evict@test";
+        ArtifactPage all = new ArtifactPage();
+        ArtifactPage group = new ArtifactPage();
+        ArtifactPage other = new ArtifactPage();
+        ArtifactPage tags = new ArtifactPage();
+        ListingCache.putPage(user, ListingCache.all(), Constants.Listing.SORT_DATE, null, 25, all, ListingCache.version());
+        ListingCache.putPage(user, ListingCache.group("a"), Constants.Listing.SORT_DATE, null, 25, group, ListingCache.version());
+        ListingCache.putPage(user, ListingCache.group("b"), Constants.Listing.SORT_DATE, null, 25, other, ListingCache.version());
+        ListingCache.putPage(user, ListingCache.tags("x", "y"), Constants.Listing.SORT_DATE, null, 25, tags, ListingCache.version());
+
+        List<String> groups = new ArrayList<>();
+        groups.add("a");
+        ListingCache.evictArtifact(user, groups, false);
+        assertThat(ListingCache.getPage(user, ListingCache.all(), Constants.Listing.SORT_DATE, null, 25)).isNull();
+        assertThat(ListingCache.getPage(user, ListingCache.group("a"), Constants.Listing.SORT_DATE, null, 25)).isNull();
+        assertThat(ListingCache.getPage(user, ListingCache.tags("y", "x"), Constants.Listing.SORT_DATE, null, 25)).isNull();
+        assertThat(ListingCache.getPage(user, ListingCache.group("b"), Constants.Listing.SORT_DATE, null, 25)).isSameAs(other);
+
+        ListingCache.putPage(user, ListingCache.tags("x", "y"), Constants.Listing.SORT_DATE, null, 25, tags, ListingCache.version());
+        ListingCache.evictTag("y");
+        assertThat(ListingCache.getPage(user, ListingCache.tags("x", "y"), Constants.Listing.SORT_DATE, null, 25)).isNull();
+    }
+
+    @Test
+    public void pageReadBeforeAnEvictionIsNotCached() {
+        String user = "cache-version@test";
+        long read = ListingCache.version();
+        ListingCache.evictGroups("cache-other@test", false);
+        ListingCache.putPage(user, ListingCache.all(), Constants.Listing.SORT_DATE, null, 25, new ArtifactPage(), read);
+        assertThat(ListingCache.getPage(user, ListingCache.all(), Constants.Listing.SORT_DATE, null, 25)).isNull();
+    }
+
+    @Test
+    public void tagListingsIgnoreTheOrderAndRepeats() {
+        assertThat(ListingCache.tags("b", "a", "a")).isEqualTo(ListingCache.tags("a", "b"));
+        assertThat(ListingCache.tags("a")).isNotEqualTo(ListingCache.tags("a", "b"));
+    }
+
+    private static String insertArtifacts(String user) {
+        List<Document> artifacts = new ArrayList<>();
+        for (int i = 0; i < ARTIFACTS; i++) {
+            artifacts.add(new Document(Constants.Artifact.ID_FIELD, TestMongo.nextId())
+                    .append(Constants.Artifact.NAME_FIELD, "artifact " + i).append(Constants.Artifact.USER, user)
+                    .append(Constants.Artifact.DATE_CREATION_FIELD, String.format("2016-03-%02d 10:00:00", 1 + i))
+                    .append(Constants.Artifact.PUBLIC, false));
+        }
+        MongoConnection.getInstance().artifactCol.insertMany(artifacts);
+        return user;
+    }
+}
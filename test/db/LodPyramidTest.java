@@ -0,0 +1,207 @@
+package db;
+
+import com.mongodb.client.FindIterable;
+import models.xml.Location;
+import models.xml.PVizPoint;
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Runs with lod.minPoints=500 and the default factor of 4
+ */
+public class LodPyramidTest {
+    private static final int POINTS = 5000;
+    private static final int[] TARGETS = {500, 2000};
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void levelsAreNestedAndKeepTheClusterShares() throws Exception {
+        int tid = TestMongo.nextId();
+        Map<Integer, Integer> clusterOf = insertPackedFile(tid);
+        LodPyramid.build(tid, 0);
+
+        assertThat(LodPyramid.chunks(tid, 0, TARGETS.length)).isNull();
+        assertThat(LodPyramid.chunks(tid, 0, -1)).isNull();
+        Set<Integer> previous = new HashSet<>();
+        for (int level = 0; level < TARGETS.length; level++) {
+            FramePoints points = FramePoints.read(LodPyramid.chunks(tid, 0, level));
+            assertThat(points.size()).isEqualTo(TARGETS[level]);
+            Set<Integer> keys = new HashSet<>();
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (int i = 0; i < points.size(); i++) {
+                keys.add(points.key(i));
+                assertThat(points.cluster(i)).isEqualTo(clusterOf.get(points.key(i)));
+                Integer count = counts.get(points.cluster(i));
+                counts.put(points.cluster(i), count == null ? 1 : count + 1);
+            }
+            assertThat(keys.size()).isEqualTo(TARGETS[level]);
+            assertThat(keys.containsAll(previous)).isTrue();
+            previous = keys;
+            // cluster 0 has half of the points, 1 and 2 a quarter each
+            assertThat(Math.abs(counts.get(0) - TARGETS[level] / 2)).isLessThanOrEqualTo(2);
+            assertThat(Math.abs(counts.get(1) - TARGETS[level] / 4)).isLessThanOrEqualTo(2);
+            assertThat(Math.abs(counts.get(2) - TARGETS[level] / 4)).isLessThanOrEqualTo(2);
+        }
+    }
+
+    @Test
+    public void levelReadsOnlyItsOwnChunks() throws Exception {
+        int tid = TestMongo.nextId();
+        insertPackedFile(tid);
+        LodPyramid.build(tid, 0);
+        long points = 0;
+        for (Document chunk : LodPyramid.chunks(tid, 0, 0)) {
+            if (PackedChunk.isPacked(chunk)) {
+                points += PackedChunk.ints(chunk, Constants.File.PACKED_KEYS).limit();
+            }
+        }
+        assertThat(points).isEqualTo((long) TARGETS[0]);
+    }
+
+    @Test
+    public void sparsePointsAreKept() throws Exception {
+        int tid = TestMongo.nextId();
+        FileChunkWriter writer = new FileChunkWriter(0, "sparse", "", "lod@test", tid, 0L, "sparse.txt",
+                Constants.Precision.FLOAT);
+        Random random = new Random(tid);
+        // a dense blob near the origin and 8 points far away in the corners
+        for (int i = 0; i < POINTS - 8; i++) {
+            writer.point(point(i, 1, random.nextFloat(), random.nextFloat(), random.nextFloat()));
+        }
+        for (int i = 0; i < 8; i++) {
+            writer.point(point(POINTS - 8 + i, 1, (i & 1) * 1000, (i >> 1 & 1) * 1000, (i >> 2 & 1) * 1000));
+        }
+        writer.close("hash");
+        LodPyramid.build(tid, 0);
+
+        FramePoints level = FramePoints.read(LodPyramid.chunks(tid, 0, 0));
+        Set<Integer> keys = new HashSet<>();
+        for (int i = 0; i < level.size(); i++) {
+            keys.add(level.key(i));
+        }
+        // the corner at the origin shares its voxels with the blob
+        for (int i = 1; i < 8; i++) {
+            assertThat(keys.contains(POINTS - 8 + i)).isTrue();
+        }
+    }
+
+    @Test
+    public void levelIsSerializedWithTheFileFieldsAndEdges() throws Exception {
+        int tid = TestMongo.nextId();
+        insertListFile(tid);
+        LodPyramid.build(tid, 0);
+
+        Set<Integer> keys = new HashSet<>();
+        FramePoints level = FramePoints.read(LodPyramid.chunks(tid, 0, 0));
+        for (int i = 0; i < level.size(); i++) {
+            keys.add(level.key(i));
+            assertThat(level.cluster(i)).isEqualTo(level.key(i) % 2 + 1);
+        }
+        assertThat(keys.size()).isEqualTo(TARGETS[0]);
+
+        StringWriter json = new StringWriter();
+        assertThat(PlotSerializer.write(LodPyramid.chunks(tid, 0, 0), true, json)).isTrue();
+        Document plot = Document.parse(json.toString());
+        assertThat(plot.getString(Constants.Artifact.NAME_FIELD)).isEqualTo("list");
+        assertThat(plot.containsKey(Constants.Lod.LEVEL)).isFalse();
+        assertThat(((Document) plot.get(Constants.File.POINTS)).size()).isEqualTo(TARGETS[0]);
+        assertThat(plot.get(Constants.File.STATS)).isNotNull();
+        Document clusters = (Document) plot.get(Constants.File.CLUSTERS);
+        assertThat(clusters.keySet()).containsOnly("1", "2");
+        assertThat(((List<?>) ((Document) clusters.get("1")).get(Constants.Cluster.POINTS)).size()
+                + ((List<?>) ((Document) clusters.get("2")).get(Constants.Cluster.POINTS)).size()).isEqualTo(TARGETS[0]);
+
+        // the edges between neighbouring keys, kept when both ends are in the level
+        Document edges = (Document) plot.get(Constants.File.EDGES);
+        int expected = 0;
+        for (int key = 0; key < POINTS - 1; key++) {
+            if (keys.contains(key) && keys.contains(key + 1)) {
+                expected++;
+                List<?> vertices = (List<?>) ((Document) edges.get(Integer.toString(key))).get(Constants.Edge.VERTICES);
+                assertThat(vertices).isEqualTo(Arrays.asList(key, key + 1));
+            }
+        }
+        assertThat(edges.size()).isEqualTo(expected);
+    }
+
+    @Test
+    public void smallFileHasNoLevels() throws Exception {
+        int tid = TestMongo.nextId();
+        FileChunkWriter writer = new FileChunkWriter(0, "small", "", "lod@test", tid, 0L, "small.txt",
+                Constants.Precision.FLOAT);
+        for (int i = 0; i < TARGETS[0]; i++) {
+            writer.point(point(i, 0, i, 0, 0));
+        }
+        writer.close("hash");
+        LodPyramid.build(tid, 0);
+        assertThat(LodPyramid.chunks(tid, 0, 0)).isNull();
+        assertThat(MongoConnection.getInstance().lodsCol.count(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)))
+                .isEqualTo(0L);
+    }
+
+    /**
+     * A fixed point file where cluster 0 has half of the points
+     */
+    private static Map<Integer, Integer> insertPackedFile(int tid) {
+        FileChunkWriter writer = new FileChunkWriter(0, "packed", "", "lod@test", tid, 0L, "packed.txt",
+                Constants.Precision.FIXED16);
+        Random random = new Random(tid);
+        Map<Integer, Integer> clusterOf = new HashMap<>();
+        for (int i = 0; i < POINTS; i++) {
+            int cluster = i % 4 < 2 ? 0 : i % 4 - 1;
+            clusterOf.put(i, cluster);
+            writer.point(point(i, cluster, random.nextGaussian(), random.nextGaussian() * 10, random.nextFloat()));
+        }
+        writer.close("hash");
+        return clusterOf;
+    }
+
+    /**
+     * A file in the string list layout, with the membership in the clusters and an edge from each key to the next
+     */
+    private static void insertListFile(int tid) {
+        Random random = new Random(tid);
+        Document points = new Document();
+        List<Integer> odd = new ArrayList<>();
+        List<Integer> even = new ArrayList<>();
+        Document edges = new Document();
+        for (int i = 0; i < POINTS; i++) {
+            points.append(Integer.toString(i), Arrays.asList(Float.toString(random.nextFloat()),
+                    Float.toString(random.nextFloat()), Float.toString(random.nextFloat()), "p" + i));
+            (i % 2 == 0 ? even : odd).add(i);
+            if (i < POINTS - 1) {
+                edges.append(Integer.toString(i), new Document(Constants.Edge.VERTICES, Arrays.asList(i, i + 1)));
+            }
+        }
+        Document clusters = new Document("1", new Document(Constants.Cluster.KEY, 1).append(Constants.Cluster.POINTS, even))
+                .append("2", new Document(Constants.Cluster.KEY, 2).append(Constants.Cluster.POINTS, odd));
+        Document root = new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Artifact.NAME_FIELD, "list");
+        MongoConnection con = MongoConnection.getInstance();
+        // the points and the edges in their own chunks, the clusters in the root chunk without stats
+        con.filesCol.insertOne(new Document(root).append(Constants.File.POINTS, points));
+        con.filesCol.insertOne(new Document(root).append(Constants.File.EDGES, edges));
+        con.filesCol.insertOne(new Document(root).append(Constants.File.CLUSTERS, clusters));
+    }
+
+    private static PVizPoint point(int key, int cluster, double x, double y, double z) {
+        return new PVizPoint(key, cluster, "p" + key, new Location(Double.toString(x), Double.toString(y), Double.toString(z)));
+    }
+}
@@ -0,0 +1,163 @@
+package db;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PackedChunkTest {
+    private static final int SIZE = 1000;
+
+    @Test
+    public void addReportsAFullChunk() {
+        PackedChunk chunk = new PackedChunk(3, false);
+        assertThat(chunk.isEmpty()).isTrue();
+        assertThat(chunk.add(1, 1, 0, 0, 0, "a")).isFalse();
+        assertThat(chunk.add(2, 1, 0, 0, 0, "b")).isFalse();
+        assertThat(chunk.add(3, 1, 0, 0, 0, "c")).isTrue();
+        chunk.clear();
+        assertThat(chunk.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void multibyteLabelsFillTheChunkBeforeTheDocumentLimit() {
+        // 1000 chars of 3 bytes each, a limit in chars would let the document grow past 16 MB
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            label.append('\u20ac');
+        }
+        PackedChunk chunk = new PackedChunk(1000000, false);
+        int size = 0;
+        boolean full = false;
+        while (!full) {
+            full = chunk.add(size, size % 7, size, 0, 0, label.toString());
+            size++;
+        }
+        assertThat(size).isLessThan(5000);
+        Document document = new Document(Constants.Artifact.ID_FIELD, 0);
+        chunk.appendTo(document);
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        new DocumentCodec().encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+        assertThat(buffer.getSize()).isGreaterThan(10 * 1024 * 1024);
+        assertThat(buffer.getSize()).isLessThan(13 * 1024 * 1024);
+    }
+
+    @Test
+    public void utf8Length() {
+        assertThat(PackedChunk.utf8Length(null)).isEqualTo(0);
+        assertThat(PackedChunk.utf8Length("a\u00e9\u20ac\ud83d\ude00")).isEqualTo(1 + 2 + 3 + 4);
+    }
+
+    @Test
+    public void floatRoundTrip() {
+        float[][] points = points(new Random(1));
+        Document document = pack(points, false);
+        assertThat(PackedChunk.isPacked(document)).isTrue();
+        assertThat(PackedChunk.isFixed16(document)).isFalse();
+
+        Map<Integer, float[]> read = read(document);
+        assertThat(read.size()).isEqualTo(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            float[] point = read.get(i);
+            assertThat(point[0]).isEqualTo(points[i][0]);
+            assertThat(point[1]).isEqualTo(points[i][1]);
+            assertThat(point[2]).isEqualTo(points[i][2]);
+            assertThat((int) point[3]).isEqualTo(i % 7);
+        }
+    }
+
+    @Test
+    public void fixed16ErrorIsBounded() {
+        float[][] points = points(new Random(2));
+        Document document = pack(points, true);
+        assertThat(PackedChunk.isFixed16(document)).isTrue();
+
+        double[] min = new double[3];
+        double[] max = new double[3];
+        for (int a = 0; a < 3; a++) {
+            min[a] = Double.MAX_VALUE;
+            max[a] = -Double.MAX_VALUE;
+            for (float[] point : points) {
+                min[a] = Math.min(min[a], point[a]);
+                max[a] = Math.max(max[a], point[a]);
+            }
+        }
+        Map<Integer, float[]> read = read(document);
+        assertThat(read.size()).isEqualTo(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            float[] point = read.get(i);
+            for (int a = 0; a < 3; a++) {
+                // half a step of the grid, and the rounding of the result to a float
+                double bound = (max[a] - min[a]) / 131070 + Math.ulp((float) max[a]);
+                assertThat(Math.abs(point[a] - points[i][a]) <= bound).isTrue();
+            }
+            assertThat((int) point[3]).isEqualTo(i % 7);
+        }
+    }
+
+    @Test
+    public void fixed16FlatAxis() {
+        PackedChunk chunk = new PackedChunk(SIZE, true);
+        chunk.add(1, 1, 5, 1, 0, null);
+        chunk.add(2, 1, 5, 2, 0, null);
+        Document document = new Document();
+        chunk.appendTo(document);
+        FloatBuffer coordinates = PackedChunk.coordinates(document);
+        assertThat(coordinates.get(0)).isEqualTo(5f);
+        assertThat(coordinates.get(3)).isEqualTo(5f);
+        assertThat(coordinates.get(2)).isEqualTo(0f);
+    }
+
+    private static float[][] points(Random random) {
+        float[][] points = new float[SIZE][];
+        for (int i = 0; i < SIZE; i++) {
+            points[i] = new float[]{(random.nextFloat() - 0.5f) * 200, random.nextFloat() * 3, random.nextFloat() - 10};
+        }
+        return points;
+    }
+
+    private static Document pack(float[][] points, boolean fixed16) {
+        PackedChunk chunk = new PackedChunk(SIZE * 2, fixed16);
+        for (int i = 0; i < points.length; i++) {
+            chunk.add(i, i % 7, points[i][0], points[i][1], points[i][2], "p" + i);
+        }
+        Document document = new Document();
+        chunk.appendTo(document);
+        return document;
+    }
+
+    /**
+     * The x, y, z and cluster of each point by key, checking the labels on the way
+     */
+    private static Map<Integer, float[]> read(Document document) {
+        IntBuffer keys = PackedChunk.ints(document, Constants.File.PACKED_KEYS);
+        IntBuffer clusters = PackedChunk.ints(document, Constants.File.PACKED_CLUSTERS);
+        IntBuffer offsets = PackedChunk.ints(document, Constants.File.PACKED_OFFSETS);
+        FloatBuffer coordinates = PackedChunk.coordinates(document);
+        List<String> labels = PackedChunk.labels(document);
+        assertThat(offsets.limit()).isEqualTo(clusters.limit() + 1);
+        assertThat(offsets.get(clusters.limit())).isEqualTo(keys.limit());
+
+        Map<Integer, float[]> points = new HashMap<>();
+        for (int c = 0; c < clusters.limit(); c++) {
+            for (int i = offsets.get(c); i < offsets.get(c + 1); i++) {
+                int key = keys.get(i);
+                assertThat(labels.get(i)).isEqualTo("p" + key);
+                points.put(key, new float[]{coordinates.get(i * 3), coordinates.get(i * 3 + 1),
+                        coordinates.get(i * 3 + 2), clusters.get(c)});
+            }
+        }
+        return points;
+    }
+}
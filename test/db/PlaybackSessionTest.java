@@ -0,0 +1,132 @@
+package db;
+
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Runs with playback.retryMillis=10
+ */
+public class PlaybackSessionTest {
+    private static final int FRAMES = 3;
+    private static final String SUBSCRIBE = "{\"type\": \"subscribe\", \"frame\": 0, \"buffer\": " + FRAMES + "}";
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void framesAreSentOnceTheSendersHaveRoom() throws Exception {
+        int tid = insertFrames();
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor senders = busySenders(release);
+        List<String> messages = new CopyOnWriteArrayList<>();
+        PlaybackSession session = new PlaybackSession(tid, FRAMES, sink(messages), senders);
+        session.receive(SUBSCRIBE);
+        Thread.sleep(30);
+        assertThat(messages).isEmpty();
+
+        release.countDown();
+        for (int i = 0; i < 100 && messages.size() < FRAMES; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(messages).hasSize(FRAMES);
+        for (int n = 0; n < FRAMES; n++) {
+            assertThat(messages.get(n)).startsWith("{\"frame\":" + n + ",");
+        }
+        senders.shutdown();
+    }
+
+    @Test
+    public void clientIsToldToUseHttpWhenTheSendersStayBusy() throws Exception {
+        int tid = insertFrames();
+        CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor senders = busySenders(release);
+        List<String> messages = new CopyOnWriteArrayList<>();
+        PlaybackSession session = new PlaybackSession(tid, FRAMES, sink(messages), senders);
+        session.receive(SUBSCRIBE);
+        for (int i = 0; i < 100 && messages.isEmpty(); i++) {
+            Thread.sleep(20);
+        }
+        assertThat(messages).containsOnly("{\"status\":\"busy\"}");
+
+        // the session is closed, nothing is sent once the senders have room
+        release.countDown();
+        session.receive(SUBSCRIBE);
+        Thread.sleep(50);
+        assertThat(messages).hasSize(1);
+        senders.shutdown();
+    }
+
+    @Test
+    public void messagesThatAreNotJsonAreIgnored() throws Exception {
+        int tid = insertFrames();
+        ThreadPoolExecutor senders = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        List<String> messages = new CopyOnWriteArrayList<>();
+        PlaybackSession session = new PlaybackSession(tid, FRAMES, sink(messages), senders);
+        session.receive("{\"type\": \"subscribe\", ");
+        session.receive("not json");
+        session.receive("[1, 2]");
+        Thread.sleep(30);
+        assertThat(messages).isEmpty();
+
+        session.receive(SUBSCRIBE);
+        for (int i = 0; i < 100 && messages.size() < FRAMES; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(messages).hasSize(FRAMES);
+        senders.shutdown();
+    }
+
+    /**
+     * Senders with their one thread and their queue taken until the latch is released
+     */
+    private static ThreadPoolExecutor busySenders(final CountDownLatch release) {
+        ThreadPoolExecutor senders = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1));
+        Runnable wait = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        senders.execute(wait);
+        senders.execute(wait);
+        return senders;
+    }
+
+    private static PlaybackSession.Sink sink(final List<String> messages) {
+        return new PlaybackSession.Sink() {
+            @Override
+            public void send(String message) {
+                messages.add(message);
+            }
+        };
+    }
+
+    private static int insertFrames() {
+        int tid = TestMongo.nextId();
+        for (int n = 0; n < FRAMES; n++) {
+            PackedChunk chunk = new PackedChunk(2, false);
+            chunk.add(0, 1, n, 0, 0, "a");
+            chunk.add(1, 1, 0, n, 0, "b");
+            Document file = new Document(Constants.Artifact.ID_FIELD, n).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+            chunk.appendTo(file);
+            MongoConnection.getInstance().filesCol.insertOne(file);
+        }
+        return tid;
+    }
+}
@@ -0,0 +1,118 @@
+package db;
+
+import models.xml.Location;
+import models.xml.PVizPoint;
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Runs with octree.pointsPerPart=1000, so an index has several parts
+ */
+public class PointOctreeTest {
+    private static final int POINTS = 5000;
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void boxHasThePointsInsideIt() throws Exception {
+        int tid = TestMongo.nextId();
+        insertFile(tid);
+        PointOctree.build(tid, 0);
+        assertThat(parts(tid)).isEqualTo((long) (POINTS + 999) / 1000);
+        FramePoints points = FramePoints.read(MongoConnection.getInstance().filesCol.find(query(tid)));
+
+        Random random = new Random(tid);
+        for (int q = 0; q < 20; q++) {
+            double[] box = new double[6];
+            for (int a = 0; a < 3; a++) {
+                double lo = random.nextDouble() * 100 - 50;
+                double hi = random.nextDouble() * 100 - 50;
+                box[a] = Math.min(lo, hi);
+                box[a + 3] = Math.max(lo, hi);
+            }
+            int[] found = PointOctree.query(tid, 0, PointOctree.box(box));
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < points.size(); i++) {
+                if (inside(points, i, box, 0)) {
+                    expected.add(points.key(i));
+                    assertThat(Arrays.binarySearch(found, points.key(i)) >= 0).isTrue();
+                } else if (Arrays.binarySearch(found, points.key(i)) >= 0) {
+                    // a point outside the box is only taken when its voxel is on the border of the box
+                    assertThat(inside(points, i, box, 100.0 / 65536 * 2)).isTrue();
+                }
+            }
+            assertThat(found.length).isGreaterThanOrEqualTo(expected.size());
+        }
+        assertThat(PointOctree.query(tid, 0, PointOctree.box(new double[]{-100, -100, -100, 100, 100, 100})))
+                .hasSize(POINTS);
+        assertThat(PointOctree.query(tid, 0, PointOctree.box(new double[]{200, 200, 200, 300, 300, 300}))).isEmpty();
+    }
+
+    @Test
+    public void missingIndexIsBuiltInTheBackground() throws Exception {
+        int tid = TestMongo.nextId();
+        insertFile(tid);
+        double[][] all = PointOctree.box(new double[]{-100, -100, -100, 100, 100, 100});
+        // the file is sent whole until the index is stored
+        assertThat(PointOctree.query(tid, 0, all)).isNull();
+        int[] found = null;
+        for (int i = 0; i < 100 && found == null; i++) {
+            Thread.sleep(50);
+            found = PointOctree.query(tid, 0, all);
+        }
+        assertThat(found).hasSize(POINTS);
+    }
+
+    @Test
+    public void incompleteIndexIsNotRead() throws Exception {
+        int tid = TestMongo.nextId();
+        insertFile(tid);
+        PointOctree.build(tid, 0);
+        MongoConnection.getInstance().octreesCol.deleteOne(new Document(query(tid)).append(Constants.Payload.PART, 2));
+        assertThat(PointOctree.query(tid, 0, PointOctree.box(new double[]{-1, -1, -1, 1, 1, 1}))).isNull();
+    }
+
+    @Test
+    public void missingFileHasNoIndex() {
+        assertThat(PointOctree.query(TestMongo.nextId(), 0, PointOctree.box(new double[]{0, 0, 0, 1, 1, 1}))).isNull();
+    }
+
+    private static boolean inside(FramePoints points, int i, double[] box, double margin) {
+        for (int a = 0; a < 3; a++) {
+            if (points.position(i, a) < box[a] - margin || points.position(i, a) > box[a + 3] + margin) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void insertFile(int tid) {
+        FileChunkWriter writer = new FileChunkWriter(0, "octree", "", "octree@test", tid, 0L, "octree.txt",
+                Constants.Precision.FLOAT);
+        Random random = new Random(tid);
+        for (int i = 0; i < POINTS; i++) {
+            writer.point(new PVizPoint(i, i % 3, "p" + i, new Location(Double.toString(random.nextDouble() * 100 - 50),
+                    Double.toString(random.nextDouble() * 100 - 50), Double.toString(random.nextDouble() * 100 - 50))));
+        }
+        writer.close("hash");
+    }
+
+    private static Document query(int tid) {
+        return new Document(Constants.Artifact.ID_FIELD, 0).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+    }
+
+    private static long parts(int tid) {
+        return MongoConnection.getInstance().octreesCol.count(query(tid));
+    }
+}
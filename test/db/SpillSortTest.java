@@ -0,0 +1,74 @@
+package db;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SpillSortTest {
+
+    @Test
+    public void recordsAreReadInKeyOrder() throws IOException {
+        // enough records for several runs with the test buffer size
+        int size = 50000;
+        Random random = new Random(1);
+        long[] keys = new long[size];
+        try (SpillSort sort = new SpillSort("test")) {
+            SpillSort.Record record = new SpillSort.Record();
+            for (int i = 0; i < size; i++) {
+                // negative keys and many equal keys
+                keys[i] = random.nextInt(2000) - 1000 + (i % 7 == 0 ? Long.MIN_VALUE / 2 : 0);
+                record.clear().writeInt(i);
+                record.writeString(i % 3 == 0 ? null : "label " + i);
+                sort.add(keys[i], record);
+            }
+            SpillSort.Cursor cursor = sort.sorted();
+            long previousKey = Long.MIN_VALUE;
+            int previousIndex = -1;
+            int count = 0;
+            while (cursor.next()) {
+                int index = cursor.record().readInt();
+                String label = SpillSort.Cursor.readString(cursor.record());
+                assertThat(cursor.key).isEqualTo(keys[index]);
+                assertThat(label).isEqualTo(index % 3 == 0 ? null : "label " + index);
+                assertThat(cursor.key).isGreaterThanOrEqualTo(previousKey);
+                if (cursor.key == previousKey) {
+                    // equal keys are read in the order they were added
+                    assertThat(index).isGreaterThan(previousIndex);
+                }
+                previousKey = cursor.key;
+                previousIndex = index;
+                count++;
+            }
+            assertThat(count).isEqualTo(size);
+        }
+    }
+
+    @Test
+    public void smallSortStaysInMemory() throws IOException {
+        try (SpillSort sort = new SpillSort("test")) {
+            SpillSort.Record record = new SpillSort.Record();
+            long[] keys = {5, -3, Long.MAX_VALUE, 0, Long.MIN_VALUE, 5};
+            for (int i = 0; i < keys.length; i++) {
+                record.clear().writeInt(i);
+                sort.add(keys[i], record);
+            }
+            SpillSort.Cursor cursor = sort.sorted();
+            int[] expected = {4, 1, 3, 0, 5, 2};
+            for (int index : expected) {
+                assertThat(cursor.next()).isTrue();
+                assertThat(cursor.record().readInt()).isEqualTo(index);
+            }
+            assertThat(cursor.next()).isFalse();
+        }
+    }
+
+    @Test
+    public void emptySortHasNoRecords() {
+        try (SpillSort sort = new SpillSort("test")) {
+            assertThat(sort.sorted().next()).isFalse();
+        }
+    }
+}
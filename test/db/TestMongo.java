@@ -0,0 +1,35 @@
+package db;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory mongo server for the DAO tests, started once on the configured mongo port. The tests use their
+ * own artifact ids and users instead of clearing the collections.
+ */
+public class TestMongo {
+    private static MongoServer server;
+    private static final AtomicInteger ids = new AtomicInteger(1000000);
+
+    public static synchronized void start() {
+        if (server != null) {
+            return;
+        }
+        Config conf = ConfigFactory.load();
+        String host = conf.hasPath(Constants.DB.MONGO_HOST) ? conf.getString(Constants.DB.MONGO_HOST) : "localhost";
+        int port = conf.hasPath(Constants.DB.MONGO_PORT) ? conf.getInt(Constants.DB.MONGO_PORT) : 27017;
+        server = new MongoServer(new MemoryBackend());
+        server.bind(host, port);
+    }
+
+    /**
+     * @return an artifact id no other test uses
+     */
+    public static int nextId() {
+        return ids.incrementAndGet();
+    }
+}
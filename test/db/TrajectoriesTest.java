@@ -0,0 +1,117 @@
+package db;
+
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TrajectoriesTest {
+    private static final int FRAMES = 4;
+    private static final int POINTS = 50;
+    // a point that is only in the frames 1 and 2
+    private static final int LATE = 1000;
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void pointsHaveTheirPositionInEachFrame() throws Exception {
+        int tid = insertFrames();
+        Trajectories.build(tid, FRAMES);
+        Document json = Document.parse(Trajectories.get(tid, new int[]{LATE, 3, 0, 12345}, FRAMES));
+        assertThat(json.getInteger("frames")).isEqualTo(FRAMES);
+        Document points = (Document) json.get("points");
+        assertThat(points.keySet()).containsOnly("0", "3", Integer.toString(LATE));
+        for (int key : new int[]{0, 3}) {
+            List<?> positions = (List<?>) points.get(Integer.toString(key));
+            assertThat(positions).hasSize(FRAMES * 3);
+            for (int n = 0; n < FRAMES; n++) {
+                assertThat(((Number) positions.get(n * 3)).floatValue()).isEqualTo((float) key);
+                assertThat(((Number) positions.get(n * 3 + 1)).floatValue()).isEqualTo((float) n);
+                assertThat(((Number) positions.get(n * 3 + 2)).floatValue()).isEqualTo(0.5f);
+            }
+        }
+        // NaN in the frames the point is not in
+        List<?> late = (List<?>) points.get(Integer.toString(LATE));
+        for (int n = 0; n < FRAMES; n++) {
+            for (int a = 0; a < 3; a++) {
+                if (n == 1 || n == 2) {
+                    assertThat(late.get(n * 3 + a)).isNotNull();
+                } else {
+                    assertThat(late.get(n * 3 + a)).isNull();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void missingTrajectoriesAreBuiltInTheBackground() throws Exception {
+        int tid = insertFrames();
+        assertThat(Trajectories.get(tid, new int[]{1}, FRAMES)).isNull();
+        String json = null;
+        for (int i = 0; i < 100 && json == null; i++) {
+            Thread.sleep(50);
+            json = Trajectories.get(tid, new int[]{1}, FRAMES);
+        }
+        assertThat(((Document) Document.parse(json).get("points")).keySet()).containsOnly("1");
+    }
+
+    @Test
+    public void unfinishedBuildIsNotRead() throws Exception {
+        int tid = insertFrames();
+        Trajectories.build(tid, FRAMES);
+        String complete = Trajectories.get(tid, new int[]{2}, FRAMES);
+        // the block of a newer build that didn't write its marker
+        MongoConnection.getInstance().trajectoriesCol.insertOne(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Trajectory.GENERATION, Long.MAX_VALUE).append(Constants.Trajectory.BLOCK, 0)
+                .append(Constants.Trajectory.KEYS, Arrays.asList(2)).append(Constants.Trajectory.FRAMES, 1)
+                .append(Constants.Trajectory.DATA, new byte[12]));
+        assertThat(Trajectories.get(tid, new int[]{2}, FRAMES)).isEqualTo(complete);
+    }
+
+    @Test
+    public void rebuildReplacesTheOldBlocks() throws Exception {
+        int tid = insertFrames();
+        Trajectories.build(tid, FRAMES);
+        long blocks = blocks(tid);
+        Thread.sleep(5);
+        Trajectories.build(tid, FRAMES);
+        assertThat(blocks(tid)).isEqualTo(blocks);
+        assertThat(Trajectories.get(tid, new int[]{4}, FRAMES)).contains("\"4\":[");
+
+        Trajectories.delete(tid);
+        assertThat(MongoConnection.getInstance().trajectoriesCol.count(
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, tid))).isEqualTo(0L);
+    }
+
+    private static long blocks(int tid) {
+        return MongoConnection.getInstance().trajectoriesCol.count(new Document(Constants.File.TIME_SERIES_ID_FIELD, tid)
+                .append(Constants.Trajectory.BLOCK, new Document("$gte", 0)));
+    }
+
+    /**
+     * Frames where point k is at (k, n, 0.5) in frame n, and one point only in the frames 1 and 2
+     */
+    private static int insertFrames() {
+        int tid = TestMongo.nextId();
+        for (int n = 0; n < FRAMES; n++) {
+            PackedChunk chunk = new PackedChunk(POINTS + 1, false);
+            for (int k = POINTS - 1; k >= 0; k--) {
+                chunk.add(k, k % 3, k, n, 0.5f, null);
+            }
+            if (n == 1 || n == 2) {
+                chunk.add(LATE, 0, -1, -1, -1, null);
+            }
+            Document file = new Document(Constants.Artifact.ID_FIELD, n).append(Constants.File.TIME_SERIES_ID_FIELD, tid);
+            chunk.appendTo(file);
+            MongoConnection.getInstance().filesCol.insertOne(file);
+        }
+        return tid;
+    }
+}
@@ -0,0 +1,188 @@
+package db;
+
+import org.bson.Document;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class UploadDAOTest {
+    private static final String USER = "upload@test";
+    private static final int PART_SIZE = 64;
+    private static final int POINTS = 40;
+
+    @BeforeClass
+    public static void startMongo() {
+        TestMongo.start();
+    }
+
+    @Test
+    public void partsAreAssembledInAnyOrder() throws Exception {
+        byte[] data = textFile();
+        String id = create("parts.txt", data.length);
+        int parts = (data.length + PART_SIZE - 1) / PART_SIZE;
+        assertThat(missing(id)).hasSize(parts);
+
+        // the parts are sent backwards, the second one is sent twice
+        for (int part = parts - 1; part >= 0; part--) {
+            assertThat(UploadDAO.writePart(id, USER, part, part(data, part))).isTrue();
+        }
+        assertThat(UploadDAO.writePart(id, USER, 1, part(data, 1))).isTrue();
+        assertThat(missing(id)).isEmpty();
+
+        assertThat(UploadDAO.complete(id, USER)).isTrue();
+        assertThat(UploadDAO.get(id, USER)).isNull();
+        assertThat(UploadDAO.complete(id, USER)).isFalse();
+
+        MongoConnection con = MongoConnection.getInstance();
+        Document artifact = con.artifactCol.find(new Document(Constants.Artifact.USER, USER)
+                .append(Constants.Artifact.NAME_FIELD, "parts.txt")).first();
+        assertThat(artifact).isNotNull();
+        int tid = artifact.getInteger(Constants.Artifact.ID_FIELD);
+        assertThat(waitForJob(tid)).isEqualTo(Constants.JobStatus.DONE);
+        FramePoints points = FramePoints.read(con.filesCol.find(
+                new Document(Constants.File.TIME_SERIES_ID_FIELD, tid).append(Constants.Artifact.ID_FIELD, 0)));
+        assertThat(points.size()).isEqualTo(POINTS);
+    }
+
+    @Test
+    public void missingPartsAreReported() throws Exception {
+        byte[] data = textFile();
+        String id = create("missing.txt", data.length);
+        UploadDAO.writePart(id, USER, 0, part(data, 0));
+        UploadDAO.writePart(id, USER, 2, part(data, 2));
+        List<?> missing = missing(id);
+        assertThat(missing.contains(0)).isFalse();
+        assertThat(missing.contains(1)).isTrue();
+        assertThat(missing.contains(2)).isFalse();
+        try {
+            UploadDAO.complete(id, USER);
+            throw new AssertionError("completed with missing parts");
+        } catch (Exception e) {
+            assertThat(e.getMessage()).startsWith("Missing parts [1, 3");
+        }
+        assertThat(UploadDAO.get(id, USER)).isNotNull();
+    }
+
+    @Test
+    public void invalidPartsAreRejected() throws Exception {
+        byte[] data = textFile();
+        String id = create("invalid.txt", data.length);
+        assertThat(UploadDAO.writePart("no-such-upload", USER, 0, part(data, 0))).isFalse();
+        assertThat(UploadDAO.writePart(id, "other@test", 0, part(data, 0))).isFalse();
+        assertThat(UploadDAO.get(id, "other@test")).isNull();
+        try {
+            UploadDAO.writePart(id, USER, 0, file(new byte[PART_SIZE - 1]));
+            throw new AssertionError("short part written");
+        } catch (Exception e) {
+            assertThat(e.getMessage()).contains("should have " + PART_SIZE + " bytes");
+        }
+        try {
+            UploadDAO.writePart(id, USER, (data.length + PART_SIZE - 1) / PART_SIZE, file(new byte[1]));
+            throw new AssertionError("part after the end written");
+        } catch (Exception e) {
+            assertThat(e.getMessage()).startsWith("Part ");
+        }
+        assertThat(missing(id)).hasSize((data.length + PART_SIZE - 1) / PART_SIZE);
+    }
+
+    @Test
+    public void unsupportedFileCanBeSentAgain() throws Exception {
+        byte[] data = "not a plot".getBytes(StandardCharsets.UTF_8);
+        String id = create("unsupported.txt", data.length);
+        UploadDAO.writePart(id, USER, 0, file(data));
+        try {
+            UploadDAO.complete(id, USER);
+            throw new AssertionError("unsupported file completed");
+        } catch (Exception e) {
+            // expected
+        }
+        assertThat(status(id)).isEqualTo(Constants.UploadStatus.UPLOADING);
+        assertThat(UploadDAO.writePart(id, USER, 0, file(data))).isTrue();
+    }
+
+    @Test
+    public void completingUploadIsLocked() throws Exception {
+        byte[] data = textFile();
+        String id = create("locked.txt", data.length);
+        MongoConnection.getInstance().uploadsCol.updateOne(new Document(Constants.Upload.ID_FIELD, id),
+                new Document("$set", new Document(Constants.Upload.STATUS, Constants.UploadStatus.COMPLETING)));
+        try {
+            UploadDAO.writePart(id, USER, 0, part(data, 0));
+            throw new AssertionError("part written while completing");
+        } catch (Exception e) {
+            assertThat(e.getMessage()).isEqualTo("The upload is being completed");
+        }
+    }
+
+    @Test
+    public void deleteRemovesTheSession() throws Exception {
+        String id = create("delete.txt", 100);
+        assertThat(UploadDAO.delete(id, "other@test")).isFalse();
+        assertThat(UploadDAO.delete(id, USER)).isTrue();
+        assertThat(UploadDAO.get(id, USER)).isNull();
+        assertThat(UploadDAO.delete(id, USER)).isFalse();
+    }
+
+    @Test(expected = Exception.class)
+    public void partSizeIsChecked() throws Exception {
+        UploadDAO.create(USER, "size.txt", "", "default", null, 100, 0);
+    }
+
+    private static String create(String fileName, long size) throws Exception {
+        String json = UploadDAO.create(USER, fileName, "test upload", "default", null, size, PART_SIZE);
+        return Document.parse(json).getString(Constants.Upload.ID_FIELD);
+    }
+
+    private static List<?> missing(String id) {
+        return (List<?>) Document.parse(UploadDAO.get(id, USER)).get("missing");
+    }
+
+    private static String status(String id) {
+        return MongoConnection.getInstance().uploadsCol.find(new Document(Constants.Upload.ID_FIELD, id)).first()
+                .getString(Constants.Upload.STATUS);
+    }
+
+    private static String waitForJob(int tid) throws InterruptedException {
+        MongoConnection con = MongoConnection.getInstance();
+        String status = null;
+        for (int i = 0; i < 300; i++) {
+            Document job = con.jobsCol.find(new Document(Constants.Job.TIME_SERIES_ID_FIELD, tid)).first();
+            status = job != null ? job.getString(Constants.Job.STATUS) : null;
+            if (Constants.JobStatus.DONE.equals(status) || Constants.JobStatus.FAILED.equals(status)) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        return status;
+    }
+
+    /**
+     * A text plot with one point on each line, spanning several parts
+     */
+    private static byte[] textFile() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < POINTS; i++) {
+            text.append(i).append(' ').append(i * 0.5).append(' ').append(-i).append(' ').append(i * 2.25).append(" 1\n");
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static File part(byte[] data, int part) throws IOException {
+        return file(Arrays.copyOfRange(data, part * PART_SIZE, Math.min(data.length, (part + 1) * PART_SIZE)));
+    }
+
+    private static File file(byte[] data) throws IOException {
+        File file = File.createTempFile("part", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+}
@@ -0,0 +1,70 @@
+package models.formats;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PlotFormatsTest {
+
+    @Test
+    public void detectsPviz() throws IOException {
+        assertThat(detect("<?xml version=\"1.0\"?>\n<plotviz>\n1,2,3\n")).isEqualTo("pviz");
+        assertThat(detect("\uFEFF  \n<plotviz></plotviz>")).isEqualTo("pviz");
+    }
+
+    @Test
+    public void detectsCsv() throws IOException {
+        assertThat(detect("x,y,z\n1.0,2.0,3.0\n")).isEqualTo("csv");
+        assertThat(detect("0,1.0,2.0,3.0,4,label\n")).isEqualTo("csv");
+    }
+
+    @Test
+    public void detectsText() throws IOException {
+        assertThat(detect("1.0 2.0 3.0\n4.0 5.0 6.0\n")).isEqualTo("text");
+        assertThat(detect("id x y z cluster\n0\t1.0\t2.0\t3.0\t1\n")).isEqualTo("text");
+    }
+
+    @Test
+    public void textWithCommasIsNotText() throws IOException {
+        // the header has no comma so it is not csv, and the comma in the point line rules out text
+        assertThat(detect("x y z\n1.0,2.0,3.0\n")).isNull();
+    }
+
+    @Test
+    public void rejectsUnknownFiles() throws IOException {
+        assertThat(detect("")).isNull();
+        assertThat(detect("hello world\n")).isNull();
+        assertThat(detect("a,b\nc,d\n")).isNull();
+    }
+
+    @Test
+    public void onlyTheHeaderIsRead() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() <= PlotFormats.HEADER_SIZE) {
+            text.append("# comment\n");
+        }
+        text.append("1.0 2.0 3.0\n");
+        assertThat(detect(text.toString())).isNull();
+    }
+
+    @Test
+    public void streamIsReset() throws IOException {
+        byte[] data = "1.0 2.0 3.0\n".getBytes(StandardCharsets.UTF_8);
+        BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(data));
+        assertThat(PlotFormats.detect(in).getName()).isEqualTo("text");
+        byte[] read = new byte[data.length];
+        assertThat(in.read(read)).isEqualTo(data.length);
+        assertThat(read).isEqualTo(data);
+    }
+
+    private static String detect(String text) throws IOException {
+        PlotFormat format = PlotFormats.detect(new BufferedInputStream(
+                new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))));
+        return format != null ? format.getName() : null;
+    }
+}
@@ -0,0 +1,68 @@
+package models.utils;
+
+import models.User;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PrincipalCacheTest {
+
+    /**
+     * Users in a map instead of the user table, counting the lookups
+     */
+    private static class Users implements PrincipalCache.Users {
+        final Map<String, User> users = new HashMap<>();
+        int lookups = 0;
+
+        User add(String email) {
+            User user = new User();
+            user.email = email;
+            users.put(email, user);
+            return user;
+        }
+
+        @Override
+        public User find(String email) {
+            lookups++;
+            return users.get(email);
+        }
+    }
+
+    @Test
+    public void userIsReadOnce() {
+        Users users = new Users();
+        User user = users.add("principal-once@test");
+        assertThat(PrincipalCache.get(user.email, users)).isSameAs(user);
+        assertThat(PrincipalCache.get(user.email, users)).isSameAs(user);
+        assertThat(users.lookups).isEqualTo(1);
+    }
+
+    @Test
+    public void missingUserIsNotCached() {
+        Users users = new Users();
+        String email = "principal-new@test";
+        assertThat(PrincipalCache.get(email, users)).isNull();
+        // the user registers
+        User user = users.add(email);
+        assertThat(PrincipalCache.get(email, users)).isSameAs(user);
+        assertThat(users.lookups).isEqualTo(2);
+    }
+
+    @Test
+    public void invalidatedUserIsReadAgain() {
+        Users users = new Users();
+        User user = users.add("principal-changed@test");
+        PrincipalCache.get(user.email, users);
+        User changed = users.add(user.email);
+        assertThat(PrincipalCache.get(user.email, users)).isSameAs(user);
+
+        PrincipalCache.invalidate(user.email);
+        assertThat(PrincipalCache.get(user.email, users)).isSameAs(changed);
+        users.users.remove(user.email);
+        PrincipalCache.invalidate(user.email);
+        assertThat(PrincipalCache.get(user.email, users)).isNull();
+    }
+}